@@ -106,10 +106,9 @@ public class CalcInputsGenerator {
 			GEM1ERF modelERF = new GEM1_CEUS_ERF(calcSet);
 			if (settings.isSerializeERF()) {
 				modelERF.updateForecast();
-				if (calcSet.isSourceCache()) {
-					for (int i=0; i<modelERF.getNumSources(); i++)
-						modelERF.getSource(i);
-				}
+				// build all sources now, pinned so that none are evicted before serialization
+				if (calcSet.isSourceCache())
+					modelERF.warmSourceCache(true);
 			}
 //			System.out.println("TRT 0: " + modelERF.getSource(0).getTectonicRegionType());
 //			System.exit(0);
@@ -1,7 +1,16 @@
 package org.opensha.sha.earthquake.rupForecastImpl.GEM1;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
 
 import org.opensha.commons.calc.magScalingRelations.MagAreaRelationship;
 import org.opensha.commons.calc.magScalingRelations.MagScalingRelationship;
@@ -31,6 +40,10 @@ import org.opensha.sha.faultSurface.ApproxEvenlyGriddedSurface;
 import org.opensha.sha.faultSurface.StirlingGriddedSurface;
 import org.opensha.sha.util.TectonicRegionType;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
 /**
  * <p>Title: GEM1ERF </p>
  *
@@ -286,7 +299,19 @@ public class GEM1ERF extends AbstractERF {
 	public final static Boolean SOURCE_CACHE_PARAM_DEFAULT = false;
 	private BooleanParameter sourceCacheParam;
 	
-	private HashMap<Integer, ProbEqkSource> sourceCache = null;
+	// soft values, so that sources are evicted under memory pressure. not serializable, see writeObject()
+	private transient volatile Cache<Integer, CachedSource> sourceCache = null;
+	// optional bound on the total number of cached ruptures, if positive
+	private long sourceCacheMaxRuptures = -1;
+	// if true, cached sources are held strongly (not evicted) until the next forecast update
+	private boolean sourceCachePinned = false;
+	// if true, point, point-to-line and area sources are cached in serialized form, otherwise they aren't cached
+	private boolean serializeCompactSources = false;
+	
+	private AtomicLong sourceCacheHits = new AtomicLong();
+	private AtomicLong sourceCacheMisses = new AtomicLong();
+	private AtomicLong sourceBuildNanos = new AtomicLong();
+	private AtomicLong sourceDeserializeNanos = new AtomicLong();
 	
 	private ArrayList<TectonicRegionType> tectonicRegionTypes;
 
@@ -578,7 +603,7 @@ public class GEM1ERF extends AbstractERF {
 		sourceCacheParam = new BooleanParameter(SOURCE_CACHE_PARAM_NAME, SOURCE_CACHE_PARAM_DEFAULT);
 		sourceCacheParam.setInfo(SOURCE_CACHE_PARAM_INFO);
 		if (sourceCacheParam.getValue())
-			sourceCache = new HashMap<Integer, ProbEqkSource>();
+			sourceCache = buildSourceCache();
 
 		// Add the change listener to parameters
 		// -- Area sources
@@ -915,34 +940,249 @@ public class GEM1ERF extends AbstractERF {
 	}	
 
 	/**
-	 * Returns the ith earthquake source
+	 * Returns the ith earthquake source. If source caching is enabled, each cached source is only built once (until
+	 * it is evicted), even when requested concurrently from multiple threads.
+	 * 
+	 * Point, point-to-line and area sources build each rupture on request in a single mutable rupture object, so
+	 * every call returns a new, private instance. By default these are cheap to build and aren't cached; if
+	 * {@link #setSerializeCompactSources(boolean)} is set, they are cached in serialized form and deserialized on each
+	 * call instead. Cached fault and subduction sources (whose ruptures are built up front) are shared by all callers,
+	 * and must not be modified.
 	 *
 	 * @param iSource : index of the source needed
 	 */
 	public ProbEqkSource getSource(int iSource) {
-		ProbEqkSource source = null;
-		if (sourceCache !=  null) {
-			source = sourceCache.get(new Integer(iSource));
-		}
-		if (source == null) {
-			GEMSourceData srcData = gemSourceDataList.get(iSource);
-			if(srcData instanceof GEMFaultSourceData)
-				source = mkFaultSource((GEMFaultSourceData)srcData);
-			else if (srcData instanceof GEMSubductionFaultSourceData)
-				source = mkSubductionSource((GEMSubductionFaultSourceData)srcData);
-			else if (srcData instanceof GEMPointSourceData)
-				source = mkGridSource((GEMPointSourceData)srcData);
-			else if (srcData instanceof GEMAreaSourceData)
-				source = mkAreaSource((GEMAreaSourceData)srcData);
-			else
-				throw new RuntimeException(NAME+": "+srcData.getClass()+" not yet supported");
-			if (sourceCache != null) {
-				System.out.println("Caching source " + iSource);
-				sourceCache.put(new Integer(iSource), source);
+		Cache<Integer, CachedSource> cache = sourceCache;
+		if (cache == null || !isCachedSource(iSource))
+			return buildSource(iSource);
+		CachedSource cached = cache.getIfPresent(iSource);
+		if (cached == null) {
+			// if this call builds the source, it returns the instance it built rather than a copy
+			ProbEqkSource[] built = new ProbEqkSource[1];
+			try {
+				cached = cache.get(iSource, () -> {
+					built[0] = buildSource(iSource);
+					return new CachedSource(built[0], !isSharedSource(iSource));
+				});
+			} catch (ExecutionException | UncheckedExecutionException e) {
+				if (e.getCause() instanceof RuntimeException)
+					throw (RuntimeException)e.getCause();
+				throw new RuntimeException(e.getCause());
 			}
+			if (built[0] != null)
+				return built[0];
 		}
+		if (cached.isRebuilt())
+			// counted as a miss when built
+			return buildSource(iSource);
+		sourceCacheHits.incrementAndGet();
+		if (cached.isShared())
+			return cached.getSource();
+		long startTime = System.nanoTime();
+		ProbEqkSource source = cached.getSource();
+		sourceDeserializeNanos.addAndGet(System.nanoTime() - startTime);
 		return source;
 	}
+	
+	private boolean isSharedSource(int iSource) {
+		GEMSourceData srcData = gemSourceDataList.get(iSource);
+		return srcData instanceof GEMFaultSourceData || srcData instanceof GEMSubductionFaultSourceData;
+	}
+	
+	private boolean isCachedSource(int iSource) {
+		return serializeCompactSources || isSharedSource(iSource);
+	}
+	
+	private ProbEqkSource buildSource(int iSource) {
+		long startTime = System.nanoTime();
+		ProbEqkSource source;
+		GEMSourceData srcData = gemSourceDataList.get(iSource);
+		if(srcData instanceof GEMFaultSourceData)
+			source = mkFaultSource((GEMFaultSourceData)srcData);
+		else if (srcData instanceof GEMSubductionFaultSourceData)
+			source = mkSubductionSource((GEMSubductionFaultSourceData)srcData);
+		else if (srcData instanceof GEMPointSourceData)
+			source = mkGridSource((GEMPointSourceData)srcData);
+		else if (srcData instanceof GEMAreaSourceData)
+			source = mkAreaSource((GEMAreaSourceData)srcData);
+		else
+			throw new RuntimeException(NAME+": "+srcData.getClass()+" not yet supported");
+		sourceCacheMisses.incrementAndGet();
+		sourceBuildNanos.addAndGet(System.nanoTime() - startTime);
+		return source;
+	}
+	
+	/**
+	 * Source cache entry, holding either a shared source or the serialized form of a source which needs a
+	 * private instance for each call. If such a source can't be serialized, it is rebuilt for each call instead.
+	 */
+	private static class CachedSource implements Serializable {
+		
+		private ProbEqkSource source;
+		private byte[] serialized;
+		private int numRuptures;
+		
+		private CachedSource(ProbEqkSource source, boolean serialize) {
+			this.numRuptures = source.getNumRuptures();
+			if (!serialize) {
+				this.source = source;
+				return;
+			}
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				ObjectOutputStream out = new ObjectOutputStream(bytes);
+				out.writeObject(source);
+				out.close();
+				serialized = bytes.toByteArray();
+			} catch (IOException e) {
+				// not serializable, rebuilt for each call
+			}
+		}
+		
+		private boolean isRebuilt() {
+			return source == null && serialized == null;
+		}
+		
+		private boolean isShared() {
+			return source != null;
+		}
+		
+		private ProbEqkSource getSource() {
+			if (source != null)
+				return source;
+			try {
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serialized));
+				ProbEqkSource source = (ProbEqkSource)in.readObject();
+				in.close();
+				return source;
+			} catch (Exception e) {
+				throw new RuntimeException(NAME+": couldn't deserialize cached source", e);
+			}
+		}
+	}
+	
+	private Cache<Integer, CachedSource> buildSourceCache() {
+		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+		if (sourceCachePinned)
+			return builder.build();
+		builder = builder.softValues();
+		if (sourceCacheMaxRuptures > 0)
+			return builder.maximumWeight(sourceCacheMaxRuptures)
+					.weigher((Integer iSource, CachedSource cached) -> Math.max(1, cached.numRuptures)).build();
+		return builder.build();
+	}
+	
+	/**
+	 * Builds (in parallel) and caches all sources which aren't already cached, skipping point, point-to-line and
+	 * area sources unless they are cached serialized. Does nothing if source caching is disabled or the forecast
+	 * hasn't been updated.
+	 * 
+	 * @param pin if true, cached sources are held strongly, and not evicted, until the next forecast update
+	 * or change to the cache settings, e.g. so that they are all included when this ERF is serialized
+	 */
+	public void warmSourceCache(boolean pin) {
+		if (sourceCache == null || gemSourceDataList == null)
+			return;
+		if (pin && !sourceCachePinned) {
+			sourceCachePinned = true;
+			Cache<Integer, CachedSource> pinned = buildSourceCache();
+			pinned.putAll(sourceCache.asMap());
+			sourceCache = pinned;
+		}
+		long prevMisses = sourceCacheMisses.get();
+		long startTime = System.currentTimeMillis();
+		IntStream.range(0, getNumSources()).parallel().filter(this::isCachedSource).forEach(this::getSource);
+		double secs = (System.currentTimeMillis() - startTime)/1000d;
+		System.out.println("Built "+(sourceCacheMisses.get()-prevMisses)+"/"+getNumSources()+" sources in "
+				+(float)secs+" s");
+	}
+	
+	/**
+	 * Sets an upper bound on the total number of ruptures in cached sources, in addition to eviction under memory
+	 * pressure. Clears the cache.
+	 * 
+	 * @param maxRuptures maximum number of cached ruptures, or a non-positive value for no limit
+	 */
+	public void setSourceCacheMaxRuptures(long maxRuptures) {
+		this.sourceCacheMaxRuptures = maxRuptures;
+		sourceCachePinned = false;
+		if (sourceCache != null)
+			sourceCache = buildSourceCache();
+	}
+	
+	/**
+	 * If true, point, point-to-line and area sources are cached in serialized form and deserialized on each request.
+	 * Otherwise (the default) they aren't cached, and are built on each request. Clears the cache.
+	 */
+	public void setSerializeCompactSources(boolean serializeCompactSources) {
+		this.serializeCompactSources = serializeCompactSources;
+		sourceCachePinned = false;
+		if (sourceCache != null)
+			sourceCache = buildSourceCache();
+	}
+	
+	public boolean isSerializeCompactSources() {
+		return serializeCompactSources;
+	}
+	
+	/**
+	 * @return number of getSource(...) calls answered from the cache, without building the source
+	 */
+	public long getSourceCacheHits() {
+		return sourceCacheHits.get();
+	}
+	
+	/**
+	 * @return number of sources built, which includes every getSource(...) call for sources that aren't cached
+	 */
+	public long getSourceCacheMisses() {
+		return sourceCacheMisses.get();
+	}
+	
+	/**
+	 * @return total time spent building sources, in seconds
+	 */
+	public double getSourceBuildTime() {
+		return sourceBuildNanos.get()/1e9;
+	}
+	
+	/**
+	 * @return total time spent deserializing sources cached in serialized form, in seconds
+	 */
+	public double getSourceDeserializeTime() {
+		return sourceDeserializeNanos.get()/1e9;
+	}
+	
+	/**
+	 * @return number of sources currently cached, or 0 if caching is disabled
+	 */
+	public long getSourceCacheSize() {
+		Cache<Integer, CachedSource> cache = sourceCache;
+		return cache == null ? 0 : cache.size();
+	}
+	
+	public void resetSourceCacheStats() {
+		sourceCacheHits.set(0);
+		sourceCacheMisses.set(0);
+		sourceBuildNanos.set(0);
+		sourceDeserializeNanos.set(0);
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		Cache<Integer, CachedSource> cache = sourceCache;
+		out.writeObject(cache == null ? null : new HashMap<Integer, CachedSource>(cache.asMap()));
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		HashMap<Integer, CachedSource> cached = (HashMap<Integer, CachedSource>)in.readObject();
+		if (cached != null) {
+			sourceCache = buildSourceCache();
+			sourceCache.putAll(cached);
+		}
+	}
 
 	/**
 	 * Get the number of earthquake sources
@@ -1026,11 +1266,10 @@ public class GEM1ERF extends AbstractERF {
 			else // (floaterTypeName.equals(this.FLOATER_TYPE_CENTERED_DOWNDIP)) 
 				subductionFloaterTypeValue = 2;
 			
-			// clear cache (if used) and garbage collect
-			if (sourceCache != null) {
-				sourceCache = null;
-				System.gc();
-			}
+			// clear cache (if used)
+			sourceCachePinned = false;
+			if (sourceCache != null)
+				sourceCache = buildSourceCache();
 			
 			// make the list of sources
 			gemSourceDataList = new ArrayList<GEMSourceData>();
@@ -1064,10 +1303,10 @@ public class GEM1ERF extends AbstractERF {
 		if (paramName.equals(SOURCE_CACHE_PARAM_NAME)) {
 			if ((Boolean)event.getParameter().getValue()) {
 				if (sourceCache == null)
-					sourceCache = new HashMap<Integer, ProbEqkSource>();
+					sourceCache = buildSourceCache();
 			} else {
+				sourceCachePinned = false;
 				sourceCache = null;
-				System.gc();  // garbage collection
 			}
 		} else
 			parameterChangeFlag = true;
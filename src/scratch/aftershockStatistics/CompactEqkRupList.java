@@ -1,5 +1,14 @@
 package scratch.aftershockStatistics;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -12,6 +21,10 @@ import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
 
 import org.apache.commons.math3.distribution.UniformRealDistribution;
 
+import scratch.aftershockStatistics.util.SphLatLon;
+import scratch.aftershockStatistics.util.SphRegion;
+import scratch.aftershockStatistics.util.SphRegionCircle;
+
 /**
  * Compact representation of earthquake rupture sequence.
  * Author: Michael Barall 03/29/2018.
@@ -183,6 +196,152 @@ public class CompactEqkRupList extends AbstractList<ObsEqkRupture> {
 
 
 
+	//----- Primitive access -----
+
+	// These functions read a single value directly from the compressed arrays,
+	// without creating an ObsEqkRupture or Location.
+
+	// get_lat_lon_depth - Get compressed latitude, longitude, and depth for the earthquake at the given index.
+
+	public long get_lat_lon_depth (int index) {
+		if (!( index >= 0 && index < eqk_count )) {
+			throw new IndexOutOfBoundsException("CompactEqkRupList.get_lat_lon_depth: Invalid index: index = " + index + ", size = " + eqk_count);
+		}
+		return lat_lon_depth_list[index];
+	}
+
+	// get_mag_time - Get compressed magnitude and time for the earthquake at the given index.
+
+	public long get_mag_time (int index) {
+		if (!( index >= 0 && index < eqk_count )) {
+			throw new IndexOutOfBoundsException("CompactEqkRupList.get_mag_time: Invalid index: index = " + index + ", size = " + eqk_count);
+		}
+		return mag_time_list[index];
+	}
+
+	// has_location - Return true if the earthquake at the given index has location data.
+
+	public boolean has_location (int index) {
+		return get_lat_lon_depth (index) != 0L;
+	}
+
+	// get_lat - Get latitude for the earthquake at the given index.
+
+	public double get_lat (int index) {
+		return extract_lat (get_lat_lon_depth (index));
+	}
+
+	// get_lon - Get longitude for the earthquake at the given index.
+
+	public double get_lon (int index) {
+		return extract_lon (get_lat_lon_depth (index));
+	}
+
+	// get_depth - Get depth for the earthquake at the given index.
+
+	public double get_depth (int index) {
+		return extract_depth (get_lat_lon_depth (index));
+	}
+
+	// get_mag - Get magnitude for the earthquake at the given index.
+
+	public double get_mag (int index) {
+		return extract_mag (get_mag_time (index));
+	}
+
+	// get_time - Get time for the earthquake at the given index.
+
+	public long get_time (int index) {
+		return extract_time (get_mag_time (index));
+	}
+
+
+
+
+	//----- Filtering -----
+
+	/**
+	 * filter_indices - Find the earthquakes that satisfy the given conditions.
+	 * @param time_lo = Minimum time, in milliseconds since the epoch (inclusive).
+	 * @param time_hi = Maximum time, in milliseconds since the epoch (exclusive).
+	 * @param mag_min = Minimum magnitude (inclusive).
+	 * @param region = Region that must contain the earthquake, or null if no region test.
+	 * @param indices = Array to receive the indices of selected earthquakes, in increasing order,
+	 *                  or null to just count them.  If non-null, must have length at least size().
+	 * @return
+	 * Returns the number of selected earthquakes.
+	 * Earthquakes with no magnitude and time data are never selected.  If region is non-null,
+	 * earthquakes with no location data are not selected.
+	 * Only the compressed values are examined, and no objects are allocated per earthquake.
+	 */
+	public int filter_indices (long time_lo, long time_hi, double mag_min, SphRegion region, int[] indices) {
+		if (!( indices == null || indices.length >= eqk_count )) {
+			throw new IndexOutOfBoundsException("CompactEqkRupList.filter_indices: Index array too short: length = " + indices.length + ", size = " + eqk_count);
+		}
+
+		int count = 0;
+
+		for (int index = 0; index < eqk_count; ++index) {
+			long mag_time = mag_time_list[index];
+			if (mag_time == 0L) {
+				continue;
+			}
+
+			long time = extract_time (mag_time);
+			if (time < time_lo || time >= time_hi) {
+				continue;
+			}
+
+			if (extract_mag (mag_time) < mag_min) {
+				continue;
+			}
+
+			if (region != null) {
+				long lat_lon_depth = lat_lon_depth_list[index];
+				if (lat_lon_depth == 0L) {
+					continue;
+				}
+				if (!( region.contains (extract_lat (lat_lon_depth), extract_lon (lat_lon_depth)) )) {
+					continue;
+				}
+			}
+
+			if (indices != null) {
+				indices[count] = index;
+			}
+			++count;
+		}
+
+		return count;
+	}
+
+	/**
+	 * filter - Make a list containing the earthquakes that satisfy the given conditions.
+	 * @param time_lo = Minimum time, in milliseconds since the epoch (inclusive).
+	 * @param time_hi = Maximum time, in milliseconds since the epoch (exclusive).
+	 * @param mag_min = Minimum magnitude (inclusive).
+	 * @param region = Region that must contain the earthquake, or null if no region test.
+	 * @return
+	 * Returns a new list, with arrays of length exactly equal to the number of selected earthquakes.
+	 * See filter_indices for selection rules.  The compressed values are copied directly.
+	 */
+	public CompactEqkRupList filter (long time_lo, long time_hi, double mag_min, SphRegion region) {
+		int[] indices = new int[eqk_count];
+		int count = filter_indices (time_lo, time_hi, mag_min, region, indices);
+
+		long[] new_lat_lon_depth_list = new long[count];
+		long[] new_mag_time_list = new long[count];
+		for (int n = 0; n < count; ++n) {
+			new_lat_lon_depth_list[n] = lat_lon_depth_list[indices[n]];
+			new_mag_time_list[n] = mag_time_list[indices[n]];
+		}
+
+		return new CompactEqkRupList (count, new_lat_lon_depth_list, new_mag_time_list);
+	}
+
+
+
+
 	//----- Static compression functions -----
 
 	// combine_lat_lon_depth - Combine latitude, longitude, and depth.
@@ -628,6 +787,85 @@ public class CompactEqkRupList extends AbstractList<ObsEqkRupture> {
 
 
 
+	//----- Binary file -----
+
+	// The binary file contains a header followed by the two compressed arrays, as big-endian longs:
+	//  long    FILE_MAGIC
+	//  int     FILE_VERSION
+	//  int     eqk_count
+	//  long[]  lat_lon_depth_list (eqk_count elements)
+	//  long[]  mag_time_list (eqk_count elements)
+
+	public static final long FILE_MAGIC = 0x43455152464C4531L;	// "CEQRFLE1"
+	public static final int FILE_VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 16;
+
+	/**
+	 * write_file - Write the list to a binary file.
+	 * @param filename = Name of file.
+	 */
+	public void write_file (String filename) throws IOException {
+		try (
+			DataOutputStream out = new DataOutputStream (new BufferedOutputStream (new FileOutputStream (filename)));
+		){
+			out.writeLong (FILE_MAGIC);
+			out.writeInt (FILE_VERSION);
+			out.writeInt (eqk_count);
+			for (int index = 0; index < eqk_count; ++index) {
+				out.writeLong (lat_lon_depth_list[index]);
+			}
+			for (int index = 0; index < eqk_count; ++index) {
+				out.writeLong (mag_time_list[index]);
+			}
+		}
+		return;
+	}
+
+	/**
+	 * read_file - Read a list from a binary file.
+	 * @param filename = Name of file.
+	 * @return
+	 * Returns the list, with arrays of length exactly equal to the number of earthquakes.
+	 * The file is memory-mapped and the compressed values are bulk-copied into the arrays,
+	 * so no objects are created per earthquake.
+	 */
+	public static CompactEqkRupList read_file (String filename) throws IOException {
+		try (
+			FileChannel channel = FileChannel.open (Paths.get (filename), StandardOpenOption.READ);
+		){
+			long file_size = channel.size();
+			if (file_size < FILE_HEADER_SIZE) {
+				throw new IOException ("CompactEqkRupList.read_file: File too short: " + filename);
+			}
+
+			MappedByteBuffer buffer = channel.map (FileChannel.MapMode.READ_ONLY, 0L, file_size);
+
+			if (buffer.getLong() != FILE_MAGIC) {
+				throw new IOException ("CompactEqkRupList.read_file: Invalid file format: " + filename);
+			}
+			int version = buffer.getInt();
+			if (version != FILE_VERSION) {
+				throw new IOException ("CompactEqkRupList.read_file: Unsupported file version: " + version + ", file = " + filename);
+			}
+			int count = buffer.getInt();
+			if (count < 0 || file_size < FILE_HEADER_SIZE + 16L * count) {
+				throw new IOException ("CompactEqkRupList.read_file: Invalid earthquake count: " + count + ", file = " + filename);
+			}
+
+			long[] the_lat_lon_depth_list = new long[count];
+			long[] the_mag_time_list = new long[count];
+
+			LongBuffer longs = buffer.asLongBuffer();
+			longs.get (the_lat_lon_depth_list);
+			longs.get (the_mag_time_list);
+
+			return new CompactEqkRupList (count, the_lat_lon_depth_list, the_mag_time_list);
+		}
+	}
+
+
+
+
 	//----- Testing -----
 
 
@@ -1174,6 +1412,123 @@ public class CompactEqkRupList extends AbstractList<ObsEqkRupture> {
 
 
 
+		// Subcommand : Test #3
+		// Command format:
+		//  test3  num_events  filename
+		// Construct a CompactEqkRupList with random contents, write it to the given file,
+		// read it back, and check that the contents are identical.  Then, check that
+		// the primitive accessors and filters agree with the values obtained through get.
+
+		if (args[0].equalsIgnoreCase ("test3")) {
+
+			// Two additional arguments
+
+			if (args.length != 3) {
+				System.err.println ("CompactEqkRupList : Invalid 'test3' subcommand");
+				return;
+			}
+			int num_events = Integer.parseInt(args[1]);
+			String filename = args[2];
+
+			// Random number generator
+
+			UniformRealDistribution rangen = new UniformRealDistribution();
+
+			// Make the list
+
+			System.out.println ("Creating rupture list ...");
+
+			CompactEqkRupList compact_list = new CompactEqkRupList();
+			for (int n = 0; n < num_events; ++n) {
+				compact_list.add (test_make_random_rupture (rangen));
+			}
+
+			// Write and read the file
+
+			System.out.println ("Writing and reading file ...");
+
+			CompactEqkRupList file_list;
+			try {
+				compact_list.write_file (filename);
+				file_list = read_file (filename);
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+
+			if (!( file_list.size() == compact_list.size() )) {
+				System.out.println ("Size mismatch: " + file_list.size() + " vs " + compact_list.size());
+				return;
+			}
+
+			int errors = 0;
+			for (int n = 0; n < num_events; ++n) {
+				if (!( file_list.get_lat_lon_depth (n) == compact_list.get_lat_lon_depth (n)
+					&& file_list.get_mag_time (n) == compact_list.get_mag_time (n) )) {
+					++errors;
+				}
+			}
+			System.out.println ("File error count: " + errors);
+
+			// Check primitive accessors
+
+			System.out.println ("Checking primitive accessors ...");
+
+			errors = 0;
+			for (int n = 0; n < num_events; ++n) {
+				ObsEqkRupture rup = compact_list.get (n);
+				Location loc = rup.getHypocenterLocation();
+				if (!( rup.getMag() == compact_list.get_mag (n)
+					&& rup.getOriginTime() == compact_list.get_time (n)
+					&& (loc != null) == compact_list.has_location (n)
+					&& (loc == null || (loc.getLatitude() == compact_list.get_lat (n)
+										&& loc.getLongitude() == compact_list.get_lon (n)
+										&& loc.getDepth() == compact_list.get_depth (n))) )) {
+					++errors;
+				}
+			}
+			System.out.println ("Accessor error count: " + errors);
+
+			// Check filter against a filter done on ruptures
+
+			System.out.println ("Checking filter ...");
+
+			double mag_min = 2.0;
+			long time_lo = -10000000000000L;
+			long time_hi = 10000000000000L;
+			SphRegion region = new SphRegionCircle (new SphLatLon (35.0, -120.0), 5000.0);
+
+			int[] indices = new int[num_events];
+			int count = compact_list.filter_indices (time_lo, time_hi, mag_min, region, indices);
+
+			int ref_count = 0;
+			errors = 0;
+			for (int n = 0; n < num_events; ++n) {
+				ObsEqkRupture rup = compact_list.get (n);
+				Location loc = rup.getHypocenterLocation();
+				if (rup.getOriginTime() >= time_lo && rup.getOriginTime() < time_hi
+					&& rup.getMag() >= mag_min && loc != null && region.contains (loc)) {
+					if (!( ref_count < count && indices[ref_count] == n )) {
+						++errors;
+					}
+					++ref_count;
+				}
+			}
+			if (ref_count != count) {
+				++errors;
+			}
+			System.out.println ("Filter selected " + count + " of " + num_events + " earthquakes, expected " + ref_count);
+			System.out.println ("Filter error count: " + errors);
+
+			CompactEqkRupList filtered_list = compact_list.filter (time_lo, time_hi, mag_min, region);
+			System.out.println ("Filtered list size: " + filtered_list.size());
+
+			return;
+		}
+
+
+
+
 		// Unrecognized subcommand.
 
 		System.err.println ("CompactEqkRupList : Unrecognized subcommand : " + args[0]);
@@ -0,0 +1,383 @@
+package scratch.aftershockStatistics;
+
+import java.util.Random;
+
+import org.apache.commons.math3.distribution.PoissonDistribution;
+import org.apache.commons.math3.special.Gamma;
+import org.opensha.commons.data.function.ArbDiscrEmpiricalDistFunc;
+import org.opensha.commons.data.function.HistogramFunction;
+
+
+/**
+ * Fractiles of a weighted mixture of Poisson distributions.
+ *
+ * This is the computational engine for RJ_AftershockModel.getCumNumFractileWithAleatory.
+ * The mixture is defined by a discrete distribution of expected values (for example,
+ * numMag5_DistributionFunc, the distribution of the expected number of M >= 5 aftershocks),
+ * with each expected value multiplied by a common scale factor (for example,
+ * 10^(b*(5 - mag)) to convert to magnitude mag).
+ *
+ * The support of the distribution is copied into primitive arrays once, when the object
+ * is created, and then shared by all scale factors (magnitudes).  Poisson probabilities
+ * are evaluated by recurrence outward from the mode, which needs one call to logGamma
+ * per support point, instead of constructing a PoissonDistribution object and computing
+ * two inverse cumulative probabilities for each support point.
+ *
+ * The result is equivalent to the original algorithm up to rounding: each Poisson
+ * distribution is truncated to the range between its 0.0001 and 0.9999 fractiles, and
+ * the mixture is truncated at the 0.999 fractile of the Poisson distribution with the
+ * largest expected value.  Because the probabilities come from a recurrence rather than
+ * from PoissonDistribution, they can differ in the last few bits, which can occasionally
+ * move a fractile that falls exactly on a cumulative probability boundary.
+ *
+ * An object of this class is not thread-safe, because it re-uses a scratch buffer.
+ */
+public class PoissonMixtureFractiles {
+
+	// Expected values in the support, in increasing order.
+
+	private final double[] supportX;
+
+	// Weight of each expected value.
+
+	private final double[] supportW;
+
+	// Poisson probabilities are computed out from the mode until they fall below this
+	// fraction of the probability at the mode.
+
+	private static final double TAIL_EPS = 1.0e-18;
+
+	// Fractiles used to truncate each Poisson distribution, and the mixture.
+
+	private static final double LOOP_FRACTILE_LO = 0.0001;
+	private static final double LOOP_FRACTILE_HI = 0.9999;
+	private static final double MAX_FRACTILE = 0.999;
+
+	// Scratch buffer for Poisson probabilities, and the range of values it holds.
+	// pmfBuffer[j - pmfLo] is the probability of j, for pmfLo <= j <= pmfHi.
+
+	private double[] pmfBuffer = new double[64];
+	private int pmfLo = 0;
+	private int pmfHi = 0;
+
+
+
+
+	/**
+	 * Create the engine for the given distribution of expected values.
+	 * @param dist = Discrete distribution, x = expected value, y = weight.
+	 */
+	public PoissonMixtureFractiles (ArbDiscrEmpiricalDistFunc dist) {
+		int n = dist.size();
+		supportX = new double[n];
+		supportW = new double[n];
+		for (int i = 0; i < n; i++) {
+			supportX[i] = dist.getX(i);
+			supportW[i] = dist.getY(i);
+		}
+	}
+
+
+
+
+	/**
+	 * Get the number of points in the support.
+	 */
+	public int getSupportSize () {
+		return supportX.length;
+	}
+
+
+
+
+	/**
+	 * Compute fractiles of the mixture.
+	 * @param fractileArray = Desired fractiles (percentile/100) of the probability distribution.
+	 * @param scale = Factor to multiply each expected value in the support.
+	 * @return
+	 * The i-th element of the return value is the fractileArray[i] fractile of the mixture.
+	 * See RJ_AftershockModel.getCumNumFractileWithAleatory for details.
+	 */
+	public double[] getFractiles (double[] fractileArray, double scale) {
+
+		// Get the maximum number, which sets the size of the distribution function
+
+		int maxAleatoryNum = poissonInverseCumulative (supportX[supportX.length - 1] * scale, MAX_FRACTILE);
+
+		// Accumulate the weighted Poisson probabilities
+
+		double[] distFunc = new double[maxAleatoryNum + 1];
+
+		for (int i = 0; i < supportX.length; i++) {
+			double wt = supportW[i];
+			fillPoisson (supportX[i] * scale);
+
+			// Find the 0.0001 and 0.9999 fractiles, by accumulating the probabilities
+
+			int minLoopVal = pmfHi;
+			int maxLoopVal = pmfHi;
+			double cum = 0.0;
+			boolean f_lo = false;
+			for (int j = pmfLo; j <= pmfHi; j++) {
+				cum += pmfBuffer[j - pmfLo];
+				if (!f_lo && cum >= LOOP_FRACTILE_LO) {
+					minLoopVal = j;
+					f_lo = true;
+				}
+				if (cum >= LOOP_FRACTILE_HI) {
+					maxLoopVal = j;
+					break;
+				}
+			}
+
+			if (maxLoopVal > maxAleatoryNum) {
+				maxLoopVal = maxAleatoryNum;
+			}
+			for (int j = minLoopVal; j <= maxLoopVal; j++) {
+				distFunc[j] += pmfBuffer[j - pmfLo] * wt;
+			}
+		}
+
+		// Form the cumulative distribution and extract the fractiles
+
+		HistogramFunction cumDistFunc = new HistogramFunction(0d, (double)maxAleatoryNum, maxAleatoryNum+1);
+		double sum = 0;
+		for (int j = 0; j < distFunc.length; j++) {
+			sum += distFunc[j];
+			cumDistFunc.set(j, sum);
+		}
+
+		return extractFractiles (cumDistFunc, fractileArray);
+	}
+
+
+
+
+	// Extract fractiles from a cumulative distribution function.
+	// This is how RJ_AftershockModel.getCumNumFractileWithAleatory has always done it.
+
+	private static double[] extractFractiles (HistogramFunction cumDistFunc, double[] fractileArray) {
+		double[] fractValArray = new double[fractileArray.length];
+		for (int i = 0; i < fractileArray.length; i++) {
+			double fractVal = (int)Math.round(cumDistFunc.getClosestXtoY(fractileArray[i]));
+			if (cumDistFunc.getY(fractVal) < fractVal)
+				fractVal += 1;	// this is how PoissonDistribution class does it
+			fractValArray[i] = fractVal;
+		}
+		return fractValArray;
+	}
+
+
+
+
+	// Fill pmfBuffer with the Poisson probabilities for the given expected value,
+	// for all values whose probability is not negligible.
+
+	private void fillPoisson (double lambda) {
+
+		// Degenerate distribution
+
+		if (!( lambda > 0.0 )) {
+			pmfLo = 0;
+			pmfHi = 0;
+			pmfBuffer[0] = 1.0;
+			return;
+		}
+
+		// Probability at the mode
+
+		int mode = (int)Math.floor(lambda);
+		double pMode = Math.exp(-lambda + mode * Math.log(lambda) - Gamma.logGamma(mode + 1.0));
+		double cutoff = pMode * TAIL_EPS;
+
+		// Find the range of non-negligible probabilities
+
+		int lo = mode;
+		for (double p = pMode; lo > 0; lo--) {
+			p = p * lo / lambda;
+			if (p < cutoff) {
+				break;
+			}
+		}
+
+		int hi = mode;
+		for (double p = pMode; ; hi++) {
+			p = p * lambda / (hi + 1);
+			if (p < cutoff) {
+				break;
+			}
+		}
+
+		// Fill the buffer by recurrence from the mode
+
+		int len = hi - lo + 1;
+		if (pmfBuffer.length < len) {
+			pmfBuffer = new double[Math.max(len, 2 * pmfBuffer.length)];
+		}
+
+		pmfLo = lo;
+		pmfHi = hi;
+		pmfBuffer[mode - lo] = pMode;
+		for (int j = mode; j > lo; j--) {
+			pmfBuffer[j - 1 - lo] = pmfBuffer[j - lo] * j / lambda;
+		}
+		for (int j = mode; j < hi; j++) {
+			pmfBuffer[j + 1 - lo] = pmfBuffer[j - lo] * lambda / (j + 1);
+		}
+		return;
+	}
+
+
+
+
+	// Return the smallest n such that the Poisson probability of n or fewer is >= fractile.
+	// This matches PoissonDistribution.inverseCumulativeProbability.
+
+	private int poissonInverseCumulative (double lambda, double fractile) {
+		fillPoisson (lambda);
+		double cum = 0.0;
+		for (int j = pmfLo; j <= pmfHi; j++) {
+			cum += pmfBuffer[j - pmfLo];
+			if (cum >= fractile) {
+				return j;
+			}
+		}
+		return pmfHi;
+	}
+
+
+
+
+	// Reference implementation, using PoissonDistribution objects.
+	// This is the original algorithm from RJ_AftershockModel, retained for testing and benchmarking.
+
+	static double[] getFractilesReference (ArbDiscrEmpiricalDistFunc dist, double[] fractileArray, double scale) {
+		double maxExpNum = dist.getMaxX()*scale;
+
+		PoissonDistribution poissDist = new PoissonDistribution(null, maxExpNum, PoissonDistribution.DEFAULT_EPSILON, PoissonDistribution.DEFAULT_MAX_ITERATIONS);
+		int maxAleatoryNum = poissDist.inverseCumulativeProbability(MAX_FRACTILE);
+
+		HistogramFunction cumDistFunc = new HistogramFunction(0d, (double)maxAleatoryNum,maxAleatoryNum+1);
+		double[] distFunc = new double[cumDistFunc.size()];
+
+		for(int i=0;i<dist.size();i++) {
+			double expNum = dist.getX(i)*scale;
+			double wt = dist.getY(i);
+			poissDist = new PoissonDistribution(null, expNum, PoissonDistribution.DEFAULT_EPSILON, PoissonDistribution.DEFAULT_MAX_ITERATIONS);
+
+			int minLoopVal = poissDist.inverseCumulativeProbability(LOOP_FRACTILE_LO);
+			int maxLoopVal = poissDist.inverseCumulativeProbability(LOOP_FRACTILE_HI);
+			if(maxLoopVal>cumDistFunc.size()-1)
+				maxLoopVal=cumDistFunc.size()-1;
+			if(minLoopVal < 0)
+				minLoopVal = 0;
+			for(int j=minLoopVal;j<=maxLoopVal;j++) {
+				distFunc[j] += poissDist.probability(j)*wt;
+			}
+		}
+		double sum=0;
+		for(int j=0;j<distFunc.length;j++) {
+			sum+=distFunc[j];
+			cumDistFunc.set(j,sum);
+		}
+
+		return extractFractiles (cumDistFunc, fractileArray);
+	}
+
+
+
+
+	public static void main(String[] args) {
+
+		// There needs to be at least one argument, which is the subcommand
+
+		if (args.length < 1) {
+			System.err.println ("PoissonMixtureFractiles : Missing subcommand");
+			return;
+		}
+
+
+		// Subcommand : Benchmark #1
+		// Command format:
+		//  bench1  num_support  num_mag  seed
+		// Construct a random distribution of expected values with the given number of support points.
+		// For num_mag magnitudes between 3 and 8, compute fractiles with the reference algorithm
+		// and with this class, compare the results, and display the time taken by each.
+
+		if (args[0].equalsIgnoreCase ("bench1")) {
+
+			// Three additional arguments
+
+			if (args.length != 4) {
+				System.err.println ("PoissonMixtureFractiles : Invalid 'bench1' subcommand");
+				return;
+			}
+
+			int num_support = Integer.parseInt (args[1]);
+			int num_mag = Integer.parseInt (args[2]);
+			long seed = Long.parseLong (args[3]);
+
+			// Random distribution, expected number of M5 log-uniform over 4 decades
+
+			Random rand = new Random (seed);
+			ArbDiscrEmpiricalDistFunc dist = new ArbDiscrEmpiricalDistFunc();
+			for (int i = 0; i < num_support; i++) {
+				dist.set (Math.pow (10.0, -2.0 + 4.0*rand.nextDouble()), rand.nextDouble() / num_support);
+			}
+
+			double b = 1.0;
+			double[] fractileArray = {0.025, 0.5, 0.975};
+
+			// Reference
+
+			long ref_time = System.currentTimeMillis();
+			double[][] ref_vals = new double[num_mag][];
+			for (int m = 0; m < num_mag; m++) {
+				double mag = 3.0 + 5.0 * m / Math.max (1, num_mag - 1);
+				ref_vals[m] = getFractilesReference (dist, fractileArray, Math.pow (10.0, b*(5.0 - mag)));
+			}
+			ref_time = System.currentTimeMillis() - ref_time;
+
+			// This class
+
+			long new_time = System.currentTimeMillis();
+			PoissonMixtureFractiles engine = new PoissonMixtureFractiles (dist);
+			double[][] new_vals = new double[num_mag][];
+			for (int m = 0; m < num_mag; m++) {
+				double mag = 3.0 + 5.0 * m / Math.max (1, num_mag - 1);
+				new_vals[m] = engine.getFractiles (fractileArray, Math.pow (10.0, b*(5.0 - mag)));
+			}
+			new_time = System.currentTimeMillis() - new_time;
+
+			// Compare
+
+			int mismatch = 0;
+			for (int m = 0; m < num_mag; m++) {
+				for (int i = 0; i < fractileArray.length; i++) {
+					if (ref_vals[m][i] != new_vals[m][i]) {
+						++mismatch;
+						System.out.println ("Mismatch: m = " + m + ", fractile = " + fractileArray[i]
+							+ ", reference = " + ref_vals[m][i] + ", new = " + new_vals[m][i]);
+					}
+				}
+			}
+
+			System.out.println ("Support size = " + engine.getSupportSize() + ", magnitudes = " + num_mag);
+			System.out.println ("Reference time = " + ref_time + " ms");
+			System.out.println ("New time = " + new_time + " ms");
+			System.out.println ("Mismatches = " + mismatch);
+
+			return;
+		}
+
+
+
+
+		// Unrecognized subcommand.
+
+		System.err.println ("PoissonMixtureFractiles : Unrecognized subcommand : " + args[0]);
+		return;
+
+	}
+
+}
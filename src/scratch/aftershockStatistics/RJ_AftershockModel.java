@@ -3,7 +3,6 @@ package scratch.aftershockStatistics;
 import java.util.ArrayList;
 import java.util.Arrays;
 
-import org.apache.commons.math3.distribution.PoissonDistribution;
 //import org.mongodb.morphia.annotations.Transient;
 import org.opensha.commons.data.function.ArbDiscrEmpiricalDistFunc;
 import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
@@ -214,6 +213,13 @@ public abstract class RJ_AftershockModel {
 	//@Transient
 	protected ArbDiscrEmpiricalDistFunc numMag5_DistributionFunc = null;
 
+	// Fractile engine for the mixture of Poisson distributions defined by numMag5_DistributionFunc,
+	// or null if it has not been built yet.  It is built on demand, and discarded whenever
+	// numMag5_DistributionFunc is recomputed.
+
+	//@Transient
+	protected PoissonMixtureFractiles numMag5_Fractiles = null;
+
 	// The time interval used to calculate numMag5_DistributionFunc,
 	// measured in days after the mainshock.
 	// Note: The value of numMag5_DistributionFunc is cached so it need not be recomputed
@@ -390,6 +396,7 @@ public abstract class RJ_AftershockModel {
 		// Invalidate the event count likelihood function
 
 		numMag5_DistributionFunc = null;
+		numMag5_Fractiles = null;
 		tMinDaysCurrent = -1.0;
 		tMaxDaysCurrent = -1.0;
 
@@ -606,6 +613,7 @@ public abstract class RJ_AftershockModel {
 		tMinDaysCurrent = tMinDays;
 		tMaxDaysCurrent = tMaxDays;
 		numMag5_DistributionFunc = new ArbDiscrEmpiricalDistFunc();
+		numMag5_Fractiles = null;
 
 		// Add points to the function, x = expected number of M5 aftershocks, y = probability of (a,p,c)
 
@@ -956,71 +964,20 @@ public abstract class RJ_AftershockModel {
 	 * Note that, although the return type is double[], the return values are integers.
 	 *
 	 * Implementation notes:
-	 * Documentation for PoissonDistribution is here:
-	 * http://commons.apache.org/proper/commons-math/javadocs/api-3.6/org/apache/commons/math3/distribution/PoissonDistribution.html
-	 * Since we do not generate samples from PoissonDistribution, it is better to use the constructor:
-	 * PoissonDistribution(RandomGenerator rng, double p, double epsilon, int maxIterations)
-	 * Set rng = null so that it does not create a random number generator.
-	 * Set epsilon and maxIterations to their default values.
-	 * However, this constructor is apparently planned for removal from Apache Math 4.0,
-	 * so leave the original constructor commented-out in case it needs to be restored.
+	 * The computation is done by PoissonMixtureFractiles, which is built once per time
+	 * interval and shared by all magnitudes.  It evaluates Poisson probabilities by
+	 * recurrence, rather than creating a PoissonDistribution for each (a,p,c) value.
 	 */
 	public double[] getCumNumFractileWithAleatory(double[] fractileArray, double mag, double tMinDays, double tMaxDays) {
 		// compute the distribution for the expected num aftershocks with M >= 5 (which we will scale to other magnitudes)
 		computeNumMag5_DistributionFunc(tMinDays, tMaxDays);
 
-		// get the maximum expected num, which we will use to set the maximum num in the distribution function
-//System.out.print("\tworking on M "+mag+"\nunm="+numMag5_DistributionFunc.size()+"\n");
-		double maxExpNum = numMag5_DistributionFunc.getMaxX()*Math.pow(10d, b*(5-mag));
-
-//		PoissonDistribution poissDist = new PoissonDistribution(maxExpNum);
-		PoissonDistribution poissDist = new PoissonDistribution(null, maxExpNum, PoissonDistribution.DEFAULT_EPSILON, PoissonDistribution.DEFAULT_MAX_ITERATIONS);
-		int maxAleatoryNum = poissDist.inverseCumulativeProbability(0.999);
-		
-		HistogramFunction cumDistFunc = new HistogramFunction(0d, (double)maxAleatoryNum,maxAleatoryNum+1);
-		double[] distFunc = new double[cumDistFunc.size()];
-		double totWt=0;
-		
-		for(int i=0;i<numMag5_DistributionFunc.size();i++) {
-//System.out.print(", "+i);
-			double expNum = numMag5_DistributionFunc.getX(i)*Math.pow(10d, b*(5-mag));
-			double wt = numMag5_DistributionFunc.getY(i);
-//			poissDist = new PoissonDistribution(expNum);
-			poissDist = new PoissonDistribution(null, expNum, PoissonDistribution.DEFAULT_EPSILON, PoissonDistribution.DEFAULT_MAX_ITERATIONS);
-			totWt+=wt;
-			
-			int minLoopVal = poissDist.inverseCumulativeProbability(0.0001);
-			int maxLoopVal = poissDist.inverseCumulativeProbability(0.9999);
-			if(maxLoopVal>cumDistFunc.size()-1)
-				maxLoopVal=cumDistFunc.size()-1;
-			if(minLoopVal < 0)
-				minLoopVal = 0;
-			for(int j=minLoopVal;j<=maxLoopVal;j++) {
-				distFunc[j] += poissDist.probability(j)*wt;
-			}
-			
-		}
-		double sum=0;
-		for(int j=0;j<distFunc.length;j++) {
-			sum+=distFunc[j];
-			cumDistFunc.set(j,sum);
-		}
-//System.out.print("\n");
-		double[] fractValArray = new double[fractileArray.length];
-		for(int i=0;i<fractileArray.length;i++) {
-			double fractVal = (int)Math.round(cumDistFunc.getClosestXtoY(fractileArray[i]));
-			if(cumDistFunc.getY(fractVal)<fractVal)
-				fractVal += 1;	// this is how PoissonDistribution class does it	
-			fractValArray[i]=fractVal;
+		// build the fractile engine, if not already built for this time interval
+		if (numMag5_Fractiles == null) {
+			numMag5_Fractiles = new PoissonMixtureFractiles(numMag5_DistributionFunc);
 		}
 
-		
-//		System.out.println("totWt="+totWt);
-//		System.out.println("cumDistFunc.getMaxY()="+cumDistFunc.getMaxY());
-//		System.out.println("fractVal="+fractVal+"\tfractile="+fractile);
-//		GraphWindow graph = new GraphWindow(cumDistFunc, "cumDistFunc"); 
-
-		return fractValArray;
+		return numMag5_Fractiles.getFractiles(fractileArray, Math.pow(10d, b*(5-mag)));
 	}
 
 
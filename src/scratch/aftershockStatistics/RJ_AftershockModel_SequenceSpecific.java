@@ -2,6 +2,7 @@ package scratch.aftershockStatistics;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.stream.IntStream;
 
 //import org.mongodb.morphia.annotations.Transient;
 import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
@@ -293,71 +294,59 @@ public class RJ_AftershockModel_SequenceSpecific extends RJ_AftershockModel {
 		apc_likelihood = new double[num_a][num_p][num_c];
 		double ln10 = Math.log(10);
 
-		// Loop over c first, so we can accumulate log(t+c)
+		// Scan list of aftershocks, once, collecting the times of aftershocks at or above
+		// the magnitude of completeness; none of this depends on (a,p,c)
 
-		for(int cIndex = 0; cIndex < num_c; cIndex++) {
-			double c = get_c(cIndex);
+		double[] eventTimes = new double[aftershockList.size()];
+		int numEvents = 0;
 
-			// Sum of magMain - magMin(t_i)
+		// Sum of magMain - magMin(t_i)
 
-			double sum1 = 0.0;
+		double sum1 = 0.0;
 
-			// Sum of log(t_i + c)
+		for(ObsEqkRupture rup:aftershockList) {
 
-			double sum2 = 0.0;
+			// Get time since the mainshock in days, skip it if it is outside our time interval
 
-			// Number of aftershocks
-
-			int numEvents = 0;
-
-			// Scan list of aftershocks
-
-			for(ObsEqkRupture rup:aftershockList) {
-
-				// Get time since the mainshock in days, skip it if it is outside our time interval
-
-				double timeSinceMainDays = (double)(rup.getOriginTime()-mainShock.getOriginTime()) / (double)AftershockStatsCalc.MILLISEC_PER_DAY;
-				if(timeSinceMainDays < dataStartTimeDays || timeSinceMainDays > dataEndTimeDays) { // not necessary if list already filtered
-					continue;
-				}
+			double timeSinceMainDays = (double)(rup.getOriginTime()-mainShock.getOriginTime()) / (double)AftershockStatsCalc.MILLISEC_PER_DAY;
+			if(timeSinceMainDays < dataStartTimeDays || timeSinceMainDays > dataEndTimeDays) { // not necessary if list already filtered
+				continue;
+			}
 
-				// Get the magnitude of completeness at this time
+			// Get the magnitude of completeness at this time
 
-				double magMin = AftershockStatsCalc.getPageMagCompleteness(
-									magMain, magCat, capG, capH, timeSinceMainDays);
+			double magMin = AftershockStatsCalc.getPageMagCompleteness(
+								magMain, magCat, capG, capH, timeSinceMainDays);
 
-				// If the aftershock magnitude is at least the magnitude of completeness, accumulate it
+			// If the aftershock magnitude is at least the magnitude of completeness, accumulate it
 
-				if(rup.getMag() >= magMin) {
-					numEvents += 1;
-					sum1 += (magMain - magMin);
-					sum2 += Math.log(timeSinceMainDays + c);
-					++numAftershocks;
-				}
+			if(rup.getMag() >= magMin) {
+				eventTimes[numEvents] = timeSinceMainDays;
+				numEvents += 1;
+				sum1 += (magMain - magMin);
 			}
+		}
 
-			// Now loop over p and a
-
-			for(int pIndex=0;pIndex<num_p;pIndex++) {
-				double p = get_p(pIndex);
-				for(int aIndex=0;aIndex<num_a;aIndex++) {
-					double a = get_a(aIndex);
+		numAftershocks = numEvents;
 
-					// Compute the integral of the aftershock rate over the time interval
+		// The a-dependent factors: the integral of the rate is proportional to 10^a,
+		// so it is computed once per (p,c) with a = 0 and then scaled
 
-					double integral = AftershockStatsCalc.getPageExpectedNumEvents(
-						a, b, magMain, magCat, capG, capH, p, c, dataStartTimeDays, dataEndTimeDays);
+		final double[] aTerm = new double[num_a];
+		final double[] pow10a = new double[num_a];
 
-					// Form the log likelihood
+		for(int aIndex=0;aIndex<num_a;aIndex++) {
+			double a = get_a(aIndex);
+			aTerm[aIndex] = numEvents*a*ln10 + b*ln10*sum1;
+			pow10a[aIndex] = Math.pow(10.0, a);
+		}
 
-					double logLike = numEvents*a*ln10 + b*ln10*sum1 - p*sum2 - integral;
+		// Fill the c-slices in parallel, each slice writes only its own array elements
 
-					// Save it as the array element
+		final double[] times = eventTimes;
+		final int nTimes = numEvents;
 
-					apc_likelihood[aIndex][pIndex][cIndex] = logLike;
-				}
-			}
-		}
+		IntStream.range(0, num_c).parallel().forEach(cIndex -> apc_build_c_slice(cIndex, times, nTimes, aTerm, pow10a));
 
 		// Complete the likelihood setup
 
@@ -374,6 +363,49 @@ public class RJ_AftershockModel_SequenceSpecific extends RJ_AftershockModel {
 
 
 
+	/**
+	 * Fill the c-slice apc_likelihood[*][*][cIndex] with log-likelihood values.
+	 * @param cIndex - index of the c-value
+	 * @param eventTimes - times of the aftershocks in the likelihood, in days since the mainshock
+	 * @param numEvents - number of aftershocks, which are the first numEvents elements of eventTimes
+	 * @param aTerm - for each a-value, the a-dependent part of SUM(log(lambda(t_i)))
+	 * @param pow10a - for each a-value, 10^a
+	 * This can be called concurrently for different values of cIndex.
+	 */
+	private void apc_build_c_slice(int cIndex, double[] eventTimes, int numEvents, double[] aTerm, double[] pow10a) {
+		double c = get_c(cIndex);
+
+		// Sum of log(t_i + c)
+
+		double sum2 = 0.0;
+		for(int i = 0; i < numEvents; i++) {
+			sum2 += Math.log(eventTimes[i] + c);
+		}
+
+		// Now loop over p and a
+
+		for(int pIndex=0;pIndex<num_p;pIndex++) {
+			double p = get_p(pIndex);
+
+			// Compute the integral of the aftershock rate over the time interval, for a = 0
+
+			double unitIntegral = AftershockStatsCalc.getPageExpectedNumEvents(
+				0.0, b, magMain, magCat, capG, capH, p, c, dataStartTimeDays, dataEndTimeDays);
+
+			for(int aIndex=0;aIndex<num_a;aIndex++) {
+
+				// Form the log likelihood, and save it as the array element
+
+				apc_likelihood[aIndex][pIndex][cIndex] = aTerm[aIndex] - p*sum2 - pow10a[aIndex]*unitIntegral;
+			}
+		}
+
+		return;
+	}
+
+
+
+
 	public static void main(String[] args) {
 
 		// There needs to be at least one argument, which is the subcommand
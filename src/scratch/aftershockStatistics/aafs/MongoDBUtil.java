@@ -40,8 +40,9 @@ public class MongoDBUtil implements AutoCloseable {
 	private static MongoClient mongoClient = null;
 
 	// The MongoDB database.
+	// This is used for operations not supported by Morphia, such as change streams.
 
-    //private static MongoDatabase db = null;
+    private static MongoDatabase db = null;
 
 	// The Morphia endpoint.
 
@@ -104,9 +105,9 @@ public class MongoDBUtil implements AutoCloseable {
 			mongoClient.getAddress();
 
 			// Get the database, using database name.
-			// This could be used for database operations not supported by Morphia.
+			// This is used for database operations not supported by Morphia.
 
-			//db = mongoClient.getDatabase(config.getDb_name());
+			db = mongoClient.getDatabase(config.getDb_name());
 
 			// Create the Morphia endpoint.
 
@@ -141,7 +142,7 @@ public class MongoDBUtil implements AutoCloseable {
 		} catch (Exception e) {
 			datastore = null;
 			morphia = null;
-			//db = null;
+			db = null;
 			mongoClient = null;
 			if (saved_mongoClient != null) {
 				try {
@@ -171,7 +172,7 @@ public class MongoDBUtil implements AutoCloseable {
 		if (mongoClient != null) {
 			datastore = null;
 			morphia = null;
-			//db = null;
+			db = null;
 			mongoClient.close();
 			mongoClient = null;
 			mongoOptions = null;
@@ -189,9 +190,9 @@ public class MongoDBUtil implements AutoCloseable {
 	/**
 	 * Retrieve the MongoDB database.
 	 */
-    //public static DB getDB() {
-    //    return db;
-    //}
+    public static MongoDatabase getDB() {
+        return db;
+    }
 
  
 
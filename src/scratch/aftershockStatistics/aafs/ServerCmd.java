@@ -34,13 +34,41 @@ public class ServerCmd {
 
 	public static void cmd_start(String[] args) {
 
-		// No additional arguments
+		// Two optional additional arguments, the number of worker threads and the claim batch size
 
-		if (args.length != 1) {
+		if (args.length < 1 || args.length > 3) {
 			System.err.println ("ServerCmd : Invalid 'start' subcommand");
 			return;
 		}
 
+		int worker_count = 1;
+
+		if (args.length >= 2) {
+			try {
+				worker_count = Integer.parseInt (args[1]);
+			} catch (NumberFormatException e) {
+				worker_count = 0;
+			}
+			if (worker_count < 1) {
+				System.err.println ("ServerCmd : Invalid worker count for 'start' subcommand: " + args[1]);
+				return;
+			}
+		}
+
+		int claim_batch_size = 1;
+
+		if (args.length >= 3) {
+			try {
+				claim_batch_size = Integer.parseInt (args[2]);
+			} catch (NumberFormatException e) {
+				claim_batch_size = 0;
+			}
+			if (claim_batch_size < 1) {
+				System.err.println ("ServerCmd : Invalid claim batch size for 'start' subcommand: " + args[2]);
+				return;
+			}
+		}
+
 		// Say hello
 			
 		System.out.println ("AAFS server is starting.");
@@ -48,6 +76,8 @@ public class ServerCmd {
 		// Get a task dispatcher
 
 		TaskDispatcher dispatcher = new TaskDispatcher();
+		dispatcher.set_worker_count (worker_count);
+		dispatcher.set_claim_batch_size (claim_batch_size);
 
 		// Run it
 
@@ -95,7 +125,7 @@ public class ServerCmd {
 
 		if (result) {
 			System.out.println ("Shutdown command was sent to AAFS server.");
-			System.out.println ("It takes about 30 seconds for the shutdown to be complete.");
+			System.out.println ("It may take up to 30 seconds for the shutdown to be complete.");
 		} else {
 			System.out.println ("Unable to send shutdown command to AAFS server.");
 		}
@@ -242,8 +272,12 @@ public class ServerCmd {
 
 		// Subcommand : start
 		// Command format:
-		//  start
+		//  start  [worker_count  [claim_batch_size]]
 		// Run the server.
+		// If worker_count is given, tasks for different events are executed
+		// concurrently by that many worker threads (default 1).
+		// If claim_batch_size is given, up to that many ready tasks are claimed from
+		// the queue at once (default 1).  It applies when worker_count == 1.
 
 		case "start":
 			try {
@@ -1,5 +1,7 @@
 package scratch.aftershockStatistics.aafs;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
 
 import java.io.StringWriter;
@@ -151,9 +153,61 @@ public class TaskDispatcher implements Runnable {
 	//----- Dispatcher parameters -----
 
 	// The polling delay, in milliseconds.
+	// This is the maximum time the dispatcher waits before re-examining the queue.
+	// Normally the dispatcher wakes up sooner, when the next task becomes ready
+	// or when a new task is posted.
 
 	private long polling_delay = 30000L;			// 30 seconds
 
+	// True to use a MongoDB change stream to be notified when tasks are posted.
+	// If the database does not support change streams, the dispatcher falls back
+	// to waking at the next scheduled task time or the polling delay.
+
+	private boolean use_change_stream = true;
+
+	// The maximum number of ready tasks claimed from the queue in one database operation.
+	// A value of 1 claims one task at a time.  A larger value speeds up draining the
+	// queue when many tasks are overdue (for example, after a restart), at the cost of
+	// delaying newly posted prompt tasks until the claimed batch has been executed.
+	// At most one task per event is claimed in each batch.
+	// This applies when worker_count == 1.
+
+	private int claim_batch_size = 1;
+
+	// set_claim_batch_size - Set the maximum number of tasks claimed at once.
+	// This must be called before the dispatcher is started.
+
+	public void set_claim_batch_size (int the_claim_batch_size) {
+		if (the_claim_batch_size < 1) {
+			throw new IllegalArgumentException("TaskDispatcher.set_claim_batch_size: Invalid batch size: " + the_claim_batch_size);
+		}
+		claim_batch_size = the_claim_batch_size;
+		return;
+	}
+
+	// The number of worker threads that execute tasks.
+	// With more than one worker, tasks for different events execute concurrently,
+	// while tasks for the same event execute one at a time, in order of execution time.
+
+	private int worker_count = 1;
+
+	// get_worker_count - Get the number of worker threads.
+
+	public int get_worker_count () {
+		return worker_count;
+	}
+
+	// set_worker_count - Set the number of worker threads.
+	// This must be called before the dispatcher is started.
+
+	public void set_worker_count (int the_worker_count) {
+		if (the_worker_count < 1) {
+			throw new IllegalArgumentException("TaskDispatcher.set_worker_count: Invalid worker count: " + the_worker_count);
+		}
+		worker_count = the_worker_count;
+		return;
+	}
+
 	// The minimum delay before restarting after failure, in milliseconds.
 
 	private long restart_delay_min = 20000L;		// 20 seconds
@@ -390,10 +444,16 @@ public class TaskDispatcher implements Runnable {
 
 			PendingTask task = null;
 
+			// Tasks claimed in a batch but not yet executed.
+			// They are returned to the queue when the polling loop ends, see release_claimed_tasks.
+
+			LinkedList<PendingTask> claimed_tasks = new LinkedList<PendingTask>();
+
 			// Connect to MongoDB
 
 			try (
 				MongoDBUtil mongo_instance = new MongoDBUtil();
+				TaskWakeup task_wakeup = new TaskWakeup (use_change_stream);
 			){
 
 				// If first connection ...
@@ -411,6 +471,12 @@ public class TaskDispatcher implements Runnable {
 					}
 				}
 
+				// If multiple workers, run the worker pool until shutdown or exception
+
+				if (worker_count > 1) {
+					run_worker_pool();
+				}
+
 				// Polling loop, continue until shutdown or exception
 
 				while (dispatcher_state != STATE_SHUTDOWN) {
@@ -429,10 +495,24 @@ public class TaskDispatcher implements Runnable {
 
 					active_time = dispatcher_true_time;
 
+					// Get the wakeup sequence number, before examining the queue,
+					// so that a task posted while we examine the queue is not missed
+
+					long wake_seq = TaskWakeup.get_wake_seq();
+
 					// Get the next task on the pending queue, that's ready to execute, and activate it
+					// (if claiming in batches, take the next task from the current batch)
 
 					long cutoff_time = dispatcher_time;
-					task = PendingTask.activate_first_ready_task (cutoff_time);
+
+					if (claim_batch_size > 1) {
+						if (claimed_tasks.isEmpty()) {
+							claimed_tasks.addAll (PendingTask.activate_ready_tasks (cutoff_time, claim_batch_size, null));
+						}
+						task = claimed_tasks.pollFirst();
+					} else {
+						task = PendingTask.activate_first_ready_task (cutoff_time);
+					}
 
 					// Check if there is a task
 
@@ -442,11 +522,18 @@ public class TaskDispatcher implements Runnable {
 
 						dispatcher_state = STATE_WAITING;
 
-						// If none, wait for the polling delay
+						// If none, wait until the next task is ready, or a new task is posted,
+						// but no longer than the polling delay
 
-						try {
-							Thread.sleep(polling_delay);
-						} catch (InterruptedException e) {
+						long wait_delay = polling_delay;
+
+						PendingTask next_task = PendingTask.get_first_task();
+						if (next_task != null) {
+							wait_delay = Math.min (wait_delay, next_task.get_exec_time() - dispatcher_time);
+						}
+
+						if (wait_delay > 0L) {
+							TaskWakeup.await_wakeup (wake_seq, wait_delay);
 						}
 
 					} else {
@@ -479,9 +566,17 @@ public class TaskDispatcher implements Runnable {
 				}
 			}
 
+			// Return any unexecuted batch tasks to the queue
+
+			release_claimed_tasks (claimed_tasks);
+
 			// If normal shutdown, exit the restart loop
 
 			if (dispatcher_state == STATE_SHUTDOWN) {
+				if (dispatcher_verbose) {
+					display_taskinfo ("TASK-INFO: Queue statistics at shutdown:\n"
+						+ PendingTask.get_queue_counters().toString());
+				}
 				break;
 			}
 
@@ -522,6 +617,211 @@ public class TaskDispatcher implements Runnable {
 
 
 
+	// Return tasks that were claimed in a batch, but not executed, to the queue.
+	// This is called after the polling loop ends, for shutdown or exception, using a new
+	// connection because the loop's connection may have failed.  If this also fails, the
+	// tasks remain active in the queue and are restarted, as for a single failed task.
+
+	private void release_claimed_tasks (List<PendingTask> claimed_tasks) {
+		if (claimed_tasks.isEmpty()) {
+			return;
+		}
+
+		try (
+			MongoDBUtil mongo_instance = new MongoDBUtil();
+		){
+			PendingTask.release_tasks (claimed_tasks);
+			claimed_tasks.clear();
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.println ("Failed to release " + claimed_tasks.size() + " claimed tasks");
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.err.println ("Failed to release " + claimed_tasks.size() + " claimed tasks");
+		}
+
+		return;
+	}
+
+
+
+
+	// Run a pool of workers, until shutdown or exception.
+	// This is called from run(), while connected to MongoDB.
+	// This thread acts as the first worker, and worker_count - 1 helper threads
+	// are started, each with its own TaskDispatcher object (because the task
+	// execution functions keep per-task state in the dispatcher object).
+	// On return, dispatcher_state is STATE_SHUTDOWN if a shutdown task was executed.
+	// If any worker fails, all workers are stopped and an exception is thrown,
+	// so that run() restarts the dispatcher after the usual restart delay.
+
+	private void run_worker_pool () {
+
+		// Leases shared by all workers
+
+		final TaskEventLeases leases = new TaskEventLeases();
+
+		// Start the helper workers
+
+		Thread[] helper_threads = new Thread[worker_count - 1];
+
+		for (int n = 0; n < helper_threads.length; ++n) {
+			final TaskDispatcher helper = new TaskDispatcher();
+			helper.polling_delay = polling_delay;
+			helper.dispatcher_verbose = dispatcher_verbose;
+
+			helper_threads[n] = new Thread (new Runnable() {
+				@Override
+				public void run() {
+					helper.run_worker_guarded (leases);
+				}
+			}, "TaskDispatcher-worker-" + (n + 1));
+			helper_threads[n].start();
+		}
+
+		// Run the first worker in this thread, then wait for the helpers
+
+		try {
+			run_worker (leases);
+		} finally {
+			leases.request_stop();
+
+			for (Thread helper_thread : helper_threads) {
+				for (;;) {
+					try {
+						helper_thread.join();
+						break;
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+
+		// Check for failure in a helper
+
+		if (leases.is_failed() || !( leases.is_shutdown() )) {
+			throw new RuntimeException ("TaskDispatcher: Worker failed, restarting worker pool");
+		}
+
+		// A shutdown task was executed by some worker
+
+		dispatcher_state = STATE_SHUTDOWN;
+		return;
+	}
+
+
+
+
+	// Run a helper worker, catching any exception.
+	// An exception stops the entire pool, and leaves the failing task active
+	// in the queue, so that it is restarted when the pool restarts.
+
+	private void run_worker_guarded (TaskEventLeases leases) {
+		try {
+			run_worker (leases);
+		} catch (Exception e) {
+			e.printStackTrace();
+			leases.request_failure();
+		} catch (Throwable e) {
+			e.printStackTrace();
+			leases.request_failure();
+		}
+		return;
+	}
+
+
+
+
+	// Worker loop, continue until the pool is stopping or exception.
+	// This is the same as the polling loop in run(), except that tasks are claimed
+	// through the leases, so that only one task per event executes at a time.
+
+	private void run_worker (TaskEventLeases leases) {
+
+		while (!( leases.is_stopping() )) {
+
+			// State = polling
+
+			dispatcher_state = STATE_POLLING;
+
+			// Get task time and configuration
+
+			dispatcher_time = ServerClock.get_time();
+			dispatcher_true_time = ServerClock.get_true_time();
+			dispatcher_action_config = new ActionConfig();
+
+			// Record the dispatcher active time
+
+			active_time = dispatcher_true_time;
+
+			// Get the wakeup sequence number, before examining the queue
+
+			long wake_seq = TaskWakeup.get_wake_seq();
+
+			// Claim the next ready task whose event is not being processed by another worker
+
+			long cutoff_time = dispatcher_time;
+			PendingTask task = leases.claim_task (cutoff_time);
+
+			// Check if there is a task
+
+			if (task == null) {
+
+				// State = waiting
+
+				dispatcher_state = STATE_WAITING;
+
+				// Wait until the next future task is ready, a new task is posted,
+				// or another worker releases an event, but no longer than the polling delay.
+				// (Ready tasks for leased events are picked up when the lease is released.)
+
+				long wait_delay = polling_delay;
+
+				PendingTask next_task = PendingTask.get_first_task_entry (cutoff_time + 1L, 0L, null);
+				if (next_task != null) {
+					wait_delay = Math.min (wait_delay, next_task.get_exec_time() - dispatcher_time);
+				}
+
+				if (wait_delay > 0L) {
+					TaskWakeup.await_wakeup (wake_seq, wait_delay);
+				}
+
+			} else {
+
+				// State = processing
+
+				dispatcher_state = STATE_PROCESSING;
+
+				// Dispatch on opcode, with failures reported against this task
+
+				try {
+					dispatch_task (task);
+				} catch (RuntimeException e) {
+					System.err.println ("Failing task: " + task.toString());
+					throw e;
+				} catch (Error e) {
+					System.err.println ("Failing task: " + task.toString());
+					throw e;
+				}
+
+				// If shutdown, stop all workers
+
+				if (dispatcher_state == STATE_SHUTDOWN) {
+					leases.request_shutdown();
+				}
+
+				// Release the event, so its next task can run
+
+				leases.release_task (task);
+			}
+		}
+
+		return;
+	}
+
+
+
+
 	/**
 	 * run_next_task - Run the next task.
 	 * @param f_verbose = True to display the task to System.out.
@@ -858,14 +1158,18 @@ public class TaskDispatcher implements Runnable {
 
 		// Delete tasks with the given opcode
 
+		List<PendingTask> deleted_tasks = new ArrayList<PendingTask>();
+
 		for (PendingTask task : tasks) {
 			for (int opcode : opcodes) {
 				if (task.get_opcode() == opcode) {
-					PendingTask.delete_task (task);
+					deleted_tasks.add (task);
 					break;
 				}
 			}
 		}
+
+		PendingTask.delete_tasks (deleted_tasks);
 	
 		return;
 	}
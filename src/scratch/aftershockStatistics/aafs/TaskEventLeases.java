@@ -0,0 +1,152 @@
+package scratch.aftershockStatistics.aafs;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import scratch.aftershockStatistics.aafs.entity.PendingTask;
+
+
+/**
+ * Per-event leases for a pool of task dispatcher workers.
+ *
+ * When the task dispatcher runs several workers, tasks for different events may
+ * execute concurrently, but tasks for the same event must execute one at a time,
+ * in order of execution time.  Each worker claims a task through this class, which
+ * holds a lease on the task's event until the worker releases it.  While an event
+ * is leased, no other worker can claim a task for that event.
+ *
+ * Claiming is serialized within this object, so that two workers cannot activate
+ * tasks for the same event.  The claim itself is a single findAndModify that sets
+ * exec_time = 0, as in the single-threaded dispatcher, so an interrupted task is
+ * still seen first when the dispatcher restarts.
+ *
+ * Leases are held in memory only.  A new object must be created each time the
+ * dispatcher connects to MongoDB, so that tasks left active by a failure are
+ * re-claimed after restart.
+ */
+public class TaskEventLeases {
+
+	// Event ids that are currently leased.
+	// Access is protected by synchronizing on this object.
+
+	private final Set<String> leased_events = new HashSet<String>();
+
+	// Flag indicating that the pool should stop, after current tasks complete.
+
+	private volatile boolean f_stopping = false;
+
+	// Flag indicating that a shutdown task was executed.
+
+	private volatile boolean f_shutdown = false;
+
+	// Flag indicating that a worker failed with an exception.
+
+	private volatile boolean f_failed = false;
+
+
+
+
+	/**
+	 * claim_task - Claim and activate the first ready task whose event is not leased.
+	 * @param cutoff_time = Cutoff time, in milliseconds since the epoch.
+	 * @return
+	 * Returns the activated task, or null if there is no claimable task.
+	 * If a task is returned, its event is leased, and the caller must call release_task
+	 * after the task is disposed of.
+	 */
+	public synchronized PendingTask claim_task (long cutoff_time) {
+
+		// No new claims once the pool is stopping
+
+		if (f_stopping) {
+			return null;
+		}
+
+		// Activate the first ready task, excluding leased events
+
+		PendingTask task = PendingTask.activate_first_ready_task (cutoff_time, leased_events);
+
+		// Lease its event
+
+		if (task != null) {
+			leased_events.add (task.get_event_id());
+		}
+
+		return task;
+	}
+
+
+
+
+	/**
+	 * release_task - Release the lease held for a task.
+	 * @param task = Task previously returned by claim_task.
+	 * Other workers are woken up, because there may be a ready task for the same event.
+	 */
+	public void release_task (PendingTask task) {
+		synchronized (this) {
+			leased_events.remove (task.get_event_id());
+		}
+		TaskWakeup.signal_task_posted();
+		return;
+	}
+
+
+
+
+	/**
+	 * get_lease_count - Get the number of events currently leased.
+	 */
+	public synchronized int get_lease_count () {
+		return leased_events.size();
+	}
+
+
+
+
+	/**
+	 * request_stop - Request all workers to stop, after their current tasks complete.
+	 */
+	public void request_stop () {
+		f_stopping = true;
+		TaskWakeup.signal_task_posted();
+		return;
+	}
+
+	/**
+	 * request_shutdown - Request all workers to stop, because a shutdown task was executed.
+	 */
+	public void request_shutdown () {
+		f_shutdown = true;
+		request_stop();
+		return;
+	}
+
+	/**
+	 * request_failure - Request all workers to stop, because a worker failed.
+	 */
+	public void request_failure () {
+		f_failed = true;
+		request_stop();
+		return;
+	}
+
+	// is_stopping - Return true if workers should stop.
+
+	public boolean is_stopping () {
+		return f_stopping;
+	}
+
+	// is_shutdown - Return true if a shutdown task was executed.
+
+	public boolean is_shutdown () {
+		return f_shutdown;
+	}
+
+	// is_failed - Return true if a worker failed.
+
+	public boolean is_failed () {
+		return f_failed;
+	}
+
+}
@@ -0,0 +1,251 @@
+package scratch.aftershockStatistics.aafs;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+
+/**
+ * Wakeup notification for the AAFS task dispatcher.
+ *
+ * The task dispatcher uses this class to sleep until either the next task in the
+ * queue becomes ready, or a new task is posted to the queue.
+ *
+ * There are two sources of wakeup notifications:
+ *
+ * 1. In-process: PendingTask.submit_task calls signal_task_posted, which wakes up any
+ *    dispatcher running in the same JVM.  This is sufficient for testing.
+ *
+ * 2. Cross-process: If MongoDB supports change streams (which requires a replica set),
+ *    a watcher thread listens for inserts and updates to the task queue collection,
+ *    and calls signal_task_posted when one occurs.  This lets tasks posted by another
+ *    process (for example, ServerCmd or the PDL intake) wake up the dispatcher.
+ *
+ * If change streams are not available, the dispatcher still wakes up at the scheduled
+ * time of the next task, or after the polling delay, whichever comes first.
+ *
+ * An object of this class must be created and closed while connected to MongoDB.
+ * It is strongly advised to create the object in a try-with-resources statement.
+ */
+public class TaskWakeup implements AutoCloseable {
+
+	//----- In-process notification -----
+
+	// Lock used to wait for notifications.
+
+	private static final Object wake_lock = new Object();
+
+	// Sequence number, incremented each time a task is posted.
+	// Access is protected by wake_lock.
+
+	private static long wake_seq = 0L;
+
+
+
+
+	/**
+	 * signal_task_posted - Signal that a task has been posted to the queue.
+	 * Note: Can be called from any thread.
+	 */
+	public static void signal_task_posted () {
+		synchronized (wake_lock) {
+			++wake_seq;
+			wake_lock.notifyAll();
+		}
+		return;
+	}
+
+
+
+
+	/**
+	 * get_wake_seq - Get the current wakeup sequence number.
+	 * The caller should obtain the sequence number before examining the task queue,
+	 * and pass it to await_wakeup.  This ensures that a task posted after the queue
+	 * is examined, but before the caller begins waiting, is not missed.
+	 */
+	public static long get_wake_seq () {
+		synchronized (wake_lock) {
+			return wake_seq;
+		}
+	}
+
+
+
+
+	/**
+	 * await_wakeup - Wait for a task to be posted, or for a timeout.
+	 * @param seq = Sequence number obtained from get_wake_seq.
+	 * @param max_delay = Maximum time to wait, in milliseconds.
+	 * @return
+	 * Returns true if a task was posted since seq was obtained, false if timeout.
+	 * Note: Interruption is treated as a wakeup.
+	 */
+	public static boolean await_wakeup (long seq, long max_delay) {
+		long deadline = ServerClock.get_true_time() + max_delay;
+		synchronized (wake_lock) {
+			while (wake_seq == seq) {
+				long remaining = deadline - ServerClock.get_true_time();
+				if (remaining <= 0L) {
+					return false;
+				}
+				try {
+					wake_lock.wait (remaining);
+				} catch (InterruptedException e) {
+					return true;
+				}
+			}
+		}
+		return true;
+	}
+
+
+
+
+	//----- Change stream watcher -----
+
+	// Name of the MongoDB collection that holds the task queue.
+	// This must match the @Entity annotation in PendingTask.
+
+	private static final String TASK_COLLECTION = "tasks";
+
+	// Maximum time the watcher blocks on the change stream, in milliseconds.
+	// This bounds the time needed to stop the watcher thread.
+
+	private static final long WATCH_AWAIT_TIME = 2000L;
+
+	// The watcher thread, or null if none.
+
+	private Thread watcher = null;
+
+	// Flag to request the watcher thread to stop.
+
+	private volatile boolean f_stop = false;
+
+	// True if the change stream is currently active.
+
+	private volatile boolean f_watching = false;
+
+	// is_watching - Return true if the change stream is currently active.
+	// If false, the caller should not rely on cross-process notifications.
+
+	public boolean is_watching () {
+		return f_watching;
+	}
+
+
+
+
+	/**
+	 * Create an object and, if possible, start watching the task queue.
+	 * @param f_change_stream = True to attempt to open a MongoDB change stream.
+	 *                          False to use in-process notifications only.
+	 */
+	public TaskWakeup (boolean f_change_stream) {
+		if (f_change_stream) {
+			watcher = new Thread (new Runnable() {
+				@Override
+				public void run() {
+					watch_task_queue();
+				}
+			}, "TaskWakeup");
+			watcher.setDaemon (true);
+			watcher.start();
+		}
+	}
+
+
+
+
+	// Watch the task queue for changes, until stopped or an error occurs.
+	// This runs in the watcher thread.
+
+	private void watch_task_queue () {
+
+		MongoCursor<ChangeStreamDocument<Document>> cursor = null;
+
+		try {
+
+			// Open the change stream, selecting inserts, replacements, and updates that set a
+			// scheduled execution time (an update occurs when a task is staged with a new execution time).
+			// Updates that set exec_time to zero are a dispatcher activating a task, and do not
+			// mean there is new work, so they are not selected.
+
+			MongoDatabase db = MongoDBUtil.getDB();
+			MongoCollection<Document> collection = db.getCollection (TASK_COLLECTION);
+
+			cursor = collection.watch (Arrays.asList (
+						Aggregates.match (Filters.or (
+							Filters.in ("operationType", Arrays.asList ("insert", "replace")),
+							Filters.and (
+								Filters.eq ("operationType", "update"),
+								Filters.gt ("updateDescription.updatedFields.exec_time", 0L)
+							)
+						))
+					))
+					.maxAwaitTime (WATCH_AWAIT_TIME, TimeUnit.MILLISECONDS)
+					.iterator();
+
+			f_watching = true;
+
+			// Loop until stopped, waking the dispatcher for each change
+
+			while (!( f_stop )) {
+				ChangeStreamDocument<Document> change = cursor.tryNext();
+				if (change != null) {
+					signal_task_posted();
+				}
+			}
+
+		// Change streams not supported (for example, standalone server), or connection lost
+
+		} catch (Exception e) {
+			if (!( f_stop )) {
+				System.err.println ("TaskWakeup: Change stream not available, falling back to timed polling: " + e.getMessage());
+			}
+		}
+
+		f_watching = false;
+
+		if (cursor != null) {
+			try {
+				cursor.close();
+			} catch (Exception e) {
+			}
+		}
+
+		// Wake the dispatcher, so it re-examines the queue promptly
+
+		signal_task_posted();
+		return;
+	}
+
+
+
+
+	/**
+	 * Stop watching the task queue.
+	 * This must be called before the MongoDB connection is closed.
+	 */
+	@Override
+	public void close() {
+		if (watcher != null) {
+			f_stop = true;
+			try {
+				watcher.join (2L * WATCH_AWAIT_TIME);
+			} catch (InterruptedException e) {
+			}
+			watcher = null;
+		}
+		return;
+	}
+
+}
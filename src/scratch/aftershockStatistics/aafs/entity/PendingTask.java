@@ -1,7 +1,13 @@
 package scratch.aftershockStatistics.aafs.entity;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.bson.Document;
 import org.bson.types.ObjectId;
 import org.mongodb.morphia.annotations.Entity;
 import org.mongodb.morphia.annotations.Id;
@@ -16,14 +22,21 @@ import org.mongodb.morphia.annotations.Embedded;
 import org.mongodb.morphia.Datastore;
 import org.mongodb.morphia.FindAndModifyOptions;
 
+import org.mongodb.morphia.query.FindOptions;
 import org.mongodb.morphia.query.Query;
 import org.mongodb.morphia.query.UpdateOperations;
 import org.mongodb.morphia.query.MorphiaIterator;
 
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
 import scratch.aftershockStatistics.aafs.MongoDBUtil;
 import scratch.aftershockStatistics.aafs.RecordKey;
 import scratch.aftershockStatistics.aafs.RecordPayload;
 import scratch.aftershockStatistics.aafs.RecordIterator;
+import scratch.aftershockStatistics.aafs.TaskWakeup;
 
 import scratch.aftershockStatistics.util.MarshalImpArray;
 import scratch.aftershockStatistics.util.MarshalImpJsonReader;
@@ -102,6 +115,12 @@ public class PendingTask implements java.io.Serializable {
 
 	private String details;
 
+	// Token identifying the batch claim that most recently activated this task, or null if none.
+	// A batch claim stamps a fresh token on every task it activates with a single update,
+	// and then reads back the tasks carrying the token to learn which ones it won.
+
+	private ObjectId claim_token;
+
 //	// Details of this task.
 //	// Any additional information needed is stored as marshaled data.
 //	// Each array should have at least one element.
@@ -457,6 +476,10 @@ public class PendingTask implements java.io.Serializable {
 
 		Datastore datastore = MongoDBUtil.getDatastore();
 		datastore.save(ptask);
+
+		// Wake up any task dispatcher in this process
+
+		TaskWakeup.signal_task_posted();
 		
 		return ptask;
 	}
@@ -770,6 +793,8 @@ public class PendingTask implements java.io.Serializable {
 	 */
 	public static PendingTask activate_first_ready_task (long cutoff_time) {
 
+		long start_nanos = System.nanoTime();
+
 		// Get the MongoDB data store
 
 		Datastore datastore = MongoDBUtil.getDatastore();
@@ -795,12 +820,203 @@ public class PendingTask implements java.io.Serializable {
 
 		PendingTask task = datastore.findAndModify(query, update_op, modify_opt);
 
+		count_claim (start_nanos, (task == null) ? 0 : 1);
 		return task;
 	}
 
 
 
 
+	/**
+	 * activate_first_ready_task - Get and activate the first ready task, according to execution time,
+	 *                             skipping tasks for the given events.
+	 * @param cutoff_time = Cutoff time, in milliseconds since the epoch.
+	 * @param excluded_event_ids = Event ids whose tasks are not to be considered.
+	 *                             Can be null or empty to consider all tasks.
+	 * Only tasks with exec_time <= cutoff_time are considered.
+	 * Return is null if there are no such tasks.
+	 * The task is marked active by setting exec_time = 0 in the database.
+	 * This is used by a pool of task workers, to avoid running two tasks for the same event.
+	 */
+	public static PendingTask activate_first_ready_task (long cutoff_time, Collection<String> excluded_event_ids) {
+
+		// If no exclusions, use the simpler query
+
+		if (excluded_event_ids == null || excluded_event_ids.isEmpty()) {
+			return activate_first_ready_task (cutoff_time);
+		}
+
+		long start_nanos = System.nanoTime();
+
+		// Get the MongoDB data store
+
+		Datastore datastore = MongoDBUtil.getDatastore();
+
+		// Construct the query: Select exec_time <= cutoff_time and event_id not excluded, sort by exec_time
+
+		Query<PendingTask> query = datastore.createQuery(PendingTask.class)
+											.filter("exec_time <=", new Long(cutoff_time));
+		query.field("event_id").notIn(excluded_event_ids);
+		query = query.order("exec_time");
+
+		// Construct the update operation: Set exec_time to 0L
+
+		UpdateOperations<PendingTask> update_op
+				= datastore.createUpdateOperations(PendingTask.class)
+							.set("exec_time", new Long(0L));
+
+		// Construct the find and modify options: Return the original document value
+
+		FindAndModifyOptions modify_opt = (new FindAndModifyOptions())
+											.returnNew(false);
+
+		// Run the query
+
+		PendingTask task = datastore.findAndModify(query, update_op, modify_opt);
+
+		count_claim (start_nanos, (task == null) ? 0 : 1);
+		return task;
+	}
+
+
+
+
+	/**
+	 * activate_ready_tasks - Get and activate a batch of ready tasks, according to execution time.
+	 * @param cutoff_time = Cutoff time, in milliseconds since the epoch.
+	 * @param max_tasks = Maximum number of tasks to activate. Must be positive.
+	 * @param excluded_event_ids = Event ids whose tasks are not to be considered.
+	 *                             Can be null or empty to consider all tasks.
+	 * Only tasks with exec_time <= cutoff_time are considered.
+	 * Return is a list of activated tasks, sorted by execution time, which is empty if
+	 * there are no such tasks.  The returned objects hold the values before activation.
+	 * At most one task is returned for each event, so that the tasks can be executed in
+	 * the returned order without reordering tasks for the same event, and so that
+	 * executing one task cannot delete another task in the same batch.
+	 * The tasks are marked active by setting exec_time = 0 in the database.  All candidates are
+	 * claimed with a single update, which re-checks exec_time <= cutoff_time and stamps a claim
+	 * token, and the claimed tasks are then read back by token.  So a task that another dispatcher
+	 * claims after the query is skipped rather than claimed twice, and the whole batch takes three
+	 * database operations regardless of its size.
+	 * Tasks that are not executed should be returned to the queue with release_tasks.
+	 */
+	public static List<PendingTask> activate_ready_tasks (long cutoff_time, int max_tasks, Collection<String> excluded_event_ids) {
+
+		// Check conditions
+
+		if (!( max_tasks > 0 )) {
+			throw new IllegalArgumentException("PendingTask.activate_ready_tasks: Invalid task parameters");
+		}
+
+		long start_nanos = System.nanoTime();
+
+		// Get the MongoDB data store
+
+		Datastore datastore = MongoDBUtil.getDatastore();
+
+		// Construct the query: Select exec_time <= cutoff_time and event_id not excluded, sort by exec_time
+
+		Query<PendingTask> query = datastore.createQuery(PendingTask.class)
+											.filter("exec_time <=", new Long(cutoff_time));
+		if (excluded_event_ids != null && !( excluded_event_ids.isEmpty() )) {
+			query.field("event_id").notIn(excluded_event_ids);
+		}
+		query = query.order("exec_time");
+
+		// Run the query
+
+		List<PendingTask> candidates = query.asList (new FindOptions().limit (max_tasks));
+
+		// Keep the first task for each event
+
+		List<PendingTask> firsts = new ArrayList<PendingTask>();
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+		Set<String> seen_events = new HashSet<String>();
+
+		for (PendingTask candidate : candidates) {
+			if (seen_events.add (candidate.get_event_id())) {
+				firsts.add (candidate);
+				ids.add (candidate.get_id());
+			}
+		}
+
+		List<PendingTask> tasks = new ArrayList<PendingTask>();
+
+		if (!( ids.isEmpty() )) {
+
+			// Claim all of them at once, skipping any that are no longer ready: Set exec_time to 0L and stamp our token
+
+			ObjectId token = new ObjectId();
+
+			Query<PendingTask> claim_query = datastore.createQuery(PendingTask.class)
+											.filter("exec_time <=", new Long(cutoff_time));
+			claim_query.field("_id").in(ids);
+
+			UpdateOperations<PendingTask> update_op
+					= datastore.createUpdateOperations(PendingTask.class)
+								.set("exec_time", new Long(0L))
+								.set("claim_token", token);
+
+			datastore.update(claim_query, update_op);
+
+			// Read back the ids of the tasks we claimed
+
+			Query<PendingTask> token_query = datastore.createQuery(PendingTask.class)
+											.filter("claim_token", token);
+			token_query.field("_id").in(ids);
+			token_query.project("_id", true);
+
+			Set<ObjectId> claimed_ids = new HashSet<ObjectId>();
+			for (PendingTask claimed : token_query.asList()) {
+				claimed_ids.add (claimed.get_id());
+			}
+
+			// Return the claimed tasks in execution time order, holding their values before activation
+
+			for (PendingTask candidate : firsts) {
+				if (claimed_ids.contains (candidate.get_id())) {
+					tasks.add (candidate);
+				}
+			}
+		}
+
+		count_claim (start_nanos, tasks.size());
+		return tasks;
+	}
+
+
+
+
+	/**
+	 * release_tasks - Return claimed but unexecuted tasks to the queue.
+	 * @param ptasks = Tasks returned by activate_ready_tasks, holding their values before activation.
+	 * Each task is restored to its execution time and stage before it was claimed.
+	 * Tasks that were already restarted when claimed (exec_time == 0) are left active,
+	 * so they are still seen as restarted.
+	 */
+	public static void release_tasks (List<PendingTask> ptasks) {
+
+		List<PendingTask> released = new ArrayList<PendingTask>();
+		for (PendingTask ptask : ptasks) {
+			if (ptask.get_exec_time() > 0L) {
+				released.add (ptask);
+			}
+		}
+
+		long[] exec_times = new long[released.size()];
+		int[] stages = new int[released.size()];
+		for (int i = 0; i < exec_times.length; ++i) {
+			exec_times[i] = released.get(i).get_exec_time();
+			stages[i] = released.get(i).get_stage();
+		}
+
+		stage_tasks (released, exec_times, stages);
+		return;
+	}
+
+
+
+
 	/**
 	 * stage_task - Begin a new stage of a task.
 	 * @param ptask = Existing pending task to stage.
@@ -831,8 +1047,65 @@ public class PendingTask implements java.io.Serializable {
 
 		// Run the update
 
+		long start_nanos = System.nanoTime();
+
 		datastore.update(ptask, update_op);
-		
+
+		count_stage (start_nanos, 1);
+		return;
+	}
+
+
+
+
+	/**
+	 * stage_tasks - Begin a new stage of several tasks, in a single database operation.
+	 * @param ptasks = Existing pending tasks to stage.
+	 * @param exec_times = Time at which each task should execute, in milliseconds
+	 *                     since the epoch. Must be positive.
+	 * @param stages = Stage number for each task.
+	 * This is equivalent to calling stage_task for each task.
+	 */
+	public static void stage_tasks (List<PendingTask> ptasks, long[] exec_times, int[] stages) {
+
+		// Check conditions
+
+		if (!( ptasks != null && exec_times != null && stages != null
+			&& exec_times.length == ptasks.size() && stages.length == ptasks.size() )) {
+			throw new IllegalArgumentException("PendingTask.stage_tasks: Invalid task parameters");
+		}
+
+		for (int i = 0; i < exec_times.length; ++i) {
+			PendingTask ptask = ptasks.get(i);
+			if (!( ptask != null && ptask.get_id() != null
+				&& exec_times[i] > 0L )) {
+				throw new IllegalArgumentException("PendingTask.stage_tasks: Invalid task parameters");
+			}
+		}
+
+		if (ptasks.isEmpty()) {
+			return;
+		}
+
+		long start_nanos = System.nanoTime();
+
+		// Construct the update operations: Set exec_time and stage for each task
+		// (Morphia has no bulk update with per-document values, so use the driver directly)
+
+		List<WriteModel<Document>> requests = new ArrayList<WriteModel<Document>>();
+
+		for (int i = 0; i < exec_times.length; ++i) {
+			requests.add (new UpdateOneModel<Document> (
+					Filters.eq ("_id", ptasks.get(i).get_id()),
+					Updates.combine (Updates.set ("exec_time", exec_times[i]), Updates.set ("stage", stages[i]))
+				));
+		}
+
+		// Run the bulk update
+
+		MongoDBUtil.getDB().getCollection(TASK_COLLECTION).bulkWrite (requests);
+
+		count_stage (start_nanos, ptasks.size());
 		return;
 	}
 
@@ -858,8 +1131,195 @@ public class PendingTask implements java.io.Serializable {
 
 		// Run the delete
 
+		long start_nanos = System.nanoTime();
+
 		datastore.delete(ptask);
-		
+
+		count_delete (start_nanos, 1);
+		return;
+	}
+
+
+
+
+	/**
+	 * delete_tasks - Delete several tasks, in a single database operation.
+	 * @param ptasks = Existing pending tasks to delete.
+	 * @return
+	 */
+	public static void delete_tasks (List<PendingTask> ptasks) {
+
+		// Check conditions
+
+		if (ptasks == null) {
+			throw new IllegalArgumentException("PendingTask.delete_tasks: Invalid task parameters");
+		}
+
+		List<ObjectId> ids = new ArrayList<ObjectId>();
+
+		for (PendingTask ptask : ptasks) {
+			if (!( ptask != null && ptask.get_id() != null )) {
+				throw new IllegalArgumentException("PendingTask.delete_tasks: Invalid task parameters");
+			}
+			ids.add (ptask.get_id());
+		}
+
+		if (ids.isEmpty()) {
+			return;
+		}
+
+		// Get the MongoDB data store
+
+		Datastore datastore = MongoDBUtil.getDatastore();
+
+		// Construct the query: Select by id
+
+		Query<PendingTask> query = datastore.createQuery(PendingTask.class);
+		query.field("_id").in(ids);
+
+		// Run the delete
+
+		long start_nanos = System.nanoTime();
+
+		datastore.delete(query);
+
+		count_delete (start_nanos, ids.size());
+		return;
+	}
+
+
+
+
+	//----- Queue statistics -----
+
+	// Name of the MongoDB collection, for operations done through the driver.
+	// This must match the @Entity annotation.
+
+	private static final String TASK_COLLECTION = "tasks";
+
+	// Counters for claim (activate), stage, and delete operations.
+	// For each kind: number of database operations, number of tasks, and total time in nanoseconds.
+
+	private static final AtomicLong ctr_claim_ops = new AtomicLong(0L);
+	private static final AtomicLong ctr_claim_tasks = new AtomicLong(0L);
+	private static final AtomicLong ctr_claim_nanos = new AtomicLong(0L);
+
+	private static final AtomicLong ctr_stage_ops = new AtomicLong(0L);
+	private static final AtomicLong ctr_stage_tasks = new AtomicLong(0L);
+	private static final AtomicLong ctr_stage_nanos = new AtomicLong(0L);
+
+	private static final AtomicLong ctr_delete_ops = new AtomicLong(0L);
+	private static final AtomicLong ctr_delete_tasks = new AtomicLong(0L);
+	private static final AtomicLong ctr_delete_nanos = new AtomicLong(0L);
+
+	// Time the counters were last reset, in milliseconds since the epoch.
+
+	private static volatile long counter_start_time = System.currentTimeMillis();
+
+	private static void count_claim (long start_nanos, int n) {
+		ctr_claim_nanos.addAndGet (System.nanoTime() - start_nanos);
+		ctr_claim_ops.incrementAndGet();
+		ctr_claim_tasks.addAndGet (n);
+		return;
+	}
+
+	private static void count_stage (long start_nanos, int n) {
+		ctr_stage_nanos.addAndGet (System.nanoTime() - start_nanos);
+		ctr_stage_ops.incrementAndGet();
+		ctr_stage_tasks.addAndGet (n);
+		return;
+	}
+
+	private static void count_delete (long start_nanos, int n) {
+		ctr_delete_nanos.addAndGet (System.nanoTime() - start_nanos);
+		ctr_delete_ops.incrementAndGet();
+		ctr_delete_tasks.addAndGet (n);
+		return;
+	}
+
+
+
+
+	/**
+	 * QueueCounters - Snapshot of the queue operation counters.
+	 * Times are in nanoseconds, except elapsed_millis.
+	 */
+	public static class QueueCounters {
+		public final long claim_ops;
+		public final long claim_tasks;
+		public final long claim_nanos;
+		public final long stage_ops;
+		public final long stage_tasks;
+		public final long stage_nanos;
+		public final long delete_ops;
+		public final long delete_tasks;
+		public final long delete_nanos;
+		public final long elapsed_millis;
+
+		private QueueCounters () {
+			claim_ops = ctr_claim_ops.get();
+			claim_tasks = ctr_claim_tasks.get();
+			claim_nanos = ctr_claim_nanos.get();
+			stage_ops = ctr_stage_ops.get();
+			stage_tasks = ctr_stage_tasks.get();
+			stage_nanos = ctr_stage_nanos.get();
+			delete_ops = ctr_delete_ops.get();
+			delete_tasks = ctr_delete_tasks.get();
+			delete_nanos = ctr_delete_nanos.get();
+			elapsed_millis = System.currentTimeMillis() - counter_start_time;
+		}
+
+		// get_drain_rate - Get the rate at which tasks are removed from the queue, in tasks per second.
+
+		public double get_drain_rate () {
+			return (elapsed_millis <= 0L) ? 0.0 : (((double)delete_tasks) * 1000.0 / ((double)elapsed_millis));
+		}
+
+		// Get the mean time per operation, in milliseconds.
+
+		private static double mean_millis (long nanos, long ops) {
+			return (ops <= 0L) ? 0.0 : (((double)nanos) * 1.0e-6 / ((double)ops));
+		}
+
+		@Override
+		public String toString() {
+			return "QueueCounters:" + "\n"
+				+ "\telapsed_millis: " + elapsed_millis + "\n"
+				+ "\tclaim: ops = " + claim_ops + ", tasks = " + claim_tasks + ", mean ms = " + mean_millis (claim_nanos, claim_ops) + "\n"
+				+ "\tstage: ops = " + stage_ops + ", tasks = " + stage_tasks + ", mean ms = " + mean_millis (stage_nanos, stage_ops) + "\n"
+				+ "\tdelete: ops = " + delete_ops + ", tasks = " + delete_tasks + ", mean ms = " + mean_millis (delete_nanos, delete_ops) + "\n"
+				+ "\tdrain rate: " + get_drain_rate() + " tasks/sec";
+		}
+	}
+
+
+
+
+	/**
+	 * get_queue_counters - Get a snapshot of the queue operation counters.
+	 * Note: Can be called from any thread.
+	 */
+	public static QueueCounters get_queue_counters () {
+		return new QueueCounters();
+	}
+
+
+
+
+	/**
+	 * reset_queue_counters - Reset the queue operation counters to zero.
+	 */
+	public static void reset_queue_counters () {
+		ctr_claim_ops.set(0L);
+		ctr_claim_tasks.set(0L);
+		ctr_claim_nanos.set(0L);
+		ctr_stage_ops.set(0L);
+		ctr_stage_tasks.set(0L);
+		ctr_stage_nanos.set(0L);
+		ctr_delete_ops.set(0L);
+		ctr_delete_tasks.set(0L);
+		ctr_delete_nanos.set(0L);
+		counter_start_time = System.currentTimeMillis();
 		return;
 	}
 
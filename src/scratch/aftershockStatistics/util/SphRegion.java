@@ -49,6 +49,18 @@ public abstract class SphRegion {
 	 */
 	public abstract boolean contains (Location loc);
 
+	/**
+	 * contains - Test if the region contains the given location.
+	 * @param lat = Latitude to check.
+	 * @param lon = Longitude to check, can be -180 to +360.
+	 * @return
+	 * Returns true if loc is inside the region, false if loc is outside the region.
+	 * Note: Due to rounding errors, it may be indeterminate whether points exactly on,
+	 * or very close to, the boundary of the region are considered inside or outside.
+	 * This allows many points to be tested without creating an object for each.
+	 */
+	public abstract boolean contains (double lat, double lon);
+
 
 
 
@@ -84,7 +84,8 @@ public class SphRegionMercPolygon extends SphRegion {
 	 * a ray extending due north from the query point.  The point is considered to be
 	 * inside if there are an odd number of intersections.
 	 */
-	private boolean contains (double lat, double lon) {
+	@Override
+	public boolean contains (double lat, double lon) {
 
 		// Coerce longitude according to our wrapping domain.
 
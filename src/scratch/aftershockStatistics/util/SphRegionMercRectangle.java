@@ -72,7 +72,8 @@ public class SphRegionMercRectangle extends SphRegion {
 	 * Implementation note: The function uses plane geometry, in the domain selected
 	 * by plot_wrap.
 	 */
-	private boolean contains (double lat, double lon) {
+	@Override
+	public boolean contains (double lat, double lon) {
 
 		// Coerce longitude according to our wrapping domain.
 
@@ -5,6 +5,7 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Dialog.ModalityType;
+import java.awt.GraphicsEnvironment;
 import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.FileWriter;
@@ -116,6 +117,7 @@ import scratch.aftershockStatistics.TectonicRegimeTable;
 import scratch.aftershockStatistics.util.SphLatLon;
 import scratch.aftershockStatistics.util.SphRegion;
 import scratch.aftershockStatistics.util.SphRegionCircle;
+import scratch.aftershockStatisticsETAS.griddedInterpGMPE.GriddedInterpGMPE_Calc;
 import wContour.Global.PointD;
 import wContour.Global.PolyLine;
 
@@ -2256,7 +2258,8 @@ public class AftershockStatsGUI_ETAS extends JFrame implements ParameterChangeLi
 		
 		Preconditions.checkState(tMax >= tMin);
 		
-		int numPts = 100;
+		// same number of points as the windows tracked by the forecast summary, so the plot doesn't re-simulate
+		int numPts = ETAS_AftershockModel.LOG_TIME_PLOT_POINTS;
 		return model.getFractileCumNumEventsWithLogTime(magMin, tMin, tMax, numPts, fractile);
 	}
 	
@@ -4875,6 +4878,39 @@ public class AftershockStatsGUI_ETAS extends JFrame implements ParameterChangeLi
 		return getIntensityModel(rateModel, value, isMapOfProbabilities, false);
 	}
 	
+	/**
+	 * @return listener that asks the user once whether to continue a shaking map calculation that will take more
+	 * than 30 seconds, and stops it if not, or null if there's no display to ask on
+	 */
+	private GriddedInterpGMPE_Calc.CalcProgressListener getLongCalcPrompt() {
+		if (GraphicsEnvironment.isHeadless())
+			return null;
+		return new GriddedInterpGMPE_Calc.CalcProgressListener() {
+			
+			private boolean userWarned = false;
+
+			@Override
+			public void calcProgress(GriddedInterpGMPE_Calc calc, int sitesDone, int numSites, double secsElapsed,
+					double secsEstimated) {
+				if (userWarned || secsEstimated <= 30)
+					return;
+				userWarned = true;
+				String message = "It will take approximately " + (int) secsEstimated + " seconds to complete each map at this resolution.\n"
+						+ "If plotting MMI multiply this estimate by a factor of 2.\n";
+				message += "Are you sure you wish to continue with the current grid spacing of \u0394 (km)?";
+				
+				try {
+					int ret = JOptionPane.showConfirmDialog(null, message, "Warning", JOptionPane.OK_CANCEL_OPTION);
+					if (ret == JOptionPane.CANCEL_OPTION)
+						calc.requestStop();
+				} catch (Exception e) {
+					System.err.println("Error displaying error message!");
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+	
 	GriddedGeoDataSet getIntensityModel(GriddedGeoDataSet rateModel, double value, boolean isMapOfProbabilities, boolean prompt) {
 		if(verbose) System.out.println("Computing " + (isMapOfProbabilities?"probability":"level") + " map for type: " +
 					intensityTypeParam.getValue().getAbbreviation() + " at level: " + value);
@@ -4984,12 +5020,14 @@ public class AftershockStatsGUI_ETAS extends JFrame implements ParameterChangeLi
 		double minMag = refMag;
 		double maxMag = Math.min(genericParams.get_maxMag(), 9);
 		
+		GriddedInterpGMPE_Calc.CalcProgressListener progressListener = prompt ? getLongCalcPrompt() : null;
+		
 		try {
 			if (intensityTypeParam.getValue()==IntensityType.PGV) {
 				if (pgvCurves == null) {
 					if(D) System.out.println("Calculating pgv curves at each grid point");
 					curves = ETAS_ShakingForecastCalc.calcForecast(calcRegion, newRateModel, minMag, maxMag, bParam.getValue(), gmpe, mechWts,
-							maxSourceDist, vs30Provider, prompt);
+							maxSourceDist, vs30Provider, progressListener);
 					if (curves != null) pgvCurves = curves.clone();
 				} else {
 					if(D) System.out.println("reloading pgv curves");
@@ -4999,7 +5037,7 @@ public class AftershockStatsGUI_ETAS extends JFrame implements ParameterChangeLi
 				if (pgaCurves == null) {
 					if(D) System.out.println("Calculating pga curves at each grid point");
 					curves = ETAS_ShakingForecastCalc.calcForecast(calcRegion, newRateModel, minMag, maxMag, bParam.getValue(), gmpe, mechWts,
-							maxSourceDist, vs30Provider, prompt);
+							maxSourceDist, vs30Provider, progressListener);
 					if (curves != null) pgaCurves = curves.clone();
 				} else {
 					if(D) System.out.println("reloading pga curves");
@@ -5009,7 +5047,7 @@ public class AftershockStatsGUI_ETAS extends JFrame implements ParameterChangeLi
 				if (psaCurves == null) {
 					if(D) System.out.println("Calculating pga curves at each grid point");
 					curves = ETAS_ShakingForecastCalc.calcForecast(calcRegion, newRateModel, minMag, maxMag, bParam.getValue(), gmpe, mechWts,
-							maxSourceDist, vs30Provider, prompt);
+							maxSourceDist, vs30Provider, progressListener);
 					if (curves != null) psaCurves = curves.clone();
 				} else {
 					if(D) System.out.println("reloading psa curves");
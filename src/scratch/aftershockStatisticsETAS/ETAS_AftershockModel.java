@@ -4,7 +4,9 @@ import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.SplittableRandom;
 
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math3.analysis.UnivariateFunction;
@@ -83,8 +85,12 @@ public abstract class ETAS_AftershockModel {
 	protected int maxGenerations;
 	protected int nSims;
 	protected ETAScatalog simulatedCatalog;	//results of the stochastic simulations
+	protected boolean retainFullCatalogs = false;	//if false, simulated catalogs are summarized and not retained
 	protected Boolean timeDependentMc = false;
 
+	// number of points in the cumulative number vs. log time plots, whose windows are tracked by the forecast summary
+	public static final int LOG_TIME_PLOT_POINTS = 100;
+
 	/**
 	 * This converts the likelihood from log-likelihood to likelihood values, making sure NaNs do not occur 
 	 * due to high logLikelihoods, and re-normalizes the likelihood so as values sum to 1.0.
@@ -220,6 +226,21 @@ public abstract class ETAS_AftershockModel {
 		return nSims;
 	}
 
+	/**
+	 * Sets whether subsequent forecasts retain every simulated catalog. By default they don't: each catalog is
+	 * folded into a summary of the standard forecast windows and magnitudes as soon as it is simulated (see
+	 * {@link #buildForecastSummary(double, double)}), and any other window or magnitude is counted by re-simulating
+	 * the catalogs. Retaining catalogs answers arbitrary queries quickly, at the cost of holding every event in memory.
+	 * @param retainFullCatalogs
+	 */
+	public void setRetainFullCatalogs(boolean retainFullCatalogs){
+		this.retainFullCatalogs = retainFullCatalogs;
+	}
+
+	public boolean isRetainFullCatalogs(){
+		return retainFullCatalogs;
+	}
+
 	public void setMagComplete(double magComplete) {
 		double prevMc = this.magComplete;
 		this.magComplete = magComplete;
@@ -251,21 +272,13 @@ public abstract class ETAS_AftershockModel {
 
 		num_DistributionFunc = new ArbDiscrEmpiricalDistFunc();
 
-		int[] numM = new int[simulatedCatalog.nSims];
-
-		List<float[]> eqCat = new ArrayList<float[]>();
+		//count all events in time window and magnitude range in each catalog
+		int[] numM = simulatedCatalog.countEvents(tMinDays, tMaxDays, forecastMag);
 
 		Point2D pt = new Point2D.Double();
 
 		//cycle through the simulated catalogs
 		for(int i = 0; i < simulatedCatalog.nSims; i++){
-			eqCat = simulatedCatalog.getETAScatalog(i); 	//double[] eqCat = {relativeTime, magnitude, generationNumber}
-			numM[i] = 0;
-			//count all events in time window and magnitude range in this catalog
-			for(float[] eq : eqCat){
-				if(eq[0] > tMinDays && eq[0] <= tMaxDays && eq[1] >= forecastMag)
-					numM[i] ++;
-			}
 			pt.setLocation(numM[i], 1d/simulatedCatalog.nSims);
 			num_DistributionFunc.set(pt);	//increment the distribution
 		}
@@ -303,8 +316,10 @@ public abstract class ETAS_AftershockModel {
 
 		ETAScatalog simulatedCatalog;
 		try{
+			ETAS_SimulationSummary summary = retainFullCatalogs ? null : buildForecastSummary(forecastMinDays, forecastMaxDays);
 			simulatedCatalog = new ETAScatalog(ams_vec, a_vec, p_vec, c_vec, epiLikelihood, alpha, b, refMag, 
-					mainShock, aftershockList, dataMinDays, dataMaxDays, forecastMinDays, forecastMaxDays, magComplete, maxMag, maxGenerations, nSims); //maxMag = 9.5, maxGeneratons = 100;
+					mainShock, aftershockList, dataMinDays, dataMaxDays, forecastMinDays, forecastMaxDays, magComplete, maxMag, maxGenerations, nSims,
+					new SplittableRandom().nextLong(), summary); //maxMag = 9.5, maxGeneratons = 100;
 		} catch(Exception e) {
 			e.printStackTrace();
 			System.err.println("The Java Virtual Machine may have run out of memory.\n"
@@ -318,6 +333,69 @@ public abstract class ETAS_AftershockModel {
 		this.nSims = nSims;
 	}
 
+	/**
+	 * Builds the summary that forecast catalogs are folded into when full catalogs aren't retained. It tracks the
+	 * windows that the forecast products ask for, all starting at the forecast start: the whole forecast, the
+	 * day/week/month/year windows of the graphical forecast and the GUI (fixed lengths) and of the forecast table
+	 * (calendar lengths), and the windows of the cumulative number vs. log time plots. Magnitudes are Mc and each
+	 * whole magnitude above it; queries below Mc are answered at Mc, as every simulated event is at least Mc.
+	 */
+	protected ETAS_SimulationSummary buildForecastSummary(double forecastMinDays, double forecastMaxDays) {
+		List<double[]> windows = new ArrayList<>();
+		addSummaryWindow(windows, forecastMinDays, forecastMaxDays, forecastMaxDays);
+		
+		for (double days : new double[] {1d, 7d, 30d, 365d})
+			addSummaryWindow(windows, forecastMinDays, forecastMinDays + days, forecastMaxDays);
+		
+		// calendar windows, computed from dates as in ETAS_USGS_AftershockForecast
+		GregorianCalendar eventDate = mainShock.getOriginTimeCal();
+		GregorianCalendar startDate = new GregorianCalendar();
+		startDate.setTimeInMillis((long)(eventDate.getTimeInMillis() + forecastMinDays*ETAS_StatsCalc.MILLISEC_PER_DAY));
+		double calendarMinDays = (double)(startDate.getTimeInMillis() - eventDate.getTimeInMillis())/(double)ETAS_StatsCalc.MILLISEC_PER_DAY;
+		for (int field : new int[] {GregorianCalendar.DAY_OF_MONTH, GregorianCalendar.WEEK_OF_MONTH,
+				GregorianCalendar.MONTH, GregorianCalendar.YEAR}) {
+			GregorianCalendar endDate = (GregorianCalendar) startDate.clone();
+			endDate.add(field, 1);
+			double calendarMaxDays = (double)(endDate.getTimeInMillis() - eventDate.getTimeInMillis())/(double)ETAS_StatsCalc.MILLISEC_PER_DAY;
+			addSummaryWindow(windows, calendarMinDays, calendarMaxDays, forecastMaxDays);
+		}
+		
+		for (double t : getLogTimes(forecastMinDays, forecastMaxDays, LOG_TIME_PLOT_POINTS))
+			addSummaryWindow(windows, forecastMinDays, t, forecastMaxDays);
+		
+		double[] tMins = new double[windows.size()];
+		double[] tMaxs = new double[windows.size()];
+		for (int w=0; w<windows.size(); w++) {
+			tMins[w] = windows.get(w)[0];
+			tMaxs[w] = windows.get(w)[1];
+		}
+		
+		List<Double> mags = new ArrayList<>();
+		mags.add(magComplete);
+		for (double mag = Math.floor(magComplete) + 1d; mag <= maxMag; mag++)
+			mags.add(mag);
+		
+		return new ETAS_SimulationSummary(ArrayUtils.toPrimitive(mags.toArray(new Double[0])), tMins, tMaxs);
+	}
+	
+	private static void addSummaryWindow(List<double[]> windows, double tMin, double tMax, double forecastMaxDays) {
+		if (tMax <= tMin || tMax > forecastMaxDays)
+			return;
+		for (double[] window : windows)
+			if (window[0] == tMin && window[1] == tMax)
+				return;
+		windows.add(new double[] {tMin, tMax});
+	}
+	
+	private static double[] getLogTimes(double tMinDays, double tMaxDays, int numPts) {
+		if (tMinDays > 1e-3)
+			return ETAS_StatsCalc.logspace(tMinDays, tMaxDays, numPts);
+		else if (tMaxDays > 1e-3)
+			return ETAS_StatsCalc.logspace(1e-3, tMaxDays, numPts);
+		else
+			return ETAS_StatsCalc.linspace(tMinDays, tMaxDays, numPts);
+	}
+
 	public ArbitrarilyDiscretizedFunc getModalCumNumEventsWithLogTime(double magMin, double tMinDays, double tMaxDays, int numPts) {
 		return getFractileCumNumEventsWithLogTime(magMin,tMinDays,tMaxDays,numPts,0.5);
 	}
@@ -331,14 +409,7 @@ public abstract class ETAS_AftershockModel {
 		double count = 0, obsCount = 0;
 
 		// set up vector of times
-		double[] tvec;
-		if (tMinDays > 1e-3){
-			tvec = ETAS_StatsCalc.logspace(tMinDays, tMaxDays, numPts);
-		} else if (tMaxDays > 1e-3){
-			tvec = ETAS_StatsCalc.logspace(1e-3, tMaxDays, numPts);
-		} else {
-			tvec = ETAS_StatsCalc.linspace(tMinDays, tMaxDays, numPts);
-		}
+		double[] tvec = getLogTimes(tMinDays, tMaxDays, numPts);
 
 		// get number of events observed prior to forecastWindow
 		ObsEqkRupList subList = aftershockList.getRupsAboveMag(magMin)
@@ -598,9 +669,16 @@ public abstract class ETAS_AftershockModel {
 	}
 
 	public double getProbabilityWithAleatory(double mag, double tMinDays, double tMaxDays) {
-		computeNum_DistributionFunc(tMinDays, tMaxDays, mag);
-
-		double probOne = 1 - num_DistributionFunc.getY(0);
+		double probOne;
+		ETAS_SimulationSummary summary = simulatedCatalog.getSummary();
+		int w = summary == null ? -1 : summary.getWindowIndex(tMinDays, tMaxDays);
+		if (w >= 0 && summary.getMagIndex(Math.max(mag, magComplete)) < 0) {
+			// untracked magnitude, but the maximum magnitudes in the window give the probability without re-simulating
+			probOne = summary.getProbability(w, Math.max(mag, magComplete));
+		} else {
+			computeNum_DistributionFunc(tMinDays, tMaxDays, mag);
+			probOne = 1 - num_DistributionFunc.getY(0);
+		}
 
 		// the above probability is the fraction of simulations with events above max(magComplete, mag),
 		// so if mag<magComplete, we need to scale up the probability. We do this with a Poisson rate assumption.
@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import org.apache.commons.math3.analysis.UnivariateFunction;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
@@ -181,6 +182,31 @@ public class ETAS_AftershockModel_SequenceSpecific extends ETAS_AftershockModel
 	 * and gives a warning if too many supercritical parameter sets are found;
 	 */
 	private void getLikelihoodMatrixGridFastMc() {
+		getLikelihoodMatrixGrid(true);
+	}
+
+	/**
+	 * Get likelihood matrix with or without time dependent Mc. Checks for supercriticality 
+	 * and gives a warning if too many supercritical parameter sets are found;
+	 */
+	private void getLikelihoodMatrixGridFast() {
+		getLikelihoodMatrixGrid(false);
+	}
+	
+	// layers of the likelihood tensor
+	private static final int LIKELIHOOD_LAYER = 0;
+	private static final int SUB_CRITICAL_LAYER = 1;
+	private static final int SUPER_CRITICAL_LAYER = 2;
+	private static final int PRIOR_LAYER = 3;
+	
+	/**
+	 * Computes the likelihood grid. Each (p,c) pair is evaluated in parallel: the time decay terms and integrals
+	 * are computed once per pair and reused for every ams and a value, and the branching ratio is computed once per
+	 * (a,p,c). Working grids are kept in a single flat tensor.
+	 * 
+	 * @param fastMc if true, c is scaled with the productivity of each event to account for time-dependent Mc
+	 */
+	private void getLikelihoodMatrixGrid(boolean fastMc) {
 		double[] relativeEventTimes = ETAS_StatsCalc.getDaysSinceMainShockArray(mainShock, aftershockList.getRupsAboveMag(magComplete));
 		double[] magAftershocks = ETAS_StatsCalc.getAftershockMags(aftershockList.getRupsAboveMag(magComplete));
 				
@@ -202,437 +228,178 @@ public class ETAS_AftershockModel_SequenceSpecific extends ETAS_AftershockModel
 			double[] temp = sortedEQlist.get(i);
 			relativeEventTimes[i] = temp[0];
 			magAftershocks[i] = temp[1];
-			sortedEQlist.add(temp);
 		}
 
-		// instantiate two likelihood matrices -- one to hold subcritical likelihoods, one to hold supercritical likelihoods (for bookkeeping).
-		likelihood = new double[num_ams][num_a][num_p][num_c];
-		double[][][][] superCriticalLikelihood = new double[num_ams][num_a][num_p][num_c];
-		double[][][][] subCriticalLikelihood = new double[num_ams][num_a][num_p][num_c];
-		double[][][][] priorLikelihood = new double[num_ams][num_a][num_p][num_c];
+		// one tensor holds the joint, subcritical and supercritical (for bookkeeping) log-likelihoods and the prior
+		ETAS_LikelihoodTensor tensor = new ETAS_LikelihoodTensor(4, num_ams, num_a, num_p, num_c);
 		
-		if (priorModel != null && priorModel.likelihood != null)
-			priorLikelihood = priorModel.get_priorLikelihoodMatrix(ams_vec, a_vec, p_vec, c_vec, false);
-		else{
+		boolean hasPrior = priorModel != null && priorModel.likelihood != null;
+		if (hasPrior)
+			tensor.setLayer(PRIOR_LAYER, priorModel.get_priorLikelihoodMatrix(ams_vec, a_vec, p_vec, c_vec, false));
+		else
 //			timeDependentMc = false; // can't do time-dependent Mc in a timely fashion without fixing incompleteness to typical values
-			for(int amsIndex=0;amsIndex<num_ams;amsIndex++)
-				for(int aIndex=0;aIndex<num_a;aIndex++)
-					for(int pIndex=0;pIndex<num_p;pIndex++)
-						for(int cIndex=0;cIndex<num_c;cIndex++){
-							priorLikelihood[amsIndex][aIndex][pIndex][cIndex] = 1;
-						}
-		}
-		
-		double maxVal= Double.NEGATIVE_INFINITY;
-		double logLike;
-		boolean subCritFlag;
-		
-		double ams, a, k, kms, p, c, c0;
-		double kc = Math.pow(10, ac);
-		int amsIndex, aIndex, pIndex, cIndex;
-		double timeIntegralMS, NtotAS, NtotMS, Ntot;
+			tensor.fill(PRIOR_LAYER, 1);
 		
 		int Nas = relativeEventTimes.length;	//the number of aftershocks, not counting the mainshock
-		double productivityMS;
+		double kc = Math.pow(10, ac);
 		double[] productivityAS = new double[Nas];
-		double[] lambda = new double[Nas];
-		double[] timeDecayMS = new double[Nas];
-		double[] timeDecayAS = new double[Nas];
-		double timeIntegral;
-		
 		
 		//do productivities
-		productivityMS = Math.pow(10, alpha*(mainShock.getMag()-magComplete) );
+		double productivityMS = Math.pow(10, alpha*(mainShock.getMag()-magComplete) );
 		for(int i=0; i<Nas; i++) //compute productivity for this aftershock
 			productivityAS[i] = Math.pow(10, alpha*(magAftershocks[i] - magComplete));	//productivity of this aftershock
-
-
-		double tStartIntegration;
+		
+		// productivity scale factors
+		double[] kms_vec = new double[num_ams];
+		for(int amsIndex=0;amsIndex<num_ams;amsIndex++)
+			kms_vec[amsIndex] = Math.pow(10, ams_vec[amsIndex]);
+		double[] k_vec = new double[num_a];
+		for(int aIndex=0;aIndex<num_a;aIndex++)
+			k_vec[aIndex] = Math.pow(10, a_vec[aIndex]);
 	
 		// set up timer/time estimator
-		double toc, timeEstimate, n;
 		Stopwatch watch = Stopwatch.createStarted();
-		int warnTime = 3;
-		String initialMessageString = "Estimating sequence-specific model. ";
-		
-		for(pIndex=0;pIndex<num_p;pIndex++) {
-			p = p_vec[pIndex];
-
-			for(cIndex=0;cIndex<num_c;cIndex++) {
-				c0 = c_vec[cIndex];
-
-				tStartIntegration = 0;
-				
-				//compute total number at end of fit window for mainshock (unscaled by a)
-				c = c0*Math.pow(kc*productivityMS,1/p);
-				if (p == 1){
-					timeIntegralMS = Math.log(dataEndTimeDays + c) - Math.log(tStartIntegration + c);
-				} else {
-					timeIntegralMS = (Math.pow(dataEndTimeDays + c, 1-p) - Math.pow(tStartIntegration + c, 1-p)) / (1-p);
-				}
-				NtotMS = productivityMS*timeIntegralMS;
-				
-				//compute instantaneous intensities and total number for aftershocks (unscaled by a)
-				NtotAS = 0;
-				for(int i=0; i<Nas; i++){
-					//compute intensity at this moment due to mainshock (unscaled by ams)
+		GridSearchProgress gridProgress = new GridSearchProgress(watch, (long)num_p*num_c*num_ams*num_a);
+		
+		IntStream.range(0, num_p*num_c).parallel().forEach(pcIndex -> {
+			if (stopRequested)
+				return;
+			
+			int pIndex = pcIndex / num_c;
+			int cIndex = pcIndex % num_c;
+			double p = p_vec[pIndex];
+			double c0 = c_vec[cIndex];
+			double c;
+			double tStartIntegration = 0;
+			double timeIntegralMS, timeIntegral, NtotMS, NtotAS;
+			double[] timeDecayMS = new double[Nas];
+			double[] timeDecayAS = new double[Nas];
+			
+			//compute total number at end of fit window for mainshock (unscaled by a)
+			c = fastMc ? c0*Math.pow(kc*productivityMS,1/p) : c0;
+			if (p == 1){
+				timeIntegralMS = Math.log(dataEndTimeDays + c) - Math.log(tStartIntegration + c);
+			} else {
+				timeIntegralMS = (Math.pow(dataEndTimeDays + c, 1-p) - Math.pow(tStartIntegration + c, 1-p)) / (1-p);
+			}
+			NtotMS = productivityMS*timeIntegralMS;
+			
+			//compute instantaneous intensities and total number for aftershocks (unscaled by a)
+			NtotAS = 0;
+			for(int i=0; i<Nas; i++){
+				//compute intensity at this moment due to mainshock (unscaled by ams)
+				if (fastMc)
 					c = c0*Math.pow(kc*productivityMS,1/p);
-					timeDecayMS[i] = productivityMS/Math.pow(relativeEventTimes[i] + c, p); //from the mainshock
-					
-					//compute intensity at this moment due to previous aftershocks (unscaled by a)
-					timeDecayAS[i] = 0;
-					for(int j = 0; j < i; j++){
+				timeDecayMS[i] = productivityMS/Math.pow(relativeEventTimes[i] + c, p); //from the mainshock
+				
+				//compute intensity at this moment due to previous aftershocks (unscaled by a)
+				timeDecayAS[i] = 0;
+				for(int j = 0; j < i; j++){
+					if (fastMc){
+						// c is only updated for earlier events; the sum always includes event j
 						if(relativeEventTimes[j] < relativeEventTimes[i])
 							c = c0*Math.pow(kc*productivityAS[j],1/p);
+						timeDecayAS[i] += productivityAS[j]/Math.pow(relativeEventTimes[i] - relativeEventTimes[j] + c, p);	//from the aftershocks
+					} else {
+						if(relativeEventTimes[j] < relativeEventTimes[i])
 							timeDecayAS[i] += productivityAS[j]/Math.pow(relativeEventTimes[i] - relativeEventTimes[j] + c, p);	//from the aftershocks
 					}
+				}
+			
+				tStartIntegration = relativeEventTimes[i];
 				
-					tStartIntegration = relativeEventTimes[i];
-					
-					//compute total number at end of fit window due to this aftershock (unscaled by a)
+				//compute total number at end of fit window due to this aftershock (unscaled by a)
+				if (fastMc)
 					c = c0*Math.pow(kc*productivityAS[i],1/p);
-					if(relativeEventTimes[i] < dataEndTimeDays){
-						if(p == 1){
-							timeIntegral = Math.log(dataEndTimeDays - relativeEventTimes[i] + c) - Math.log(tStartIntegration - relativeEventTimes[i] + c); 
-						} else {
-							timeIntegral = (Math.pow(dataEndTimeDays - relativeEventTimes[i] + c, 1-p) - Math.pow(tStartIntegration - relativeEventTimes[i] + c, 1-p)) / (1-p);
-						}
-						
-						NtotAS += productivityAS[i]*timeIntegral;	//aftershock Contributions
+				if(relativeEventTimes[i] < dataEndTimeDays){
+					if(p == 1){
+						timeIntegral = Math.log(dataEndTimeDays - relativeEventTimes[i] + c) - Math.log(tStartIntegration - relativeEventTimes[i] + c); 
+					} else {
+						timeIntegral = (Math.pow(dataEndTimeDays - relativeEventTimes[i] + c, 1-p) - Math.pow(tStartIntegration - relativeEventTimes[i] + c, 1-p)) / (1-p);
 					}
-				}
-				
-				// loop over productivities
-				for(amsIndex=0;amsIndex<num_ams;amsIndex++) {
-					//			double ams;	//assigned in next loop
-					ams = ams_vec[amsIndex];
 					
-					for(aIndex=0;aIndex<num_a;aIndex++) {
-						a = a_vec[aIndex];
-
-						logLike = 0;
-						
-						// now put in the productivity terms and compute likelihood
-						kms = Math.pow(10,ams);
-						k = Math.pow(10, a);
-						
-						Ntot = kms*NtotMS + k*NtotAS;
-						
-						logLike += -Ntot;
-						
-						for(int i=0; i<Nas; i++){
-							//compute intensity at this moment due to previous earthquakes
-							lambda[i] = kms*timeDecayMS[i]; //from the mainshock
-							lambda[i] += k*timeDecayAS[i];	//from the aftershocks
-							logLike += Math.log(lambda[i]);
-						}
-						
-						//add prior regularization
-						logLike += Math.log(priorLikelihood[amsIndex][aIndex][pIndex][cIndex]);
-						
-						//check for supercritical parameters over the forecast time window
-						c = c0*Math.pow(kc,1/p);
-						n = ETAS_StatsCalc.calculateBranchingRatio(a, p, c, alpha, b, forecastMaxDays, magComplete, maxMag);
-						
-						subCritFlag = ( n < 1 );
-
-						
-						// fill out the likelihood matrices with the joint likelihood
-						if(Doubles.isFinite(logLike)){
-							if (subCritFlag){
-								likelihood[amsIndex][aIndex][pIndex][cIndex] = logLike;
-								subCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = logLike;
-								superCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-
-								if(maxVal<logLike ) {
-									maxVal=logLike;
-									max_ams_index=amsIndex;
-									max_a_index=aIndex;
-									max_p_index=pIndex;
-									max_c_index=cIndex;
-								}
-							} else {
-								likelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-								subCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-								superCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = logLike;
-							}
-						}else{
-							likelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-							subCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-							superCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-						}
-
-						// run the timer to see how long this is going to take
-						toc = watch.elapsed(TimeUnit.SECONDS);
-						if(toc > warnTime){
-							//check for stopRequested?
-							if (stopRequested){
-								System.out.println("Parameter estimation terminated prematurely.");
-								return;
-							}
-								
-
-							warnTime += 10;
-
-							long count = (pIndex)*(num_c*num_ams*num_a) + (cIndex)*(num_ams*num_a) + (amsIndex)*(num_a) + aIndex;
-							long total = (num_p*num_c*num_ams*num_a);
-							timeEstimate = toc * total/count;
-							System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
-							initialMessageString = "...";
-							if (progress != null){
-								progress.updateProgress(count, total, String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100), (int) ((timeEstimate - toc))));
-//								progress.setProgressMessage(String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100),(int) ((timeEstimate - toc))));
-								progress.repaint();
-								try {
-									Thread.sleep(100);
-								} catch (InterruptedException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
-						}
-					}
+					NtotAS += productivityAS[i]*timeIntegral;	//aftershock Contributions
 				}
 			}
-		}
-
-		// if not fitting MS productivity, make sure the ams_vector reflects this constraint
-		if(!fitMSProductivity){
-			this.min_ams = getMaxLikelihood_a();
-			this.max_ams = getMaxLikelihood_a();
-			this.num_ams = 1;
-			this.ams_vec = ETAS_StatsCalc.linspace(min_ams, max_ams, num_ams);
-		};
-
-		// convert array from log-likelihood to likelihood
-		double testTotalLikelihood = convertLogLikelihoodArrayToLikelihood(maxVal); // this converts likelihood from log to linear
-		toc = watch.elapsed(TimeUnit.SECONDS);
-		
-		if(D) System.out.format("Grid search took %d seconds.\n", (int)toc);
-		if(D) System.out.println("Total likelihood  = " + testTotalLikelihood); //debug
-		
-		//measure the proportion of supercritical combinations
-		double totalSubCriticalLikelihood = convertLogLikelihoodArrayToLikelihood_nonNormalized(subCriticalLikelihood, maxVal);
-		double totalSuperCriticalLikelihood = convertLogLikelihoodArrayToLikelihood_nonNormalized(superCriticalLikelihood, maxVal);
-		double fractionSubCritical = totalSubCriticalLikelihood/(totalSubCriticalLikelihood + totalSuperCriticalLikelihood);
-		
-		toc = watch.elapsed(TimeUnit.SECONDS);
-		
-		if(D) System.out.format("Sequence Specific Model: %3.2f%% subcritical.\n", fractionSubCritical*100);
-		if(D) System.out.format("Mainshock productivity magnitude: %2.2f\n" , getProductivityMag());
-		watch.stop();
-		this.epiLikelihood = likelihood;
-	}
-
-	/**
-	 * Get likelihood matrix with or without time dependent Mc. Checks for supercriticality 
-	 * and gives a warning if too many supercritical parameter sets are found;
-	 */
-	private void getLikelihoodMatrixGridFast() {
-		double[] relativeEventTimes = ETAS_StatsCalc.getDaysSinceMainShockArray(mainShock, aftershockList.getRupsAboveMag(magComplete));
-		double[] magAftershocks = ETAS_StatsCalc.getAftershockMags(aftershockList.getRupsAboveMag(magComplete));
-				
-		List<double[]> sortedEQlist = new ArrayList<double[]>();
-		
-		for(int i = 0; i < relativeEventTimes.length; i++){
-			double[] temp = new double[]{relativeEventTimes[i], magAftershocks[i]};
-			sortedEQlist.add(temp);
-		}
-		
-		//sort times and magnitudes
-		Collections.sort(sortedEQlist, new java.util.Comparator<double[]>() {
-		    public int compare(double[] a, double[] b) {
-		        return Double.compare(a[0], b[0]);
-		    }
-		});
-
-		for(int i = 0; i < relativeEventTimes.length; i++){
-			double[] temp = sortedEQlist.get(i);
-			relativeEventTimes[i] = temp[0];
-			magAftershocks[i] = temp[1];
-			sortedEQlist.add(temp);
-		}
-
-		// instantiate two likelihood matrices -- one to hold subcritical likelihoods, one to hold supercritical likelihoods (for bookkeeping).
-		likelihood = new double[num_ams][num_a][num_p][num_c];
-		double[][][][] superCriticalLikelihood = new double[num_ams][num_a][num_p][num_c];
-		double[][][][] subCriticalLikelihood = new double[num_ams][num_a][num_p][num_c];
-		double[][][][] priorLikelihood = new double[num_ams][num_a][num_p][num_c];
-		
-		if (priorModel != null && priorModel.likelihood != null)
-			priorLikelihood = priorModel.get_priorLikelihoodMatrix(ams_vec, a_vec, p_vec, c_vec, false);
-		else{
-//			timeDependentMc = false; // can't do time-dependent Mc in a timely fashion without fixing incompleteness to typical values
-			for(int amsIndex=0;amsIndex<num_ams;amsIndex++)
-				for(int aIndex=0;aIndex<num_a;aIndex++)
-					for(int pIndex=0;pIndex<num_p;pIndex++)
-						for(int cIndex=0;cIndex<num_c;cIndex++){
-							priorLikelihood[amsIndex][aIndex][pIndex][cIndex] = 1;
-						}
-		}
-		
-		double maxVal= Double.NEGATIVE_INFINITY;
-		double logLike;
-		boolean subCritFlag;
-		
-		double ams, a, k, kms, p, c;
-		int amsIndex, aIndex, pIndex, cIndex;
-		double timeIntegralMS, NtotAS, NtotMS, Ntot;
-		
-		int Nas = relativeEventTimes.length;	//the number of aftershocks, not counting the mainshock
-		double productivityMS;
-		double[] productivityAS = new double[Nas];
-		double[] lambda = new double[Nas];
-		double[] timeDecayMS = new double[Nas];
-		double[] timeDecayAS = new double[Nas];
-		double timeIntegral;
-		
-		
-		//do productivities
-		productivityMS = Math.pow(10, alpha*(mainShock.getMag()-magComplete) );
-		for(int i=0; i<Nas; i++) //compute productivity for this aftershock
-			productivityAS[i] = Math.pow(10, alpha*(magAftershocks[i] - magComplete));	//productivity of this aftershock
-
-
-		double tStartIntegration;
-	
-		// set up timer/time estimator
-		double toc, timeEstimate, n;
-		Stopwatch watch = Stopwatch.createStarted();
-		int warnTime = 3;
-		String initialMessageString = "Estimating sequence-specific model. ";
-		
-		for(pIndex=0;pIndex<num_p;pIndex++) {
-			p = p_vec[pIndex];
-
-			for(cIndex=0;cIndex<num_c;cIndex++) {
-				c = c_vec[cIndex];
-
-				tStartIntegration = 0;
-				
+			
+			//check for supercritical parameters over the forecast time window (independent of ams)
+			double cCrit = fastMc ? c0*Math.pow(kc,1/p) : c0;
+			boolean[] subCritFlags = new boolean[num_a];
+			for(int aIndex=0;aIndex<num_a;aIndex++){
+				double n = ETAS_StatsCalc.calculateBranchingRatio(a_vec[aIndex], p, cCrit, alpha, b, forecastMaxDays, magComplete, maxMag);
+				subCritFlags[aIndex] = ( n < 1 );
+			}
+			
+			// loop over productivities
+			for(int amsIndex=0;amsIndex<num_ams;amsIndex++) {
+				if (stopRequested)
+					return;
 				
-				//compute total number at end of fit window for mainshock (unscaled by a)
-				if (p == 1){
-					timeIntegralMS = Math.log(dataEndTimeDays + c) - Math.log(tStartIntegration + c);
-				} else {
-					timeIntegralMS = (Math.pow(dataEndTimeDays + c, 1-p) - Math.pow(tStartIntegration + c, 1-p)) / (1-p);
-				}
-				NtotMS = productivityMS*timeIntegralMS;
+				double kms = kms_vec[amsIndex];
 				
-				//compute instantaneous intensities and total number for aftershocks (unscaled by a)
-				NtotAS = 0;
-				for(int i=0; i<Nas; i++){
-					//compute intensity at this moment due to mainshock (unscaled by ams)
-					timeDecayMS[i] = productivityMS/Math.pow(relativeEventTimes[i] + c, p); //from the mainshock
+				for(int aIndex=0;aIndex<num_a;aIndex++) {
+					double k = k_vec[aIndex];
+
+					// now put in the productivity terms and compute likelihood
+					double logLike = 0;
+					double Ntot = kms*NtotMS + k*NtotAS;
+					logLike += -Ntot;
 					
-					//compute intensity at this moment due to previous aftershocks (unscaled by a)
-					timeDecayAS[i] = 0;
-					for(int j = 0; j < i; j++){
-						if(relativeEventTimes[j] < relativeEventTimes[i])
-							timeDecayAS[i] += productivityAS[j]/Math.pow(relativeEventTimes[i] - relativeEventTimes[j] + c, p);	//from the aftershocks
+					for(int i=0; i<Nas; i++){
+						//compute intensity at this moment due to previous earthquakes
+						double lambda = kms*timeDecayMS[i]; //from the mainshock
+						lambda += k*timeDecayAS[i];	//from the aftershocks
+						logLike += Math.log(lambda);
 					}
-				
-					tStartIntegration = relativeEventTimes[i];
 					
-					//compute total number at end of fit window due to this aftershock (unscaled by a)
-					if(relativeEventTimes[i] < dataEndTimeDays){
-						if(p == 1){
-							timeIntegral = Math.log(dataEndTimeDays - relativeEventTimes[i] + c) - Math.log(tStartIntegration - relativeEventTimes[i] + c); 
+					int index = tensor.getIndex(amsIndex, aIndex, pIndex, cIndex);
+					
+					//add prior regularization
+					logLike += Math.log(tensor.get(PRIOR_LAYER, index));
+					
+					// fill out the likelihood matrices with the joint likelihood
+					if(Doubles.isFinite(logLike)){
+						if (subCritFlags[aIndex]){
+							tensor.set(LIKELIHOOD_LAYER, index, logLike);
+							tensor.set(SUB_CRITICAL_LAYER, index, logLike);
+							tensor.set(SUPER_CRITICAL_LAYER, index, Double.NEGATIVE_INFINITY);
 						} else {
-							timeIntegral = (Math.pow(dataEndTimeDays - relativeEventTimes[i] + c, 1-p) - Math.pow(tStartIntegration - relativeEventTimes[i] + c, 1-p)) / (1-p);
+							tensor.set(LIKELIHOOD_LAYER, index, Double.NEGATIVE_INFINITY);
+							tensor.set(SUB_CRITICAL_LAYER, index, Double.NEGATIVE_INFINITY);
+							tensor.set(SUPER_CRITICAL_LAYER, index, logLike);
 						}
-						
-						NtotAS += productivityAS[i]*timeIntegral;	//aftershock Contributions
+					}else{
+						tensor.set(LIKELIHOOD_LAYER, index, Double.NEGATIVE_INFINITY);
+						tensor.set(SUB_CRITICAL_LAYER, index, Double.NEGATIVE_INFINITY);
+						tensor.set(SUPER_CRITICAL_LAYER, index, Double.NEGATIVE_INFINITY);
 					}
 				}
 				
-				// loop over productivities
-				for(amsIndex=0;amsIndex<num_ams;amsIndex++) {
-					//			double ams;	//assigned in next loop
-					ams = ams_vec[amsIndex];
-					
-					for(aIndex=0;aIndex<num_a;aIndex++) {
-						a = a_vec[aIndex];
-
-						logLike = 0;
-						
-						// now put in the productivity terms and compute likelihood
-						kms = Math.pow(10,ams);
-						k = Math.pow(10, a);
-						
-						Ntot = kms*NtotMS + k*NtotAS;
-						
-						logLike += -Ntot;
-						
-						for(int i=0; i<Nas; i++){
-							//compute intensity at this moment due to previous earthquakes
-							lambda[i] = kms*timeDecayMS[i]; //from the mainshock
-							lambda[i] += k*timeDecayAS[i];	//from the aftershocks
-							logLike += Math.log(lambda[i]);
-						}
-						
-						//add prior regularization
-						logLike += Math.log(priorLikelihood[amsIndex][aIndex][pIndex][cIndex]);
-						
-						//check for supercritical parameters over the forecast time window
-						n = ETAS_StatsCalc.calculateBranchingRatio(a, p, c, alpha, b, forecastMaxDays, magComplete, maxMag);
-						
-						subCritFlag = ( n < 1 );
-
-						
-						// fill out the likelihood matrices with the joint likelihood
-						if(Doubles.isFinite(logLike)){
-							if (subCritFlag){
-								likelihood[amsIndex][aIndex][pIndex][cIndex] = logLike;
-								subCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = logLike;
-								superCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-
-								if(maxVal<logLike ) {
-									maxVal=logLike;
-									max_ams_index=amsIndex;
-									max_a_index=aIndex;
-									max_p_index=pIndex;
-									max_c_index=cIndex;
-								}
-							} else {
-								likelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-								subCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-								superCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = logLike;
-							}
-						}else{
-							likelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-							subCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-							superCriticalLikelihood[amsIndex][aIndex][pIndex][cIndex] = Double.NEGATIVE_INFINITY;
-						}
-
-						// run the timer to see how long this is going to take
-						toc = watch.elapsed(TimeUnit.SECONDS);
-						if(toc > warnTime){
-							//check for stopRequested?
-							if (stopRequested){
-								System.out.println("Parameter estimation terminated prematurely.");
-								return;
-							}
-								
-
-							warnTime += 10;
-
-							long count = (pIndex)*(num_c*num_ams*num_a) + (cIndex)*(num_ams*num_a) + (amsIndex)*(num_a) + aIndex;
-							long total = (num_p*num_c*num_ams*num_a);
-							timeEstimate = toc * total/count;
-							System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
-							initialMessageString = "...";
-							if (progress != null){
-								progress.updateProgress(count, total, String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100), (int) ((timeEstimate - toc))));
-//								progress.setProgressMessage(String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100),(int) ((timeEstimate - toc))));
-								progress.repaint();
-								try {
-									Thread.sleep(100);
-								} catch (InterruptedException e) {
-									// TODO Auto-generated catch block
-									e.printStackTrace();
-								}
-							}
+				// run the timer to see how long this is going to take
+				gridProgress.update(num_a);
+			}
+		});
+		
+		likelihood = tensor.toArray(LIKELIHOOD_LAYER);
+		
+		if (stopRequested){
+			System.out.println("Parameter estimation terminated prematurely.");
+			return;
+		}
+		
+		// find the maximum likelihood parameters, visiting cells in the same order as a serial search
+		double maxVal= Double.NEGATIVE_INFINITY;
+		for(int pIndex=0;pIndex<num_p;pIndex++) {
+			for(int cIndex=0;cIndex<num_c;cIndex++) {
+				for(int amsIndex=0;amsIndex<num_ams;amsIndex++) {
+					for(int aIndex=0;aIndex<num_a;aIndex++) {
+						double logLike = likelihood[amsIndex][aIndex][pIndex][cIndex];
+						if(maxVal<logLike ) {
+							maxVal=logLike;
+							max_ams_index=amsIndex;
+							max_a_index=aIndex;
+							max_p_index=pIndex;
+							max_c_index=cIndex;
 						}
 					}
 				}
@@ -649,25 +416,57 @@ public class ETAS_AftershockModel_SequenceSpecific extends ETAS_AftershockModel
 
 		// convert array from log-likelihood to likelihood
 		double testTotalLikelihood = convertLogLikelihoodArrayToLikelihood(maxVal); // this converts likelihood from log to linear
-		toc = watch.elapsed(TimeUnit.SECONDS);
+		long toc = watch.elapsed(TimeUnit.SECONDS);
 		
 		if(D) System.out.format("Grid search took %d seconds.\n", (int)toc);
 		if(D) System.out.println("Total likelihood  = " + testTotalLikelihood); //debug
 		
 		//measure the proportion of supercritical combinations
-		double totalSubCriticalLikelihood = convertLogLikelihoodArrayToLikelihood_nonNormalized(subCriticalLikelihood, maxVal);
-		double totalSuperCriticalLikelihood = convertLogLikelihoodArrayToLikelihood_nonNormalized(superCriticalLikelihood, maxVal);
+		double totalSubCriticalLikelihood = tensor.sumLikelihood(SUB_CRITICAL_LAYER, maxVal, num_ams);
+		double totalSuperCriticalLikelihood = tensor.sumLikelihood(SUPER_CRITICAL_LAYER, maxVal, num_ams);
 		double fractionSubCritical = totalSubCriticalLikelihood/(totalSubCriticalLikelihood + totalSuperCriticalLikelihood);
 		
-		toc = watch.elapsed(TimeUnit.SECONDS);
-		
 		if(D) System.out.format("Sequence Specific Model: %3.2f%% subcritical.\n", fractionSubCritical*100);
 		if(D) System.out.format("Mainshock productivity magnitude: %2.2f\n" , getProductivityMag());
 		watch.stop();
 		this.epiLikelihood = likelihood;
 	}
 	
-	
+	/**
+	 * Prints a time estimate every 10 seconds and updates the progress bar, from whichever grid search thread
+	 * gets there first
+	 */
+	private class GridSearchProgress {
+		
+		private Stopwatch watch;
+		private long total;
+		private long count = 0;
+		private int warnTime = 3;
+		private String initialMessageString = "Estimating sequence-specific model. ";
+		
+		public GridSearchProgress(Stopwatch watch, long total) {
+			this.watch = watch;
+			this.total = total;
+		}
+		
+		public synchronized void update(int numDone) {
+			count += numDone;
+			
+			double toc = watch.elapsed(TimeUnit.SECONDS);
+			if(toc > warnTime){
+				warnTime += 10;
+
+				double timeEstimate = toc * total/count;
+				System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
+				initialMessageString = "...";
+				if (progress != null){
+					progress.updateProgress(count, total, String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100), (int) ((timeEstimate - toc))));
+					progress.repaint();
+				}
+			}
+		}
+	}
+
 //	/**
 //	 * Get likelihood matrix with no shortcuts (computing p and c terms inside a and ams loops) SLOOOOOOW!
 //	 */
@@ -0,0 +1,103 @@
+package scratch.aftershockStatisticsETAS;
+
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * One or more [ams][a][p][c] likelihood grids stored in a single flat array. Within each layer, cells are in
+ * the same order as nested loops over ams, a, p and c (c fastest), so the first n*num_a*num_p*num_c cells of
+ * a layer are the first n ams slices.
+ */
+public class ETAS_LikelihoodTensor {
+
+	private int numLayers;
+	private int num_ams, num_a, num_p, num_c;
+	private int layerSize;
+	private double[] values;
+
+	public ETAS_LikelihoodTensor(int numLayers, int num_ams, int num_a, int num_p, int num_c) {
+		long size = (long)numLayers*num_ams*num_a*num_p*num_c;
+		Preconditions.checkArgument(size <= Integer.MAX_VALUE, "Likelihood grid is too large: %s cells", size);
+		this.numLayers = numLayers;
+		this.num_ams = num_ams;
+		this.num_a = num_a;
+		this.num_p = num_p;
+		this.num_c = num_c;
+		this.layerSize = num_ams*num_a*num_p*num_c;
+		this.values = new double[(int)size];
+	}
+
+	public int getNumLayers() {
+		return numLayers;
+	}
+
+	public int getLayerSize() {
+		return layerSize;
+	}
+
+	/**
+	 * @return index of the given cell within a layer
+	 */
+	public int getIndex(int amsIndex, int aIndex, int pIndex, int cIndex) {
+		return ((amsIndex*num_a + aIndex)*num_p + pIndex)*num_c + cIndex;
+	}
+
+	public double get(int layer, int index) {
+		return values[layer*layerSize + index];
+	}
+
+	public void set(int layer, int index, double value) {
+		values[layer*layerSize + index] = value;
+	}
+
+	public void fill(int layer, double value) {
+		Arrays.fill(values, layer*layerSize, (layer+1)*layerSize, value);
+	}
+
+	/**
+	 * Copies a jagged [ams][a][p][c] array into the given layer
+	 */
+	public void setLayer(int layer, double[][][][] array) {
+		int index = layer*layerSize;
+		for (int amsIndex=0; amsIndex<num_ams; amsIndex++)
+			for (int aIndex=0; aIndex<num_a; aIndex++)
+				for (int pIndex=0; pIndex<num_p; pIndex++) {
+					System.arraycopy(array[amsIndex][aIndex][pIndex], 0, values, index, num_c);
+					index += num_c;
+				}
+	}
+
+	/**
+	 * @return the given layer as a jagged [ams][a][p][c] array
+	 */
+	public double[][][][] toArray(int layer) {
+		double[][][][] array = new double[num_ams][num_a][num_p][num_c];
+		int index = layer*layerSize;
+		for (int amsIndex=0; amsIndex<num_ams; amsIndex++)
+			for (int aIndex=0; aIndex<num_a; aIndex++)
+				for (int pIndex=0; pIndex<num_p; pIndex++) {
+					System.arraycopy(values, index, array[amsIndex][aIndex][pIndex], 0, num_c);
+					index += num_c;
+				}
+		return array;
+	}
+
+	/**
+	 * Sums exp(logLike - maxLogLikeVal) over the first numAms ams slices of the given layer, treating
+	 * values more than 20 log units below the max as zero. This matches
+	 * ETAS_AftershockModel.convertLogLikelihoodArrayToLikelihood_nonNormalized, without modifying the layer.
+	 */
+	public double sumLikelihood(int layer, double maxLogLikeVal, int numAms) {
+		double total = 0;
+		int start = layer*layerSize;
+		int end = start + numAms*num_a*num_p*num_c;
+		for (int i=start; i<end; i++) {
+			double loglike = values[i] - maxLogLikeVal;
+			if (!(loglike < -20))
+				total += Math.exp(loglike);
+		}
+		return total;
+	}
+
+}
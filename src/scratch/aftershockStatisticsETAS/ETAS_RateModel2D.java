@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
 
 import org.opensha.commons.data.xyz.GriddedGeoDataSet;
 import org.opensha.commons.geo.GriddedRegion;
@@ -170,6 +171,9 @@ public class ETAS_RateModel2D {
 		return gridData;
 	}
 
+	// conservative margin on neighbor search windows, so that rounding can't exclude a node that passes the exact test
+	private static final double SEARCH_MARGIN = 1.01;
+	
 	/** smooth the rate map to give the rate/probability of earthquakes of a given size and distance
 	 *  "spacing" must be specified and must match the spacing in gridData 
 	 */
@@ -180,65 +184,47 @@ public class ETAS_RateModel2D {
 		}
 		
 		GriddedGeoDataSet smoothGridData = new GriddedGeoDataSet(rateModel.getRegion(), false);
+		GridRowIndex gridIndex = new GridRowIndex(smoothGridData);
+		double[] rates = getRates(smoothGridData.size());
 
-		Location pt1;
-		Location pt2;
-		double dx, dy, r2;
 		double d2 = distance*distance/111.111/111.111; //km --> deg
-		double lon, lat, lon0, lat0, latFactor;
-		double rateSum;
-
-		// set up timer/time estimator
-		double toc, timeEstimate;
-		Stopwatch watch = Stopwatch.createStarted();
-		int warnTime = 3;
-		String initialMessageString = "Computing smoothed rate map. ";
+		double searchDeg = Math.sqrt(d2)*SEARCH_MARGIN;
+		double magScale = Math.pow(10, -forecastModel.get_b()*(magPlot - forecastModel.magComplete));
 		
-		for (int i=0 ; i < smoothGridData.size(); i++){
-			pt1 = smoothGridData.getLocation(i);
-			lon0 = pt1.getLongitude();
-			lat0 = pt1.getLatitude();
-			latFactor = Math.cos(Math.toRadians(lat0));
+		SmoothingProgress progress = new SmoothingProgress(smoothGridData.size());
+		ThreadLocal<int[]> candidateBuffers = ThreadLocal.withInitial(() -> new int[gridIndex.size()]);
+		
+		double[] probs = new double[smoothGridData.size()];
+		IntStream.range(0, smoothGridData.size()).parallel().forEach(i -> {
+			double lon0 = gridIndex.getLon(i);
+			double lat0 = gridIndex.getLat(i);
+			double latFactor = Math.cos(Math.toRadians(lat0));
+			double searchLonDeg = latFactor > 0 ? searchDeg/latFactor : Double.POSITIVE_INFINITY;
 
 			//find the grid points near enough to include
-			rateSum = 0;
-			for (int j = 0; j < smoothGridData.size(); j++){
-				//start with the quick estimate
-				pt2 = smoothGridData.getLocation(j);
-				lon = pt2.getLongitude();
-				lat = pt2.getLatitude();
-				dx = (lon-lon0)*latFactor;
-				dy = (lat-lat0);
-
-				r2 = dx*dx + dy*dy;
+			int[] candidates = candidateBuffers.get();
+			int numCandidates = gridIndex.getCandidates(lat0, lon0, searchDeg, searchLonDeg, candidates);
+			double rateSum = 0;
+			for (int k = 0; k < numCandidates; k++){
+				int j = candidates[k];
+				double dx = (gridIndex.getLon(j)-lon0)*latFactor;
+				double dy = (gridIndex.getLat(j)-lat0);
+
+				double r2 = dx*dx + dy*dy;
 				if (r2 < d2){
-					rateSum += rateModel.get(j);
+					rateSum += rates[j];
 				}
 			}
 
-			// run the timer to see how long this is going to take
-			toc = watch.elapsed(TimeUnit.SECONDS);
-			if(toc > warnTime){
-				warnTime += 10;
-
-				long count = i;
-				long total = smoothGridData.size();
-				timeEstimate = toc * (double)total/ (double)count;
-				System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
-				initialMessageString = "...";
-				
-				if (forecastModel.progress != null){
-					//									progress.updateProgress(count, total, String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100), (int) ((timeEstimate - toc)/1000)));
-					forecastModel.progress.setProgressMessage(String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100),(int) ((timeEstimate - toc))));
-					forecastModel.progress.pack();
-				}
-			}
 			// scale to new magnitude reference
-			rateSum *= Math.pow(10, -forecastModel.get_b()*(magPlot - forecastModel.magComplete));
-			double probSum = 1d - Math.exp(-rateSum);
-
-			smoothGridData.set(i, probSum);
-		}
+			rateSum *= magScale;
+			probs[i] = 1d - Math.exp(-rateSum);
+			
+			progress.update();
+		});
+		
+		for (int i=0; i < probs.length; i++)
+			smoothGridData.set(i, probs[i]);
 		
 		return smoothGridData;
 	}
@@ -249,73 +235,120 @@ public class ETAS_RateModel2D {
 	public GriddedGeoDataSet calculateMMIRateModel(double mmiRef){
 		
 		GriddedGeoDataSet smoothGridData = new GriddedGeoDataSet(rateModel.getRegion(), false);
+		GridRowIndex gridIndex = new GridRowIndex(smoothGridData);
+		double[] rates = getRates(smoothGridData.size());
 
-		Location pt1;
-		Location pt2;
-		double dx, dy, r, mag;
-		double lon, lat, lon0, lat0, latFactor;
-		double rateSum;
-		double magRef = forecastModel.magComplete;
-
-		// set up timer/time estimator
-		double toc, timeEstimate;
-		Stopwatch watch = Stopwatch.createStarted();
-		int warnTime = 3;
-		String initialMessageString = "Computing smoothed rate map. ";
-		
 		mmiModel = null; //reset the mmi-magnitude interpolation forecastModel
+		buildMMIModel(mmiRef);
+		
+		// rate scaling for each distance in the mmi model. Nodes at or beyond maxDist don't contribute
+		double[] mmiScales = new double[mmiModel[1].length];
+		for (int k = 0; k < mmiScales.length; k++)
+			mmiScales[k] = Math.pow(10, -forecastModel.get_b()*(mmiModel[1][k] - forecastModel.magComplete));
+		double searchDeg = maxDist/111.1111*SEARCH_MARGIN;
 		
-		for (int i=0 ; i < smoothGridData.size(); i++){
-			pt1 = smoothGridData.getLocation(i);
-			lon0 = pt1.getLongitude();
-			lat0 = pt1.getLatitude();
-			latFactor = Math.cos(Math.toRadians(lat0));
+		SmoothingProgress progress = new SmoothingProgress(smoothGridData.size());
+		ThreadLocal<int[]> candidateBuffers = ThreadLocal.withInitial(() -> new int[gridIndex.size()]);
+		
+		double[] rateSums = new double[smoothGridData.size()];
+		IntStream.range(0, smoothGridData.size()).parallel().forEach(i -> {
+			double lon0 = gridIndex.getLon(i);
+			double lat0 = gridIndex.getLat(i);
+			double latFactor = Math.cos(Math.toRadians(lat0));
+			double searchLonDeg = latFactor > 0 ? searchDeg/latFactor : Double.POSITIVE_INFINITY;
 
 			//find the grid points near enough to include
-			rateSum = 0;
-			for (int j = 0; j < smoothGridData.size(); j++){
-				//start with the quick estimate
-				pt2 = smoothGridData.getLocation(j);
-				lon = pt2.getLongitude();
-				lat = pt2.getLatitude();
-				dx = (lon-lon0)*latFactor;
-				dy = (lat-lat0);
-
-				r = Math.sqrt(dx*dx + dy*dy)*111.1111;
-				
-				mag = getMagForMMI(mmiRef, r);
+			int[] candidates = candidateBuffers.get();
+			int numCandidates = gridIndex.getCandidates(lat0, lon0, searchDeg, searchLonDeg, candidates);
+			double rateSum = 0;
+			for (int k = 0; k < numCandidates; k++){
+				int j = candidates[k];
+				double dx = (gridIndex.getLon(j)-lon0)*latFactor;
+				double dy = (gridIndex.getLat(j)-lat0);
+
+				double r = Math.sqrt(dx*dx + dy*dy)*111.1111;
 				
-				rateSum += rateModel.get(j) * Math.pow(10, -forecastModel.get_b()*(mag - forecastModel.magComplete));;
+				int pt = getMMIModelIndex(r);
+				if (pt >= 0)
+					rateSum += rates[j] * mmiScales[pt];
 			}
+			rateSums[i] = rateSum;
 			
+			progress.update();
+		});
+		
+		for (int i=0; i < rateSums.length; i++)
+			smoothGridData.set(i, rateSums[i]);
 
+		return smoothGridData;
+	}
+	
+	private double[] getRates(int size){
+		double[] rates = new double[size];
+		for (int j = 0; j < size; j++)
+			rates[j] = rateModel.get(j);
+		return rates;
+	}
+	
+	/**
+	 * Prints a time estimate every 10 seconds, and passes it to the progress bar if there is one
+	 */
+	private class SmoothingProgress {
+		
+		private Stopwatch watch = Stopwatch.createStarted();
+		private String initialMessageString = "Computing smoothed rate map. ";
+		private int warnTime = 3;
+		private long total;
+		private long count = 0;
+		
+		public SmoothingProgress(long total) {
+			this.total = total;
+		}
+		
+		public synchronized void update() {
+			count++;
+			
 			// run the timer to see how long this is going to take
-			toc = watch.elapsed(TimeUnit.SECONDS);
+			double toc = watch.elapsed(TimeUnit.SECONDS);
 			if(toc > warnTime){
 				warnTime += 10;
 
-				long count = i;
-				long total = smoothGridData.size();
-				timeEstimate = toc * (double)total/ (double)count;
+				double timeEstimate = toc * (double)total/ (double)count;
 				System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
 				initialMessageString = "...";
 				
 				if (forecastModel.progress != null){
-					//									progress.updateProgress(count, total, String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100), (int) ((timeEstimate - toc)/1000)));
 					forecastModel.progress.setProgressMessage(String.format("%d%% complete. %d seconds remaining", (int) (((double) count)/((double) total) * 100),(int) ((timeEstimate - toc))));
 					forecastModel.progress.pack();
 				}
 			}
-			smoothGridData.set(i, rateSum);
 		}
-
-		return smoothGridData;
 	}
 	
 	private double[][] mmiModel;
 	private double maxDist = Double.POSITIVE_INFINITY;
 	
-	private double getMagForMMI(double mmiRef, double D){
+	/**
+	 * Returns the index of the mmi model point that applies at distance D (the last point at or below D),
+	 * or -1 if D is at or beyond the distance where the reference MMI can never happen
+	 */
+	private int getMMIModelIndex(double D){
+		if(D >= maxDist)
+			return -1;
+		
+		double[] distances = mmiModel[0];
+		int lo = 0, hi = distances.length - 1;
+		while (lo < hi){
+			int mid = (lo + hi + 1) >>> 1;
+			if (distances[mid] <= D)
+				lo = mid;
+			else
+				hi = mid - 1;
+		}
+		return lo;
+	}
+	
+	private void buildMMIModel(double mmiRef){
 		
 		double mag;
 		if (mmiModel == null){
@@ -328,7 +361,7 @@ public class ETAS_RateModel2D {
 			for (int i = 0; i < distances.length; i++){
 				mmiModel[0][i] = distances[i]; 
 				
-				D = distances[i];
+				double D = distances[i];
 
 				// this one uses Atkinson and Wald 2007, not corrected for sigma
 				String loc = "notCEUS";
@@ -370,31 +403,6 @@ public class ETAS_RateModel2D {
 				mmiModel[1][i] = mag;
 			}
 		}
-		
-//		return mmiModel.getInterpolatedY_inLogXLogYDomain(D);
-		if(D >= maxDist)
-			return Double.POSITIVE_INFINITY;
-		else{
-			int pt = mmiModel[0].length-1;
-			while ( D < mmiModel[0][pt] && pt > 0){
-				pt--;
-			}
-			return mmiModel[1][pt];
-		}
-		
-//			if (pt == mmiModel[0].length-1)
-//				return mmiModel[1][pt];
-//			else{
-//				double baseMag = mmiModel[1][pt];
-//				double topMag = mmiModel[1][pt+1];
-//				
-//				double baseDist = mmiModel[0][pt];
-//				double topDist = mmiModel[0][pt];
-//				
-//				return baseMag + (topMag-baseMag)/(topDist-baseDist) * D;
-//			}
-//
-//		}
 	}
 	
 	
@@ -54,6 +54,20 @@ public class ETAS_ShakingForecastCalc {
 	private static boolean D = false;
 	private static double magDelta = 0.1;
 	private static double[] depths = { 7, 2 }; // depth of <6.5 and >=6.5, respectively
+	// directory for cached GMPE precalculations, or null for none
+	private static File precalcCacheDir = new File(new File(System.getProperty("user.home"), ".opensha"), "etas_gmpe_precalc");
+	
+	/**
+	 * Sets the directory where GMPE precalculations are cached between runs, or null to disable caching
+	 * @param dir
+	 */
+	public static void setPrecalcCacheDir(File dir) {
+		precalcCacheDir = dir;
+	}
+	
+	public static File getPrecalcCacheDir() {
+		return precalcCacheDir;
+	}
 	
 	/**
 	 * 
@@ -72,11 +86,19 @@ public class ETAS_ShakingForecastCalc {
 	public static DiscretizedFunc[] calcForecast(GriddedRegion calcRegion, GeoDataSet rateModel, double refMag, double maxMag, double b, ScalarIMR gmpe,
 			Map<FocalMech, Double> mechWts, double maxSourceDist, SiteData<Double> vs30Provider) throws IOException {
 		return calcForecast( calcRegion,  rateModel,  refMag,  maxMag,  b,  gmpe,
-				 mechWts,  maxSourceDist, vs30Provider,  false); 
+				 mechWts,  maxSourceDist, vs30Provider,  null); 
 	}
 	
+	/**
+	 * As above, but progress of the interpolated calculation is passed to the given listener, which can cancel it
+	 * with {@link GriddedInterpGMPE_Calc#requestStop()} (e.g. after asking the user).
+	 * 
+	 * @param progressListener listener for progress of the interpolated calculation, or null for none
+	 * @return array of hazard curves, or null if the calculation was stopped
+	 */
 	public static DiscretizedFunc[] calcForecast(GriddedRegion calcRegion, GeoDataSet rateModel, double refMag, double maxMag, double b, ScalarIMR gmpe,
-			Map<FocalMech, Double> mechWts, double maxSourceDist, SiteData<Double> vs30Provider, boolean prompt) throws IOException {
+			Map<FocalMech, Double> mechWts, double maxSourceDist, SiteData<Double> vs30Provider,
+			GriddedInterpGMPE_Calc.CalcProgressListener progressListener) throws IOException {
 		
 		double durationYears = 1d; // this must be set to one, because the PSHA codes assume rateModel is annual, but we must give it the total number expected.
 		
@@ -102,7 +124,8 @@ public class ETAS_ShakingForecastCalc {
 				Vs30_Param.NAME, 180, 760, 20); // matches Wald Allen range
 		
 		GriddedInterpGMPE_Calc calc = new GriddedInterpGMPE_Calc(gmpe, xVals, b, refMag, maxMag, numMag, distInterp, vs30Interp);
-		calc.setPromptForLongCalc(prompt);
+		calc.setProgressListener(progressListener);
+		calc.setPrecalcCacheDir(precalcCacheDir);
 		
 		// this precalculates to set up the interpolators
 		if(D) System.out.println("Setting up interpolators...");
@@ -0,0 +1,210 @@
+package scratch.aftershockStatisticsETAS;
+
+import java.awt.geom.Point2D;
+import java.util.Arrays;
+
+import org.opensha.commons.data.function.ArbDiscrEmpiricalDistFunc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Online summary of a suite of ETAS simulations. Each simulated catalog is folded into per-simulation counts
+ * of M>=mag events and maximum magnitudes for a fixed set of magnitudes and time windows as soon as it is
+ * produced, so that the catalog itself can be discarded.
+ *
+ * Results for each simulation are written to their own slot, so catalogs can be added from several threads
+ * at once and the distributions don't depend on the order in which simulations finish.
+ */
+public class ETAS_SimulationSummary {
+
+	// tolerance used to match requested windows and magnitudes against the tracked ones
+	private static final double TOL = 1e-6;
+
+	private double[] mags;
+	private double[] tMins, tMaxs;
+
+	private int nSims = 0;
+	// counts[window][mag][sim]
+	private int[][][] counts;
+	// maxMags[window][sim], -infinity if there were no events in the window
+	private float[][] maxMags;
+
+	/**
+	 * @param mags minimum magnitudes to count
+	 * @param tMins start of each time window (days since the mainshock, exclusive)
+	 * @param tMaxs end of each time window (days since the mainshock, inclusive)
+	 */
+	public ETAS_SimulationSummary(double[] mags, double[] tMins, double[] tMaxs) {
+		Preconditions.checkArgument(mags.length > 0, "Must supply at least one magnitude");
+		Preconditions.checkArgument(tMins.length > 0 && tMins.length == tMaxs.length,
+				"Must supply matching time window starts and ends");
+		for (int w=0; w<tMins.length; w++)
+			Preconditions.checkArgument(tMaxs[w] > tMins[w], "Time window %s is empty: %s to %s", w, tMins[w], tMaxs[w]);
+		this.mags = Arrays.copyOf(mags, mags.length);
+		this.tMins = Arrays.copyOf(tMins, tMins.length);
+		this.tMaxs = Arrays.copyOf(tMaxs, tMaxs.length);
+	}
+
+	/**
+	 * Allocates room for the given number of simulations. A summary holds the results of a single suite of
+	 * simulations, so this can only be called once.
+	 */
+	void initialize(int nSims) {
+		Preconditions.checkState(counts == null, "Summary already holds simulation results, use a new summary");
+		this.nSims = nSims;
+		counts = new int[tMins.length][mags.length][nSims];
+		maxMags = new float[tMins.length][nSims];
+		for (float[] windowMaxMags : maxMags)
+			Arrays.fill(windowMaxMags, Float.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * Folds a simulated catalog into the summary
+	 *
+	 * @param sim simulation index
+	 * @param times event times in days
+	 * @param eventMags event magnitudes
+	 * @param size number of events
+	 */
+	void add(int sim, float[] times, float[] eventMags, int size) {
+		for (int i=0; i<size; i++) {
+			float time = times[i];
+			float mag = eventMags[i];
+			for (int w=0; w<tMins.length; w++) {
+				if (time > tMins[w] && time <= tMaxs[w]) {
+					if (mag > maxMags[w][sim])
+						maxMags[w][sim] = mag;
+					int[][] windowCounts = counts[w];
+					for (int m=0; m<mags.length; m++)
+						if (mag >= mags[m])
+							windowCounts[m][sim]++;
+				}
+			}
+		}
+	}
+
+	public int getNumSims() {
+		return nSims;
+	}
+
+	public int getNumWindows() {
+		return tMins.length;
+	}
+
+	public int getNumMags() {
+		return mags.length;
+	}
+
+	public double getMag(int magIndex) {
+		return mags[magIndex];
+	}
+
+	public double getWindowMin(int windowIndex) {
+		return tMins[windowIndex];
+	}
+
+	public double getWindowMax(int windowIndex) {
+		return tMaxs[windowIndex];
+	}
+
+	/**
+	 * @return index of the tracked time window matching the given one, or -1 if it is not tracked
+	 */
+	public int getWindowIndex(double tMin, double tMax) {
+		for (int w=0; w<tMins.length; w++)
+			if (Math.abs(tMins[w] - tMin) < TOL && Math.abs(tMaxs[w] - tMax) < TOL)
+				return w;
+		return -1;
+	}
+
+	/**
+	 * @return index of the tracked magnitude matching the given one, or -1 if it is not tracked
+	 */
+	public int getMagIndex(double mag) {
+		for (int m=0; m<mags.length; m++)
+			if (Math.abs(mags[m] - mag) < TOL)
+				return m;
+		return -1;
+	}
+
+	/**
+	 * @return true if the distribution of M>=mag events in the given window is tracked
+	 */
+	public boolean isTracked(double tMin, double tMax, double mag) {
+		return getWindowIndex(tMin, tMax) >= 0 && getMagIndex(mag) >= 0;
+	}
+
+	/**
+	 * @return number of M>=mag events in the given window for the given simulation
+	 */
+	public int getCount(int windowIndex, int magIndex, int sim) {
+		return counts[windowIndex][magIndex][sim];
+	}
+
+	/**
+	 * @return maximum magnitude in the given window for the given simulation, -infinity if there were no events
+	 */
+	public double getMaxMag(int windowIndex, int sim) {
+		return maxMags[windowIndex][sim];
+	}
+
+	/**
+	 * This computes the distribution of the number of M>=mag events over the suite of simulations
+	 */
+	public ArbDiscrEmpiricalDistFunc getNumDistribution(int windowIndex, int magIndex) {
+		ArbDiscrEmpiricalDistFunc dist = new ArbDiscrEmpiricalDistFunc();
+		Point2D pt = new Point2D.Double();
+		int[] simCounts = counts[windowIndex][magIndex];
+		for (int i=0; i<nSims; i++) {
+			pt.setLocation(simCounts[i], 1d/nSims);
+			dist.set(pt);
+		}
+		return dist;
+	}
+
+	/**
+	 * This computes the distribution of the number of M>=mag events over the suite of simulations
+	 *
+	 * @return the distribution, or null if the window and magnitude are not tracked
+	 */
+	public ArbDiscrEmpiricalDistFunc getNumDistribution(double tMin, double tMax, double mag) {
+		int w = getWindowIndex(tMin, tMax);
+		int m = getMagIndex(mag);
+		if (w < 0 || m < 0)
+			return null;
+		return getNumDistribution(w, m);
+	}
+
+	/**
+	 * This computes the distribution of the maximum magnitude in the given window over the suite of simulations.
+	 * Simulations with no events in the window are left out, so the distribution sums to the fraction of
+	 * simulations with at least one event.
+	 */
+	public ArbDiscrEmpiricalDistFunc getMaxMagDistribution(int windowIndex) {
+		ArbDiscrEmpiricalDistFunc dist = new ArbDiscrEmpiricalDistFunc();
+		Point2D pt = new Point2D.Double();
+		float[] simMaxMags = maxMags[windowIndex];
+		for (int i=0; i<nSims; i++) {
+			if (simMaxMags[i] > Float.NEGATIVE_INFINITY) {
+				pt.setLocation(simMaxMags[i], 1d/nSims);
+				dist.set(pt);
+			}
+		}
+		return dist;
+	}
+
+	/**
+	 * @return fraction of simulations with at least one M>=mag event in the given window
+	 */
+	public double getProbability(int windowIndex, double mag) {
+		if (nSims == 0)
+			return 0;
+		int num = 0;
+		float[] simMaxMags = maxMags[windowIndex];
+		for (int i=0; i<nSims; i++)
+			if (simMaxMags[i] >= mag)
+				num++;
+		return (double)num/(double)nSims;
+	}
+
+}
@@ -3,9 +3,14 @@ package scratch.aftershockStatisticsETAS;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import org.apache.commons.math3.special.Gamma;
 
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupList;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
@@ -15,7 +20,16 @@ import com.google.common.base.Stopwatch;
 /**
  * This class is a stochastic ETAS catalog that represents an extension of the observed catalog,
  * supplied as mainshock and aftershocks objects. Time is relative to the mainshock. If nSims is supplied,
- * a suite of catalogs will be built. Only the last catalog to be built is stored for retrieval.
+ * a suite of catalogs will be built.
+ * 
+ * Simulations run in parallel. Each simulation index has its own random stream, split from a master stream
+ * seeded by the (optional) seed, so results for a given seed do not depend on the number of threads. Each
+ * catalog is stored in primitive columns (time, magnitude, generation), sorted by time.
+ * 
+ * If an ETAS_SimulationSummary is supplied, each catalog is folded into the summary as soon as it is simulated
+ * and then discarded. Individual catalogs can still be retrieved by index, in which case they are re-simulated
+ * from that index's random seed. Event counts for windows and magnitudes tracked by the summary are answered from
+ * it, and other counts re-simulate every catalog once, in parallel.
  * 
  * @param genericETAS_parameters or a,a_sigma,b,p,c,alpha,refMag
  * @param mainshock	
@@ -49,12 +63,47 @@ public class ETAScatalog {
 	private int[] numEventsFinal;
 	private int[] numGenerations;
 	
-	private List<List<float[]>> catalogList;	//list of catalogs
+	private long seed;
+	
+	// per-simulation random seeds and parameters {ams, a, p, c}, kept so that catalogs can be re-simulated
+	private long[] simSeeds;
+	private double[][] paramList;
+	private double mainshockMag;
+	
+	// summary that catalogs are folded into, or null if catalogs are retained
+	private ETAS_SimulationSummary summary;
+	
+	// catalogs (null if not retained), in columns: time (days), magnitude and generation number of each event, sorted by time
+	private float[][] catalogTimes;
+	private float[][] catalogMags;
+	private short[][] catalogGens;
+	
+	// idle simulation buffers, re-used for every simulation and re-simulation. Each task takes one for its duration,
+	// so there are at most as many as concurrent tasks, and they are held only by this catalog (not by pool threads)
+	private final ConcurrentLinkedQueue<SimulationBuffer> simulationBuffers = new ConcurrentLinkedQueue<>();
+	
+	// observed seed events (excluding the mainshock) prior to the forecast start and above Mc
+	private float[] seedTimes;
+	private float[] seedMags;
 	
 	
 	public ETAScatalog(double[] ams_vec, double[] a_vec, double[] p_vec, double[] c_vec, double[][][][] likelihood, double alpha, double b, double refMag,
 			ObsEqkRupture mainshock, ObsEqkRupList aftershocks,
 			double dataStart, double dataEnd, double forecastStart, double forecastEnd, double Mc, double maxMag, int maxGenerations, int nSims){
+		this(ams_vec, a_vec, p_vec, c_vec, likelihood, alpha, b, refMag, mainshock, aftershocks,
+				dataStart, dataEnd, forecastStart, forecastEnd, Mc, maxMag, maxGenerations, nSims, new SplittableRandom().nextLong(), null);
+	}
+	
+	/**
+	 * Builds nSims catalogs in parallel. Output depends only on the inputs and the seed.
+	 * 
+	 * @param seed master random seed
+	 * @param summary if non null, catalogs are folded into this summary and not retained
+	 */
+	public ETAScatalog(double[] ams_vec, double[] a_vec, double[] p_vec, double[] c_vec, double[][][][] likelihood, double alpha, double b, double refMag,
+			ObsEqkRupture mainshock, ObsEqkRupList aftershocks,
+			double dataStart, double dataEnd, double forecastStart, double forecastEnd, double Mc, double maxMag, int maxGenerations, int nSims,
+			long seed, ETAS_SimulationSummary summary){
 	
 		this.ams_vec = ams_vec;
 		this.a_vec = a_vec;
@@ -70,167 +119,258 @@ public class ETAScatalog {
 		this.maxMagLimit = maxMag;
 		this.maxGenerations = maxGenerations;
 		this.nSims = nSims;
+		this.seed = seed;
+		this.summary = summary;
+		this.mainshockMag = mainshock.getMag();
 		
 		if(D) System.out.println("ETAS simulation params: alpha=" + alpha + " b=" + b + " Mref=" + refMag + " Mc=" + Mc + " Mmax=" + maxMag + " nSims=" + nSims); 
-				
 		
-		List<float[]> newEqList = new ArrayList<float[]>();	//catalog containing list of {time, mag, gen}
-		List<List<float[]>> catalogList = new ArrayList<List<float[]>>(); //list of catalogs
-		
-		double[] maxMags = new double[nSims];
-		int[] nEvents = new int[nSims];
-		int[] nGens = new int[nSims];
+		maxMags = new double[nSims];
+		numEventsFinal = new int[nSims];
+		numGenerations = new int[nSims];
+		if (summary == null) {
+			catalogTimes = new float[nSims][];
+			catalogMags = new float[nSims][];
+			catalogGens = new short[nSims][];
+		} else {
+			summary.initialize(nSims);
+		}
 		
 		if(D) System.out.println("Calculating " + nSims + " " + (int)(forecastEnd - forecastStart) + "-day ETAS catalogs...");
 		
-		double[][] paramList;
 		if(nSims>0){
+			SplittableRandom masterRandom = new SplittableRandom(seed);
+			
 			//get the list of parameters to supply to each simulation
-			paramList = sampleParams(nSims, maxMag);
+			paramList = sampleParams(nSims, maxMag, masterRandom);
+			
+			// one random seed per simulation, drawn in index order so they don't depend on the thread count
+			simSeeds = new long[nSims];
+			for (int i = 0; i < nSims; i++)
+				simSeeds[i] = masterRandom.nextLong();
+			
+			setSeedEvents(mainshock, aftershocks);
 			
 			Stopwatch watch = Stopwatch.createStarted();
-			int warnTime = 3;
-			long toc;
-			double timeEstimate;
-			String initialMessageString = "Calculating " + nSims + " " + (int)(forecastEnd - forecastStart) + "-day ETAS catalogs. ";
+			AtomicInteger numDone = new AtomicInteger(0);
+			ProgressReporter progress = new ProgressReporter(watch, 
+					"Calculating " + nSims + " " + (int)(forecastEnd - forecastStart) + "-day ETAS catalogs. ");
 			
-			for(int i = 0; i < nSims ; i++){
-				toc = watch.elapsed(TimeUnit.SECONDS);
-				if (toc > warnTime){
-					warnTime += 10;
-					timeEstimate = (double)toc * (double)(nSims)/(double)i;
-					System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
-					initialMessageString = "...";
+			IntStream.range(0, nSims).parallel().forEach(i -> {
+				if (D && Math.floorMod(i, Math.max(1, nSims/10)) == 0) System.out.println("Parameter set " + i + ": "
+						+ paramList[i][0] + " " + paramList[i][1] + " " + paramList[i][2] + " " + paramList[i][3]);
+				
+				SimulationBuffer buffer = takeBuffer();
+				try {
+					simulateCatalog(buffer, i);
+					storeCatalog(i, buffer);
+				} finally {
+					simulationBuffers.add(buffer);
 				}
-
-				double[] params = paramList[i];
-				double ams_sample, a_sample, p_sample, c_sample;
-				ams_sample = params[0];
-				a_sample = params[1];
-				p_sample = params[2];
-				c_sample = params[3];
 				
-				if (D && Math.floorMod(i, nSims/10) == 0) System.out.println("Parameter set " + i + ": " + ams_sample + " " + a_sample + " " + p_sample + " " + c_sample);
-
-				// Currently sets the first event as mainshock and adjusts magnitude
-				// todo step1: change magnitude of LARGEST earthquake
-				// todo step2: depending on the total number of vents, adjust N-largest magnitudes
-				ObsEqkRupture simulationMainshock = (ObsEqkRupture) mainshock.clone();
-				simulationMainshock.setMag(mainshock.getMag() + (ams_sample - a_sample));
-
-				newEqList = getNewETAScatalog(simulationMainshock, aftershocks, a_sample, p_sample, c_sample, i);
-				maxMags[i] = get_maxMag(newEqList);
-				nEvents[i] = get_nEvents(newEqList);
-				nGens[i] = get_nGenerations(newEqList);
-				catalogList.add(i, newEqList);
-			}
-			toc = watch.elapsed(TimeUnit.SECONDS);
+				progress.update(numDone.incrementAndGet(), nSims);
+			});
+			
+			long toc = watch.elapsed(TimeUnit.SECONDS);
 			if(D) System.out.println("It took " + toc + " seconds to generate stochastic catalogs.");
 			watch.stop();
 		}
+	}
+	
+	/**
+	 * Prints a time estimate every 10 seconds, from whichever simulation thread gets there first
+	 */
+	private static class ProgressReporter {
+		
+		private Stopwatch watch;
+		private String message;
+		private int warnTime = 3;
 		
-		//this.eqList = getLastETAScatalog();
-		this.catalogList = catalogList;
-		this.maxMags = maxMags;
-		this.numEventsFinal = nEvents;
-		this.numGenerations = nGens;
+		public ProgressReporter(Stopwatch watch, String message) {
+			this.watch = watch;
+			this.message = message;
+		}
+		
+		public synchronized void update(int numDone, int numTotal) {
+			long toc = watch.elapsed(TimeUnit.SECONDS);
+			if (toc > warnTime){
+				warnTime += 10;
+				double timeEstimate = (double)toc * (double)(numTotal)/(double)numDone;
+				System.out.format(message + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
+				message = "...";
+			}
+		}
 	}
+	
+	/**
+	 * Growable columnar event buffer, re-used for each simulation on a thread
+	 */
+	private static class SimulationBuffer {
 		
-	public List<float[]> getNewETAScatalog(ObsEqkRupture mainshock, ObsEqkRupList aftershocks, double a_sample, double p_sample, double c_sample, int simNumber){
+		private int size = 0;
+		private float[] times = new float[1024];
+		private float[] mags = new float[1024];
+		private short[] gens = new short[1024];
+		private long[] sortKeys = new long[1024];
 		
-		//extract magnitudes and times from supplied Eqk rupture objects to make catalog (combine MS and AS's)
-		List<float[]> newEqList = new ArrayList<float[]>();
-		List<float[]> finalEqList = new ArrayList<float[]>();
+		private void clear() {
+			size = 0;
+		}
 		
-		//double[] event = {0, mainshock.getMag(), 0};	//utility variable : {relative time, magnitude, generation number}
-
+		private void add(float time, float mag, int gen) {
+			if (size == times.length) {
+				int newLength = times.length*2;
+				times = Arrays.copyOf(times, newLength);
+				mags = Arrays.copyOf(mags, newLength);
+				gens = Arrays.copyOf(gens, newLength);
+				sortKeys = new long[newLength];
+			}
+			times[size] = time;
+			mags[size] = mag;
+			gens[size] = (short)gen;
+			size++;
+		}
+		
+		/**
+		 * Sorts events by time (ties are kept in insertion order)
+		 */
+		private void sortByTime() {
+			// key is the time bits in sortable order, followed by the original index
+			for (int i=0; i<size; i++) {
+				int bits = Float.floatToIntBits(times[i]);
+				bits ^= (bits >> 31) & 0x7fffffff;
+				sortKeys[i] = ((long)bits << 32) | i;
+			}
+			Arrays.sort(sortKeys, 0, size);
+			float[] sortedTimes = new float[size];
+			float[] sortedMags = new float[size];
+			short[] sortedGens = new short[size];
+			for (int i=0; i<size; i++) {
+				int index = (int)sortKeys[i];
+				sortedTimes[i] = times[index];
+				sortedMags[i] = mags[index];
+				sortedGens[i] = gens[index];
+			}
+			System.arraycopy(sortedTimes, 0, times, 0, size);
+			System.arraycopy(sortedMags, 0, mags, 0, size);
+			System.arraycopy(sortedGens, 0, gens, 0, size);
+		}
+	}
+	
+	/**
+	 * Extracts times and magnitudes of the observed aftershocks that seed every simulation
+	 */
+	private void setSeedEvents(ObsEqkRupture mainshock, ObsEqkRupList aftershocks) {
 		double t0 = mainshock.getOriginTime(); //in milliseconds
 		
-		//combine lists
-		ObsEqkRupList seedQuakes = new ObsEqkRupList();
-		seedQuakes.add(mainshock);
-		Collections.reverse(aftershocks);
-		seedQuakes.addAll(aftershocks);
-
-		//int counter = 0;
-		//go through seed (observed) earthquake list, add each event to a pared-down eventList and add simulated children
-		for(ObsEqkRupture rup : seedQuakes){
-			float[] event = new float[3];
-			event[0] = (float) ((rup.getOriginTime() - t0)/ETAS_StatsCalc.MILLISEC_PER_DAY);	//elapsed time in days
-			event[1] = (float) rup.getMag();	
-			event[2] = 0;	//generation number
-			
+		// aftershocks are visited in reverse order, as they always have been
+		seedTimes = new float[aftershocks.size()];
+		seedMags = new float[aftershocks.size()];
+		int numSeeds = 0;
+		for (int i = aftershocks.size()-1; i >= 0; i--) {
+			ObsEqkRupture rup = aftershocks.get(i);
+			float time = (float) ((rup.getOriginTime() - t0)/ETAS_StatsCalc.MILLISEC_PER_DAY);	//elapsed time in days
+			float mag = (float) rup.getMag();
 			//check whether event is prior to forecast start, and larger than Mc
-			if( event[0] <= forecastStart && event[0] >= 0 && event[1] >= Mc){
-				//System.out.println("Seed "+counter++);
-				//newEqList.add(event); 
-
-				//add children
-				newEqList = getChildren(newEqList, event[0], event[1], (int)event[2], a_sample, p_sample, c_sample, simNumber);
-						
-			}else{
-				//System.out.println("Skipping Seed "+counter++);
+			if (time <= forecastStart && time >= 0 && mag >= Mc) {
+				seedTimes[numSeeds] = time;
+				seedMags[numSeeds] = mag;
+				numSeeds++;
 			}
-			
 		}
+		seedTimes = Arrays.copyOf(seedTimes, numSeeds);
+		seedMags = Arrays.copyOf(seedMags, numSeeds);
+	}
+	
+	/**
+	 * Simulates the catalog with the given index into the given buffer, which is left sorted by time
+	 */
+	private void simulateCatalog(SimulationBuffer buffer, int simNumber) {
+		double[] params = paramList[simNumber];
+		double ams_sample, a_sample, p_sample, c_sample;
+		ams_sample = params[0];
+		a_sample = params[1];
+		p_sample = params[2];
+		c_sample = params[3];
+		SplittableRandom random = new SplittableRandom(simSeeds[simNumber]);
+		
+		buffer.clear();
+		
+		// Currently sets the first event as mainshock and adjusts magnitude
+		// todo step1: change magnitude of LARGEST earthquake
+		// todo step2: depending on the total number of vents, adjust N-largest magnitudes
+		float msMag = (float) (mainshockMag + (ams_sample - a_sample));
+		
+		//go through seed (observed) earthquake list and add simulated children of each
+		if (0 <= forecastStart && msMag >= Mc)
+			getChildren(buffer, 0f, msMag, 0, a_sample, p_sample, c_sample, simNumber, random);
+		for (int i = 0; i < seedTimes.length; i++)
+			getChildren(buffer, seedTimes[i], seedMags[i], 0, a_sample, p_sample, c_sample, simNumber, random);
 		
 		// sort catalog
-		Collections.sort(newEqList, new java.util.Comparator<float[]>() {
-		    public int compare(float[] a, float[] b) {
-		        return Double.compare(a[0], b[0]);
-		    }
-		});
-		
-		// remove events under mc
-		for(float[] eq : newEqList){
-			if(eq[1] >= Mc);
-				finalEqList.add(eq);
+		buffer.sortByTime();
+	}
+	
+	/**
+	 * Computes summary statistics for a simulated catalog, and either copies it out of the buffer or folds it
+	 * into the simulation summary
+	 */
+	private void storeCatalog(int index, SimulationBuffer buffer) {
+		int size = buffer.size;
+		float[] mags = buffer.mags;
+		short[] gens = buffer.gens;
+		
+		double maxMag = Double.NEGATIVE_INFINITY;
+		int maxGen = 0;
+		for (int i = 0; i < size; i++) {
+			if (mags[i] > maxMag)
+				maxMag = mags[i];
+			if (gens[i] > maxGen)
+				maxGen = gens[i];
 		}
 		
-		//this.eqList = newEqList;
-		return finalEqList;
+		if (summary == null) {
+			catalogTimes[index] = Arrays.copyOf(buffer.times, size);
+			catalogMags[index] = Arrays.copyOf(mags, size);
+			catalogGens[index] = Arrays.copyOf(gens, size);
+		} else {
+			summary.add(index, buffer.times, mags, size);
+		}
+		maxMags[index] = maxMag;
+		numEventsFinal[index] = size;
+		numGenerations[index] = maxGen;
 	}
 	
-	private List<float[]> getChildren(List<float[]> newEqList, float t, float mag, int ngen, 
-			double a_sample, double p_sample, double c_sample, int simNumber){//, double forecastStart, double forecastEnd,
-			//double a, double b, double p, double c, double alpha, double refMag, double maxMag, int maxGen){
+	private void getChildren(SimulationBuffer buffer, float t, float mag, int ngen, 
+			double a_sample, double p_sample, double c_sample, int simNumber, SplittableRandom random){
 		
 		float newMag;
 		float newTime;
 			
 		//calculate productivity of this quake
 		double prod = calculateProductivity(t, mag, forecastStart, forecastEnd, a_sample, b, p_sample, c_sample, alpha, Mc);
-		long numNew = assignNumberOfOffspring(prod); 
+		long numNew = assignNumberOfOffspring(prod, random); 
 		
 //		if(D) System.out.format("Parent Mag: %.2f Time: %5.2f Generation: %d Number of offspring: %d %n", mag, t, (int)ngen, (int)numNew);
 		if(numNew > 0 && ngen < maxGenerations){
 			//for each new child, assign a magnitude and time
 			for(long i=0; i<numNew; i++){
-				float[] event = new float[3];		//this must be declared within for block, in order to generate a new address
-				
 				// assign a magnitude
-				newMag = (float) assignMagnitude(b, Mc, maxMagLimit);
+				newMag = (float) assignMagnitude(b, Mc, maxMagLimit, random);
 				// assign a time
-				newTime = (float) assignTime(t, forecastStart, forecastEnd, p_sample, c_sample);
+				newTime = (float) assignTime(t, forecastStart, forecastEnd, p_sample, c_sample, random);
 
 				// add new child to the list
-				event[0] = newTime;
-				event[1] = newMag;
-				event[2] = ngen + 1;
-				
-				newEqList.add(event);	
+				buffer.add(newTime, newMag, ngen + 1);
 			
 				// recursively get children of new child
-				newEqList = getChildren(newEqList, newTime, newMag, ngen + 1, a_sample, p_sample, c_sample, simNumber);//, forecastStart, forecastEnd, a, b, p, c, alpha, refMag, maxMag, maxGen);
-				
+				getChildren(buffer, newTime, newMag, ngen + 1, a_sample, p_sample, c_sample, simNumber, random);
 			}
 		} else if(ngen == maxGenerations) {
 			if(D) System.out.println("Sim=" + simNumber + " t=" + t + " has reached " + maxGenerations + " generations. Cutting it short.");
 			if(D) System.out.println("n = " + ETAS_StatsCalc.calculateBranchingRatio(a_sample, p_sample, c_sample, alpha, b, forecastEnd, Mc, maxMagLimit)
 					+ " a=" + a_sample + " p=" + p_sample + " c=" + c_sample + " al=" + alpha + " b=" + b + " T=" + forecastEnd + " Mc=" + Mc + " Mmax=" + maxMagLimit);
 		}
-		return newEqList;
-		
 	}
 	
 	private double calculateProductivity(float t, float mag, double forecastStart, double forecastEnd,
@@ -257,7 +397,7 @@ public class ETAScatalog {
 	 * 
 	 * @author Nicholas van der Elst
 	 */
-	private double[][] sampleParams(int nsamples, double maxMag){
+	private double[][] sampleParams(int nsamples, double maxMag, SplittableRandom random){
 			
 		int h = 0, i = 0, j = 0, k = 0;
 		int num_ams = ams_vec.length, num_a = a_vec.length, num_p = p_vec.length, num_c = c_vec.length;
@@ -267,7 +407,7 @@ public class ETAScatalog {
 		// generate vector of random numbers
 		double[] uRand = new double[nsamples];
 		for(int n = 0; n<nsamples; n++){
-			uRand[n] = Math.random();
+			uRand[n] = random.nextDouble();
 		}
 		// sort vector
 		Arrays.sort(uRand);
@@ -329,25 +469,70 @@ public class ETAScatalog {
 		}	
 		
 		//shuffle those parameters for a more accurate duration estimate
-		java.util.Collections.shuffle(Arrays.asList(params));
+		for(n = nsamples - 1; n > 0; n--){
+			int swap = random.nextInt(n + 1);
+			double[] temp = params[n];
+			params[n] = params[swap];
+			params[swap] = temp;
+		}
 		return params;
 	}
 	
 	
-	private long assignNumberOfOffspring(double lambda){
+	private long assignNumberOfOffspring(double lambda, SplittableRandom random){
 		//return Math.round(lambda); //replace with Poisson random number
-		return cern.jet.random.tdouble.Poisson.staticNextInt(lambda);
+		return nextPoisson(lambda, random);
 	}
 	
-	private double assignMagnitude(double b, double minMag, double Mmax){
-		double u = Math.random();
+	/**
+	 * Poisson random number from the given stream. Uses multiplication of uniforms for small means, and
+	 * the transformed rejection method (PTRS, Hormann 1993) for large means.
+	 */
+	static long nextPoisson(double lambda, SplittableRandom random){
+		if (!(lambda > 0))
+			return 0;
+		
+		if (lambda < 10) {
+			double enlam = Math.exp(-lambda);
+			long x = 0;
+			double prod = random.nextDouble();
+			while (prod > enlam) {
+				x++;
+				prod *= random.nextDouble();
+			}
+			return x;
+		}
+		
+		double slam = Math.sqrt(lambda);
+		double loglam = Math.log(lambda);
+		double b = 0.931 + 2.53*slam;
+		double a = -0.059 + 0.02483*b;
+		double invalpha = 1.1239 + 1.1328/(b - 3.4);
+		double vr = 0.9277 - 3.6224/(b - 2);
+		
+		while (true) {
+			double u = random.nextDouble() - 0.5;
+			double v = random.nextDouble();
+			double us = 0.5 - Math.abs(u);
+			long k = (long)Math.floor((2*a/us + b)*u + lambda + 0.43);
+			if (us >= 0.07 && v <= vr)
+				return k;
+			if (k < 0 || (us < 0.013 && v > us))
+				continue;
+			if (Math.log(v) + Math.log(invalpha) - Math.log(a/(us*us) + b) <= -lambda + k*loglam - Gamma.logGamma(k + 1))
+				return k;
+		}
+	}
+	
+	private double assignMagnitude(double b, double minMag, double Mmax, SplittableRandom random){
+		double u = random.nextDouble();
 		double mag = minMag - Math.log10(1.0 - u*(1.0 - Math.pow(10, -b*(Mmax-minMag))))/b;
 		return mag;
 	}
 	
-	private double assignTime(double t0, double tmin, double tmax, double p, double c){
+	private double assignTime(double t0, double tmin, double tmax, double p, double c, SplittableRandom random){
 		
-		 double u=Math.random();
+		 double u=random.nextDouble();
 		 double a1, a2, a3;
 		 double t;
 		 
@@ -368,9 +553,105 @@ public class ETAScatalog {
 		 return t;
 	}
 	
+	/**
+	 * Returns the catalog with the given index as a list of {time, mag, gen}. If catalogs are not retained,
+	 * it is re-simulated.
+	 */
 	public List<float[]> getETAScatalog(int index){
-		return catalogList.get(index); 
-		// return eqList;
+		List<float[]> eqList;
+		if (isCatalogRetained()) {
+			float[] times = catalogTimes[index];
+			eqList = new ArrayList<float[]>(times.length);
+			for (int i = 0; i < times.length; i++)
+				eqList.add(new float[] {times[i], catalogMags[index][i], catalogGens[index][i]});
+		} else {
+			SimulationBuffer buffer = takeBuffer();
+			try {
+				simulateCatalog(buffer, index);
+				eqList = new ArrayList<float[]>(buffer.size);
+				for (int i = 0; i < buffer.size; i++)
+					eqList.add(new float[] {buffer.times[i], buffer.mags[i], buffer.gens[i]});
+			} finally {
+				simulationBuffers.add(buffer);
+			}
+		}
+		return eqList;
+	}
+	
+	/**
+	 * Counts events in the given catalog with tMin < time <= tMax and mag >= minMag, without building the catalog list.
+	 * If catalogs are not retained, it is re-simulated.
+	 */
+	public int countEvents(int index, double tMin, double tMax, double minMag){
+		if (isCatalogRetained())
+			return countEvents(catalogTimes[index], catalogMags[index], catalogTimes[index].length, tMin, tMax, minMag);
+		SimulationBuffer buffer = takeBuffer();
+		try {
+			simulateCatalog(buffer, index);
+			return countEvents(buffer.times, buffer.mags, buffer.size, tMin, tMax, minMag);
+		} finally {
+			simulationBuffers.add(buffer);
+		}
+	}
+	
+	/**
+	 * @return an idle simulation buffer, or a new one if all are in use. Must be returned to simulationBuffers.
+	 */
+	private SimulationBuffer takeBuffer(){
+		SimulationBuffer buffer = simulationBuffers.poll();
+		return buffer == null ? new SimulationBuffer() : buffer;
+	}
+	
+	/**
+	 * Counts events in every catalog with tMin < time <= tMax and mag >= minMag. If catalogs are not retained, this
+	 * is answered from the summary if it tracks the window and magnitude, and otherwise every catalog is
+	 * re-simulated (in parallel).
+	 * 
+	 * @return number of events in each catalog
+	 */
+	public int[] countEvents(double tMin, double tMax, double minMag){
+		if (!isCatalogRetained()) {
+			// every simulated event is at least Mc, so counts below Mc are the same as at Mc
+			int w = summary.getWindowIndex(tMin, tMax);
+			int m = summary.getMagIndex(Math.max(minMag, Mc));
+			if (w >= 0 && m >= 0) {
+				int[] counts = new int[nSims];
+				for (int i = 0; i < nSims; i++)
+					counts[i] = summary.getCount(w, m, i);
+				return counts;
+			}
+			return IntStream.range(0, nSims).parallel().map(i -> countEvents(i, tMin, tMax, minMag)).toArray();
+		}
+		int[] counts = new int[nSims];
+		for (int i = 0; i < nSims; i++)
+			counts[i] = countEvents(i, tMin, tMax, minMag);
+		return counts;
+	}
+	
+	private static int countEvents(float[] times, float[] mags, int size, double tMin, double tMax, double minMag){
+		int count = 0;
+		for (int i = 0; i < size; i++)
+			if (times[i] > tMin && times[i] <= tMax && mags[i] >= minMag)
+				count++;
+		return count;
+	}
+	
+	/**
+	 * @return true if full catalogs are retained, false if they were folded into a summary
+	 */
+	public boolean isCatalogRetained(){
+		return summary == null;
+	}
+	
+	/**
+	 * @return the summary that catalogs were folded into, or null if catalogs are retained
+	 */
+	public ETAS_SimulationSummary getSummary(){
+		return summary;
+	}
+	
+	public long getSeed(){
+		return seed;
 	}
 	
 	public int[] get_nEvents(){
@@ -0,0 +1,131 @@
+package scratch.aftershockStatisticsETAS;
+
+import java.util.Arrays;
+
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.geo.Location;
+
+/**
+ * Groups the nodes of a gridded data set into rows of equal latitude, each sorted by longitude, so that the
+ * nodes within a lat/lon window can be found without checking every node.
+ *
+ * Candidates are returned in increasing node index order, so sums over them are accumulated in the same order
+ * as a loop over all nodes.
+ */
+class GridRowIndex {
+
+	private int numNodes;
+	private double[] nodeLats, nodeLons;
+
+	// rows sorted by latitude; nodes in row r are rowNodes[rowStarts[r]] to rowNodes[rowStarts[r+1]-1]
+	private double[] rowLats;
+	private int[] rowStarts;
+	private int[] rowNodes;
+	private double[] rowNodeLons;
+
+	// true if visiting rows in order gives increasing node indexes (as for a GriddedRegion)
+	private boolean ordered;
+
+	public GridRowIndex(GriddedGeoDataSet data) {
+		numNodes = data.size();
+		nodeLats = new double[numNodes];
+		nodeLons = new double[numNodes];
+		for (int i=0; i<numNodes; i++) {
+			Location loc = data.getLocation(i);
+			nodeLats[i] = loc.getLatitude();
+			nodeLons[i] = loc.getLongitude();
+		}
+
+		// sort nodes by latitude, then longitude, then index
+		Integer[] sorted = new Integer[numNodes];
+		for (int i=0; i<numNodes; i++)
+			sorted[i] = i;
+		Arrays.sort(sorted, (i1, i2) -> {
+			int cmp = Double.compare(nodeLats[i1], nodeLats[i2]);
+			if (cmp == 0)
+				cmp = Double.compare(nodeLons[i1], nodeLons[i2]);
+			if (cmp == 0)
+				cmp = Integer.compare(i1, i2);
+			return cmp;
+		});
+
+		rowNodes = new int[numNodes];
+		rowNodeLons = new double[numNodes];
+		rowLats = new double[numNodes];
+		rowStarts = new int[numNodes+1];
+		int numRows = 0;
+		ordered = true;
+		for (int k=0; k<numNodes; k++) {
+			int node = sorted[k];
+			rowNodes[k] = node;
+			rowNodeLons[k] = nodeLons[node];
+			if (k == 0 || nodeLats[node] != rowLats[numRows-1]) {
+				rowLats[numRows] = nodeLats[node];
+				rowStarts[numRows] = k;
+				numRows++;
+			}
+			if (k > 0 && node < rowNodes[k-1])
+				ordered = false;
+		}
+		rowStarts[numRows] = numNodes;
+		rowLats = Arrays.copyOf(rowLats, numRows);
+		rowStarts = Arrays.copyOf(rowStarts, numRows+1);
+	}
+
+	public int size() {
+		return numNodes;
+	}
+
+	public double getLat(int node) {
+		return nodeLats[node];
+	}
+
+	public double getLon(int node) {
+		return nodeLons[node];
+	}
+
+	/**
+	 * Finds nodes with |lat-lat0| <= latHalfWidth and |lon-lon0| <= lonHalfWidth.
+	 * @param candidates buffer for the result, which must have room for every node
+	 * @return number of candidates, which are stored in increasing index order at the start of the buffer
+	 */
+	public int getCandidates(double lat0, double lon0, double latHalfWidth, double lonHalfWidth, int[] candidates) {
+		int count = 0;
+		int rowStart = lowerBound(rowLats, 0, rowLats.length, lat0 - latHalfWidth);
+		int rowEnd = upperBound(rowLats, 0, rowLats.length, lat0 + latHalfWidth);
+		for (int r=rowStart; r<rowEnd; r++) {
+			int start = lowerBound(rowNodeLons, rowStarts[r], rowStarts[r+1], lon0 - lonHalfWidth);
+			int end = upperBound(rowNodeLons, rowStarts[r], rowStarts[r+1], lon0 + lonHalfWidth);
+			for (int k=start; k<end; k++)
+				candidates[count++] = rowNodes[k];
+		}
+		if (!ordered)
+			Arrays.sort(candidates, 0, count);
+		return count;
+	}
+
+	// first index in [from, to) with vals[i] >= val
+	private static int lowerBound(double[] vals, int from, int to, double val) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (vals[mid] < val)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+	// first index in [from, to) with vals[i] > val
+	private static int upperBound(double[] vals, int from, int to, double val) {
+		while (from < to) {
+			int mid = (from + to) >>> 1;
+			if (vals[mid] <= val)
+				from = mid + 1;
+			else
+				to = mid;
+		}
+		return from;
+	}
+
+}
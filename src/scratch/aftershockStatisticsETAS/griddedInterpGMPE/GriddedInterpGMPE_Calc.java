@@ -2,18 +2,35 @@ package scratch.aftershockStatisticsETAS.griddedInterpGMPE;
 
 import java.awt.Color;
 import java.awt.geom.Point2D;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.JFrame;
-import javax.swing.JOptionPane;
 
 import org.jfree.data.Range;
 import org.opensha.commons.data.Site;
@@ -37,6 +54,9 @@ import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZGraphPanel;
 import org.opensha.commons.gui.plot.jfreechart.xyzPlot.XYZPlotSpec;
 import org.opensha.commons.mapping.gmt.elements.GMT_CPT_Files;
 import org.opensha.commons.param.Parameter;
+import org.opensha.commons.param.ParameterList;
+import org.opensha.commons.param.impl.WarningDoubleParameter;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.nshmp2.erf.source.PointSource13b;
 import org.opensha.nshmp2.util.FocalMech;
@@ -48,12 +68,14 @@ import org.opensha.sha.gui.infoTools.IMT_Info;
 import org.opensha.sha.imr.AttenRelRef;
 import org.opensha.sha.imr.ScalarIMR;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGV_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
 import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
 import org.opensha.sha.magdist.IncrementalMagFreqDist;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
+import com.google.common.hash.Hashing;
 
 import scratch.aftershockStatisticsETAS.ETAS_ShakingForecastCalc;
 
@@ -61,7 +83,7 @@ public class GriddedInterpGMPE_Calc {
 	
 	private Boolean D = false; //debug
 	private ScalarIMR gmpe;
-	private Boolean promptForLongCalc = false;
+	private CalcProgressListener progressListener = null;
 	
 	private DistanceInterpolator distInterp; // index 0
 	private IntensityMeasureLevelInterpolator imlInterp; // index N-1
@@ -119,33 +141,88 @@ public class GriddedInterpGMPE_Calc {
 			allExceedRates[i] = Double.NaN;
 	}
 	
+	/**
+	 * Precalculates GMPE exceedance rates at every interpolation bin. Distance bins are calculated in parallel,
+	 * each worker with its own clone of the GMPE (see {@link #setNumThreads(int)}). If a precalculation cache
+	 * directory has been set, results are loaded from (or saved to) a binary file keyed by the GMPE and its
+	 * parameters, input MFD, duration, depths, mechanism weights and interpolation bins.
+	 * 
+	 * @param duration
+	 * @param depths
+	 * @param mechWtMap
+	 */
 	public void precalc(double duration, double[] depths, Map<FocalMech, Double> mechWtMap) {
+		String cacheKey = null;
+		File cacheFile = null;
+		if (precalcCacheDir != null) {
+			cacheKey = buildPrecalcCacheKey(duration, depths, mechWtMap);
+			cacheFile = new File(precalcCacheDir, "gmpe_precalc_"
+					+Hashing.sha256().hashString(cacheKey, StandardCharsets.UTF_8).toString()+".bin");
+			if (cacheFile.exists()) {
+				try {
+					if (loadPrecalc(cacheFile, cacheKey)) {
+						if(D) System.out.println("Loaded precalculated GMPE values from "+cacheFile.getAbsolutePath());
+						return;
+					}
+				} catch (IOException e) {
+					System.err.println("Couldn't load GMPE precalc cache file "+cacheFile.getAbsolutePath()+": "+e.getMessage());
+				}
+			}
+		}
+		
 		Location loc = new Location(0d, 0d);
 		
 //		Map<FocalMech, Double> mechWtMap = new HashMap<>();
 //		double wtEach = 1d/FocalMech.values().length;
 //		for (FocalMech mech : FocalMech.values())
 //			mechWtMap.put(mech, wtEach);
-		PointSource13b source = new PointSource13b(loc, inputMFD, duration, depths, mechWtMap);
 		
 		if(D) System.out.println("Precalculating GMPE for "+allInterps.size()+" dimensions, "+arrayCalc.rawArraySize()+" values");
 		
-		Set<EqkRupture> ruptures = new HashSet<>();
-		for (ProbEqkRupture rup : source)
-			ruptures.add((EqkRupture)rup.clone());
-		
-		Site site = new Site(loc);
-		site.addParameterList(gmpe.getSiteParams());
-		gmpe.setSite(site);
+		// one worker per thread, each with its own GMPE, source and output function
+		int numDist = distInterp.getNumBins();
+		int numWorkers = Integer.max(1, Integer.min(numThreads, numDist));
+		BlockingQueue<PrecalcWorker> workers = new ArrayBlockingQueue<>(numWorkers);
+		workers.add(new PrecalcWorker(gmpe, loc, duration, depths, mechWtMap));
+		for (int i=1; i<numWorkers; i++) {
+			ScalarIMR workerGMPE = cloneGMPE(gmpe);
+			if (workerGMPE == null) {
+				if(D) System.out.println("Can't clone "+gmpe.getShortName()+", precalculating on a single thread");
+				break;
+			}
+			workers.add(new PrecalcWorker(workerGMPE, loc, duration, depths, mechWtMap));
+		}
 		
+		ExecutorService exec = Executors.newFixedThreadPool(workers.size());
 		try {
-			gmpe.setEqkRupture(ruptures.iterator().next());
-		} catch (WarningException e) {
-			System.err.println(e.getMessage());
-			//do nothing then
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i=0; i<numDist; i++) {
+				int distIndex = i;
+				futures.add(exec.submit(() -> {
+					PrecalcWorker worker = workers.take();
+					try {
+						worker.precalcDistance(distIndex);
+					} finally {
+						workers.put(worker);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e instanceof ExecutionException ? e.getCause() : e);
+		} finally {
+			exec.shutdown();
 		}
 		
-		precalcRecursive(new int[0], source);
+		if (cacheFile != null) {
+			try {
+				writePrecalc(cacheFile, cacheKey);
+			} catch (IOException e) {
+				System.err.println("Couldn't write GMPE precalc cache file "+cacheFile.getAbsolutePath()+": "+e.getMessage());
+			}
+		}
 		
 //		numRupsTrack = new MinMaxAveTracker();
 		
@@ -172,226 +249,452 @@ public class GriddedInterpGMPE_Calc {
 	
 //	private MinMaxAveTracker numRupsTrack;
 	
-	private void precalcRecursive(int[] upstreamIndexes, PointSource13b source) {
-		int curIndex = upstreamIndexes.length;
-		AbstractGMPEInterpolation<?> interp = allInterps.get(curIndex);
-		int[] indexes = Arrays.copyOf(upstreamIndexes, curIndex+1);
+	/**
+	 * Precalculation state for a single thread. The GMPE, source and log x values are all modified during
+	 * the calculation, so each worker has its own.
+	 */
+	private class PrecalcWorker {
 		
-		if (interp instanceof IntensityMeasureLevelInterpolator) {
-			// we're at the IML level, time to actually calculate
-			Preconditions.checkState(indexes.length == allInterps.size(), "IML interpolator must be last");
+		private ScalarIMR gmpe;
+		private PointSource13b source;
+		private DiscretizedFunc logXVals;
+		// the distance interpolator places the site relative to the GMPE's current rupture, so every worker
+		// sets this same rupture (the first from the source) before each distance rather than whichever rupture
+		// its last calculation left behind
+		private EqkRupture distanceRupture;
+		
+		public PrecalcWorker(ScalarIMR gmpe, Location loc, double duration, double[] depths, Map<FocalMech, Double> mechWtMap) {
+			this.gmpe = gmpe;
+			source = new PointSource13b(loc, inputMFD, duration, depths, mechWtMap);
+			logXVals = GriddedInterpGMPE_Calc.this.logXVals.deepClone();
 			
-			// all parameters except for the actual site should be set now
+			distanceRupture = (EqkRupture)source.getRupture(0).clone();
 			
-			Preconditions.checkState(logXVals.size() == interp.getNumBins());
-			double[] sourceExceedRates = new double[logXVals.size()];
+			Site site = new Site(loc);
+			site.addParameterList(gmpe.getSiteParams());
+			gmpe.setSite(site);
+		}
+		
+		public void precalcDistance(int distIndex) {
+			try {
+				gmpe.setEqkRupture(distanceRupture);
+			} catch (WarningException e) {
+				System.err.println(e.getMessage());
+				//do nothing then
+			}
+			distInterp.setGMPE_Params(gmpe, source, distIndex);
+			precalcRecursive(new int[] { distIndex });
+		}
+		
+		private void precalcRecursive(int[] upstreamIndexes) {
+			int curIndex = upstreamIndexes.length;
+			AbstractGMPEInterpolation<?> interp = allInterps.get(curIndex);
+			int[] indexes = Arrays.copyOf(upstreamIndexes, curIndex+1);
 			
-			for (ProbEqkRupture rup : source) {
-				try {
-					gmpe.setEqkRupture(rup);
-				} catch (WarningException e) {
-					System.err.println(e.getMessage());
-					// do nothing then
-				}
+			if (interp instanceof IntensityMeasureLevelInterpolator) {
+				// we're at the IML level, time to actually calculate
+				Preconditions.checkState(indexes.length == allInterps.size(), "IML interpolator must be last");
 				
-				gmpe.getExceedProbabilities(logXVals);
+				// all parameters except for the actual site should be set now
 				
-				double rupProb = rup.getProbability();
-				double rupRate = -Math.log(1 - rupProb);
+				Preconditions.checkState(logXVals.size() == interp.getNumBins());
+				double[] sourceExceedRates = new double[logXVals.size()];
 				
-				for (int i=0; i<sourceExceedRates.length; i++)
-					sourceExceedRates[i] = sourceExceedRates[i] + rupRate * logXVals.getY(i);
-			}
-			
-			// now fold my values into the global array
-			for (int i=0; i<sourceExceedRates.length; i++) {
-				indexes[indexes.length-1] = i;
-				int arrayIndex = arrayCalc.getIndex(indexes);
-				Preconditions.checkState(Double.isNaN(allExceedRates[arrayIndex]), "Value already set?");
-				allExceedRates[arrayIndex] = sourceExceedRates[i];
-			}
-			
-//			indexes[0] = i; // IML index
-//			double exceedProb = interpolator.interpolate(exceedProbs, arrayCalc, indexes);
-////			if (Math.random() < 0.00001)
-////				System.out.println("Indexes: "+(float)indexes[0]+" "+(float)indexes[1]
-////					+" "+(float)indexes[2]+" "+(float)indexes[3]+" ==> "+exceedProb);
-//			curves[s].set(i, curves[s].getY(i)*Math.pow(1-rup.getProbability(), exceedProb));
-		} else {
-			Preconditions.checkState(indexes.length < allInterps.size(), "We're at the end but not an IML interpolator");
-			
-			for (int i=0; i<interp.getNumBins(); i++) {
-				indexes[indexes.length-1] = i;
-				interp.setGMPE_Params(gmpe, source, i);
+				for (ProbEqkRupture rup : source) {
+					try {
+						gmpe.setEqkRupture(rup);
+					} catch (WarningException e) {
+						System.err.println(e.getMessage());
+						// do nothing then
+					}
+					
+					gmpe.getExceedProbabilities(logXVals);
+					
+					double rupProb = rup.getProbability();
+					double rupRate = -Math.log(1 - rupProb);
+					
+					for (int i=0; i<sourceExceedRates.length; i++)
+						sourceExceedRates[i] = sourceExceedRates[i] + rupRate * logXVals.getY(i);
+				}
+				
+				// now fold my values into the global array (each worker writes to different indexes)
+				for (int i=0; i<sourceExceedRates.length; i++) {
+					indexes[indexes.length-1] = i;
+					int arrayIndex = arrayCalc.getIndex(indexes);
+					Preconditions.checkState(Double.isNaN(allExceedRates[arrayIndex]), "Value already set?");
+					allExceedRates[arrayIndex] = sourceExceedRates[i];
+				}
+			} else {
+				Preconditions.checkState(indexes.length < allInterps.size(), "We're at the end but not an IML interpolator");
 				
-				precalcRecursive(indexes, source);
+				for (int i=0; i<interp.getNumBins(); i++) {
+					indexes[indexes.length-1] = i;
+					interp.setGMPE_Params(gmpe, source, i);
+					
+					precalcRecursive(indexes);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Creates a new instance of the given GMPE with the same intensity measure, site parameters and other
+	 * parameters.
+	 * @param gmpe
+	 * @return clone, or null if the GMPE isn't in {@link AttenRelRef}
+	 */
+	private static ScalarIMR cloneGMPE(ScalarIMR gmpe) {
+		for (AttenRelRef ref : AttenRelRef.values()) {
+			if (!ref.getShortName().equals(gmpe.getShortName()))
+				continue;
+			ScalarIMR clone = ref.instance(null);
+			clone.setParamDefaults();
+			clone.setIntensityMeasure(gmpe.getIntensityMeasure().getName());
+			if (gmpe.getIntensityMeasure().getName().equals(SA_Param.NAME))
+				SA_Param.setPeriodInSA_Param(clone.getIntensityMeasure(),
+						SA_Param.getPeriodInSA_Param(gmpe.getIntensityMeasure()));
+			copyParamValues(gmpe.getOtherParams(), clone.getOtherParams());
+			copyParamValues(gmpe.getSiteParams(), clone.getSiteParams());
+			return clone;
+		}
+		return null;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void copyParamValues(ParameterList from, ParameterList to) {
+		for (Parameter<?> param : from) {
+			if (!to.containsParameter(param.getName()))
+				continue;
+			Parameter<?> toParam = to.getParameter(param.getName());
+			if (toParam instanceof WarningDoubleParameter)
+				((WarningDoubleParameter)toParam).setValueIgnoreWarning((Double)param.getValue());
+			else
+				((Parameter<Object>)toParam).setValue(param.getValue());
+		}
+	}
+	
+	/*
+	 * Precalculation cache
+	 */
+	
+	private static final int PRECALC_CACHE_MAGIC = 0x47495047;
+	// increment this if the precalculation or file format changes
+	private static final int PRECALC_CACHE_VERSION = 2;
+	
+	private File precalcCacheDir = null;
+	
+	/**
+	 * Sets the directory for cached precalculation results, or null (default) for no caching.
+	 * @param precalcCacheDir
+	 */
+	public void setPrecalcCacheDir(File precalcCacheDir) {
+		this.precalcCacheDir = precalcCacheDir;
+	}
+	
+	public File getPrecalcCacheDir() {
+		return precalcCacheDir;
+	}
+	
+	/**
+	 * Builds a description of all inputs to the precalculation. Its hash names the cache file, and the full
+	 * description is stored in the file and checked on load.
+	 */
+	private String buildPrecalcCacheKey(double duration, double[] depths, Map<FocalMech, Double> mechWtMap) {
+		StringBuilder key = new StringBuilder();
+		key.append("version=").append(PRECALC_CACHE_VERSION).append("\n");
+		key.append("gmpe=").append(gmpe.getShortName()).append("\n");
+		key.append("imt=").append(gmpe.getIntensityMeasure().getName());
+		if (gmpe.getIntensityMeasure().getName().equals(SA_Param.NAME))
+			key.append(" ").append(SA_Param.getPeriodInSA_Param(gmpe.getIntensityMeasure()));
+		key.append("\n");
+		for (Parameter<?> param : gmpe.getOtherParams())
+			key.append("other: ").append(param.getName()).append("=").append(param.getValue()).append("\n");
+		for (Parameter<?> param : gmpe.getSiteParams())
+			key.append("site: ").append(param.getName()).append("=").append(param.getValue()).append("\n");
+		key.append("duration=").append(duration).append("\n");
+		key.append("depths=").append(Arrays.toString(depths)).append("\n");
+		for (FocalMech mech : FocalMech.values()) {
+			Double wt = mechWtMap.get(mech);
+			key.append("mech: ").append(mech.name()).append("=").append(wt == null ? 0d : wt).append("\n");
+		}
+		key.append("mfd:");
+		for (int i=0; i<inputMFD.size(); i++)
+			key.append(" ").append(inputMFD.getX(i)).append(",").append(inputMFD.getY(i));
+		key.append("\n");
+		for (AbstractGMPEInterpolation<?> interp : allInterps) {
+			key.append("interp: ").append(interp.getClass().getName()).append(" ").append(interp.getName()).append(":");
+			for (int i=0; i<interp.getNumBins(); i++)
+				key.append(" ").append(interp.getValue(i));
+			key.append("\n");
+		}
+		return key.toString();
+	}
+	
+	/**
+	 * Memory maps the given cache file and copies its values into allExceedRates.
+	 * @return true if loaded, false if the file is for a different version or key
+	 */
+	private boolean loadPrecalc(File cacheFile, String cacheKey) throws IOException {
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 12 || buffer.getInt() != PRECALC_CACHE_MAGIC || buffer.getInt() != PRECALC_CACHE_VERSION)
+				return false;
+			int keyLength = buffer.getInt();
+			if (keyLength < 0 || buffer.remaining() < keyLength + 4)
+				return false;
+			byte[] keyBytes = new byte[keyLength];
+			buffer.get(keyBytes);
+			if (!cacheKey.equals(new String(keyBytes, StandardCharsets.UTF_8)))
+				return false;
+			int numValues = buffer.getInt();
+			if (numValues != allExceedRates.length || buffer.remaining() < 8l*numValues)
+				return false;
+			buffer.asDoubleBuffer().get(allExceedRates);
+			return true;
+		}
+	}
+	
+	/**
+	 * Writes allExceedRates to the given cache file. The file is written to a temporary file first and then moved
+	 * into place, so that other processes never see a partial file.
+	 */
+	private void writePrecalc(File cacheFile, String cacheKey) throws IOException {
+		File dir = cacheFile.getParentFile();
+		if (!dir.exists() && !dir.mkdirs() && !dir.exists())
+			throw new IOException("Couldn't create directory "+dir.getAbsolutePath());
+		File tempFile = File.createTempFile(cacheFile.getName(), ".tmp", dir);
+		try {
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+				out.writeInt(PRECALC_CACHE_MAGIC);
+				out.writeInt(PRECALC_CACHE_VERSION);
+				byte[] keyBytes = cacheKey.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(keyBytes.length);
+				out.write(keyBytes);
+				out.writeInt(allExceedRates.length);
+				for (double val : allExceedRates)
+					out.writeDouble(val);
 			}
+			Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			tempFile.delete();
 		}
 	}
 	
 	private volatile boolean stopRequested = false;
+	
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int sitesPerTile = 64;
+	
+	/**
+	 * Calculates hazard curves for each site from the given gridded total cumulative rates. Sites are split into
+	 * tiles of {@link #getSitesPerTile()} sites, which are calculated in parallel on a fork/join pool with
+	 * {@link #getNumThreads()} threads. Each tile keeps its own primitive non-exceedance arrays, so curves are
+	 * identical to a serial calculation.
+	 * 
+	 * The calling thread monitors progress, printing a time estimate and passing it to the
+	 * {@link CalcProgressListener} if one is set. Nothing here blocks on the user, so this can be run headless; a GUI can
+	 * prompt from its listener and cancel with {@link #requestStop()}, which can be called from any thread.
+	 * 
+	 * @param griddedTotCumRates
+	 * @param sites
+	 * @return hazard curves for each site, or null if the calculation was stopped before all sites were done
+	 */
 	public DiscretizedFunc[] calc(GeoDataSet griddedTotCumRates, List<Site> sites) {
-		DiscretizedFunc[] curves = new DiscretizedFunc[sites.size()];
+		int numSources = griddedTotCumRates.size();
+		int numSites = sites.size();
 		
-		for (int i=0; i<sites.size(); i++) {
-			curves[i] = new LightFixedXFunc(xVals);
-			// initialize the hazard function to 1.0
-			for (int j=0; j<curves[i].size(); j++)
-				curves[i].set(j, 1d);
+		// source locations and rate scalars are shared (read only) by all tiles
+		double inputMFD_totCumRate = inputMFD.getCumRate(0);
+		Location[] sourceLocs = new Location[numSources];
+		double[] rateScalars = new double[numSources];
+		for (int g=0; g<numSources; g++) {
+			sourceLocs[g] = griddedTotCumRates.getLocation(g);
+			rateScalars[g] = griddedTotCumRates.get(g) / inputMFD_totCumRate;
 		}
+		// spatial index so that each site only visits sources within the max distance
+		LocationBucketIndex sourceIndex = new LocationBucketIndex(sourceLocs, distInterp.getMax());
 		
-		double[] indexes = new double[allInterps.size()];
+		DiscretizedFunc[] curves = new DiscretizedFunc[numSites];
+		AtomicInteger sitesDone = new AtomicInteger(0);
 		
-		double inputMFD_totCumRate = inputMFD.getCumRate(0);
+		int numTiles = (numSites + sitesPerTile - 1) / sitesPerTile;
+		ForkJoinPool pool = new ForkJoinPool(Integer.max(1, Integer.min(numThreads, numTiles)));
+		if(D) System.out.println("Calculating "+numSites+" sites in "+numTiles+" tiles with "+pool.getParallelism()+" threads");
+		
+		List<Future<?>> futures = new ArrayList<>();
+		for (int t=0; t<numTiles; t++) {
+			int startSite = t*sitesPerTile;
+			int endSite = Integer.min(numSites, startSite + sitesPerTile);
+			futures.add(pool.submit(() -> calcTile(startSite, endSite, sites, sourceLocs, sourceIndex, rateScalars, curves, sitesDone)));
+		}
 		
 		// set up timer/time estimator
-		double toc, timeEstimate, n;
+		double toc, timeEstimate;
 		Stopwatch watch = Stopwatch.createStarted();
 		int warnTime = 3;
-		boolean userWarned = false;
-		double deltaT = 0; //this will record the time spent waiting for the dialog box.
 		String initialMessageString = "Calculating shaking map. ";
 		
-		for (int g=0; g<griddedTotCumRates.size(); g++) {
-			Location sourceLoc = griddedTotCumRates.getLocation(g);
-			double totCumRate = griddedTotCumRates.get(g);
-			double rateScalar = totCumRate / inputMFD_totCumRate;
+		try {
+			for (Future<?> future : futures) {
+				while (true) {
+					try {
+						future.get(1, TimeUnit.SECONDS);
+						break;
+					} catch (TimeoutException e) {
+						// still running, fall through to the time estimate
+					}
+					
+					// run the timer to see how long this is going to take
+					toc = watch.elapsed(TimeUnit.SECONDS);
+					int count = sitesDone.get();
+					if (toc > warnTime && count > 0 && !stopRequested) {
+						timeEstimate = toc * (double)numSites/count;
+						System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
+						initialMessageString = "...";
+						
+						// workers keep running while the listener runs
+						if (progressListener != null)
+							progressListener.calcProgress(this, count, numSites, toc, timeEstimate);
+						warnTime += 10;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			requestStop();
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		// a stop requested after every tile has finished (e.g. cancel clicked late) doesn't discard the curves
+		if (stopRequested && sitesDone.get() < numSites) {
+			System.out.println("Map calculation terminated prematurely");
+			return null;
+		}
+		
+		return curves;
+	}
+	
+	/**
+	 * Calculates curves for sites [startSite, endSite), looping over nearby sources for each site. Sources are
+	 * visited in grid order, so the product of non-exceedance probabilities matches the serial calculation.
+	 */
+	private void calcTile(int startSite, int endSite, List<Site> sites, Location[] sourceLocs, LocationBucketIndex sourceIndex,
+			double[] rateScalars, DiscretizedFunc[] curves, AtomicInteger sitesDone) {
+		int numX = xVals.size();
+		double maxDist = distInterp.getMax();
+		double[] indexes = new double[allInterps.size()];
+		double[] nonExceedProbs = new double[numX];
+		int[] candidates = new int[sourceLocs.length];
+		
+		for (int s=startSite; s<endSite; s++) {
+			if (stopRequested)
+				return;
+			
+			Site site = sites.get(s);
+			Location siteLoc = site.getLocation();
 			
-			for (int s=0; s<sites.size(); s++) {
-				Site site = sites.get(s);
-				double dist = LocationUtils.horzDistanceFast(sourceLoc, site.getLocation());
-				if (dist > distInterp.getMax())
+			// site parameters (e.g. Vs30) don't depend on the source
+			for (int j=1; j<allInterps.size()-1; j++)
+				indexes[j] = allInterps.get(j).detectInterpolatedBinIndex(null, site);
+			
+			// initialize the hazard function to 1.0
+			Arrays.fill(nonExceedProbs, 1d);
+			
+			int numCandidates = sourceIndex.getCandidates(siteLoc, candidates);
+			for (int c=0; c<numCandidates; c++) {
+				int g = candidates[c];
+				double dist = LocationUtils.horzDistanceFast(sourceLocs[g], siteLoc);
+				if (dist > maxDist)
 					continue;
 				if (dist == 0 )
 					dist = distInterp.getMin();
-
-				indexes[0] = distInterp.getInterpolatedBinIndex(dist);
 				
-				for (int j=1; j<allInterps.size()-1; j++)
-					indexes[j] = allInterps.get(j).detectInterpolatedBinIndex(null, site);
+				indexes[0] = distInterp.getInterpolatedBinIndex(dist);
 				
-				for (int i=0; i<xVals.size(); i++) {
+				for (int i=0; i<numX; i++) {
 					indexes[indexes.length-1] = i;
-					double sourceExceedRate = interpolator.interpolate(allExceedRates, arrayCalc, indexes);
+					double sourceExceedRate = interpolator.interpolateDirect(allExceedRates, arrayCalc, indexes);
 					
 					// now we scale to the actual rate of this source
-					sourceExceedRate *= rateScalar;
+					sourceExceedRate *= rateScalars[g];
 					
 					double sourceExceedProb = 1d - Math.exp(-sourceExceedRate);
 					
 					double sourceNonExceedProb = 1d - sourceExceedProb;
 					
-					curves[s].set(i, curves[s].getY(i)*sourceNonExceedProb);
-				}
-		
-				// run the timer to see how long this is going to take
-				toc = watch.elapsed(TimeUnit.SECONDS) - deltaT;
-				if(toc > warnTime){
-					long count = (g)*(sites.size()) + s;
-					long total = (sites.size() * griddedTotCumRates.size());
-					timeEstimate = toc * total/count;
-					System.out.format(initialMessageString + "Approximately %d seconds remaining...\n", (int) ((timeEstimate - toc)));
-					initialMessageString = "...";
-					
-					// if the time estimate is more than 20 seconds, ask if user wants to quit
-					if (!userWarned && timeEstimate > 30 && promptForLongCalc) { // only the first time around and if it'll take more than a minute
-						userWarned = true;
-						// launch a dialog as a new thread
-						String message = "It will take approximately " + (int) timeEstimate + " seconds to complete each map at this resolution.\n"
-								+ "If plotting MMI multiply this estimate by a factor of 2.\n";
-						message += "Are you sure you wish to continue with the current grid spacing of \u0394 (km)?";
-						
-						String title = "Warning";
-						
-						double t1 = watch.elapsed(TimeUnit.SECONDS); 
-						try {
-							int ret = JOptionPane.showConfirmDialog(null, message, title, JOptionPane.OK_CANCEL_OPTION);
-							if (ret == JOptionPane.CANCEL_OPTION)
-								stopRequested = true;
-						} catch (Exception e) {
-							System.err.println("Error displaying error message!");
-							e.printStackTrace();
-						}
-						deltaT = watch.elapsed(TimeUnit.SECONDS) - t1;
-					}
-					warnTime += 10;
-				}	
-				
-				if (stopRequested) {
-					System.out.println("Map calculation terminated prematurely");
-					return null;
+					nonExceedProbs[i] *= sourceNonExceedProb;
 				}
 			}
+			
+			// convert to exceedance probabilities (currently non-exceedance)
+			DiscretizedFunc curve = new LightFixedXFunc(xVals);
+			for (int i=0; i<numX; i++)
+				curve.set(i, 1d - nonExceedProbs[i]);
+			curves[s] = curve;
+			
+			sitesDone.incrementAndGet();
 		}
+	}
+	
+	/**
+	 * Requests that any calculation in progress stop as soon as possible. The calculation will return null unless
+	 * all sites had already been calculated.
+	 * This can be called from any thread, and also applies to any subsequent calculations with this instance.
+	 */
+	public void requestStop() {
+		stopRequested = true;
+	}
+	
+	public boolean isStopRequested() {
+		return stopRequested;
+	}
+	
+	public void setNumThreads(int numThreads) {
+		Preconditions.checkArgument(numThreads > 0, "Number of threads must be positive");
+		this.numThreads = numThreads;
+	}
+	
+	public int getNumThreads() {
+		return numThreads;
+	}
+	
+	public void setSitesPerTile(int sitesPerTile) {
+		Preconditions.checkArgument(sitesPerTile > 0, "Sites per tile must be positive");
+		this.sitesPerTile = sitesPerTile;
+	}
+	
+	public int getSitesPerTile() {
+		return sitesPerTile;
+	}
+	
+	/**
+	 * Receives progress updates from {@link GriddedInterpGMPE_Calc#calc(GeoDataSet, List)}, e.g. to ask the user
+	 * whether to continue with a long calculation and call {@link GriddedInterpGMPE_Calc#requestStop()} if not.
+	 */
+	public interface CalcProgressListener {
 		
-//	
-//		for (ProbEqkSource source : sources) {
-//			// calculate distances
-//			Preconditions.checkState(source.getSourceSurface() instanceof PointSurface, "Only point sources supported");
-//			Location sourceLoc = ((PointSurface)source.getSourceSurface()).getLocation();
-//			double[] distances = new double[sites.size()];
-//			for (int s=0; s<sites.size(); s++)
-//				distances[s] = LocationUtils.horzDistanceFast(sourceLoc, sites.get(s).getLocation());
-//			for (ProbEqkRupture rup : source) {
-//				// these 2 are common to all
-//				Preconditions.checkState(rup.getMag() >= magInterp.getMin() && rup.getMag() <= magInterp.getMax(),
-//						"Rup mag=%s outisde of range [%s %s]", rup.getMag(), magInterp.getMin(), magInterp.getMax());
-//				indexes[1] = magInterp.getInterpolatedBinIndex(rup.getMag());
-//				FocalMech mech = FocalMechInterpolator.forRake(rup.getAveRake());
-//				double[] exceedProbs = this.exceedProbs.get(mech);
-//				for (int s=0; s<sites.size(); s++) {
-//					Site site = sites.get(s);
-//					if (distances[s] > distInterp.getMax())
-//						continue;
-////					System.out.println("dist: "+distances[s]);
-//					// set dist and any other params
-//					indexes[2] = distInterp.getInterpolatedBinIndex(distances[s]);
-//					for (int j=2; j<allInterps.size(); j++)
-//						indexes[j+1] = allInterps.get(j).detectInterpolatedBinIndex(null, site);
-//					
-//					// multi-dimensional interpolation
-////					double mean = interpolator.interpolate(means, arrayCalc, indexes);
-////					double stdDev = interpolator.interpolate(stdDevs, arrayCalc, indexes);
-////					gmpe.setSite(site);
-////					gmpe.setEqkRupture(rup);
-////					double mean = gmpe.getMean();
-////					double stdDev = gmpe.getStdDev();
-//					
-////					if (debugMeanScatter != null) {
-////						gmpe.setSite(site);
-////						gmpe.setEqkRupture(rup);
-////						double mean2 = gmpe.getMean();
-////						double stdDev2 = gmpe.getStdDev();
-////						debugMeanScatter.set(mean2, mean);
-////						debugStdDevScatter.set(stdDev2, stdDev);
-////					}
-//					
-//					for (int i=0; i<xVals.size(); i++) {
-//						indexes[0] = i; // IML index
-//						double exceedProb = interpolator.interpolate(exceedProbs, arrayCalc, indexes);
-////						if (Math.random() < 0.00001)
-////							System.out.println("Indexes: "+(float)indexes[0]+" "+(float)indexes[1]
-////								+" "+(float)indexes[2]+" "+(float)indexes[3]+" ==> "+exceedProb);
-//						curves[s].set(i, curves[s].getY(i)*Math.pow(1-rup.getProbability(), exceedProb));
-//					}
-//				}
-//			}
-//		}
-		
-		// convert to exceedance probabilities (currently non-exceedance)
-		for (DiscretizedFunc curve : curves)
-			for (int i=0; i<curve.size(); i++)
-				curve.set(i, 1d - curve.getY(i));
-		
-		return curves;
+		/**
+		 * Called on the thread running the calculation, every 10 seconds or so once it has run for a few seconds.
+		 * Tiles keep being calculated while this runs.
+		 * 
+		 * @param calc the calculator, which can be stopped with {@link GriddedInterpGMPE_Calc#requestStop()}
+		 * @param sitesDone number of sites calculated so far
+		 * @param numSites total number of sites
+		 * @param secsElapsed seconds since the calculation started
+		 * @param secsEstimated estimated total seconds for the calculation
+		 */
+		public void calcProgress(GriddedInterpGMPE_Calc calc, int sitesDone, int numSites, double secsElapsed, double secsEstimated);
 	}
 	
-	public void setPromptForLongCalc(boolean prompt) {
-		this.promptForLongCalc = prompt;
+	public void setProgressListener(CalcProgressListener progressListener) {
+		this.progressListener = progressListener;
 	}
 	
-	public boolean getPromptForLongCalc() {
-		return promptForLongCalc;
+	public CalcProgressListener getProgressListener() {
+		return progressListener;
 	}
 	
 	
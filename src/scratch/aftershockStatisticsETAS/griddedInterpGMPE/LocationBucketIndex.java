@@ -0,0 +1,157 @@
+package scratch.aftershockStatisticsETAS.griddedInterpGMPE;
+
+import java.util.Arrays;
+
+import org.opensha.commons.geo.GeoTools;
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Buckets locations into a regular lat/lon grid so that the locations within a given horizontal distance of a point
+ * can be found without checking every location. Returned candidates are a superset of the locations for which
+ * {@link org.opensha.commons.geo.LocationUtils#horzDistanceFast(Location, Location)} is within the maximum distance,
+ * so callers must still check the actual distance.
+ *
+ * Like horzDistanceFast, this does not wrap around the date line.
+ */
+class LocationBucketIndex {
+
+	// safety margin on search windows, to stay conservative in the face of rounding
+	private static final double MARGIN = 1.01;
+	// upper limit on the number of buckets in each direction
+	private static final int MAX_BUCKETS = 2000;
+
+	private int numLocs;
+
+	private double searchLatDeg;
+
+	private double minLat, minLon;
+	private double latBucketSize, lonBucketSize;
+	private int numLatBuckets, numLonBuckets;
+
+	// compressed bucket lists: indexes in bucket b are bucketIndexes[bucketStarts[b]] to bucketIndexes[bucketStarts[b+1]-1]
+	private int[] bucketStarts;
+	private int[] bucketIndexes;
+
+	/**
+	 * @param locs locations to index
+	 * @param maxDist maximum horizontal distance (km) that will be searched
+	 */
+	public LocationBucketIndex(Location[] locs, double maxDist) {
+		Preconditions.checkArgument(maxDist > 0d, "Max distance must be positive");
+		this.numLocs = locs.length;
+
+		searchLatDeg = Math.toDegrees(maxDist / GeoTools.EARTH_RADIUS_MEAN) * MARGIN;
+
+		minLat = Double.POSITIVE_INFINITY;
+		minLon = Double.POSITIVE_INFINITY;
+		double maxLat = Double.NEGATIVE_INFINITY;
+		double maxLon = Double.NEGATIVE_INFINITY;
+		for (Location loc : locs) {
+			minLat = Math.min(minLat, loc.getLatitude());
+			maxLat = Math.max(maxLat, loc.getLatitude());
+			minLon = Math.min(minLon, loc.getLongitude());
+			maxLon = Math.max(maxLon, loc.getLongitude());
+		}
+		if (numLocs == 0) {
+			minLat = 0d;
+			maxLat = 0d;
+			minLon = 0d;
+			maxLon = 0d;
+		}
+
+		// buckets are (at least) the size of the search window in latitude
+		latBucketSize = Math.max(searchLatDeg, (maxLat - minLat)/MAX_BUCKETS);
+		lonBucketSize = Math.max(searchLatDeg, (maxLon - minLon)/MAX_BUCKETS);
+		numLatBuckets = (int)((maxLat - minLat)/latBucketSize) + 1;
+		numLonBuckets = (int)((maxLon - minLon)/lonBucketSize) + 1;
+
+		int numBuckets = numLatBuckets*numLonBuckets;
+		int[] locBuckets = new int[numLocs];
+		bucketStarts = new int[numBuckets+1];
+		for (int i=0; i<numLocs; i++) {
+			locBuckets[i] = getBucket(latBucket(locs[i].getLatitude()), lonBucket(locs[i].getLongitude()));
+			bucketStarts[locBuckets[i]+1]++;
+		}
+		for (int b=0; b<numBuckets; b++)
+			bucketStarts[b+1] += bucketStarts[b];
+
+		// fill in location order, so each bucket is sorted
+		bucketIndexes = new int[numLocs];
+		int[] fill = Arrays.copyOf(bucketStarts, numBuckets);
+		for (int i=0; i<numLocs; i++)
+			bucketIndexes[fill[locBuckets[i]]++] = i;
+	}
+
+	private int latBucket(double lat) {
+		return clamp((int)Math.floor((lat - minLat)/latBucketSize), numLatBuckets);
+	}
+
+	private int lonBucket(double lon) {
+		return clamp((int)Math.floor((lon - minLon)/lonBucketSize), numLonBuckets);
+	}
+
+	private static int clamp(int bucket, int numBuckets) {
+		if (bucket < 0)
+			return 0;
+		if (bucket >= numBuckets)
+			return numBuckets-1;
+		return bucket;
+	}
+
+	private int getBucket(int latBucket, int lonBucket) {
+		return latBucket*numLonBuckets + lonBucket;
+	}
+
+	/**
+	 * Finds candidate locations within the maximum distance of the given location.
+	 * @param loc
+	 * @param candidates buffer for the result, which must have room for every indexed location
+	 * @return number of candidates, which are stored in increasing index order at the start of the buffer
+	 */
+	public int getCandidates(Location loc, int[] candidates) {
+		Preconditions.checkArgument(candidates.length >= numLocs, "Candidate buffer is too small");
+		if (numLocs == 0)
+			return 0;
+
+		double lat = loc.getLatitude();
+		double lon = loc.getLongitude();
+		double latLow = lat - searchLatDeg;
+		double latHigh = lat + searchLatDeg;
+
+		// longitude distance is scaled by the cosine of the mean latitude, which is smallest at the edge of the
+		// latitude window that is farthest from the equator
+		double maxAbsLat = Math.max(Math.abs(latLow), Math.abs(latHigh));
+		double lonLow, lonHigh;
+		if (maxAbsLat >= 89d) {
+			lonLow = Double.NEGATIVE_INFINITY;
+			lonHigh = Double.POSITIVE_INFINITY;
+		} else {
+			double searchLonDeg = searchLatDeg / Math.cos(Math.toRadians(maxAbsLat));
+			lonLow = lon - searchLonDeg;
+			lonHigh = lon + searchLonDeg;
+		}
+
+		int latStart = latBucket(latLow);
+		int latEnd = latBucket(latHigh);
+		int lonStart = lonLow == Double.NEGATIVE_INFINITY ? 0 : lonBucket(lonLow);
+		int lonEnd = lonHigh == Double.POSITIVE_INFINITY ? numLonBuckets-1 : lonBucket(lonHigh);
+
+		int count = 0;
+		for (int latIndex=latStart; latIndex<=latEnd; latIndex++) {
+			// buckets in a row are contiguous
+			int start = bucketStarts[getBucket(latIndex, lonStart)];
+			int end = bucketStarts[getBucket(latIndex, lonEnd)+1];
+			for (int i=start; i<end; i++)
+				candidates[count++] = bucketIndexes[i];
+		}
+
+		// each bucket is sorted, but multiple buckets need to be merged
+		if (latEnd > latStart || lonEnd > lonStart)
+			Arrays.sort(candidates, 0, count);
+
+		return count;
+	}
+
+}
@@ -7,6 +7,7 @@ public class NDimArrayCalc {
 	private int[] dimensions;
 	private int[] strides;
 	private int size;
+	private int offset;
 	
 	public NDimArrayCalc(int[] dimensions) {
 		Preconditions.checkArgument(dimensions.length > 0);
@@ -22,10 +23,11 @@ public class NDimArrayCalc {
 		}
 	}
 	
-	private NDimArrayCalc(int[] dimensions, int[] strides, int size) {
+	private NDimArrayCalc(int[] dimensions, int[] strides, int size, int offset) {
 		this.dimensions = dimensions;
 		this.strides = strides;
 		this.size = size;
+		this.offset = offset;
 	}
 	
 	public int getNumDimensions() {
@@ -50,6 +52,21 @@ public class NDimArrayCalc {
 		return index;
 	}
 	
+	/**
+	 * @param dimension
+	 * @return offset in the flat array between adjacent values in the given dimension
+	 */
+	public int getStride(int dimension) {
+		return strides[dimension];
+	}
+	
+	/**
+	 * @return index in the flat array of the value with all indexes zero (non zero for collapsed views)
+	 */
+	public int getOffset() {
+		return offset;
+	}
+	
 	public int rawArraySize() {
 		return size;
 	}
@@ -71,6 +88,13 @@ public class NDimArrayCalc {
 		return collapsed;
 	}
 	
+	private static int[] collapsedStrides(NDimArrayCalc orig, int index) {
+		int[] origStrides = new int[orig.getNumDimensions()];
+		for (int i=0; i<origStrides.length; i++)
+			origStrides[i] = orig.getStride(i);
+		return collapseRemove(origStrides, index);
+	}
+	
 	private static int[] expandAdd(int[] orig, int index, int value) {
 		Preconditions.checkState(index <= orig.length && index >= 0, "Bad expand index with orig len=%s, index=%s, value=%s",
 				orig.length, index, value);
@@ -93,7 +117,8 @@ public class NDimArrayCalc {
 		private int value;
 
 		public CollapsedNDimArrayCalc(NDimArrayCalc orig, int index, int value) {
-			super(collapseRemove(orig.dimensions, index), null, orig.size);
+			super(collapseRemove(orig.dimensions, index), collapsedStrides(orig, index), orig.size,
+					orig.getOffset() + value*orig.getStride(index));
 			this.orig = orig;
 			this.index = index;
 			this.value = value;
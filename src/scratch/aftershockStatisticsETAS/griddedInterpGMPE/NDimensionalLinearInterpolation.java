@@ -33,22 +33,28 @@ public class NDimensionalLinearInterpolation {
 //				System.out.println("Sub interp index count for "+i+": "+subInterpIndexes.get(i).size());
 			}
 		}
+		collapsed = buildCollapsedInterpolator();
 	}
 	
 	private NDimensionalLinearInterpolation(int numDimensions, NDimArrayCalc[] arrayCalcs, List<List<int[]>> subInterpIndexes) {
 		this.numDimensions = numDimensions;
 		this.arrayCalcs = arrayCalcs;
 		this.subInterpIndexes = subInterpIndexes;
+		collapsed = buildCollapsedInterpolator();
 	}
 	
-	private NDimensionalLinearInterpolation collapsed;
+	// built up front (recursively down to 1 dimension) so that threads sharing this instance never contend
+	private final NDimensionalLinearInterpolation collapsed;
 	
-	private synchronized NDimensionalLinearInterpolation getCollapsedInterpolator() {
-		Preconditions.checkState(numDimensions > 1, "Can't collapse with only 1 dimension!");
-		if (collapsed == null) {
-			collapsed = new NDimensionalLinearInterpolation(numDimensions-1,
-					Arrays.copyOfRange(arrayCalcs, 1, arrayCalcs.length), subInterpIndexes.subList(1, subInterpIndexes.size()));
-		}
+	private NDimensionalLinearInterpolation buildCollapsedInterpolator() {
+		if (numDimensions < 2)
+			return null;
+		return new NDimensionalLinearInterpolation(numDimensions-1,
+				Arrays.copyOfRange(arrayCalcs, 1, arrayCalcs.length), subInterpIndexes.subList(1, subInterpIndexes.size()));
+	}
+	
+	private NDimensionalLinearInterpolation getCollapsedInterpolator() {
+		Preconditions.checkState(collapsed != null, "Can't collapse with only 1 dimension!");
 		return collapsed;
 	}
 	
@@ -127,6 +133,93 @@ public class NDimensionalLinearInterpolation {
 		return interpolateTrimmed(subFlatArray, deltas);
 	}
 	
+	/**
+	 * Allocation free version of {@link #interpolate(double[], NDimArrayCalc, double[])}, with specialized kernels
+	 * for up to 3 dimensions that require interpolation (dimensions with integer indexes are fixed rather than
+	 * interpolated, as in the general version). Results are identical to the general version, which is used as a
+	 * fallback if more than 3 dimensions require interpolation.
+	 * 
+	 * @param flatDataArray
+	 * @param arrayCalc array calculator for flatDataArray, can be a collapsed view
+	 * @param indexes
+	 * @return interpolated value
+	 */
+	public double interpolateDirect(double[] flatDataArray, NDimArrayCalc arrayCalc, double[] indexes) {
+		int[] dimensions = arrayCalc.getDimensions();
+		if (indexes.length != dimensions.length)
+			throw new IllegalStateException("Expected "+dimensions.length+" indexes, have "+indexes.length);
+		
+		int offset = arrayCalc.getOffset();
+		int numInterp = 0;
+		int stride0 = 0, stride1 = 0, stride2 = 0;
+		double delta0 = 0d, delta1 = 0d, delta2 = 0d;
+		
+		for (int i=0; i<indexes.length; i++) {
+			double index = indexes[i];
+			int base = (int)index;
+			if (base == (float)index) {
+				// fixed value (same test as the general version)
+				if (base < 0 || base >= dimensions[i])
+					throw new IllegalStateException("Index is outside of range for dimension "+i
+							+", size="+dimensions[i]+", index="+index);
+				offset += base*arrayCalc.getStride(i);
+				continue;
+			}
+			if (index < 0d || base >= dimensions[i] - 1)
+				throw new IllegalStateException("Index is outside of range for dimension "+i
+						+", size="+dimensions[i]+", index="+index);
+			int stride = arrayCalc.getStride(i);
+			offset += base*stride;
+			double delta = index - base;
+			switch (numInterp) {
+			case 0:
+				stride0 = stride;
+				delta0 = delta;
+				break;
+			case 1:
+				stride1 = stride;
+				delta1 = delta;
+				break;
+			case 2:
+				stride2 = stride;
+				delta2 = delta;
+				break;
+			default:
+				return interpolate(flatDataArray, arrayCalc, indexes);
+			}
+			numInterp++;
+		}
+		
+		// interpolate in dimension order, as the general version does
+		switch (numInterp) {
+		case 0:
+			return flatDataArray[offset];
+		case 1:
+			return lerp(flatDataArray[offset], flatDataArray[offset+stride0], delta0);
+		case 2: {
+			double v0 = lerp(flatDataArray[offset], flatDataArray[offset+stride0], delta0);
+			double v1 = lerp(flatDataArray[offset+stride1], flatDataArray[offset+stride1+stride0], delta0);
+			return lerp(v0, v1, delta1);
+		}
+		default: {
+			int offset1 = offset+stride1;
+			int offset2 = offset+stride2;
+			int offset12 = offset1+stride2;
+			double v00 = lerp(flatDataArray[offset], flatDataArray[offset+stride0], delta0);
+			double v10 = lerp(flatDataArray[offset1], flatDataArray[offset1+stride0], delta0);
+			double v01 = lerp(flatDataArray[offset2], flatDataArray[offset2+stride0], delta0);
+			double v11 = lerp(flatDataArray[offset12], flatDataArray[offset12+stride0], delta0);
+			double v0 = lerp(v00, v10, delta1);
+			double v1 = lerp(v01, v11, delta1);
+			return lerp(v0, v1, delta2);
+		}
+		}
+	}
+	
+	private static double lerp(double v0, double v1, double delta) {
+		return (1d - delta)*v0 + delta*v1;
+	}
+	
 	public double interpolateTrimmed(double[] flatDataArray, double[] deltas) {
 		Preconditions.checkArgument(flatDataArray.length == arrayCalcs[0].rawArraySize(),
 				"Array size inconsistent, should be already trimmed such that each dimension is of size=2");
@@ -160,6 +160,7 @@ public class BBP_SimZipLoader {
 	private Table<BBP_Site, String, Map<FileType, ZipEntry>> entriesTable;
 	private HashSet<FileType> allTypes;
 	private ZipFile zip;
+	private BBP_SpectraStore spectraStore;
 	
 	public BBP_SimZipLoader(File file, List<BBP_Site> sites) throws ZipException, IOException {
 		this(new ZipFile(file), sites);
@@ -202,6 +203,31 @@ public class BBP_SimZipLoader {
 		}
 		System.out.println("Loaded "+numFiles+" files from "+numSims+" sims for "
 				+entriesTable.rowKeySet().size()+" sites and "+entriesTable.columnKeySet().size()+" dirs");
+		
+		File zipFile = new File(zip.getName());
+		File storeFile = BBP_SpectraStore.getStoreFile(zipFile);
+		if (storeFile.exists()) {
+			try {
+				spectraStore = BBP_SpectraStore.load(storeFile, zipFile);
+				System.out.println("Reading spectra from "+storeFile.getName());
+			} catch (IOException e) {
+				System.err.println("Skipping spectra store: "+e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * @return binary spectra store used for RotD and FAS reads, or null if spectra are parsed from the zip file
+	 */
+	public BBP_SpectraStore getSpectraStore() {
+		return spectraStore;
+	}
+	
+	/**
+	 * Sets the binary spectra store used for RotD and FAS reads, or null to parse spectra from the zip file
+	 */
+	public void setSpectraStore(BBP_SpectraStore spectraStore) {
+		this.spectraStore = spectraStore;
 	}
 	
 	protected boolean contains(BBP_Site site, String entryName) {
@@ -227,6 +253,11 @@ public class BBP_SimZipLoader {
 		return entry;
 	}
 	
+	boolean hasZipEntry(BBP_Site site, String dirName, FileType type) {
+		Map<FileType, ZipEntry> fileMap = entriesTable.get(site, dirName);
+		return fileMap != null && fileMap.containsKey(type);
+	}
+	
 	private List<String> loadFileLines(ZipEntry entry) throws IOException {
 		BufferedReader br = new BufferedReader(new InputStreamReader(zip.getInputStream(entry)));
 		List<String> lines = new ArrayList<>();
@@ -239,6 +270,8 @@ public class BBP_SimZipLoader {
 	}
 	
 	public DiscretizedFunc readRotD50(BBP_Site site, String dirName) throws IOException {
+		if (spectraStore != null && spectraStore.hasRotD50(site, dirName))
+			return spectraStore.readRotD50(site, dirName);
 		ZipEntry entry;
 		try {
 			entry = locate(site, dirName, FileType.RotD50);
@@ -255,6 +288,8 @@ public class BBP_SimZipLoader {
 	}
 	
 	public DiscretizedFunc readRotD100(BBP_Site site, String dirName) throws IOException {
+		if (spectraStore != null && spectraStore.hasRotD100(site, dirName))
+			return spectraStore.readRotD100(site, dirName);
 		ZipEntry entry = locate(site, dirName, FileType.RotD100);
 		try {
 			return SpectraPlotter.loadRotD100(loadFileLines(entry));
@@ -265,6 +300,8 @@ public class BBP_SimZipLoader {
 	}
 	
 	public DiscretizedFunc[] readRotD(BBP_Site site, String dirName) throws IOException {
+		if (spectraStore != null && spectraStore.hasRotD100(site, dirName))
+			return spectraStore.readRotD(site, dirName);
 		ZipEntry entry = locate(site, dirName, FileType.RotD100);
 		try {
 			return SpectraPlotter.loadRotD(loadFileLines(entry));
@@ -287,6 +324,8 @@ public class BBP_SimZipLoader {
 	}
 	
 	public DiscretizedFunc readFAS(BBP_Site site, String dirName) throws IOException {
+		if (spectraStore != null && spectraStore.hasFAS(site, dirName))
+			return spectraStore.readFAS(site, dirName);
 		ZipEntry entry = locate(site, dirName, FileType.FAS);
 		return SpectraPlotter.loadRotD50(loadFileLines(entry));
 	}
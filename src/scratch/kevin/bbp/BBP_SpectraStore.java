@@ -0,0 +1,463 @@
+package scratch.kevin.bbp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Memory mapped binary store of the RotD50, RotD100 and FAS spectra in a BBP results zip file, so that spectra can be
+ * read without inflating and parsing text files. Create one with {@link #convert(BBP_SimZipLoader, File, File)} (or
+ * the main method); {@link BBP_SimZipLoader} will then use it automatically if it is found next to the zip file.
+ *
+ * File layout (big endian):
+ * <pre>
+ * int magic, int version, long zip length, long zip last modified, long index offset
+ * records: for each spectra type, int grid index (-1 if not present) followed by the y values of that grid
+ * index: for each spectra type, the distinct x value grids (int size, doubles); site names; directory names;
+ * then each record as int site index, int dir index, long offset
+ * </pre>
+ * Each read matches the corresponding {@link BBP_SimZipLoader} read: RotD50 comes from the .rd50 file when there is
+ * one (as in {@link BBP_SimZipLoader#readRotD50(BBP_Site, String)}), while the RotD50 column of the .rd100 file is
+ * stored separately for {@link #readRotD(BBP_Site, String)} (as in
+ * {@link BBP_SimZipLoader#readRotD(BBP_Site, String)}). See {@link #verify(BBP_SimZipLoader, int)}.
+ */
+public class BBP_SpectraStore {
+
+	public static final String STORE_SUFFIX = ".spectra";
+
+	private static final int MAGIC = 0x42425053; // BBPS
+	private static final int VERSION = 2;
+	private static final int HEADER_LEN = 32;
+
+	private static final int ROTD50 = 0;
+	private static final int ROTD100 = 1;
+	private static final int FAS = 2;
+	// RotD50 column of the RotD100 file
+	private static final int ROTD100_FILE_ROTD50 = 3;
+	private static final int NUM_TYPES = 4;
+
+	// records never span chunks
+	private static final long MAX_CHUNK_LEN = Integer.MAX_VALUE;
+
+	private double[][][] grids;
+	private Map<String, Integer> siteIndexes;
+	private Map<String, Integer> dirIndexes;
+	private int numDirs;
+	// record index for each (site, dir) pair, or -1
+	private int[] recordIndexes;
+	private int[] recordChunks;
+	private int[] recordPositions;
+	private MappedByteBuffer[] chunks;
+
+	private BBP_SpectraStore() {}
+
+	public static File getStoreFile(File zipFile) {
+		return new File(zipFile.getAbsolutePath()+STORE_SUFFIX);
+	}
+
+	/**
+	 * Loads a spectra store
+	 * @param storeFile
+	 * @param zipFile zip file that the store was created from, used to make sure that the store is up to date.
+	 * Can be null to skip that check.
+	 * @throws IOException if the file is not a valid store or doesn't match the zip file
+	 */
+	public static BBP_SpectraStore load(File storeFile, File zipFile) throws IOException {
+		BBP_SpectraStore store = new BBP_SpectraStore();
+		try (RandomAccessFile raFile = new RandomAccessFile(storeFile, "r")) {
+			FileChannel channel = raFile.getChannel();
+			int magic = raFile.readInt();
+			if (magic != MAGIC)
+				throw new IOException("Not a BBP spectra store: "+storeFile.getAbsolutePath());
+			int version = raFile.readInt();
+			if (version != VERSION)
+				throw new IOException("Unknown BBP spectra store version: "+version);
+			long zipLength = raFile.readLong();
+			long zipLastModified = raFile.readLong();
+			if (zipFile != null && (zipFile.length() != zipLength || zipFile.lastModified() != zipLastModified))
+				throw new IOException("BBP spectra store "+storeFile.getName()+" is out of date with "+zipFile.getName());
+			long indexOffset = raFile.readLong();
+
+			// read the index
+			channel.position(indexOffset);
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			store.grids = new double[NUM_TYPES][][];
+			for (int t=0; t<NUM_TYPES; t++) {
+				store.grids[t] = new double[in.readInt()][];
+				for (int g=0; g<store.grids[t].length; g++) {
+					double[] xVals = new double[in.readInt()];
+					for (int i=0; i<xVals.length; i++)
+						xVals[i] = in.readDouble();
+					store.grids[t][g] = xVals;
+				}
+			}
+			store.siteIndexes = readNames(in);
+			store.dirIndexes = readNames(in);
+			int numSites = store.siteIndexes.size();
+			store.numDirs = store.dirIndexes.size();
+			Preconditions.checkState((long)numSites*store.numDirs < Integer.MAX_VALUE, "Too many sites and dirs");
+			store.recordIndexes = new int[numSites*store.numDirs];
+			Arrays.fill(store.recordIndexes, -1);
+			int numRecords = in.readInt();
+			long[] offsets = new long[numRecords+1];
+			for (int r=0; r<numRecords; r++) {
+				int siteIndex = in.readInt();
+				int dirIndex = in.readInt();
+				offsets[r] = in.readLong();
+				store.recordIndexes[siteIndex*store.numDirs + dirIndex] = r;
+			}
+			offsets[numRecords] = indexOffset;
+
+			// map the records in chunks, starting a new chunk whenever the next record won't fit
+			store.recordChunks = new int[numRecords];
+			store.recordPositions = new int[numRecords];
+			List<MappedByteBuffer> chunks = new ArrayList<>();
+			long chunkStart = HEADER_LEN;
+			for (int r=0; r<numRecords; r++) {
+				if (offsets[r+1] - chunkStart > MAX_CHUNK_LEN) {
+					chunks.add(channel.map(MapMode.READ_ONLY, chunkStart, offsets[r] - chunkStart));
+					chunkStart = offsets[r];
+				}
+				store.recordChunks[r] = chunks.size();
+				store.recordPositions[r] = (int)(offsets[r] - chunkStart);
+			}
+			chunks.add(channel.map(MapMode.READ_ONLY, chunkStart, indexOffset - chunkStart));
+			store.chunks = chunks.toArray(new MappedByteBuffer[0]);
+		}
+		return store;
+	}
+
+	private static Map<String, Integer> readNames(DataInputStream in) throws IOException {
+		int num = in.readInt();
+		Map<String, Integer> indexes = new HashMap<>(num*2);
+		for (int i=0; i<num; i++)
+			indexes.put(in.readUTF(), i);
+		return indexes;
+	}
+
+	private int getRecord(BBP_Site site, String dirName) {
+		Integer siteIndex = siteIndexes.get(site.getName());
+		Integer dirIndex = dirIndexes.get(dirName);
+		if (siteIndex == null || dirIndex == null)
+			return -1;
+		return recordIndexes[siteIndex*numDirs + dirIndex];
+	}
+
+	public boolean contains(BBP_Site site, String dirName) {
+		return getRecord(site, dirName) >= 0;
+	}
+
+	public boolean hasRotD50(BBP_Site site, String dirName) {
+		return getGridIndex(getRecord(site, dirName), ROTD50) >= 0;
+	}
+
+	public boolean hasRotD100(BBP_Site site, String dirName) {
+		return getGridIndex(getRecord(site, dirName), ROTD100) >= 0;
+	}
+
+	public boolean hasFAS(BBP_Site site, String dirName) {
+		return getGridIndex(getRecord(site, dirName), FAS) >= 0;
+	}
+
+	public DiscretizedFunc readRotD50(BBP_Site site, String dirName) {
+		return read(site, dirName, ROTD50);
+	}
+
+	public DiscretizedFunc readRotD100(BBP_Site site, String dirName) {
+		return read(site, dirName, ROTD100);
+	}
+
+	/**
+	 * @return array of [RotD50, RotD100], both from the RotD100 file
+	 */
+	public DiscretizedFunc[] readRotD(BBP_Site site, String dirName) {
+		return new DiscretizedFunc[] { read(site, dirName, ROTD100_FILE_ROTD50), readRotD100(site, dirName) };
+	}
+
+	public DiscretizedFunc readFAS(BBP_Site site, String dirName) {
+		return read(site, dirName, FAS);
+	}
+
+	private int getGridIndex(int record, int type) {
+		if (record < 0)
+			return -1;
+		ByteBuffer chunk = chunks[recordChunks[record]];
+		int pos = recordPositions[record];
+		for (int t=0; t<type; t++) {
+			int grid = chunk.getInt(pos);
+			pos += 4;
+			if (grid >= 0)
+				pos += 8*grids[t][grid].length;
+		}
+		return chunk.getInt(pos);
+	}
+
+	private DiscretizedFunc read(BBP_Site site, String dirName, int type) {
+		int record = getRecord(site, dirName);
+		Preconditions.checkState(record >= 0, "No spectra for dir %s, site %s", dirName, site.getName());
+		// absolute reads only, so that this is thread safe
+		ByteBuffer chunk = chunks[recordChunks[record]];
+		int pos = recordPositions[record];
+		for (int t=0; t<=type; t++) {
+			int grid = chunk.getInt(pos);
+			pos += 4;
+			if (t < type) {
+				if (grid >= 0)
+					pos += 8*grids[t][grid].length;
+				continue;
+			}
+			Preconditions.checkState(grid >= 0, "Spectra type %s not stored for dir %s, site %s",
+					type, dirName, site.getName());
+			double[] xVals = grids[t][grid];
+			double[] yVals = new double[xVals.length];
+			for (int i=0; i<yVals.length; i++)
+				yVals[i] = chunk.getDouble(pos + 8*i);
+			return new LightFixedXFunc(xVals, yVals);
+		}
+		throw new IllegalStateException();
+	}
+
+	/**
+	 * Writes all RotD50, RotD100 and FAS spectra available from the given loader to a store file. Spectra are
+	 * parsed in parallel.
+	 * @param loader
+	 * @param zipFile zip file that the loader reads, recorded so that out of date stores are detected
+	 * @param storeFile
+	 * @throws IOException
+	 */
+	public static void convert(BBP_SimZipLoader loader, File zipFile, File storeFile) throws IOException {
+		List<BBP_Site> sites = new ArrayList<>(loader.getEntriesTable().rowKeySet());
+		List<String> dirNames = new ArrayList<>(loader.getEntriesTable().columnKeySet());
+		Map<String, Integer> dirIndexes = new HashMap<>();
+		for (int i=0; i<dirNames.size(); i++)
+			dirIndexes.put(dirNames.get(i), i);
+
+		List<List<double[]>> typeGrids = new ArrayList<>();
+		List<Map<GridKey, Integer>> typeGridIndexes = new ArrayList<>();
+		for (int t=0; t<NUM_TYPES; t++) {
+			typeGrids.add(new ArrayList<>());
+			typeGridIndexes.add(new HashMap<>());
+		}
+
+		File tmpFile = new File(storeFile.getAbsolutePath()+".tmp");
+		int batchSize = 1000;
+		int numRecords = 0;
+		long[] recordOffsets = new long[1024];
+		int[] recordSites = new int[1024];
+		int[] recordDirs = new int[1024];
+
+		long pos = HEADER_LEN;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			// placeholder header, filled in at the end
+			out.write(new byte[HEADER_LEN]);
+
+			for (int s=0; s<sites.size(); s++) {
+				BBP_Site site = sites.get(s);
+				List<String> siteDirs = new ArrayList<>(loader.getDirNames(site));
+				System.out.println("Converting "+siteDirs.size()+" spectra for site "+site.getName());
+				for (int start=0; start<siteDirs.size(); start+=batchSize) {
+					List<String> batch = siteDirs.subList(start, Math.min(siteDirs.size(), start+batchSize));
+					DiscretizedFunc[][] batchSpectra = IntStream.range(0, batch.size()).parallel()
+							.mapToObj(i -> readSpectra(loader, site, batch.get(i))).toArray(DiscretizedFunc[][]::new);
+					for (int i=0; i<batch.size(); i++) {
+						if (numRecords == recordOffsets.length) {
+							recordOffsets = Arrays.copyOf(recordOffsets, numRecords*2);
+							recordSites = Arrays.copyOf(recordSites, numRecords*2);
+							recordDirs = Arrays.copyOf(recordDirs, numRecords*2);
+						}
+						recordOffsets[numRecords] = pos;
+						recordSites[numRecords] = s;
+						recordDirs[numRecords] = dirIndexes.get(batch.get(i));
+						numRecords++;
+						for (int t=0; t<NUM_TYPES; t++) {
+							DiscretizedFunc func = batchSpectra[i][t];
+							if (func == null) {
+								out.writeInt(-1);
+								pos += 4;
+								continue;
+							}
+							double[] xVals = new double[func.size()];
+							for (int j=0; j<xVals.length; j++)
+								xVals[j] = func.getX(j);
+							GridKey key = new GridKey(xVals);
+							Integer grid = typeGridIndexes.get(t).get(key);
+							if (grid == null) {
+								grid = typeGrids.get(t).size();
+								typeGrids.get(t).add(xVals);
+								typeGridIndexes.get(t).put(key, grid);
+							}
+							out.writeInt(grid);
+							for (int j=0; j<xVals.length; j++)
+								out.writeDouble(func.getY(j));
+							pos += 4 + 8*xVals.length;
+						}
+					}
+				}
+			}
+
+			// index
+			for (int t=0; t<NUM_TYPES; t++) {
+				out.writeInt(typeGrids.get(t).size());
+				for (double[] xVals : typeGrids.get(t)) {
+					out.writeInt(xVals.length);
+					for (double x : xVals)
+						out.writeDouble(x);
+				}
+			}
+			out.writeInt(sites.size());
+			for (BBP_Site site : sites)
+				out.writeUTF(site.getName());
+			out.writeInt(dirNames.size());
+			for (String dirName : dirNames)
+				out.writeUTF(dirName);
+			out.writeInt(numRecords);
+			for (int r=0; r<numRecords; r++) {
+				out.writeInt(recordSites[r]);
+				out.writeInt(recordDirs[r]);
+				out.writeLong(recordOffsets[r]);
+			}
+		}
+
+		try (RandomAccessFile raFile = new RandomAccessFile(tmpFile, "rw")) {
+			raFile.writeInt(MAGIC);
+			raFile.writeInt(VERSION);
+			raFile.writeLong(zipFile.length());
+			raFile.writeLong(zipFile.lastModified());
+			raFile.writeLong(pos);
+		}
+		if (storeFile.exists())
+			Preconditions.checkState(storeFile.delete(), "Couldn't delete old store: %s", storeFile.getAbsolutePath());
+		Preconditions.checkState(tmpFile.renameTo(storeFile), "Couldn't rename %s", tmpFile.getAbsolutePath());
+		System.out.println("Wrote "+numRecords+" spectra records to "+storeFile.getAbsolutePath());
+	}
+
+	private static DiscretizedFunc[] readSpectra(BBP_SimZipLoader loader, BBP_Site site, String dirName) {
+		DiscretizedFunc[] ret = new DiscretizedFunc[NUM_TYPES];
+		try {
+			if (loader.hasZipEntry(site, dirName, BBP_SimZipLoader.FileType.RotD50)
+					|| loader.hasZipEntry(site, dirName, BBP_SimZipLoader.FileType.RotD100))
+				ret[ROTD50] = loader.readRotD50(site, dirName);
+			if (loader.hasZipEntry(site, dirName, BBP_SimZipLoader.FileType.RotD100)) {
+				DiscretizedFunc[] rotD = loader.readRotD(site, dirName);
+				ret[ROTD100_FILE_ROTD50] = rotD[0];
+				ret[ROTD100] = rotD[1];
+			}
+			if (loader.hasZipEntry(site, dirName, BBP_SimZipLoader.FileType.FAS))
+				ret[FAS] = loader.readFAS(site, dirName);
+		} catch (IOException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		return ret;
+	}
+
+	/**
+	 * Checks that spectra read from this store match those parsed from the zip file by the given loader, for up to
+	 * maxDirsPerSite evenly spaced directories of each site (or all if maxDirsPerSite <= 0)
+	 * @throws IllegalStateException at the first mismatch
+	 */
+	public void verify(BBP_SimZipLoader loader, int maxDirsPerSite) throws IOException {
+		BBP_SpectraStore prevStore = loader.getSpectraStore();
+		// parse from the zip file
+		loader.setSpectraStore(null);
+		int numChecked = 0;
+		try {
+			for (BBP_Site site : loader.getEntriesTable().rowKeySet()) {
+				List<String> siteDirs = new ArrayList<>(loader.getDirNames(site));
+				int step = 1;
+				if (maxDirsPerSite > 0 && siteDirs.size() > maxDirsPerSite)
+					step = (int)Math.ceil((double)siteDirs.size()/maxDirsPerSite);
+				for (int i=0; i<siteDirs.size(); i+=step) {
+					String dirName = siteDirs.get(i);
+					Preconditions.checkState(contains(site, dirName), "Store is missing dir %s, site %s",
+							dirName, site.getName());
+					DiscretizedFunc[] expected = readSpectra(loader, site, dirName);
+					for (int t=0; t<NUM_TYPES; t++) {
+						boolean stored = getGridIndex(getRecord(site, dirName), t) >= 0;
+						Preconditions.checkState(stored == (expected[t] != null),
+								"Store and zip disagree on presence of type %s for dir %s, site %s",
+								t, dirName, site.getName());
+						if (stored)
+							checkEqual(expected[t], read(site, dirName, t), t, site, dirName);
+					}
+					if (expected[ROTD100] != null) {
+						DiscretizedFunc[] zipRotD = loader.readRotD(site, dirName);
+						DiscretizedFunc[] storeRotD = readRotD(site, dirName);
+						checkEqual(zipRotD[0], storeRotD[0], ROTD100_FILE_ROTD50, site, dirName);
+						checkEqual(zipRotD[1], storeRotD[1], ROTD100, site, dirName);
+					}
+					numChecked++;
+				}
+			}
+		} finally {
+			loader.setSpectraStore(prevStore);
+		}
+		System.out.println("Verified "+numChecked+" spectra records against the zip file");
+	}
+
+	private static void checkEqual(DiscretizedFunc expected, DiscretizedFunc actual, int type,
+			BBP_Site site, String dirName) {
+		boolean equal = expected.size() == actual.size();
+		for (int i=0; equal && i<expected.size(); i++)
+			equal = expected.getX(i) == actual.getX(i) && expected.getY(i) == actual.getY(i);
+		Preconditions.checkState(equal, "Store and zip spectra of type %s differ for dir %s, site %s",
+				type, dirName, site.getName());
+	}
+
+	private static class GridKey {
+		private double[] xVals;
+		private int hashCode;
+
+		public GridKey(double[] xVals) {
+			this.xVals = xVals;
+			this.hashCode = Arrays.hashCode(xVals);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof GridKey && Arrays.equals(xVals, ((GridKey)obj).xVals);
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 2) {
+			System.err.println("USAGE: BBP_SpectraStore <results.zip> [<sites file>]");
+			System.exit(2);
+		}
+		File zipFile = new File(args[0]);
+		File sitesFile = args.length > 1 ? new File(args[1]) : zipFile.getParentFile();
+		List<BBP_Site> sites = BBP_Site.readFile(sitesFile);
+		BBP_SimZipLoader loader = new BBP_SimZipLoader(zipFile, sites);
+		// always parse from the zip file, even if there's an old store
+		loader.setSpectraStore(null);
+		File storeFile = getStoreFile(zipFile);
+		convert(loader, zipFile, storeFile);
+		load(storeFile, zipFile).verify(loader, 100);
+	}
+
+}
@@ -13,6 +13,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -46,6 +47,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Table;
 
 import scratch.kevin.bbp.SpectraPlotter;
+import scratch.kevin.util.CalcObjectPool;
 import scratch.kevin.util.MarkdownUtils;
 import scratch.kevin.util.MarkdownUtils.TableBuilder;
 
@@ -72,7 +74,7 @@ public abstract class MultiRupGMPE_ComparePageGen<E> {
 	
 	protected ExecutorService exec;
 	
-	private Map<AttenRelRef, LinkedList<ScalarIMR>> gmpesInstancesCache;
+	private Map<AttenRelRef, CalcObjectPool<ScalarIMR>> gmpePools;
 	
 	private boolean replotScatters = true;
 	private boolean replotZScores = true;
@@ -91,7 +93,7 @@ public abstract class MultiRupGMPE_ComparePageGen<E> {
 		
 		initBins();
 		
-		gmpesInstancesCache = new HashMap<>();
+		gmpePools = new ConcurrentHashMap<>();
 		rupSiteAzMap = HashBasedTable.create();
 		
 		exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
@@ -307,26 +309,16 @@ public abstract class MultiRupGMPE_ComparePageGen<E> {
 		
 	}
 	
+	private CalcObjectPool<ScalarIMR> getGMPEPool(AttenRelRef gmpeRef) {
+		return gmpePools.computeIfAbsent(gmpeRef, CalcObjectPool::forSA_GMPE);
+	}
+	
 	protected ScalarIMR checkOutGMPE(AttenRelRef gmpeRef) {
-		synchronized (gmpesInstancesCache) {
-			LinkedList<ScalarIMR> gmpes = gmpesInstancesCache.get(gmpeRef);
-			if (gmpes == null) {
-				gmpes = new LinkedList<>();
-				gmpesInstancesCache.put(gmpeRef, gmpes);
-			}
-			if (!gmpes.isEmpty())
-				return gmpes.pop();
-		}
-		ScalarIMR gmpe = gmpeRef.instance(null);
-		gmpe.setParamDefaults();
-		gmpe.setIntensityMeasure(SA_Param.NAME);
-		return gmpe;
+		return getGMPEPool(gmpeRef).checkOut();
 	}
 	
 	protected void checkInGMPE(AttenRelRef gmpeRef, ScalarIMR gmpe) {
-		synchronized (gmpesInstancesCache) {
-			gmpesInstancesCache.get(gmpeRef).push(gmpe);
-		}
+		getGMPEPool(gmpeRef).checkIn(gmpe);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -580,6 +572,13 @@ public abstract class MultiRupGMPE_ComparePageGen<E> {
 				curvePlotter.setGMPE_TruncationLevels(gmpe_truncs);
 				curvePlotters.add(curvePlotter);
 			}
+			// calculate all simulation curves in one sweep
+			Table<Site, Double, DiscretizedFunc> simCurves = simCurveCalc.calc(curveSites, periods, 1d);
+			for (int s=0; s<curveSites.size(); s++)
+				for (double period : periods)
+					if (simCurves.contains(curveSites.get(s), period))
+						curvePlotters.get(s).setCalcSimCurve(simCurveCalc, period,
+								simCurves.get(curveSites.get(s), period));
 			for (double period : periods)
 				curveFiles.add(plotHazardCurves(curvePlotters, period, resourcesDir));
 			
@@ -774,26 +773,28 @@ public abstract class MultiRupGMPE_ComparePageGen<E> {
 					if (type.units != null)
 						xAxisLabel += " ("+type.units+")";
 					ScalarIMR gmpe = checkOutGMPE(gmpeRef);
-					gmpe.setParamDefaults();
-					for (ResidualType t2 : residualTypes) {
-						if (t2 == type || t2.parameterName == null)
-							continue;
-						double meanVal = residualDefaults.get(t2);
-						if (gmpe instanceof MultiIMR_Averaged_AttenRel) {
-							((MultiIMR_Averaged_AttenRel)gmpe).setParameterInIMRs(t2.parameterName, meanVal);
-						} else {
-							Parameter<Double> gmpeParameter = gmpe.getParameter(t2.parameterName);
-							if (gmpeParameter instanceof WarningDoubleParameter)
-								((WarningDoubleParameter)gmpeParameter).setValueIgnoreWarning(meanVal);
-							else
-								gmpeParameter.setValue(meanVal);
+					try {
+						gmpe.setParamDefaults();
+						for (ResidualType t2 : residualTypes) {
+							if (t2 == type || t2.parameterName == null)
+								continue;
+							double meanVal = residualDefaults.get(t2);
+							if (gmpe instanceof MultiIMR_Averaged_AttenRel) {
+								((MultiIMR_Averaged_AttenRel)gmpe).setParameterInIMRs(t2.parameterName, meanVal);
+							} else {
+								Parameter<Double> gmpeParameter = gmpe.getParameter(t2.parameterName);
+								if (gmpeParameter instanceof WarningDoubleParameter)
+									((WarningDoubleParameter)gmpeParameter).setValueIgnoreWarning(meanVal);
+								else
+									gmpeParameter.setValue(meanVal);
+							}
 						}
-					}
-					SA_Param.setPeriodInSA_Param(gmpe.getIntensityMeasure(), period);
-					residualPlots[i] = new ResidualScatterPlot(scatter, xAxisLabel, type.log, type.deltaX, residualLabel,
-							optionalDigitDF.format(period)+"s "+type.name+" Residuals", gmpe, type.parameterName);
-					if (gmpe != null)
+						SA_Param.setPeriodInSA_Param(gmpe.getIntensityMeasure(), period);
+						residualPlots[i] = new ResidualScatterPlot(scatter, xAxisLabel, type.log, type.deltaX, residualLabel,
+								optionalDigitDF.format(period)+"s "+type.name+" Residuals", gmpe, type.parameterName);
+					} finally {
 						checkInGMPE(gmpeRef, gmpe);
+					}
 					residualPlots[i].setWritePDF(false);
 //					residualPlots[i].setPlotLinearFit(false);
 				}
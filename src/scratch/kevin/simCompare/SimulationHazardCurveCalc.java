@@ -2,10 +2,13 @@ package scratch.kevin.simCompare;
 
 import java.awt.geom.Point2D;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -14,6 +17,7 @@ import org.opensha.commons.data.function.UncertainArbDiscDataset;
 import org.opensha.sha.gui.infoTools.IMT_Info;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 
+import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.Table;
 
 import scratch.UCERF3.erf.ETAS.ETAS_Utils;
@@ -59,64 +63,192 @@ public class SimulationHazardCurveCalc<E> {
 	}
 	
 	public DiscretizedFunc calc(Site site, double period, double curveDuration) throws IOException {
-		return calc(site, period, curveDuration, null);
+		return calcCurves(site, new double[] {period}, curveDuration, null)[0][0];
+	}
+	
+	/**
+	 * Calculates hazard curves for every site and period in one sweep. Each simulated spectrum is read once and
+	 * interpolated at all periods, and sites are calculated in parallel.
+	 * 
+	 * @return table of curves by site and period, without entries for sites that have no ruptures
+	 */
+	public Table<Site, Double, DiscretizedFunc> calc(List<Site> sites, double[] periods, double curveDuration)
+			throws IOException {
+		List<DiscretizedFunc[][]> siteCurves = calcSites(sites, periods, curveDuration, null);
+		
+		Table<Site, Double, DiscretizedFunc> ret = HashBasedTable.create();
+		for (int s=0; s<sites.size(); s++)
+			for (int p=0; p<periods.length; p++)
+				if (siteCurves.get(s)[0][p] != null)
+					ret.put(sites.get(s), periods[p], siteCurves.get(s)[0][p]);
+		return ret;
 	}
 	
 	public Map<String, DiscretizedFunc> calcSourceContributionCurves(Site site, double period, double curveDuration,
 			Table<String, E, Double> sourceRupContribFracts) throws IOException {
 		Map<String, DiscretizedFunc> ret = new HashMap<>();
 		
-		for (String sourceName : sourceRupContribFracts.rowKeySet())
-			ret.put(sourceName, calc(site, period, curveDuration, sourceRupContribFracts.row(sourceName)));
+		List<String> sourceNames = new ArrayList<>(sourceRupContribFracts.rowKeySet());
+		DiscretizedFunc[][] curves = calcCurves(site, new double[] {period}, curveDuration,
+				getRupRateScalars(sourceNames, sourceRupContribFracts));
+		for (int i=0; i<sourceNames.size(); i++)
+			ret.put(sourceNames.get(i), curves[i][0]);
 		
 		return ret;
 	}
 	
-	private DiscretizedFunc calc(Site site, double period, double curveDuration, Map<E, Double> rupRateScalars)
-			throws IOException {
-		// annual rate curve
-		DiscretizedFunc curve = xVals.deepClone();
-		for (int i=0; i<curve.size(); i++)
-			curve.set(i, 0d);
-		int[] numExceed = new int[xVals.size()];
-		int numRuptures = 0;
-		double firstRate = -1;
-		double minRate = Double.POSITIVE_INFINITY;
-		boolean allRatesSame = true;
+	/**
+	 * Calculates source contribution curves for every site and period in one sweep, accumulating the curves for all
+	 * sources in the same pass over the simulations. Sites are calculated in parallel.
+	 * 
+	 * @return map from each site to a table of curves by source name and period, without entries for sources that
+	 * have no ruptures at that site
+	 */
+	public Map<Site, Table<String, Double, DiscretizedFunc>> calcSourceContributionCurves(List<Site> sites,
+			double[] periods, double curveDuration, Table<String, E, Double> sourceRupContribFracts) throws IOException {
+		List<String> sourceNames = new ArrayList<>(sourceRupContribFracts.rowKeySet());
+		List<DiscretizedFunc[][]> siteCurves = calcSites(sites, periods, curveDuration,
+				getRupRateScalars(sourceNames, sourceRupContribFracts));
+		
+		Map<Site, Table<String, Double, DiscretizedFunc>> ret = new HashMap<>();
+		for (int s=0; s<sites.size(); s++) {
+			Table<String, Double, DiscretizedFunc> sourceCurves = HashBasedTable.create();
+			for (int i=0; i<sourceNames.size(); i++)
+				for (int p=0; p<periods.length; p++)
+					if (siteCurves.get(s)[i][p] != null)
+						sourceCurves.put(sourceNames.get(i), periods[p], siteCurves.get(s)[i][p]);
+			ret.put(sites.get(s), sourceCurves);
+		}
+		return ret;
+	}
+	
+	private List<Map<E, Double>> getRupRateScalars(List<String> sourceNames,
+			Table<String, E, Double> sourceRupContribFracts) {
+		List<Map<E, Double>> rupRateScalars = new ArrayList<>();
+		for (String sourceName : sourceNames)
+			rupRateScalars.add(sourceRupContribFracts.row(sourceName));
+		return rupRateScalars;
+	}
+	
+	private List<DiscretizedFunc[][]> calcSites(List<Site> sites, double[] periods, double curveDuration,
+			List<Map<E, Double>> rupRateScalars) throws IOException {
+		try {
+			return sites.parallelStream().map(site -> {
+				try {
+					return calcCurves(site, periods, curveDuration, rupRateScalars);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/**
+	 * Calculates curves for a single site in one pass over its simulations.
+	 * 
+	 * @param rupRateScalars rupture rate scalars for each set of curves, ruptures without a scalar are excluded from
+	 * that set. If null, a single set of curves is calculated with all ruptures at their full rate.
+	 * @return curves for each set (first index) and period (second index), null if a set has no ruptures
+	 */
+	private DiscretizedFunc[][] calcCurves(Site site, double[] periods, double curveDuration,
+			List<Map<E, Double>> rupRateScalars) throws IOException {
+		int numSets = rupRateScalars == null ? 1 : rupRateScalars.size();
+		int numX = xVals.size();
+		double[] xs = new double[numX];
+		for (int i=0; i<numX; i++)
+			xs[i] = xVals.getX(i);
+		
+		// rates and counts are binned by the highest exceeded x index, then summed down to get exceedances
+		double[][][] binRates = new double[numSets][periods.length][numX];
+		int[][][] binCounts = new int[numSets][periods.length][numX];
+		int[] numRuptures = new int[numSets];
+		double[] firstRates = new double[numSets];
+		Arrays.fill(firstRates, -1);
+		double[] minRates = new double[numSets];
+		Arrays.fill(minRates, Double.POSITIVE_INFINITY);
+		boolean[] allRatesSame = new boolean[numSets];
+		Arrays.fill(allRatesSame, true);
+		
+		double[] setRates = new double[numSets];
+		double[] rd50s = new double[periods.length];
 		for (E rupture : simProv.getRupturesForSite(site)) {
 			double rupRate = simProv.getAnnualRate(rupture);
-			if (rupRateScalars != null) {
-				Double scale = rupRateScalars.get(rupture);
-				if (scale == null)
+			boolean any = false;
+			for (int s=0; s<numSets; s++) {
+				double setRate = rupRate;
+				if (rupRateScalars != null) {
+					Double scale = rupRateScalars.get(s).get(rupture);
+					if (scale == null)
+						setRate = 0;
+					else
+						setRate *= scale;
+				}
+				setRates[s] = setRate;
+				if (setRate == 0)
 					continue;
-				rupRate *= scale;
+				any = true;
+				if (firstRates[s] == -1)
+					firstRates[s] = setRate;
+				else
+					allRatesSame[s] = allRatesSame[s] && firstRates[s] == setRate;
+				minRates[s] = Math.min(setRate, minRates[s]);
 			}
-			if (rupRate == 0)
+			if (!any)
 				continue;
-			if (firstRate == -1)
-				firstRate = rupRate;
-			else
-				allRatesSame = allRatesSame && firstRate == rupRate;
-			minRate = Math.min(rupRate, minRate);
 			List<DiscretizedFunc> spectras = simProv.getRotD50s(site, rupture);
-			rupRate /= spectras.size();
 			for (DiscretizedFunc spectra : spectras) {
-				double rd50 = spectra.getInterpolatedY(period);
-				for (int i=0; i<curve.size(); i++) {
-					if (curve.getX(i) <= rd50) {
-						numExceed[i]++;
-						curve.set(i, curve.getY(i)+rupRate);
+				for (int p=0; p<periods.length; p++)
+					rd50s[p] = spectra.getInterpolatedY(periods[p]);
+				for (int s=0; s<numSets; s++) {
+					if (setRates[s] == 0)
+						continue;
+					double rate = setRates[s]/spectras.size();
+					for (int p=0; p<periods.length; p++) {
+						if (Double.isNaN(rd50s[p]))
+							continue;
+						// number of x values <= rd50
+						int index = Arrays.binarySearch(xs, rd50s[p]);
+						int num = index >= 0 ? index + 1 : -(index + 1);
+						if (num > 0) {
+							binRates[s][p][num-1] += rate;
+							binCounts[s][p][num-1]++;
+						}
 					}
+					numRuptures[s]++;
 				}
-				numRuptures++;
 			}
 		}
-		if (firstRate < 0)
-			return null;
+		
+		DiscretizedFunc[][] ret = new DiscretizedFunc[numSets][periods.length];
+		for (int s=0; s<numSets; s++) {
+			if (firstRates[s] < 0)
+				continue;
+			for (int p=0; p<periods.length; p++) {
+				double[] rates = binRates[s][p];
+				int[] numExceed = binCounts[s][p];
+				for (int i=numX-2; i>=0; i--) {
+					rates[i] += rates[i+1];
+					numExceed[i] += numExceed[i+1];
+				}
+				ret[s][p] = buildCurve(rates, numExceed, numRuptures[s], firstRates[s], minRates[s],
+						allRatesSame[s] && rupRateScalars == null, curveDuration);
+			}
+		}
+		return ret;
+	}
+	
+	private DiscretizedFunc buildCurve(double[] rates, int[] numExceed, int numRuptures, double firstRate,
+			double minRate, boolean allRatesSame, double curveDuration) {
+		// annual rate curve
+		DiscretizedFunc curve = xVals.deepClone();
+		for (int i=0; i<curve.size(); i++)
+			curve.set(i, rates[i]);
 		
 		DiscretizedFunc lowerCurve = null;
 		DiscretizedFunc upperCurve = null;
-		if (allRatesSame && rupRateScalars == null) {
+		if (allRatesSame) {
 			lowerCurve = xVals.deepClone();
 			upperCurve = xVals.deepClone();
 			
@@ -170,6 +170,13 @@ public class SimulationHazardPlotter<E> {
 		return curve;
 	}
 	
+	/**
+	 * Sets a precomputed simulation curve, e.g. from {@link SimulationHazardCurveCalc#calc(List, double[], double)}
+	 */
+	public synchronized void setCalcSimCurve(SimulationHazardCurveCalc<?> simCalc, double period, DiscretizedFunc curve) {
+		simCurves.put(simCalc, period, curve);
+	}
+	
 	private DiscretizedFunc getGMPECurve(double period, double sigmaTruncation, double fixedSigma) {
 		Preconditions.checkState(sigmaTruncation < 0 || fixedSigma < 0);
 		if (sigmaTruncation < 0 && fixedSigma < 0 && gmpeCurves.containsKey(period))
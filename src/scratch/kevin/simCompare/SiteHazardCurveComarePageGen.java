@@ -11,6 +11,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -36,12 +37,12 @@ import org.opensha.sha.calc.params.SetTRTinIMR_FromSourceParam;
 import org.opensha.sha.earthquake.AbstractERF;
 import org.opensha.sha.imr.AttenRelRef;
 import org.opensha.sha.imr.ScalarIMR;
-import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Table;
 
 import scratch.kevin.simCompare.SimulationDisaggAttenuationRelationshipWrapper.Source;
+import scratch.kevin.util.CalcObjectPool;
 import scratch.kevin.util.MarkdownUtils;
 import scratch.kevin.util.MarkdownUtils.TableBuilder;
 
@@ -64,7 +65,7 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 	private List<SimulationRotDProvider<?>> compSimProvs;
 	private List<SimulationHazardCurveCalc<?>> compCurveCals;
 	
-	private static Map<AttenRelRef, LinkedList<ScalarIMR>> gmpesInstancesCache;
+	private static Map<AttenRelRef, CalcObjectPool<ScalarIMR>> gmpePools = new ConcurrentHashMap<>();
 	
 	private LinkedList<DisaggCalc> disaggCalcsCache;
 	
@@ -97,8 +98,6 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 		compCurveCals = new ArrayList<>();
 		for (SimulationRotDProvider<?> compSimProv : compSimProvs)
 			compCurveCals.add(new SimulationHazardCurveCalc<>(compSimProv));
-		
-		gmpesInstancesCache = new HashMap<>();
 	}
 	
 	public void setReplotCurves(boolean replotCurves) {
@@ -629,30 +628,16 @@ public abstract class SiteHazardCurveComarePageGen<E> {
 		return exec;
 	}
 	
+	private static CalcObjectPool<ScalarIMR> getGMPEPool(AttenRelRef gmpeRef) {
+		return gmpePools.computeIfAbsent(gmpeRef, CalcObjectPool::forSA_GMPE);
+	}
+	
 	protected static ScalarIMR checkOutGMPE(AttenRelRef gmpeRef) {
-		synchronized (SiteHazardCurveComarePageGen.class) {
-			if (gmpesInstancesCache == null)
-				gmpesInstancesCache = new HashMap<>();
-		}
-		synchronized (gmpesInstancesCache) {
-			LinkedList<ScalarIMR> gmpes = gmpesInstancesCache.get(gmpeRef);
-			if (gmpes == null) {
-				gmpes = new LinkedList<>();
-				gmpesInstancesCache.put(gmpeRef, gmpes);
-			}
-			if (!gmpes.isEmpty())
-				return gmpes.pop();
-		}
-		ScalarIMR gmpe = gmpeRef.instance(null);
-		gmpe.setParamDefaults();
-		gmpe.setIntensityMeasure(SA_Param.NAME);
-		return gmpe;
+		return getGMPEPool(gmpeRef).checkOut();
 	}
 	
 	protected static void checkInGMPE(AttenRelRef gmpeRef, ScalarIMR gmpe) {
-		synchronized (gmpesInstancesCache) {
-			gmpesInstancesCache.get(gmpeRef).push(gmpe);
-		}
+		getGMPEPool(gmpeRef).checkIn(gmpe);
 	}
 	
 	public class DisaggCallable implements Callable<File> {
@@ -36,6 +36,8 @@ import org.opensha.commons.util.DataUtils.MinMaxAveTracker;
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.commons.gui.plot.GraphWindow;
+import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
+import org.opensha.sha.simulators.SimulatorElement;
 import org.opensha.sha.simulators.SimulatorEvent;
 import org.opensha.sha.simulators.iden.ElementMagRangeDescription;
 import org.opensha.sha.simulators.iden.QuietPeriodIdenMatcher;
@@ -46,13 +48,17 @@ import org.opensha.sha.simulators.utils.SimulatorUtils;
 
 import scratch.UCERF3.enumTreeBranches.MaxMagOffFault;
 import scratch.UCERF3.utils.IDPairing;
+import scratch.kevin.simulators.RSQSimCatalog.Catalogs;
 import scratch.kevin.simulators.catBuild.RandomCatalogBuilder;
 import scratch.kevin.simulators.dists.RandomDistType;
+import scratch.kevin.simulators.plots.RecurrenceIntervalPlot;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Ints;
 
 public class PeriodicityPlotter {
 
@@ -61,6 +67,17 @@ public class PeriodicityPlotter {
 	 * @throws IOException 
 	 */
 	public static void main(String[] args) throws IOException {
+		if (args.length > 0) {
+			// RSQSim catalog, plotted from its columnar catalog
+			Preconditions.checkState(args.length == 2, "USAGE: [<rsqsim-catalogs-dir> <catalog-name>]");
+			RSQSimCatalog catalog = Catalogs.valueOf(args[1]).instance(new File(args[0]));
+			File writeDir = new File(catalog.getCatalogDir(), "period_plots");
+			List<String> parentNames = Lists.newArrayList("San Andreas (Carrizo) rev", "San Andreas (Mojave S)",
+					"San Andreas (Coachella) rev", "Garlock (West)");
+			plotRSQSimRecurrence(catalog, writeDir, false, toDoubleArray(6.5d, 7d, 7.5d), parentNames, 1000d);
+			return;
+		}
+		
 		File dir = new File("/home/kevin/Simulators");
 		File geomFile = new File(dir, "ALLCAL2_1-7-11_Geometry.dat");
 		System.out.println("Loading geometry...");
@@ -1355,6 +1372,15 @@ public class PeriodicityPlotter {
 		return Doubles.toArray(rps);
 	}
 	
+	/**
+	 * @param catalog
+	 * @param matches event indexes in the columnar catalog, in time order
+	 * @return recurrence intervals (years) between the given events
+	 */
+	public static double[] getRPs(RSQSimColumnarCatalog catalog, int[] matches) {
+		return catalog.getInterEventTimes(matches);
+	}
+	
 	private static void plotInterEventBetweenAllDist(File writeDir, boolean display, boolean randomized,
 			List<? extends SimulatorEvent> events, List<RuptureIdentifier> rupIdens) throws IOException {
 		HashSet<SimulatorEvent> matchesSet = new HashSet<SimulatorEvent>();
@@ -1515,6 +1541,45 @@ public class PeriodicityPlotter {
 		List<SimulatorEvent> matchesList = Lists.newArrayList(matches);
 		Collections.sort(matchesList);
 		
+		double[] times = new double[matchesList.size()];
+		for (int i=0; i<times.length; i++)
+			times[i] = matchesList.get(i).getTimeInYears();
+		
+		List<String> idenNames = Lists.newArrayList();
+		for (RuptureIdentifier rupIden : rupIdens)
+			idenNames.add(rupIden.getName());
+		
+		plotMultiRecurrence(dir, display, mag, times, idenNames);
+	}
+	
+	/**
+	 * Columnar catalog version of {@link #makeMultiRecurrPlots(File, boolean, double, List, List)}
+	 * @param matchesList event indexes in the columnar catalog matching each name, each in time order
+	 */
+	public static void makeMultiRecurrPlots(File dir, boolean display, double mag,
+			RSQSimColumnarCatalog catalog, List<String> idenNames, List<int[]> matchesList)
+					throws IOException {
+		int numMatches = 0;
+		for (int[] matches : matchesList)
+			numMatches += matches.length;
+		int[] allMatches = new int[numMatches];
+		int index = 0;
+		for (int[] matches : matchesList) {
+			System.arraycopy(matches, 0, allMatches, index, matches.length);
+			index += matches.length;
+		}
+		// event indexes are in time order
+		allMatches = Arrays.stream(allMatches).sorted().distinct().toArray();
+		
+		double[] times = new double[allMatches.length];
+		for (int i=0; i<times.length; i++)
+			times[i] = catalog.getTimeInYears(allMatches[i]);
+		
+		plotMultiRecurrence(dir, display, mag, times, idenNames);
+	}
+	
+	private static void plotMultiRecurrence(File dir, boolean display, double mag, double[] times,
+			List<String> idenNames) throws IOException {
 		double delta = 2.5d;
 		double min = delta * 0.5d;
 		int num = (int)(500d / delta);
@@ -1522,11 +1587,11 @@ public class PeriodicityPlotter {
 		
 		double maxDelta = hist.getMaxX() + (delta * 0.5d);
 		
-		double prevTime = matchesList.get(0).getTimeInYears();
+		double prevTime = times[0];
 		
 		double cnt = 0d;
-		for (int i=1; i<matchesList.size(); i++) {
-			double time = matchesList.get(i).getTimeInYears();
+		for (int i=1; i<times.length; i++) {
+			double time = times[i];
 			double timeDelta = time - prevTime;
 			
 			if (timeDelta <= maxDelta) {
@@ -1544,10 +1609,6 @@ public class PeriodicityPlotter {
 		ArrayList<PlotCurveCharacterstics> chars = Lists.newArrayList();
 		chars.add(new PlotCurveCharacterstics(PlotLineType.HISTOGRAM, 2f, Color.RED));
 		
-		List<String> idenNames = Lists.newArrayList();
-		for (RuptureIdentifier rupIden : rupIdens)
-			idenNames.add(rupIden.getName());
-		
 		String title = Joiner.on(", ").join(idenNames)+" M"+(float)mag+"+";
 		String xAxisLabel = "Interevent Time (years)";
 		String yAxisLabel = null;
@@ -1579,15 +1640,38 @@ public class PeriodicityPlotter {
 				includeInitialCorupture);
 		randCumulativeFunc.setName("Cumulative Probabilities (Randomized Catalog)");
 		
+		plotCumulativeProbs(dir, display, cumulativeFunc, randCumulativeFunc, targetIden.getName(),
+				givenIden.getName(), maxTimeYears, includeInitialCorupture);
+	}
+	
+	/**
+	 * Columnar catalog version of {@link #plotConditionalProbs(File, boolean, List, List, RuptureIdentifier,
+	 * RuptureIdentifier, double, boolean)}, without the randomized catalog comparison
+	 * @param targetMatches event indexes in the columnar catalog matching the target, in time order
+	 * @param givenMatches event indexes in the columnar catalog matching the given condition, in time order
+	 */
+	public static void plotConditionalProbs(File dir, boolean display, RSQSimColumnarCatalog catalog,
+			String targetName, int[] targetMatches, String givenName, int[] givenMatches,
+			double maxTimeYears, boolean includeInitialCorupture) throws IOException {
+		ArbitrarilyDiscretizedFunc cumulativeFunc = getCumulativeProbDist(
+				catalog, targetMatches, givenMatches, maxTimeYears, includeInitialCorupture);
+		cumulativeFunc.setName("Cumulative Probabilities");
+		
+		plotCumulativeProbs(dir, display, cumulativeFunc, null, targetName, givenName,
+				maxTimeYears, includeInitialCorupture);
+	}
+	
+	private static void plotCumulativeProbs(File dir, boolean display, ArbitrarilyDiscretizedFunc cumulativeFunc,
+			ArbitrarilyDiscretizedFunc randCumulativeFunc, String targetName, String givenName,
+			double maxTimeYears, boolean includeInitialCorupture) throws IOException {
 		ArrayList<DiscretizedFunc> funcs = Lists.newArrayList();
 		funcs.add(cumulativeFunc);
-		funcs.add(randCumulativeFunc);
 		ArrayList<PlotCurveCharacterstics> chars = Lists.newArrayList();
 		chars.add(new PlotCurveCharacterstics(PlotLineType.SOLID, 2f, Color.BLACK));
-		chars.add(new PlotCurveCharacterstics(PlotLineType.DASHED, 1f, Color.GRAY));
-		
-		String targetName = targetIden.getName();
-		String givenName = givenIden.getName();
+		if (randCumulativeFunc != null) {
+			funcs.add(randCumulativeFunc);
+			chars.add(new PlotCurveCharacterstics(PlotLineType.DASHED, 1f, Color.GRAY));
+		}
 		
 		String title;
 		if (includeInitialCorupture)
@@ -1624,16 +1708,68 @@ public class PeriodicityPlotter {
 			boolean includeInitialCorupture) {
 		List<? extends SimulatorEvent> targetMatches = targetIden.getMatches(events);
 		List<? extends SimulatorEvent> givenMatches = givenIden.getMatches(events);
-		System.out.println("Target matches: "+targetMatches.size());
-		System.out.println("Given matches: "+givenMatches.size());
+		
+		double quietYears = 0d;
+		if (givenIden instanceof QuietPeriodIdenMatcher)
+			quietYears = ((QuietPeriodIdenMatcher)givenIden).getQuietYears();
+		
+		int[] targetIDs = new int[targetMatches.size()];
+		double[] targetTimes = new double[targetMatches.size()];
+		for (int i=0; i<targetIDs.length; i++) {
+			targetIDs[i] = targetMatches.get(i).getID();
+			targetTimes[i] = targetMatches.get(i).getTimeInYears();
+		}
+		int[] givenIDs = new int[givenMatches.size()];
+		double[] givenTimes = new double[givenMatches.size()];
+		for (int i=0; i<givenIDs.length; i++) {
+			givenIDs[i] = givenMatches.get(i).getID();
+			givenTimes[i] = givenMatches.get(i).getTimeInYears();
+		}
+		
+		return getCumulativeProbDist(targetIDs, targetTimes, givenIDs, givenTimes, maxTimeYears,
+				includeInitialCorupture, quietYears);
+	}
+	
+	/**
+	 * Columnar catalog version of {@link #getCumulativeProbDist(List, RuptureIdentifier, RuptureIdentifier,
+	 * double, boolean)}
+	 * @param targetMatches event indexes in the columnar catalog matching the target, in time order
+	 * @param givenMatches event indexes in the columnar catalog matching the given condition, in time order
+	 */
+	public static ArbitrarilyDiscretizedFunc getCumulativeProbDist(RSQSimColumnarCatalog catalog,
+			int[] targetMatches, int[] givenMatches, double maxTimeYears, boolean includeInitialCorupture) {
+		int[] targetIDs = new int[targetMatches.length];
+		double[] targetTimes = new double[targetMatches.length];
+		for (int i=0; i<targetIDs.length; i++) {
+			targetIDs[i] = catalog.getID(targetMatches[i]);
+			targetTimes[i] = catalog.getTimeInYears(targetMatches[i]);
+		}
+		int[] givenIDs = new int[givenMatches.length];
+		double[] givenTimes = new double[givenMatches.length];
+		for (int i=0; i<givenIDs.length; i++) {
+			givenIDs[i] = catalog.getID(givenMatches[i]);
+			givenTimes[i] = catalog.getTimeInYears(givenMatches[i]);
+		}
+		
+		return getCumulativeProbDist(targetIDs, targetTimes, givenIDs, givenTimes, maxTimeYears,
+				includeInitialCorupture, 0d);
+	}
+	
+	private static ArbitrarilyDiscretizedFunc getCumulativeProbDist(int[] targetIDs, double[] targetTimes,
+			int[] givenIDs, double[] givenTimes, double maxTimeYears, boolean includeInitialCorupture,
+			double quietYears) {
+		System.out.println("Target matches: "+targetIDs.length);
+		System.out.println("Given matches: "+givenIDs.length);
 		
 		HashSet<Integer> coruptures = null;
 		if (!includeInitialCorupture) {
+			HashSet<Integer> targetIDSet = new HashSet<Integer>();
+			for (int id : targetIDs)
+				targetIDSet.add(id);
 			coruptures = new HashSet<Integer>();
-			for (SimulatorEvent e1 : targetMatches)
-				for (SimulatorEvent e2 : givenMatches)
-					if (e1.getID() == e2.getID())
-						coruptures.add(e1.getID());
+			for (int id : givenIDs)
+				if (targetIDSet.contains(id))
+					coruptures.add(id);
 		}
 		
 		ArbitrarilyDiscretizedFunc timeFunc = new ArbitrarilyDiscretizedFunc();
@@ -1642,18 +1778,17 @@ public class PeriodicityPlotter {
 		
 		double yVal;
 		if (includeInitialCorupture)
-			yVal = 1d/(double)givenMatches.size();
+			yVal = 1d/(double)givenIDs.length;
 		else
-			yVal = 1d/(double)(givenMatches.size() - coruptures.size());
+			yVal = 1d/(double)(givenIDs.length - coruptures.size());
 		
-		for (SimulatorEvent given : givenMatches) {
-			double givenTime = given.getTimeInYears();
+		for (int g=0; g<givenIDs.length; g++) {
+			double givenTime = givenTimes[g];
 			double targetMaxTime = givenTime + maxTimeYears;
-			if (!includeInitialCorupture && coruptures.contains(given.getID()))
+			if (!includeInitialCorupture && coruptures.contains(givenIDs[g]))
 				continue;
-			for (int i=targetStartIndex; i<targetMatches.size(); i++) {
-				SimulatorEvent target = targetMatches.get(i);
-				double targetTime = target.getTimeInYears();
+			for (int i=targetStartIndex; i<targetIDs.length; i++) {
+				double targetTime = targetTimes[i];
 				if (targetTime < givenTime) {
 					targetStartIndex = i;
 					continue;
@@ -1661,15 +1796,13 @@ public class PeriodicityPlotter {
 				if (targetTime > targetMaxTime)
 					break;
 				double deltaTime = targetTime - givenTime;
-				if (givenIden instanceof QuietPeriodIdenMatcher && deltaTime < ((QuietPeriodIdenMatcher)givenIden).getQuietYears())
+				if (deltaTime < quietYears)
 					continue;
 				int xIndex = timeFunc.getXIndex(deltaTime);
 				if (xIndex < 0)
 					timeFunc.set(deltaTime, yVal);
 				else
 					timeFunc.set(xIndex, yVal+timeFunc.getY(xIndex));
-//				if (givenIden instanceof QuietPeriodIdenMatcher)
-//					System.out.println("Got a hit after "+deltaTime+" years");
 				// we only want the first occurrence as we're doing cumulative probabilities
 				break;
 			}
@@ -1686,6 +1819,90 @@ public class PeriodicityPlotter {
 		return cumulativeFunc;
 	}
 	
+	/**
+	 * Writes interevent time and conditional probability plots for M>=mag events on the given fault sections of
+	 * an RSQSim catalog, working directly from its columnar catalog (see
+	 * {@link RSQSimCatalog#getColumnarCatalog(boolean)}) without loading any events.
+	 * @param names name of each set of sections
+	 * @param sectionIDs section IDs for each name
+	 */
+	public static void plotColumnarRecurrence(RSQSimCatalog catalog, File writeDir, boolean display,
+			double[] mags, List<String> names, List<int[]> sectionIDs, double maxTimeYears) throws IOException {
+		Preconditions.checkState(names.size() == sectionIDs.size());
+		Preconditions.checkState(writeDir.exists() || writeDir.mkdir());
+		List<SimulatorElement> elements = catalog.getElements();
+		try (RSQSimColumnarCatalog columnar = catalog.getColumnarCatalog(true)) {
+			List<int[]> sectEvents = Lists.newArrayList();
+			for (int[] ids : sectionIDs)
+				sectEvents.add(columnar.getEventsForSections(elements, ids));
+			
+			for (double mag : mags) {
+				List<String> magNames = Lists.newArrayList();
+				List<int[]> matchesList = Lists.newArrayList();
+				for (int i=0; i<names.size(); i++) {
+					magNames.add(names.get(i)+" "+(float)mag+"+");
+					matchesList.add(columnar.filterMagnitude(sectEvents.get(i), mag, 10d));
+				}
+				
+				makeMultiRecurrPlots(writeDir, display, mag, columnar, names, matchesList);
+				
+				for (int i=0; i<names.size(); i++) {
+					for (int j=0; j<names.size(); j++) {
+						if (i == j)
+							continue;
+						for (boolean includeInitialCorupture : new boolean[] {true, false})
+							plotConditionalProbs(writeDir, display, columnar, magNames.get(i), matchesList.get(i),
+									magNames.get(j), matchesList.get(j), maxTimeYears, includeInitialCorupture);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes recurrence plots for M>=mag events on the given UCERF3 parent sections of an RSQSim catalog: the plots
+	 * from {@link #plotColumnarRecurrence(RSQSimCatalog, File, boolean, double[], List, List, double)}, and an
+	 * interevent time distribution for each parent section, for which only events on that parent are loaded.
+	 */
+	public static void plotRSQSimRecurrence(RSQSimCatalog catalog, File writeDir, boolean display,
+			double[] mags, List<String> parentNames, double maxTimeYears) throws IOException {
+		Map<String, List<Integer>> parentSectIDs = Maps.newHashMap();
+		for (FaultSectionPrefData sect : catalog.getU3SubSects()) {
+			List<Integer> ids = parentSectIDs.get(sect.getParentSectionName());
+			if (ids == null) {
+				ids = Lists.newArrayList();
+				parentSectIDs.put(sect.getParentSectionName(), ids);
+			}
+			ids.add(sect.getSectionId());
+		}
+		List<int[]> sectionIDs = Lists.newArrayList();
+		for (String parentName : parentNames) {
+			Preconditions.checkState(parentSectIDs.containsKey(parentName), "No subsections found for %s", parentName);
+			sectionIDs.add(Ints.toArray(parentSectIDs.get(parentName)));
+		}
+		
+		plotColumnarRecurrence(catalog, writeDir, display, mags, parentNames, sectionIDs, maxTimeYears);
+		
+		List<SimulatorElement> elements = catalog.getElements();
+		List<RecurrenceIntervalPlot> plots = Lists.newArrayList();
+		for (int i=0; i<parentNames.size(); i++) {
+			HashSet<Integer> ids = new HashSet<Integer>(Ints.asList(sectionIDs.get(i)));
+			List<SimulatorElement> parentElems = Lists.newArrayList();
+			for (SimulatorElement elem : elements)
+				if (ids.contains(elem.getSectionID()))
+					parentElems.add(elem);
+			RecurrenceIntervalPlot plot = new RecurrenceIntervalPlot(parentElems, mags);
+			plot.setPlotTitle(parentNames.get(i)+" Interevent Times");
+			plot.initialize(catalog.getName(), writeDir, "interevent_times_"+getFileSafeString(parentNames.get(i)));
+			plots.add(plot);
+		}
+		try (RSQSimColumnarCatalog columnar = catalog.getColumnarCatalog(true)) {
+			columnar.processPlots(plots, catalog, 10000);
+		}
+		for (RecurrenceIntervalPlot plot : plots)
+			plot.finalizePlot();
+	}
+	
 	private static void makePlot(File dir, String prefix, boolean display, boolean randomized,
 			ArrayList<? extends DiscretizedFunc> funcs, ArrayList<PlotCurveCharacterstics> chars, String plotTitle)
 					throws IOException {
@@ -16,9 +16,12 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.stream.IntStream;
 
 import org.dom4j.Document;
 import org.dom4j.DocumentException;
@@ -53,6 +56,7 @@ import org.opensha.sha.simulators.srf.RSQSimStateTransitionFileReader;
 import org.opensha.sha.simulators.srf.RSQSimTransValidIden;
 import org.opensha.sha.simulators.utils.RSQSimSubSectEqkRupture;
 import org.opensha.sha.simulators.utils.RSQSimUtils;
+import org.opensha.sha.simulators.utils.SimulatorUtils;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashBasedTable;
@@ -761,6 +765,8 @@ public class RSQSimCatalog implements XMLSaveable {
 		throw new FileNotFoundException("No geometry file found in "+dir.getAbsolutePath());
 	}
 	
+	private RSQSimEventIndex eventIndex;
+	
 	public synchronized List<SimulatorElement> getElements() throws IOException {
 		if (elements == null) {
 			File geomFile = getGeomFile();
@@ -773,6 +779,50 @@ public class RSQSimCatalog implements XMLSaveable {
 		return new Loader(getElements(), getCatalogDir());
 	}
 	
+	/**
+	 * @return event index for this catalog, which is built and written to the catalog directory on first use
+	 */
+	public synchronized RSQSimEventIndex getEventIndex() throws IOException {
+		if (eventIndex == null)
+			eventIndex = RSQSimEventIndex.load(getCatalogDir(), getElements());
+		return eventIndex;
+	}
+	
+	/**
+	 * @return event index for this catalog if it has already been built, otherwise null
+	 */
+	private synchronized RSQSimEventIndex getBuiltEventIndex() throws IOException {
+		if (eventIndex == null)
+			eventIndex = RSQSimEventIndex.loadExisting(getCatalogDir());
+		return eventIndex;
+	}
+	
+	private synchronized void setEventIndex(RSQSimEventIndex index) {
+		if (eventIndex == null)
+			eventIndex = index;
+	}
+
+	/**
+	 * @param memoryMap if true, element participation columns are memory mapped rather than loaded onto the heap
+	 * @return columnar view of all events in this catalog, which is built and written to the catalog directory
+	 * on first use, and rebuilt if any of the catalog list files have changed since
+	 */
+	public RSQSimColumnarCatalog getColumnarCatalog(boolean memoryMap) throws IOException {
+		File file = new File(getCatalogDir(), "events_columnar.bin");
+		File[] listFiles = RSQSimEventIndex.getListFiles(getCatalogDir());
+		if (!RSQSimColumnarCatalog.isCurrent(file, listFiles)) {
+			System.out.println("Building columnar catalog for "+getName());
+			File tmpFile = new File(file.getAbsolutePath()+".tmp");
+			try (RSQSimColumnarCatalog built = RSQSimColumnarCatalog.build(loader().iterable())) {
+				built.write(tmpFile, listFiles);
+			}
+			if (file.exists())
+				file.delete();
+			Preconditions.checkState(tmpFile.renameTo(file), "Couldn't rename %s", tmpFile.getAbsolutePath());
+		}
+		return RSQSimColumnarCatalog.load(file, memoryMap);
+	}
+
 	private static File getTransFile(File dir) throws FileNotFoundException {
 		for (File file : dir.listFiles()) {
 			String name = file.getName().toLowerCase();
@@ -903,12 +953,30 @@ public class RSQSimCatalog implements XMLSaveable {
 		return allSects;
 	}
 	
+	// maximum fraction of catalog records for which only the candidate events from the event index are copied and
+	// parsed, above which the whole range of events is read
+	static final double MAX_INDEX_RECORD_FRACT = 0.25;
+	
 	public class Loader {
 		private List<SimulatorElement> elements;
 		private File catalogDir;
 		
 		private List<RuptureIdentifier> loadIdens;
 		
+		// criteria which can be evaluated with the event index
+		private boolean useIndex = true;
+		private boolean forceIndex = false;
+		private double minMag = Double.NEGATIVE_INFINITY;
+		private double maxMag = Double.POSITIVE_INFINITY;
+		private double minTime = Double.NEGATIVE_INFINITY;
+		private double maxTime = Double.POSITIVE_INFINITY;
+		// skip years and duration identifiers, which are relative to the first event that reaches them, and their
+		// lengths in years. replaced with absolute times when using the index
+		private List<RuptureIdentifier> relativeIdens = new ArrayList<>();
+		private List<Double> relativeYears = new ArrayList<>();
+		private int[] sectionIDs;
+		private int[] eventIDs;
+		
 		private Loader(List<SimulatorElement> elements, File catalogDir) {
 			super();
 			this.elements = elements;
@@ -917,32 +985,64 @@ public class RSQSimCatalog implements XMLSaveable {
 			loadIdens = new ArrayList<>();
 		}
 		
+		/**
+		 * Disables the event index, so that every event in the catalog is parsed sequentially. Needed for
+		 * identifiers which depend on earlier events, see {@link #matches(RuptureIdentifier)}.
+		 */
+		public Loader noIndex() {
+			useIndex = false;
+			return this;
+		}
+		
+		/**
+		 * Always loads only the candidate events from the event index, even if they don't narrow the events much
+		 */
+		Loader forceIndex() {
+			forceIndex = true;
+			return this;
+		}
+		
 		public Loader minMag(double minMag) {
 			loadIdens.add(new MagRangeRuptureIdentifier(minMag, Double.POSITIVE_INFINITY));
+			this.minMag = Math.max(this.minMag, minMag);
 			return this;
 		}
 		
 		public Loader maxMag(double maxMag) {
 			loadIdens.add(new MagRangeRuptureIdentifier(Double.NEGATIVE_INFINITY, maxMag));
+			this.maxMag = Math.min(this.maxMag, maxMag);
 			return this;
 		}
 		
 		public Loader skipYears(double years) {
-			if (years > 0)
-				loadIdens.add(new SkipYearsLoadIden(years));
+			if (years > 0) {
+				RuptureIdentifier iden = new SkipYearsLoadIden(years);
+				loadIdens.add(iden);
+				relativeIdens.add(iden);
+				relativeYears.add(years);
+			}
 			return this;
 		}
 		
 		public Loader withinTimeRange(double tStartSecs, double tEndSecs) {
 			loadIdens.add(new EventTimeIdentifier(tStartSecs, tEndSecs, false));
+			minTime = Math.max(minTime, tStartSecs);
+			maxTime = Math.min(maxTime, tEndSecs);
 			return this;
 		}
 		
 		public Loader maxDuration(double years) {
-			loadIdens.add(new CatalogLengthLoadIden(years));
+			RuptureIdentifier iden = new CatalogLengthLoadIden(years);
+			loadIdens.add(iden);
+			relativeIdens.add(iden);
+			relativeYears.add(years);
 			return this;
 		}
 		
+		/**
+		 * Loads through the event index evaluate identifiers concurrently on separate chunks of the catalog, so
+		 * identifiers which depend on earlier events must be used with {@link #noIndex()}
+		 */
 		public Loader matches(RuptureIdentifier iden) {
 			loadIdens.add(iden);
 			return this;
@@ -981,6 +1081,8 @@ public class RSQSimCatalog implements XMLSaveable {
 				}
 			}
 			loadIdens.add(new SectionIDIden(XML_METADATA_NAME, getElements(), sectionIDs));
+			if (this.sectionIDs == null)
+				this.sectionIDs = sectionIDs;
 			return this;
 		}
 		
@@ -992,21 +1094,192 @@ public class RSQSimCatalog implements XMLSaveable {
 		
 		public List<RSQSimEvent> byIDs(int... eventIDs) throws IOException {
 			loadIdens.add(new EventIDsRupIden(eventIDs));
+			if (this.eventIDs == null)
+				this.eventIDs = eventIDs;
 			return this.load();
 		}
 		
-		public List<RSQSimEvent> load() throws IOException {
-			LogicalAndRupIden loadIden = new LogicalAndRupIden(loadIdens);
+		/**
+		 * @return rupture identifiers for a sequential scan of the full catalog
+		 */
+		private List<RuptureIdentifier> getScanIdens() {
 			List<RuptureIdentifier> rupIdens = new ArrayList<>();
-			rupIdens.add(loadIden);
-			return RSQSimFileReader.readEventsFile(catalogDir, elements, rupIdens);
+			rupIdens.add(new LogicalAndRupIden(loadIdens));
+			return rupIdens;
 		}
 		
-		public Iterable<RSQSimEvent> iterable() throws IOException {
-			LogicalAndRupIden loadIden = new LogicalAndRupIden(loadIdens);
+		/**
+		 * @return true if this loader can go through the event index. Relative identifiers (skip years, duration) are
+		 * relative to the first event that reaches them in the short circuiting AND, so they can only be converted to
+		 * absolute times if no other identifiers come before them, otherwise the catalog must be read sequentially.
+		 */
+		private boolean canUseIndex() {
+			if (!useIndex)
+				return false;
+			for (int i=0; i<relativeIdens.size(); i++)
+				if (loadIdens.get(i) != relativeIdens.get(i))
+					return false;
+			return true;
+		}
+		
+		/**
+		 * @return true if the event index can narrow the events to parse for this loader
+		 */
+		private boolean hasIndexCriteria() {
+			return !relativeIdens.isEmpty() || minMag > Double.NEGATIVE_INFINITY || maxMag < Double.POSITIVE_INFINITY
+					|| minTime > Double.NEGATIVE_INFINITY || maxTime < Double.POSITIVE_INFINITY
+					|| sectionIDs != null || eventIDs != null;
+		}
+		
+		/**
+		 * @return absolute {start, end} time window in seconds equivalent to the relative identifiers, which must
+		 * come first in the identifier list
+		 */
+		private double[] getRelativeTimeWindow(RSQSimEventIndex index) {
+			double startTime = Double.NEGATIVE_INFINITY;
+			double endTime = Double.POSITIVE_INFINITY;
+			int numEvents = index.getNumEvents();
+			// first event which reaches the current identifier
+			int first = 0;
+			for (int i=0; i<relativeIdens.size() && first<numEvents; i++) {
+				double refTime = index.getTime(first);
+				double years = relativeYears.get(i);
+				if (relativeIdens.get(i) instanceof SkipYearsLoadIden) {
+					startTime = Math.max(startTime, refTime + years*SimulatorUtils.SECONDS_PER_YEAR);
+					while (first < numEvents && index.getTime(first) < startTime)
+						first++;
+				} else {
+					endTime = Math.min(endTime, refTime + years*SimulatorUtils.SECONDS_PER_YEAR);
+				}
+			}
+			if (first == numEvents && numEvents > 0)
+				// everything skipped
+				startTime = Double.POSITIVE_INFINITY;
+			return new double[] { startTime, endTime };
+		}
+		
+		/**
+		 * @return indexes of events which can match in the event index
+		 */
+		private int[] getIndexCandidates(RSQSimEventIndex index, double[] relativeWindow) {
+			if (index.getNumEvents() == 0)
+				return new int[0];
+			double minTime = Math.max(this.minTime, relativeWindow[0]);
+			double maxTime = Math.min(this.maxTime, relativeWindow[1]);
+			return index.getCandidates(minMag, maxMag, minTime, maxTime, sectionIDs, eventIDs);
+		}
+		
+		/**
+		 * @return rupture identifiers for loading index candidates, with the relative identifiers replaced by the
+		 * equivalent absolute time window
+		 */
+		private List<RuptureIdentifier> getIndexIdens(double[] relativeWindow) {
+			List<RuptureIdentifier> idens = new ArrayList<>();
+			if (!relativeIdens.isEmpty())
+				idens.add(new EventTimeIdentifier(relativeWindow[0], relativeWindow[1], false));
+			idens.addAll(loadIdens.subList(relativeIdens.size(), loadIdens.size()));
 			List<RuptureIdentifier> rupIdens = new ArrayList<>();
-			rupIdens.add(loadIden);
-			return RSQSimFileReader.getEventsIterable(catalogDir, elements, rupIdens);
+			rupIdens.add(new LogicalAndRupIden(idens));
+			return rupIdens;
+		}
+		
+		/**
+		 * @return indexes of the events to parse through the event index, in file order. If the index narrows the
+		 * catalog to a small enough fraction of its records, these are just the candidate events. Otherwise copying
+		 * scattered candidates isn't worth it, and every event from the first to the last candidate is read.
+		 */
+		private int[] getIndexEvents(RSQSimEventIndex index, double[] relativeWindow) {
+			int numEvents = index.getNumEvents();
+			if (!hasIndexCriteria()) {
+				System.out.println("Event index: reading all "+numEvents+" events");
+				return IntStream.range(0, numEvents).toArray();
+			}
+			int[] candidates = getIndexCandidates(index, relativeWindow);
+			long candidateRecords = index.getNumRecords(candidates);
+			long totalRecords = index.getNumRecords();
+			System.out.println("Event index: "+candidates.length+"/"+numEvents+" candidate events, "
+					+candidateRecords+"/"+totalRecords+" records");
+			if (forceIndex || candidates.length == 0 || (double)candidateRecords <= MAX_INDEX_RECORD_FRACT*totalRecords)
+				return candidates;
+			return IntStream.rangeClosed(candidates[0], candidates[candidates.length-1]).toArray();
+		}
+		
+		/**
+		 * Full sequential scan for when the event index hasn't been built yet, which builds it along the way. Every
+		 * event is parsed for the index and the identifiers are applied to them in file order, as in a scan without
+		 * the index. The index is only kept if the scan runs to the end of the catalog.
+		 */
+		private Iterable<RSQSimEvent> indexingIterable() {
+			RuptureIdentifier iden = new LogicalAndRupIden(loadIdens);
+			return new Iterable<RSQSimEvent>() {
+
+				@Override
+				public Iterator<RSQSimEvent> iterator() {
+					RSQSimEventIndex.Builder builder;
+					Iterator<RSQSimEvent> events;
+					try {
+						builder = RSQSimEventIndex.builder(catalogDir, elements);
+						events = RSQSimFileReader.getEventsIterable(catalogDir, elements, new ArrayList<>()).iterator();
+					} catch (IOException e) {
+						throw ExceptionUtils.asRuntimeException(e);
+					}
+					return new Iterator<RSQSimEvent>() {
+						
+						private RSQSimEvent next;
+						private boolean finished = false;
+
+						@Override
+						public boolean hasNext() {
+							while (next == null && events.hasNext()) {
+								RSQSimEvent e = events.next();
+								builder.add(e);
+								if (iden.isMatch(e))
+									next = e;
+							}
+							if (!finished && !events.hasNext()) {
+								finished = true;
+								setEventIndex(builder.finish());
+							}
+							return next != null;
+						}
+
+						@Override
+						public RSQSimEvent next() {
+							if (!hasNext())
+								throw new NoSuchElementException();
+							RSQSimEvent ret = next;
+							next = null;
+							return ret;
+						}
+					};
+				}
+			};
+		}
+		
+		public List<RSQSimEvent> load() throws IOException {
+			if (canUseIndex()) {
+				RSQSimEventIndex index = getBuiltEventIndex();
+				if (index == null)
+					// build the index with the same scan
+					return Lists.newArrayList(indexingIterable());
+				double[] relativeWindow = getRelativeTimeWindow(index);
+				return index.loadEvents(getIndexEvents(index, relativeWindow), elements, getIndexIdens(relativeWindow));
+			}
+			return RSQSimFileReader.readEventsFile(catalogDir, elements, getScanIdens());
+		}
+		
+		public Iterable<RSQSimEvent> iterable() throws IOException {
+			if (canUseIndex()) {
+				RSQSimEventIndex index = getBuiltEventIndex();
+				if (index == null)
+					// build the index with the same scan
+					return indexingIterable();
+				// parsed in chunks, only a few of which are held at once
+				double[] relativeWindow = getRelativeTimeWindow(index);
+				return index.iterable(getIndexEvents(index, relativeWindow), elements, getIndexIdens(relativeWindow));
+			}
+			// stream through the full catalog to keep memory requirements low
+			return RSQSimFileReader.getEventsIterable(catalogDir, elements, getScanIdens());
 		}
 	}
 	
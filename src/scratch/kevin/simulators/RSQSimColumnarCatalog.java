@@ -0,0 +1,575 @@
+package scratch.kevin.simulators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.SimulatorEvent;
+import org.opensha.sha.simulators.iden.LogicalAndRupIden;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+import org.opensha.sha.simulators.parsers.RSQSimFileReader;
+import org.opensha.sha.simulators.utils.SimulatorUtils;
+
+import com.google.common.base.Preconditions;
+
+import scratch.kevin.simulators.plots.AbstractPlot;
+
+/**
+ * Compact columnar view of an RSQSim catalog for whole-catalog analyses, which only needs a few bytes per event
+ * and per participating element instead of full {@link RSQSimEvent} objects.
+ *
+ * Event level fields (ID, time, magnitude, area) are held in primitive arrays. Element participation is
+ * stored CSR style: the elements of event i are entries getElementStart(i) to getElementStart(i+1)-1 of the element
+ * ID and slip columns. Those columns are memory mapped (from temporary files while building, or from a file
+ * written with {@link #write(File, File...)}), so that they can be kept off heap.
+ *
+ * Events can be selected by element, section, magnitude and time without any event objects, and the selected
+ * events can then be materialized through an {@link RSQSimEventIndex} for use with existing analysis code (see
+ * {@link #loadEvents(int[], RSQSimEventIndex, List)} and {@link #processPlots(List, RSQSimCatalog, int)}).
+ */
+public class RSQSimColumnarCatalog implements Closeable {
+
+	private static final int FORMAT_VERSION = 3;
+
+	// element columns are split into segments of at most this many entries so that they can be mapped
+	private static final int SEGMENT_BITS = 28;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private int numEvents;
+	private int[] ids;
+	private double[] times;
+	private double[] mags;
+	private double[] areas;
+	private long[] elemStarts;
+
+	private IntBuffer[] elemIDs;
+	private FloatBuffer[] slips;
+
+	// element ID and slip columns streamed to disk by build(), deleted on close
+	private File elemIDsFile;
+	private File slipsFile;
+
+	private RSQSimColumnarCatalog() {}
+
+	/**
+	 * Builds a columnar catalog in a single pass, without holding on to any events. Events should be in time order,
+	 * e.g. from {@link RSQSimCatalog.Loader#iterable()}. Element IDs and slips are streamed to temporary files
+	 * (which are memory mapped), so only the event level columns are built on the heap. Call {@link #close()} to
+	 * delete those files once done with the catalog.
+	 */
+	public static RSQSimColumnarCatalog build(Iterable<? extends SimulatorEvent> events) throws IOException {
+		RSQSimColumnarCatalog catalog = new RSQSimColumnarCatalog();
+		int capacity = 1024;
+		catalog.ids = new int[capacity];
+		catalog.times = new double[capacity];
+		catalog.mags = new double[capacity];
+		catalog.areas = new double[capacity];
+		catalog.elemStarts = new long[capacity+1];
+
+		catalog.elemIDsFile = File.createTempFile("rsqsim_columnar_elems", ".bin");
+		catalog.slipsFile = File.createTempFile("rsqsim_columnar_slips", ".bin");
+		catalog.elemIDsFile.deleteOnExit();
+		catalog.slipsFile.deleteOnExit();
+		long numEntries = 0;
+
+		try (DataOutputStream idsOut = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(catalog.elemIDsFile)));
+				DataOutputStream slipsOut = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(catalog.slipsFile)))) {
+			for (SimulatorEvent e : events) {
+				int i = catalog.numEvents;
+				if (i == capacity) {
+					capacity *= 2;
+					catalog.ids = Arrays.copyOf(catalog.ids, capacity);
+					catalog.times = Arrays.copyOf(catalog.times, capacity);
+					catalog.mags = Arrays.copyOf(catalog.mags, capacity);
+					catalog.areas = Arrays.copyOf(catalog.areas, capacity);
+					catalog.elemStarts = Arrays.copyOf(catalog.elemStarts, capacity+1);
+				}
+				catalog.ids[i] = e.getID();
+				catalog.times[i] = e.getTime();
+				catalog.mags[i] = e.getMagnitude();
+				catalog.areas[i] = e.getArea();
+
+				int[] eventElemIDs = e.getAllElementIDs();
+				double[] eventSlips = e.getAllElementSlips();
+				Preconditions.checkState(eventElemIDs.length == eventSlips.length);
+				for (int j=0; j<eventElemIDs.length; j++) {
+					idsOut.writeInt(eventElemIDs[j]);
+					slipsOut.writeFloat((float)eventSlips[j]);
+				}
+				numEntries += eventElemIDs.length;
+				catalog.elemStarts[i+1] = numEntries;
+				catalog.numEvents++;
+				if (catalog.numEvents % 100000 == 0)
+					System.out.println("Processed "+catalog.numEvents+" events");
+			}
+		} catch (IOException | RuntimeException e) {
+			catalog.close();
+			throw e;
+		}
+
+		catalog.ids = Arrays.copyOf(catalog.ids, catalog.numEvents);
+		catalog.times = Arrays.copyOf(catalog.times, catalog.numEvents);
+		catalog.mags = Arrays.copyOf(catalog.mags, catalog.numEvents);
+		catalog.areas = Arrays.copyOf(catalog.areas, catalog.numEvents);
+		catalog.elemStarts = Arrays.copyOf(catalog.elemStarts, catalog.numEvents+1);
+		try (FileChannel idsChannel = new RandomAccessFile(catalog.elemIDsFile, "r").getChannel();
+				FileChannel slipsChannel = new RandomAccessFile(catalog.slipsFile, "r").getChannel()) {
+			catalog.mapElementColumns(idsChannel, 0l, slipsChannel, 0l, numEntries, true);
+		}
+		return catalog;
+	}
+
+	/**
+	 * Writes this catalog to a file, which can be loaded (and memory mapped) with {@link #load(File, boolean)}
+	 * @param sourceFiles files that the catalog was built from, whose lengths and modification times are stored so
+	 * that {@link #isCurrent(File, File...)} can tell when the file is out of date
+	 */
+	public void write(File file, File... sourceFiles) throws IOException {
+		long numEntries = getNumElementEntries();
+		try (FileOutputStream fileOut = new FileOutputStream(file)) {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(sourceFiles.length);
+			for (File sourceFile : sourceFiles) {
+				out.writeLong(sourceFile.length());
+				out.writeLong(sourceFile.lastModified());
+			}
+			out.writeInt(numEvents);
+			out.writeLong(numEntries);
+			for (int i=0; i<numEvents; i++)
+				out.writeInt(ids[i]);
+			for (double[] column : new double[][] { times, mags, areas })
+				for (int i=0; i<numEvents; i++)
+					out.writeDouble(column[i]);
+			for (int i=0; i<=numEvents; i++)
+				out.writeLong(elemStarts[i]);
+			if (elemIDsFile != null) {
+				// built catalog, concatenate the element columns directly from their files
+				out.flush();
+				FileChannel outChannel = fileOut.getChannel();
+				for (File columnFile : new File[] { elemIDsFile, slipsFile }) {
+					try (FileChannel in = new FileInputStream(columnFile).getChannel()) {
+						long pos = 0;
+						long end = 4l*numEntries;
+						while (pos < end)
+							pos += in.transferTo(pos, end - pos, outChannel);
+					}
+				}
+			} else {
+				for (long i=0; i<numEntries; i++)
+					out.writeInt(getElementID(i));
+				for (long i=0; i<numEntries; i++)
+					out.writeFloat(getSlip(i));
+				out.flush();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the temporary element column files of a catalog from {@link #build(Iterable)}, after which the
+	 * element columns can no longer be used. Does nothing for loaded catalogs.
+	 */
+	@Override
+	public void close() {
+		elemIDs = null;
+		slips = null;
+		if (elemIDsFile != null) {
+			elemIDsFile.delete();
+			slipsFile.delete();
+			elemIDsFile = null;
+			slipsFile = null;
+		}
+	}
+
+	/**
+	 * @return true if the given file exists, was written with the current format version of
+	 * {@link #write(File, File...)}, and the given source files have the same lengths and modification times as
+	 * when it was written
+	 */
+	public static boolean isCurrent(File file, File... sourceFiles) throws IOException {
+		if (!file.exists() || file.length() < 8l)
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != FORMAT_VERSION || in.readInt() != sourceFiles.length)
+				return false;
+			for (File sourceFile : sourceFiles) {
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				if (length != sourceFile.length() || lastModified != sourceFile.lastModified())
+					return false;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Loads a catalog written with {@link #write(File, File...)}
+	 * @param file
+	 * @param memoryMap if true, element IDs and slips are memory mapped rather than loaded onto the heap
+	 */
+	public static RSQSimColumnarCatalog load(File file, boolean memoryMap) throws IOException {
+		RSQSimColumnarCatalog catalog = new RSQSimColumnarCatalog();
+		try (RandomAccessFile raFile = new RandomAccessFile(file, "r")) {
+			FileChannel channel = raFile.getChannel();
+			DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+			int version = in.readInt();
+			Preconditions.checkState(version == FORMAT_VERSION, "Unknown columnar catalog version: %s", version);
+			int numSourceFiles = in.readInt();
+			for (int i=0; i<2*numSourceFiles; i++)
+				in.readLong();
+			int numEvents = in.readInt();
+			long numEntries = in.readLong();
+			catalog.numEvents = numEvents;
+			catalog.ids = new int[numEvents];
+			for (int i=0; i<numEvents; i++)
+				catalog.ids[i] = in.readInt();
+			catalog.times = readDoubles(in, numEvents);
+			catalog.mags = readDoubles(in, numEvents);
+			catalog.areas = readDoubles(in, numEvents);
+			catalog.elemStarts = new long[numEvents+1];
+			for (int i=0; i<=numEvents; i++)
+				catalog.elemStarts[i] = in.readLong();
+
+			long idsOffset = 20l + 16l*numSourceFiles + 4l*numEvents + 3l*8l*numEvents + 8l*(numEvents+1);
+			long slipsOffset = idsOffset + 4l*numEntries;
+			catalog.mapElementColumns(channel, idsOffset, channel, slipsOffset, numEntries, memoryMap);
+		}
+		return catalog;
+	}
+
+	private void mapElementColumns(FileChannel idsChannel, long idsOffset, FileChannel slipsChannel,
+			long slipsOffset, long numEntries, boolean memoryMap) throws IOException {
+		int numSegments = (int)((numEntries + SEGMENT_SIZE - 1) >> SEGMENT_BITS);
+		elemIDs = new IntBuffer[Math.max(1, numSegments)];
+		slips = new FloatBuffer[Math.max(1, numSegments)];
+		for (int s=0; s<elemIDs.length; s++) {
+			long start = (long)s << SEGMENT_BITS;
+			int len = (int)Math.min(SEGMENT_SIZE, numEntries - start);
+			IntBuffer idBuf = idsChannel.map(MapMode.READ_ONLY, idsOffset + 4l*start, 4l*len).asIntBuffer();
+			FloatBuffer slipBuf = slipsChannel.map(MapMode.READ_ONLY, slipsOffset + 4l*start, 4l*len).asFloatBuffer();
+			if (!memoryMap) {
+				int[] idArray = new int[len];
+				idBuf.get(idArray);
+				idBuf = IntBuffer.wrap(idArray);
+				float[] slipArray = new float[len];
+				slipBuf.get(slipArray);
+				slipBuf = FloatBuffer.wrap(slipArray);
+			}
+			elemIDs[s] = idBuf;
+			slips[s] = slipBuf;
+		}
+	}
+
+	private static double[] readDoubles(DataInputStream in, int num) throws IOException {
+		double[] ret = new double[num];
+		for (int i=0; i<num; i++)
+			ret[i] = in.readDouble();
+		return ret;
+	}
+
+	/*
+	 * columns
+	 */
+
+	public int getNumEvents() {
+		return numEvents;
+	}
+
+	public int getID(int event) {
+		return ids[event];
+	}
+
+	/**
+	 * @return event time in seconds
+	 */
+	public double getTime(int event) {
+		return times[event];
+	}
+
+	public double getTimeInYears(int event) {
+		return times[event]/SimulatorUtils.SECONDS_PER_YEAR;
+	}
+
+	public double getMagnitude(int event) {
+		return mags[event];
+	}
+
+	/**
+	 * @return rupture area (m^2)
+	 */
+	public double getArea(int event) {
+		return areas[event];
+	}
+
+	public long getNumElementEntries() {
+		return elemStarts[numEvents];
+	}
+
+	/**
+	 * @return index of the first element entry of the given event, or the total number of entries for numEvents
+	 */
+	public long getElementStart(int event) {
+		return elemStarts[event];
+	}
+
+	public int getNumElements(int event) {
+		return (int)(elemStarts[event+1] - elemStarts[event]);
+	}
+
+	public int getElementID(long entry) {
+		return elemIDs[(int)(entry >>> SEGMENT_BITS)].get((int)(entry & SEGMENT_MASK));
+	}
+
+	public float getSlip(long entry) {
+		return slips[(int)(entry >>> SEGMENT_BITS)].get((int)(entry & SEGMENT_MASK));
+	}
+
+	public int[] getElementIDs(int event) {
+		int[] ret = new int[getNumElements(event)];
+		for (int j=0; j<ret.length; j++)
+			ret[j] = getElementID(elemStarts[event]+j);
+		return ret;
+	}
+
+	public float[] getSlips(int event) {
+		float[] ret = new float[getNumElements(event)];
+		for (int j=0; j<ret.length; j++)
+			ret[j] = getSlip(elemStarts[event]+j);
+		return ret;
+	}
+
+	/*
+	 * event selection, all returning event indexes in time order
+	 */
+
+	public int[] getAllEvents() {
+		int[] ret = new int[numEvents];
+		for (int i=0; i<numEvents; i++)
+			ret[i] = i;
+		return ret;
+	}
+
+	/**
+	 * @return events which include at least one of the given elements
+	 */
+	public int[] getEventsForElements(Collection<Integer> elementIDs) {
+		int maxID = 0;
+		for (int id : elementIDs)
+			maxID = Math.max(maxID, id);
+		boolean[] flags = new boolean[maxID+1];
+		for (int id : elementIDs)
+			if (id >= 0)
+				flags[id] = true;
+		return getEventsForElements(flags);
+	}
+
+	private int[] getEventsForElements(boolean[] elemFlags) {
+		int[] ret = new int[16];
+		int num = 0;
+		for (int i=0; i<numEvents; i++) {
+			for (long j=elemStarts[i]; j<elemStarts[i+1]; j++) {
+				int id = getElementID(j);
+				if (id >= 0 && id < elemFlags.length && elemFlags[id]) {
+					if (num == ret.length)
+						ret = Arrays.copyOf(ret, num*2);
+					ret[num++] = i;
+					break;
+				}
+			}
+		}
+		return Arrays.copyOf(ret, num);
+	}
+
+	/**
+	 * @return events which include at least one element from the given sections
+	 */
+	public int[] getEventsForSections(List<SimulatorElement> elements, int... sectionIDs) {
+		int maxID = 0;
+		for (SimulatorElement elem : elements)
+			maxID = Math.max(maxID, elem.getID());
+		boolean[] flags = new boolean[maxID+1];
+		for (SimulatorElement elem : elements)
+			for (int sectID : sectionIDs)
+				if (elem.getSectionID() == sectID)
+					flags[elem.getID()] = true;
+		return getEventsForElements(flags);
+	}
+
+	/**
+	 * @return subset of the given events with minMag <= mag <= maxMag
+	 */
+	public int[] filterMagnitude(int[] events, double minMag, double maxMag) {
+		int[] ret = new int[events.length];
+		int num = 0;
+		for (int event : events)
+			if (mags[event] >= minMag && mags[event] <= maxMag)
+				ret[num++] = event;
+		return Arrays.copyOf(ret, num);
+	}
+
+	/**
+	 * @return subset of the given events with startTime <= time <= endTime (in seconds)
+	 */
+	public int[] filterTime(int[] events, double startTime, double endTime) {
+		int[] ret = new int[events.length];
+		int num = 0;
+		for (int event : events)
+			if (times[event] >= startTime && times[event] <= endTime)
+				ret[num++] = event;
+		return Arrays.copyOf(ret, num);
+	}
+
+	/**
+	 * @return times between consecutive given events, in years
+	 */
+	public double[] getInterEventTimes(int[] events) {
+		if (events.length < 2)
+			return new double[0];
+		double[] ret = new double[events.length-1];
+		for (int i=1; i<events.length; i++)
+			ret[i-1] = getTimeInYears(events[i]) - getTimeInYears(events[i-1]);
+		return ret;
+	}
+
+	/*
+	 * adapters
+	 */
+
+	/**
+	 * Materializes the given events from the catalog files, through the event index
+	 * @return events in the same order
+	 */
+	public List<RSQSimEvent> loadEvents(int[] events, RSQSimEventIndex index, List<SimulatorElement> elements)
+			throws IOException {
+		return loadIndexed(getIndexPositions(events, index), index, elements);
+	}
+
+	private int[] getIndexPositions(int[] events, RSQSimEventIndex index) {
+		Map<Integer, Integer> indexPositions = new HashMap<>();
+		for (int i=0; i<index.getNumEvents(); i++)
+			indexPositions.put(index.getID(i), i);
+		int[] positions = new int[events.length];
+		for (int i=0; i<events.length; i++) {
+			Integer pos = indexPositions.get(ids[events[i]]);
+			Preconditions.checkNotNull(pos, "Event %s not found in event index", ids[events[i]]);
+			Preconditions.checkState(i == 0 || pos > positions[i-1], "Events must be in the same order as the index");
+			positions[i] = pos;
+		}
+		return positions;
+	}
+
+	private static List<RSQSimEvent> loadIndexed(int[] positions, RSQSimEventIndex index,
+			List<SimulatorElement> elements) throws IOException {
+		// no filtering, the index positions are exact
+		List<RuptureIdentifier> rupIdens = new ArrayList<>();
+		rupIdens.add(new LogicalAndRupIden(new ArrayList<>()));
+		List<RSQSimEvent> events = index.loadEvents(positions, elements, rupIdens);
+		Preconditions.checkState(events.size() == positions.length);
+		return events;
+	}
+
+	/**
+	 * Feeds events to the given plots, skipping events that don't include any of a plot's applicable elements.
+	 * If the needed events are a small enough fraction of the catalog, they are materialized in chunks through the
+	 * event index, so at most chunkSize events are held at once. Otherwise (e.g. if any plot applies to all
+	 * elements), the catalog files are streamed directly, one event at a time.
+	 * @param catalog catalog from which this columnar catalog was built
+	 */
+	public void processPlots(List<? extends AbstractPlot> plots, RSQSimCatalog catalog, int chunkSize)
+			throws IOException {
+		// events needed by each plot
+		boolean[][] applicable = new boolean[plots.size()][];
+		boolean[] anyApplicable = new boolean[numEvents];
+		boolean allApplicable = false;
+		for (int p=0; p<plots.size(); p++) {
+			Collection<SimulatorElement> elems = plots.get(p).getApplicableElements();
+			if (elems == null) {
+				allApplicable = true;
+				continue;
+			}
+			applicable[p] = new boolean[numEvents];
+			Set<Integer> elemIDs = new HashSet<>();
+			for (SimulatorElement elem : elems)
+				elemIDs.add(elem.getID());
+			for (int event : getEventsForElements(elemIDs)) {
+				applicable[p][event] = true;
+				anyApplicable[event] = true;
+			}
+		}
+		if (allApplicable)
+			Arrays.fill(anyApplicable, true);
+
+		int[] needed = new int[numEvents];
+		int numNeeded = 0;
+		for (int i=0; i<numEvents; i++)
+			if (anyApplicable[i])
+				needed[numNeeded++] = i;
+		needed = Arrays.copyOf(needed, numNeeded);
+		System.out.println("Processing "+numNeeded+"/"+numEvents+" events for "+plots.size()+" plots");
+		if (numNeeded == 0)
+			return;
+
+		List<SimulatorElement> elements = catalog.getElements();
+		int[] positions = null;
+		if (!allApplicable) {
+			RSQSimEventIndex index = catalog.getEventIndex();
+			positions = getIndexPositions(needed, index);
+			if ((double)index.getNumRecords(positions) > RSQSimCatalog.MAX_INDEX_RECORD_FRACT*index.getNumRecords())
+				positions = null;
+		}
+
+		if (positions == null) {
+			// stream the full catalog, which is in the same order as this columnar catalog
+			int i = 0;
+			for (RSQSimEvent e : RSQSimFileReader.getEventsIterable(catalog.getCatalogDir(), elements,
+					new ArrayList<>())) {
+				Preconditions.checkState(i < numEvents && e.getID() == ids[i],
+						"Catalog files don't match the columnar catalog at event %s", i);
+				if (anyApplicable[i])
+					for (int p=0; p<plots.size(); p++)
+						if (applicable[p] == null || applicable[p][i])
+							plots.get(p).processEvent(e);
+				i++;
+			}
+			Preconditions.checkState(i == numEvents, "Catalog files only had %s/%s events", i, numEvents);
+			return;
+		}
+
+		RSQSimEventIndex index = catalog.getEventIndex();
+		for (int start=0; start<numNeeded; start+=chunkSize) {
+			int end = Math.min(numNeeded, start+chunkSize);
+			int[] chunk = Arrays.copyOfRange(needed, start, end);
+			List<RSQSimEvent> chunkEvents = loadIndexed(Arrays.copyOfRange(positions, start, end), index, elements);
+			for (int i=0; i<chunk.length; i++)
+				for (int p=0; p<plots.size(); p++)
+					if (applicable[p] == null || applicable[p][chunk[i]])
+						plots.get(p).processEvent(chunkEvents.get(i));
+		}
+	}
+
+}
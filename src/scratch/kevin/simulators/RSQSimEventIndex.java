@@ -0,0 +1,568 @@
+package scratch.kevin.simulators;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+import org.opensha.sha.simulators.parsers.RSQSimFileReader;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+
+/**
+ * Index of the events in an RSQSim catalog, stored in a sidecar file in the catalog directory, so that queries by
+ * magnitude, time, section or event ID only need to parse the matching events.
+ *
+ * For each event (in file order) the index stores the event ID, the range of records that it occupies in the
+ * eList/pList/dList/tList files, its magnitude and time, and the distinct section IDs that participate. Matching
+ * events are loaded by copying their records into a temporary catalog directory and parsing that with
+ * {@link RSQSimFileReader}, so loaded events are identical to those from a full scan. Large loads are split into
+ * chunks of records which are parsed in parallel. The index is built from a full scan of the catalog, which can be
+ * a scan that is needed anyway (see {@link #builder(File, List)}).
+ */
+public class RSQSimEventIndex {
+
+	public static final String INDEX_FILE_NAME = "event_index.bin";
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final String[] LIST_EXTS = { "eList", "pList", "dList", "tList" };
+	private static final int[] RECORD_LENS = { 4, 4, 8, 8 };
+
+	// maximum number of records in each chunk of a parallel load
+	private static final int MAX_CHUNK_RECORDS = 8*1024*1024;
+
+	private File[] listFiles;
+
+	private int numEvents;
+	private int[] ids;
+	private long[] recordStarts;
+	private int[] recordCounts;
+	private double[] mags;
+	private double[] times;
+	// sections for event i are sects[sectStarts[i]] to sects[sectStarts[i+1]-1], sorted
+	private int[] sectStarts;
+	private int[] sects;
+
+	private RSQSimEventIndex(File[] listFiles) {
+		this.listFiles = listFiles;
+	}
+
+	/**
+	 * Loads the index for the given catalog, building it (with a full scan) and writing it to the catalog directory
+	 * if it doesn't exist or is out of date.
+	 */
+	public static RSQSimEventIndex load(File catalogDir, List<SimulatorElement> elements) throws IOException {
+		RSQSimEventIndex index = loadExisting(catalogDir);
+		if (index != null)
+			return index;
+		Builder builder = builder(catalogDir, elements);
+		for (RSQSimEvent event : RSQSimFileReader.getEventsIterable(catalogDir, elements, new ArrayList<>()))
+			builder.add(event);
+		return builder.finish();
+	}
+
+	/**
+	 * @return the index for the given catalog from the catalog directory, or null if it hasn't been built yet or is
+	 * out of date
+	 */
+	public static RSQSimEventIndex loadExisting(File catalogDir) throws IOException {
+		File indexFile = new File(catalogDir, INDEX_FILE_NAME);
+		if (!indexFile.exists())
+			return null;
+		RSQSimEventIndex index = new RSQSimEventIndex(getListFiles(catalogDir));
+		if (index.read(indexFile))
+			return index;
+		System.out.println("Event index is out of date, will rebuild");
+		return null;
+	}
+
+	/**
+	 * @return the eList, pList, dList and tList files of the given catalog, whose lengths and modification times
+	 * are used to tell if files derived from them are out of date
+	 */
+	public static File[] getListFiles(File catalogDir) throws IOException {
+		File[] listFiles = new File[LIST_EXTS.length];
+		for (int i=0; i<LIST_EXTS.length; i++)
+			listFiles[i] = RSQSimFileReader.findByExt(catalogDir, LIST_EXTS[i]);
+		return listFiles;
+	}
+
+	/**
+	 * Starts building the index for the given catalog. Record ranges are found from the eList file right away, and
+	 * the builder must then be given every event in the catalog, in file order (e.g. from
+	 * RSQSimFileReader.getEventsIterable(...) without any rupture identifiers), so that a full scan of the catalog
+	 * can build the index as it goes.
+	 */
+	public static Builder builder(File catalogDir, List<SimulatorElement> elements) throws IOException {
+		System.out.println("Building event index for "+catalogDir.getAbsolutePath());
+		RSQSimEventIndex index = new RSQSimEventIndex(getListFiles(catalogDir));
+		int maxElemID = 0;
+		for (SimulatorElement elem : elements)
+			maxElemID = Math.max(maxElemID, elem.getID());
+		int[] elemSects = new int[maxElemID+1];
+		for (SimulatorElement elem : elements)
+			elemSects[elem.getID()] = elem.getSectionID();
+		index.findRecords(maxElemID);
+		return new Builder(index, new File(catalogDir, INDEX_FILE_NAME), elemSects);
+	}
+
+	/**
+	 * Finds the contiguous run of records for each event in the eList file
+	 */
+	private void findRecords(int maxElemID) throws IOException {
+		ByteOrder order = detectByteOrder(listFiles[1], maxElemID);
+		int capacity = 1024;
+		ids = new int[capacity];
+		recordStarts = new long[capacity];
+		recordCounts = new int[capacity];
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(listFiles[0])))) {
+			long record = 0;
+			byte[] buf = new byte[4];
+			ByteBuffer bb = ByteBuffer.wrap(buf).order(order);
+			while (true) {
+				try {
+					in.readFully(buf);
+				} catch (EOFException e) {
+					break;
+				}
+				int id = bb.getInt(0);
+				if (numEvents == 0 || ids[numEvents-1] != id) {
+					if (numEvents == capacity) {
+						capacity *= 2;
+						ids = Arrays.copyOf(ids, capacity);
+						recordStarts = Arrays.copyOf(recordStarts, capacity);
+						recordCounts = Arrays.copyOf(recordCounts, capacity);
+					}
+					ids[numEvents] = id;
+					recordStarts[numEvents] = record;
+					numEvents++;
+				}
+				recordCounts[numEvents-1]++;
+				record++;
+			}
+		}
+		ids = Arrays.copyOf(ids, numEvents);
+		recordStarts = Arrays.copyOf(recordStarts, numEvents);
+		recordCounts = Arrays.copyOf(recordCounts, numEvents);
+	}
+
+	/**
+	 * Fills in magnitudes, times and sections of an index from the parsed events of a full scan
+	 */
+	public static class Builder {
+
+		private RSQSimEventIndex index;
+		private File indexFile;
+		private int[] elemSects;
+		private int numAdded;
+
+		private Builder(RSQSimEventIndex index, File indexFile, int[] elemSects) {
+			this.index = index;
+			this.indexFile = indexFile;
+			this.elemSects = elemSects;
+			index.mags = new double[index.numEvents];
+			index.times = new double[index.numEvents];
+			index.sectStarts = new int[index.numEvents+1];
+			index.sects = new int[index.numEvents];
+		}
+
+		/**
+		 * Adds the next event in file order
+		 */
+		public void add(RSQSimEvent event) {
+			int i = numAdded;
+			Preconditions.checkState(i < index.numEvents && index.ids[i] == event.getID(),
+					"Event %s isn't stored contiguously or in file order", event.getID());
+			index.mags[i] = event.getMagnitude();
+			index.times[i] = event.getTime();
+			Set<Integer> eventSects = new HashSet<>();
+			for (int elemID : event.getAllElementIDs())
+				eventSects.add(elemSects[elemID]);
+			int[] sorted = Ints.toArray(eventSects);
+			Arrays.sort(sorted);
+			int start = index.sectStarts[i];
+			if (start + sorted.length > index.sects.length)
+				index.sects = Arrays.copyOf(index.sects, Math.max(index.sects.length*2, start + sorted.length));
+			System.arraycopy(sorted, 0, index.sects, start, sorted.length);
+			index.sectStarts[i+1] = start + sorted.length;
+			numAdded++;
+			if (numAdded % 100000 == 0)
+				System.out.println("Indexed "+numAdded+"/"+index.numEvents+" events");
+		}
+
+		/**
+		 * Checks that every event was added and writes the index to the catalog directory
+		 * @return the completed index
+		 */
+		public RSQSimEventIndex finish() {
+			Preconditions.checkState(numAdded == index.numEvents, "Parsed %s events but found %s in eList",
+					numAdded, index.numEvents);
+			index.sects = Arrays.copyOf(index.sects, index.sectStarts[index.numEvents]);
+			System.out.println("Indexed "+index.numEvents+" events");
+			try {
+				index.write(indexFile);
+			} catch (IOException e) {
+				System.err.println("Couldn't write event index, will only be held in memory: "+e.getMessage());
+			}
+			return index;
+		}
+	}
+
+	/**
+	 * Element IDs in the pList file must be valid, which tells us the byte order
+	 */
+	private static ByteOrder detectByteOrder(File pListFile, int maxElemID) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(pListFile)))) {
+			byte[] buf = new byte[4];
+			in.readFully(buf);
+			int little = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN).getInt();
+			if (little > 0 && little <= maxElemID)
+				return ByteOrder.LITTLE_ENDIAN;
+			int big = ByteBuffer.wrap(buf).order(ByteOrder.BIG_ENDIAN).getInt();
+			Preconditions.checkState(big > 0 && big <= maxElemID, "Couldn't detect byte order of %s", pListFile.getName());
+			return ByteOrder.BIG_ENDIAN;
+		}
+	}
+
+	private void write(File indexFile) throws IOException {
+		File tmpFile = new File(indexFile.getAbsolutePath()+".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+			out.writeInt(FORMAT_VERSION);
+			for (File file : listFiles) {
+				out.writeLong(file.length());
+				out.writeLong(file.lastModified());
+			}
+			out.writeInt(numEvents);
+			for (int i=0; i<numEvents; i++) {
+				out.writeInt(ids[i]);
+				out.writeLong(recordStarts[i]);
+				out.writeInt(recordCounts[i]);
+				out.writeDouble(mags[i]);
+				out.writeDouble(times[i]);
+				out.writeInt(sectStarts[i+1] - sectStarts[i]);
+				for (int j=sectStarts[i]; j<sectStarts[i+1]; j++)
+					out.writeInt(sects[j]);
+			}
+		}
+		if (indexFile.exists())
+			Preconditions.checkState(indexFile.delete(), "Couldn't delete old index: %s", indexFile.getAbsolutePath());
+		Preconditions.checkState(tmpFile.renameTo(indexFile), "Couldn't rename %s", tmpFile.getAbsolutePath());
+		System.out.println("Wrote event index to "+indexFile.getAbsolutePath());
+	}
+
+	/**
+	 * @return false if the index is out of date with the catalog files
+	 */
+	private boolean read(File indexFile) throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != FORMAT_VERSION)
+				return false;
+			for (File file : listFiles) {
+				long length = in.readLong();
+				long lastModified = in.readLong();
+				if (length != file.length() || lastModified != file.lastModified())
+					return false;
+			}
+			numEvents = in.readInt();
+			ids = new int[numEvents];
+			recordStarts = new long[numEvents];
+			recordCounts = new int[numEvents];
+			mags = new double[numEvents];
+			times = new double[numEvents];
+			sectStarts = new int[numEvents+1];
+			sects = new int[numEvents];
+			for (int i=0; i<numEvents; i++) {
+				ids[i] = in.readInt();
+				recordStarts[i] = in.readLong();
+				recordCounts[i] = in.readInt();
+				mags[i] = in.readDouble();
+				times[i] = in.readDouble();
+				int num = in.readInt();
+				int start = sectStarts[i];
+				if (start + num > sects.length)
+					sects = Arrays.copyOf(sects, Math.max(sects.length*2, start + num));
+				for (int j=0; j<num; j++)
+					sects[start+j] = in.readInt();
+				sectStarts[i+1] = start + num;
+			}
+			sects = Arrays.copyOf(sects, sectStarts[numEvents]);
+		} catch (EOFException e) {
+			// partially written
+			return false;
+		}
+		return true;
+	}
+
+	public int getNumEvents() {
+		return numEvents;
+	}
+
+	public int getID(int index) {
+		return ids[index];
+	}
+
+	public double getMagnitude(int index) {
+		return mags[index];
+	}
+
+	/**
+	 * @return event time in seconds
+	 */
+	public double getTime(int index) {
+		return times[index];
+	}
+
+	public int[] getSections(int index) {
+		return Arrays.copyOfRange(sects, sectStarts[index], sectStarts[index+1]);
+	}
+
+	/**
+	 * @return total number of records (patch participations) in the given events
+	 */
+	public long getNumRecords(int[] eventIndexes) {
+		long num = 0;
+		for (int index : eventIndexes)
+			num += recordCounts[index];
+		return num;
+	}
+
+	/**
+	 * @return total number of records in the catalog
+	 */
+	public long getNumRecords() {
+		return numEvents == 0 ? 0 : recordStarts[numEvents-1] + recordCounts[numEvents-1];
+	}
+
+	/**
+	 * Finds all events that can match the given criteria, in file order. Bounds are inclusive so that the result is
+	 * always a superset of what the corresponding rupture identifiers will match.
+	 *
+	 * @param minMag
+	 * @param maxMag
+	 * @param minTime minimum time in seconds
+	 * @param maxTime maximum time in seconds
+	 * @param sectionIDs section IDs, at least one of which an event must include, or null for any
+	 * @param eventIDs event IDs to include, or null for all
+	 * @return indexes of matching events
+	 */
+	public int[] getCandidates(double minMag, double maxMag, double minTime, double maxTime,
+			int[] sectionIDs, int[] eventIDs) {
+		boolean[] sectFlags = null;
+		if (sectionIDs != null) {
+			int maxSect = 0;
+			for (int sectID : sectionIDs)
+				maxSect = Math.max(maxSect, sectID);
+			sectFlags = new boolean[maxSect+1];
+			for (int sectID : sectionIDs)
+				if (sectID >= 0)
+					sectFlags[sectID] = true;
+		}
+		Set<Integer> idSet = null;
+		if (eventIDs != null) {
+			idSet = new HashSet<>();
+			for (int id : eventIDs)
+				idSet.add(id);
+		}
+
+		int[] candidates = new int[16];
+		int num = 0;
+		for (int i=0; i<numEvents; i++) {
+			if (mags[i] < minMag || mags[i] > maxMag || times[i] < minTime || times[i] > maxTime)
+				continue;
+			if (idSet != null && !idSet.contains(ids[i]))
+				continue;
+			if (sectFlags != null) {
+				boolean match = false;
+				for (int j=sectStarts[i]; !match && j<sectStarts[i+1]; j++)
+					match = sects[j] >= 0 && sects[j] < sectFlags.length && sectFlags[sects[j]];
+				if (!match)
+					continue;
+			}
+			if (num == candidates.length)
+				candidates = Arrays.copyOf(candidates, num*2);
+			candidates[num++] = i;
+		}
+		return Arrays.copyOf(candidates, num);
+	}
+
+	/**
+	 * Loads the given events, which are then filtered with the given rupture identifiers. Events are parsed in
+	 * parallel chunks and returned in file order. Rupture identifiers are evaluated concurrently on separate
+	 * chunks, so they must not depend on earlier events.
+	 *
+	 * @param eventIndexes indexes of events to load, in increasing order
+	 * @param elements
+	 * @param rupIdens
+	 * @return events
+	 * @throws IOException
+	 */
+	public List<RSQSimEvent> loadEvents(int[] eventIndexes, List<SimulatorElement> elements,
+			List<RuptureIdentifier> rupIdens) throws IOException {
+		List<int[]> chunks = getChunks(eventIndexes);
+		List<List<RSQSimEvent>> chunkEvents;
+		try {
+			chunkEvents = IntStream.range(0, chunks.size()).parallel().mapToObj(c -> {
+				try {
+					return loadChunk(chunks.get(c), elements, rupIdens);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+
+		List<RSQSimEvent> events = new ArrayList<>();
+		for (List<RSQSimEvent> list : chunkEvents)
+			events.addAll(list);
+		return events;
+	}
+
+	/**
+	 * Streaming version of {@link #loadEvents(int[], List, List)}, which only holds the events of the chunks that are
+	 * currently being parsed. Chunks are parsed in parallel, up to one per processor ahead of the chunk being
+	 * iterated.
+	 */
+	public Iterable<RSQSimEvent> iterable(int[] eventIndexes, List<SimulatorElement> elements,
+			List<RuptureIdentifier> rupIdens) {
+		List<int[]> chunks = getChunks(eventIndexes);
+		int maxAhead = Runtime.getRuntime().availableProcessors();
+		return new Iterable<RSQSimEvent>() {
+
+			@Override
+			public Iterator<RSQSimEvent> iterator() {
+				return new Iterator<RSQSimEvent>() {
+
+					private Deque<CompletableFuture<List<RSQSimEvent>>> pending = new ArrayDeque<>();
+					private int nextChunk = 0;
+					private Iterator<RSQSimEvent> current = Collections.emptyIterator();
+
+					@Override
+					public boolean hasNext() {
+						while (!current.hasNext()) {
+							while (nextChunk < chunks.size() && pending.size() < maxAhead) {
+								int[] chunk = chunks.get(nextChunk++);
+								pending.add(CompletableFuture.supplyAsync(() -> {
+									try {
+										return loadChunk(chunk, elements, rupIdens);
+									} catch (IOException e) {
+										throw new UncheckedIOException(e);
+									}
+								}));
+							}
+							if (pending.isEmpty())
+								return false;
+							try {
+								current = pending.poll().join().iterator();
+							} catch (CompletionException e) {
+								throw ExceptionUtils.asRuntimeException(e.getCause());
+							}
+						}
+						return true;
+					}
+
+					@Override
+					public RSQSimEvent next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						return current.next();
+					}
+				};
+			}
+		};
+	}
+
+	/**
+	 * Splits the given events into chunks of at most MAX_CHUNK_RECORDS records (unless a single event is larger),
+	 * which are aligned with event boundaries
+	 */
+	private List<int[]> getChunks(int[] eventIndexes) {
+		List<int[]> chunks = new ArrayList<>();
+		int start = 0;
+		long chunkRecords = 0;
+		for (int i=0; i<eventIndexes.length; i++) {
+			if (i > start && chunkRecords + recordCounts[eventIndexes[i]] > MAX_CHUNK_RECORDS) {
+				chunks.add(Arrays.copyOfRange(eventIndexes, start, i));
+				start = i;
+				chunkRecords = 0;
+			}
+			chunkRecords += recordCounts[eventIndexes[i]];
+		}
+		if (start < eventIndexes.length)
+			chunks.add(Arrays.copyOfRange(eventIndexes, start, eventIndexes.length));
+		return chunks;
+	}
+
+	private List<RSQSimEvent> loadChunk(int[] eventIndexes, List<SimulatorElement> elements,
+			List<RuptureIdentifier> rupIdens) throws IOException {
+		File tempDir = java.nio.file.Files.createTempDirectory("rsqsim_subset").toFile();
+		try {
+			writeSubset(eventIndexes, tempDir);
+			return RSQSimFileReader.readEventsFile(tempDir, elements, rupIdens);
+		} finally {
+			for (File file : tempDir.listFiles())
+				file.delete();
+			tempDir.delete();
+		}
+	}
+
+	/**
+	 * Writes the records of the given events to a new catalog in the given directory, which only contains the
+	 * eList/pList/dList/tList files
+	 */
+	public void writeSubset(int[] eventIndexes, File outputDir) throws IOException {
+		for (int f=0; f<listFiles.length; f++) {
+			File outFile = new File(outputDir, listFiles[f].getName());
+			int recLen = RECORD_LENS[f];
+			try (FileChannel in = new RandomAccessFile(listFiles[f], "r").getChannel();
+					FileChannel out = new FileOutputStream(outFile).getChannel()) {
+				int i = 0;
+				while (i < eventIndexes.length) {
+					// merge contiguous events into a single copy
+					long firstRecord = recordStarts[eventIndexes[i]];
+					long endRecord = firstRecord + recordCounts[eventIndexes[i]];
+					i++;
+					while (i < eventIndexes.length && recordStarts[eventIndexes[i]] == endRecord) {
+						endRecord += recordCounts[eventIndexes[i]];
+						i++;
+					}
+					long pos = firstRecord*recLen;
+					long end = endRecord*recLen;
+					while (pos < end)
+						pos += in.transferTo(pos, end - pos, out);
+				}
+			}
+		}
+	}
+
+}
@@ -7,14 +7,10 @@ import java.util.List;
 import org.opensha.commons.exceptions.GMT_MapException;
 import org.opensha.sha.simulators.RSQSimEvent;
 import org.opensha.sha.simulators.SimulatorElement;
-import org.opensha.sha.simulators.iden.EventTimeIdentifier;
-import org.opensha.sha.simulators.iden.LogicalAndRupIden;
-import org.opensha.sha.simulators.iden.MagRangeRuptureIdentifier;
-import org.opensha.sha.simulators.parsers.RSQSimFileReader;
 import org.opensha.sha.simulators.utils.RSQSimUtils;
+import org.opensha.sha.simulators.utils.SimulatorUtils;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Lists;
 
 import scratch.UCERF3.SlipEnabledSolution;
 import scratch.UCERF3.enumTreeBranches.DeformationModels;
@@ -23,7 +19,7 @@ import scratch.UCERF3.enumTreeBranches.FaultModels;
 public class RSQSimUCERF3ComparisonPlotGen {
 
 	public static void main(String[] args) throws IOException, GMT_MapException, RuntimeException {
-		File geomFile, eventDir, plotDir;
+		File eventDir, plotDir;
 		
 		if (args.length > 0) {
 			Preconditions.checkState(args.length <= 2, "USAGE: <sim-dir> [<output-dir>]");
@@ -33,19 +29,6 @@ public class RSQSimUCERF3ComparisonPlotGen {
 				plotDir = new File(args[1], "ucerf3_fss_comparison_plots");
 			else
 				plotDir = new File(runDir, "ucerf3_fss_comparison_plots");
-			geomFile = new File(runDir, "zfault_Deepen.in");
-			if (!geomFile.exists()) {
-				// not one of Bruce's
-				geomFile = null;
-				for (File file : runDir.listFiles()) {
-					if (file.getName().endsWith(".flt")) {
-						geomFile = file;
-						break;
-					}
-				}
-				Preconditions.checkNotNull(geomFile);
-			}
-			System.out.println("Geometry file: "+geomFile.getAbsolutePath());
 			System.out.println("Output dir: "+plotDir.getAbsolutePath());
 			eventDir = runDir;
 		} else {
@@ -56,25 +39,31 @@ public class RSQSimUCERF3ComparisonPlotGen {
 //			File dir = new File("/home/kevin/Simulators/bruce/rundir1435");
 //			geomFile = new File(dir, "zfault_Deepen.in");
 			File dir = new File("/home/kevin/Simulators/UCERF3_JG_supraSeisGeo2");
-			geomFile = new File(dir, "UCERF3.D3.1.1km.tri.2.flt");
 //			for (Location loc : elements.get(0).getVertices())
 //				System.out.println(loc);
 			eventDir = dir;
 			plotDir = new File(eventDir, "ucerf3_fss_comparison_plots");
 		}
 		
-		List<SimulatorElement> elements = RSQSimFileReader.readGeometryFile(geomFile, 11, 'S');
+		FaultModels fm = FaultModels.FM3_1;
+		DeformationModels dm = DeformationModels.GEOLOGIC;
+		RSQSimCatalog catalog = new RSQSimCatalog(eventDir, eventDir.getName(), null, null, null, fm, dm);
+		System.out.println("Geometry file: "+catalog.getGeomFile().getAbsolutePath());
+		List<SimulatorElement> elements = catalog.getElements();
 		System.out.println("Loaded "+elements.size()+" elements");
 		
 		double minMag = 6d;
-		List<RSQSimEvent> events = RSQSimFileReader.readEventsFile(eventDir, elements,
-				Lists.newArrayList(new LogicalAndRupIden(new EventTimeIdentifier(5000d, Double.POSITIVE_INFINITY, true),
-						new MagRangeRuptureIdentifier(minMag, 10d))));
+		double skipYears = 5000d;
+		// select events from the columnar catalog so that only the records of matching events are parsed
+		List<RSQSimEvent> events;
+		try (RSQSimColumnarCatalog columnar = catalog.getColumnarCatalog(true)) {
+			int[] matches = columnar.filterMagnitude(columnar.getAllEvents(), minMag, 10d);
+			matches = columnar.filterTime(matches, skipYears*SimulatorUtils.SECONDS_PER_YEAR, Double.POSITIVE_INFINITY);
+			events = columnar.loadEvents(matches, catalog.getEventIndex(), elements);
+		}
 		double duration = events.get(events.size()-1).getTimeInYears() - events.get(0).getTimeInYears();
 		System.out.println("First event time: "+events.get(0).getTimeInYears()+", duration: "+duration);
 		
-		FaultModels fm = FaultModels.FM3_1;
-		DeformationModels dm = DeformationModels.GEOLOGIC;
 		SlipEnabledSolution sol = RSQSimUtils.buildFaultSystemSolution(RSQSimUtils.getUCERF3SubSectsForComparison(
 				fm, dm), elements, events, minMag);
 		
@@ -10,7 +10,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.text.DecimalFormat;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -101,6 +100,7 @@ import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.kevin.simulators.RSQSimCatalog;
 import scratch.kevin.simulators.RSQSimCatalog.Catalogs;
 import scratch.kevin.simulators.ruptures.RSQSimBBP_Config;
+import scratch.kevin.util.CalcObjectPool;
 import scratch.kevin.util.MarkdownUtils;
 import scratch.kevin.util.MarkdownUtils.TableBuilder;
 
@@ -568,18 +568,11 @@ public class HazardMapComparePlotter {
 		waitOnFutures(true);
 	}
 	
-	private static ArrayDeque<ScalarIMR> gmpeDeque;
+	private static CalcObjectPool<ScalarIMR> gmpePool = new CalcObjectPool<>(
+			() -> AttenRelRef.NGAWest_2014_AVG_NOIDRISS.instance(null), Integer.MAX_VALUE);
 	
-	private synchronized static ScalarIMR checkOutGMPE(String imt, double period) {
-		if (gmpeDeque == null)
-			gmpeDeque = new ArrayDeque<>();
-		ScalarIMR gmpe;
-		if (gmpeDeque.isEmpty()) {
-			// build a new one
-			gmpe = AttenRelRef.NGAWest_2014_AVG_NOIDRISS.instance(null);
-		} else {
-			gmpe = gmpeDeque.pop();
-		}
+	private static ScalarIMR checkOutGMPE(String imt, double period) {
+		ScalarIMR gmpe = gmpePool.checkOut();
 		gmpe.setParamDefaults();
 		gmpe.setIntensityMeasure(imt);
 		if (imt.equals(SA_Param.NAME))
@@ -587,8 +580,8 @@ public class HazardMapComparePlotter {
 		return gmpe;
 	}
 	
-	private synchronized void checkInGMPE(ScalarIMR gmpe) {
-		gmpeDeque.push(gmpe);
+	private static void checkInGMPE(ScalarIMR gmpe) {
+		gmpePool.checkIn(gmpe);
 	}
 	
 	private static FaultSystemSolutionERF buildERF(FaultSystemSolution sol) {
@@ -1323,110 +1316,113 @@ public class HazardMapComparePlotter {
 						System.out.println("Disaggregating for "+siteName);
 						
 						ScalarIMR gmpe = checkOutGMPE(imt, period);
-						
-						Site site = new Site(loc);
-						site.addParameterList(gmpe.getSiteParams());
-						
-						List<File> rsPNGs = new ArrayList<>();
-						List<File> u3PNGs = new ArrayList<>();
-						
-						String sitePrefix = "disagg_"+siteName.replaceAll(" ", "_");
-						
-						for (boolean rs : new boolean[] {true, false}) {
-							AbstractERF erf;
-							if (rs) {
-								erf = rsERF;
-							} else {
-								erf = u3ERF;
-							}
-							DiscretizedFunc logCurve = logXVals.deepClone();
-							curveCalc.getHazardCurve(logCurve, site, gmpe, erf);
-							DiscretizedFunc linearCurve = new ArbitrarilyDiscretizedFunc();
-							for (int i=0; i<logCurve.size(); i++)
-								linearCurve.set(xVals.getX(i), logCurve.getY(i));
+						try {
+							Site site = new Site(loc);
+							site.addParameterList(gmpe.getSiteParams());
+							
+							List<File> rsPNGs = new ArrayList<>();
+							List<File> u3PNGs = new ArrayList<>();
+							
+							String sitePrefix = "disagg_"+siteName.replaceAll(" ", "_");
 							
-							for (int rp : rps) {
-								String prefix;
+							for (boolean rs : new boolean[] {true, false}) {
+								AbstractERF erf;
 								if (rs) {
-									prefix = sitePrefix+"_"+rp+"yr_"+catalogName.replaceAll(" ", "_").toLowerCase();
+									erf = rsERF;
 								} else {
-									prefix = sitePrefix+"_"+rp+"yr_ucerf3";
+									erf = u3ERF;
 								}
+								DiscretizedFunc logCurve = logXVals.deepClone();
+								curveCalc.getHazardCurve(logCurve, site, gmpe, erf);
+								DiscretizedFunc linearCurve = new ArbitrarilyDiscretizedFunc();
+								for (int i=0; i<logCurve.size(); i++)
+									linearCurve.set(xVals.getX(i), logCurve.getY(i));
 								
-								double prob = 1d/(double)rp;
-								double iml = HazardDataSetLoader.getCurveVal(linearCurve, false, prob); // iml at prob
-								if (!Double.isFinite(iml)) {
-									System.out.println("Couldn't get IML for "+siteName+", "+rp+"yr. Skipping disagg!");
-									return;
-								}
+								for (int rp : rps) {
+									String prefix;
+									if (rs) {
+										prefix = sitePrefix+"_"+rp+"yr_"+catalogName.replaceAll(" ", "_").toLowerCase();
+									} else {
+										prefix = sitePrefix+"_"+rp+"yr_ucerf3";
+									}
+									
+									double prob = 1d/(double)rp;
+									double iml = HazardDataSetLoader.getCurveVal(linearCurve, false, prob); // iml at prob
+									if (!Double.isFinite(iml)) {
+										System.out.println("Couldn't get IML for "+siteName+", "+rp+"yr. Skipping disagg!");
+										return;
+									}
 
-								System.out.println("Disaggregating for prob="+prob+", iml="+iml);
-								disaggCalc.setMagRange(minMag, numMags, deltaMag);
-								disaggCalc.setNumSourcestoShow(numSourcesForDisag);
-								disaggCalc.setShowDistances(showSourceDistances);
-								boolean success = disaggCalc.disaggregate(Math.log(iml), site, gmpe, erf, disaggParams);
-								if (!success)
-									throw new RuntimeException("Disagg calc failed (see errors above, if any).");
-								disaggCalc.setMaxZAxisForPlot(maxZAxis);
-								System.out.println("Done Disaggregating");
-								String metadata = "temp metadata";
+									System.out.println("Disaggregating for prob="+prob+", iml="+iml);
+									disaggCalc.setMagRange(minMag, numMags, deltaMag);
+									disaggCalc.setNumSourcestoShow(numSourcesForDisag);
+									disaggCalc.setShowDistances(showSourceDistances);
+									boolean success = disaggCalc.disaggregate(Math.log(iml), site, gmpe, erf, disaggParams);
+									if (!success)
+										throw new RuntimeException("Disagg calc failed (see errors above, if any).");
+									disaggCalc.setMaxZAxisForPlot(maxZAxis);
+									System.out.println("Done Disaggregating");
+									String metadata = "temp metadata";
 
-								System.out.println("Fetching plot...");
-								String address = disaggCalc.getDisaggregationPlotUsingServlet(metadata);
+									System.out.println("Fetching plot...");
+									String address = disaggCalc.getDisaggregationPlotUsingServlet(metadata);
 
-								String meanModeText = disaggCalc.getMeanAndModeInfo();
-								String binDataText = disaggCalc.getBinData();
-								String sourceDataText = disaggCalc.getDisaggregationSourceInfo();
+									String meanModeText = disaggCalc.getMeanAndModeInfo();
+									String binDataText = disaggCalc.getBinData();
+									String sourceDataText = disaggCalc.getDisaggregationSourceInfo();
 
-								File outputFile = new File(outputDir, prefix);
+									File outputFile = new File(outputDir, prefix);
 
-								String metadataText = "Custom disagg";
+									String metadataText = "Custom disagg";
 
-								File pdfFile = new File(outputFile.getAbsolutePath()+".pdf");
-								File pngFile = new File(outputFile.getAbsolutePath()+".png");
-								DisaggregationPlotViewerWindow.saveAsPDF(
-										address+DisaggregationCalculator.DISAGGREGATION_PLOT_PDF_NAME,
-										pdfFile.getAbsolutePath(), meanModeText, metadataText, binDataText, sourceDataText);
-								FileUtils.downloadURL(address+DisaggregationCalculator.DISAGGREGATION_PLOT_PNG_NAME,
-										pngFile);
-								DisaggregationPlotViewerWindow.saveAsTXT(outputFile.getAbsolutePath()+".txt", meanModeText, metadataText,
-										binDataText, sourceDataText);
-								
-								if (rs)
-									rsPNGs.add(pngFile);
-								else
-									u3PNGs.add(pngFile);
+									File pdfFile = new File(outputFile.getAbsolutePath()+".pdf");
+									File pngFile = new File(outputFile.getAbsolutePath()+".png");
+									DisaggregationPlotViewerWindow.saveAsPDF(
+											address+DisaggregationCalculator.DISAGGREGATION_PLOT_PDF_NAME,
+											pdfFile.getAbsolutePath(), meanModeText, metadataText, binDataText, sourceDataText);
+									FileUtils.downloadURL(address+DisaggregationCalculator.DISAGGREGATION_PLOT_PNG_NAME,
+											pngFile);
+									DisaggregationPlotViewerWindow.saveAsTXT(outputFile.getAbsolutePath()+".txt", meanModeText, metadataText,
+											binDataText, sourceDataText);
+									
+									if (rs)
+										rsPNGs.add(pngFile);
+									else
+										u3PNGs.add(pngFile);
+								}
 							}
-						}
-						
-						// now write combined PNG
-						for (int i=0; i<rps.length; i++) {
-							String prefix = sitePrefix+"_"+rps[i]+"yr_combined";
-							BufferedImage rsImg = ImageIO.read(rsPNGs.get(i));
-							BufferedImage u3Img = ImageIO.read(u3PNGs.get(i));
-							int height = rsImg.getHeight();
-							if (u3Img.getHeight() > rsImg.getHeight())
-								height = u3Img.getHeight();
-							int width = rsImg.getWidth()+u3Img.getWidth();
-							
-							BufferedImage comb = new BufferedImage(width, height, rsImg.getType());
-							
-							int xOffset = 0;
-							for (int x=0; x<rsImg.getWidth(); x++)
-								for (int y=0; y<rsImg.getHeight(); y++)
-									comb.setRGB(x+xOffset, y, rsImg.getRGB(x, y));
-							xOffset = rsImg.getWidth();
-							for (int x=0; x<u3Img.getWidth(); x++)
-								for (int y=0; y<u3Img.getHeight(); y++)
-									comb.setRGB(x+xOffset, y, u3Img.getRGB(x, y));
-							
-							Graphics g = comb.getGraphics();
-							g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 30));
-							g.setColor(Color.BLACK);
-							g.drawString(catalogName, 20, 40);
-							g.drawString("UCERF3", rsImg.getWidth()+20, 40);
 							
-							ImageIO.write(comb, "png", new File(outputDir, prefix+".png"));
+							// now write combined PNG
+							for (int i=0; i<rps.length; i++) {
+								String prefix = sitePrefix+"_"+rps[i]+"yr_combined";
+								BufferedImage rsImg = ImageIO.read(rsPNGs.get(i));
+								BufferedImage u3Img = ImageIO.read(u3PNGs.get(i));
+								int height = rsImg.getHeight();
+								if (u3Img.getHeight() > rsImg.getHeight())
+									height = u3Img.getHeight();
+								int width = rsImg.getWidth()+u3Img.getWidth();
+								
+								BufferedImage comb = new BufferedImage(width, height, rsImg.getType());
+								
+								int xOffset = 0;
+								for (int x=0; x<rsImg.getWidth(); x++)
+									for (int y=0; y<rsImg.getHeight(); y++)
+										comb.setRGB(x+xOffset, y, rsImg.getRGB(x, y));
+								xOffset = rsImg.getWidth();
+								for (int x=0; x<u3Img.getWidth(); x++)
+									for (int y=0; y<u3Img.getHeight(); y++)
+										comb.setRGB(x+xOffset, y, u3Img.getRGB(x, y));
+								
+								Graphics g = comb.getGraphics();
+								g.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 30));
+								g.setColor(Color.BLACK);
+								g.drawString(catalogName, 20, 40);
+								g.drawString("UCERF3", rsImg.getWidth()+20, 40);
+								
+								ImageIO.write(comb, "png", new File(outputDir, prefix+".png"));
+							}
+						} finally {
+							checkInGMPE(gmpe);
 						}
 					} catch (IOException e) {
 						ExceptionUtils.throwAsRuntimeException(e);
@@ -316,10 +316,11 @@ class CatalogGMPE_Compare extends MultiRupGMPE_ComparePageGen<RSQSimEvent> {
 		@Override
 		public void run() {
 			ScalarIMR gmpe = checkOutGMPE(gmpeRef);
-			
-			eventComp.calculate(gmpe, site, Doubles.toArray(periods));
-			
-			checkInGMPE(gmpeRef, gmpe);
+			try {
+				eventComp.calculate(gmpe, site, Doubles.toArray(periods));
+			} finally {
+				checkInGMPE(gmpeRef, gmpe);
+			}
 		}
 		
 	}
@@ -6,10 +6,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -22,7 +22,6 @@ import org.opensha.refFaultParamDb.vo.FaultSectionPrefData;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.imr.AttenRelRef;
 import org.opensha.sha.imr.ScalarIMR;
-import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
 import org.opensha.sha.simulators.RSQSimEvent;
 import org.opensha.sha.simulators.iden.LogicalOrRupIden;
 import org.opensha.sha.simulators.iden.RegionIden;
@@ -43,6 +42,7 @@ import scratch.kevin.simCompare.SourceSiteDistPageGen;
 import scratch.kevin.simulators.RSQSimCatalog;
 import scratch.kevin.simulators.RSQSimCatalog.Catalogs;
 import scratch.kevin.simulators.RSQSimCatalog.Loader;
+import scratch.kevin.util.CalcObjectPool;
 
 public class CatalogSourceSiteDistPageGen extends SourceSiteDistPageGen<RSQSimEvent> {
 
@@ -50,28 +50,18 @@ public class CatalogSourceSiteDistPageGen extends SourceSiteDistPageGen<RSQSimEv
 		super(simProv, sites);
 	}
 	
-	private static Map<AttenRelRef, LinkedList<ScalarIMR>> gmpesInstancesCache = new HashMap<>();
+	private static Map<AttenRelRef, CalcObjectPool<ScalarIMR>> gmpePools = new ConcurrentHashMap<>();
+	
+	private static CalcObjectPool<ScalarIMR> getGMPEPool(AttenRelRef gmpeRef) {
+		return gmpePools.computeIfAbsent(gmpeRef, CalcObjectPool::forSA_GMPE);
+	}
 	
 	protected static ScalarIMR checkOutGMPE(AttenRelRef gmpeRef) {
-		synchronized (gmpesInstancesCache) {
-			LinkedList<ScalarIMR> gmpes = gmpesInstancesCache.get(gmpeRef);
-			if (gmpes == null) {
-				gmpes = new LinkedList<>();
-				gmpesInstancesCache.put(gmpeRef, gmpes);
-			}
-			if (!gmpes.isEmpty())
-				return gmpes.pop();
-		}
-		ScalarIMR gmpe = gmpeRef.instance(null);
-		gmpe.setParamDefaults();
-		gmpe.setIntensityMeasure(SA_Param.NAME);
-		return gmpe;
+		return getGMPEPool(gmpeRef).checkOut();
 	}
 	
 	protected static void checkInGMPE(AttenRelRef gmpeRef, ScalarIMR gmpe) {
-		synchronized (gmpesInstancesCache) {
-			gmpesInstancesCache.get(gmpeRef).push(gmpe);
-		}
+		getGMPEPool(gmpeRef).checkIn(gmpe);
 	}
 	
 	private static class EventComparison extends RuptureComparison.Cached<RSQSimEvent> {
@@ -160,8 +150,11 @@ public class CatalogSourceSiteDistPageGen extends SourceSiteDistPageGen<RSQSimEv
 				for (AttenRelRef gmpeRef : gmpeRefs) {
 					EventComparison comp = new EventComparison(event, gmpeRup, catDurationYears);
 					ScalarIMR gmpe = checkOutGMPE(gmpeRef);
-					comp.calculate(gmpe, gmpeSites, periods);
-					checkInGMPE(gmpeRef, gmpe);
+					try {
+						comp.calculate(gmpe, gmpeSites, periods);
+					} finally {
+						checkInGMPE(gmpeRef, gmpe);
+					}
 					synchronized (sourceComps) {
 						sourceComps.get(gmpeRef, sourceName).add(comp);
 					}
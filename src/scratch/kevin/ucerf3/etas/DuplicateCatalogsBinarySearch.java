@@ -1,27 +1,17 @@
 package scratch.kevin.ucerf3.etas;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 import com.google.common.base.Joiner;
-import com.google.common.base.Preconditions;
 
 public class DuplicateCatalogsBinarySearch {
 	
 	public static final int buffer_len = 655360;
 	public static final int bytes_per_rup = 70;
 
-	public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+	public static void main(String[] args) throws IOException {
 		File catalogFile = new File("/home/kevin/OpenSHA/UCERF3/etas/simulations/"
 				+ "2016_02_17-spontaneous-1000yr-scaleMFD1p14-full_td-subSeisSupraNucl-gridSeisCorr/results_m5_preserve.bin");
 //		File catalogFile = new File("/home/kevin/OpenSHA/UCERF3/etas/simulations/"
@@ -37,54 +27,28 @@ public class DuplicateCatalogsBinarySearch {
 //		File catalogFile = new File("/home/kevin/OpenSHA/UCERF3/etas/simulations/"
 //				+ "2017_04_13-parkfield-10yr-full_td-no_ert-combined/results_descendents_m4_preserve.bin");
 		
-		FileInputStream fis = new FileInputStream(catalogFile);
-		BufferedInputStream bis = new BufferedInputStream(fis, buffer_len);
-		
-		DataInputStream in = new DataInputStream(bis);
-		
-		int numCatalogs = in.readInt();
+		// hashes are cached in a sidecar file, only new catalogs are hashed
+		ETAS_CatalogHashIndex index = ETAS_CatalogHashIndex.update(catalogFile);
+		int numCatalogs = index.size();
 		
 		int numEmpty = 0;
+		for (int i=0; i<numCatalogs; i++)
+			if (index.getNumEvents(i) == 0)
+				numEmpty++;
+		
 		int numDups = 0;
-		Map<String, List<Integer>> values = new HashMap<>();
-		Joiner j = Joiner.on(",");
 		int maxIdentical = 0;
-		for (int i=0; i<numCatalogs; i++) {
-			MessageDigest md = MessageDigest.getInstance("MD5");
-			in.readShort(); // version
-			int numRups = in.readInt();
-//			System.out.println(i+" Rups: "+numRups);
-			Preconditions.checkState(numRups >= 0, "Bad numRups: %s", numRups);
-			if (numRups == 0) {
-				numEmpty++;
-				continue;
-			}
-			int numBytesForCat = bytes_per_rup*numRups;
-			byte[] catBytes = new byte[numBytesForCat];
-			int read = in.read(catBytes);
-			Preconditions.checkState(read == numBytesForCat, "Bad read. Expected %s, read %s", numBytesForCat, read);
-			byte[] digest = md.digest(catBytes);
-			String digestStr = bytesToHex(digest);
-//			System.out.println(i+" Digest: "+digestStr);
-			if (values.containsKey(digestStr)) {
-				System.out.println(i+" is a duplicate of "+j.join(values.get(digestStr)));
-				numDups++;
-				values.get(digestStr).add(i);
-				int num = values.get(digestStr).size();
-				if (num > maxIdentical)
-					maxIdentical = num;
-			} else {
-				List<Integer> list = new ArrayList<>();
-				list.add(i);
-				values.put(digestStr, list);
-			}
+		Joiner j = Joiner.on(",");
+		for (List<Integer> identical : index.getDuplicates(false)) {
+			for (int k=1; k<identical.size(); k++)
+				System.out.println(identical.get(k)+" is a duplicate of "+j.join(identical.subList(0, k)));
+			numDups += identical.size()-1;
+			maxIdentical = Math.max(maxIdentical, identical.size());
 		}
 		
 		System.out.println(numDups+"/"+numCatalogs+" duplicates (excluding empty)");
 		System.out.println(numEmpty+"/"+numCatalogs+" empties");
 		System.out.println("Max identical: "+maxIdentical);
-		
-		in.close();
 	}
 	
 	private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
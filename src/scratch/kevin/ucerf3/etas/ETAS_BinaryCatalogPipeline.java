@@ -0,0 +1,600 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.opensha.commons.util.ClassUtils;
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+
+/**
+ * Streaming pipeline over ETAS binary catalog files which chains catalog selection (limit, random sample) and
+ * event filters (minimum magnitude, descendants of a trigger) in a single pass, replacing sequential runs of
+ * the single purpose tools (ETAS_BinaryCatalogFilterByMag, ETAS_BinaryCatalogFilterDependents,
+ * ETAS_CombineBinary, ETAS_UnionBinary).
+ *
+ * Inputs are memory mapped with {@link ETAS_MappedBinaryCatalogs}, and filters are evaluated on the magnitude,
+ * ID and parent ID columns only. Catalogs are processed on multiple threads and written in order. Catalogs
+ * which pass through unchanged are copied to the output with channel transfers, and filtered catalogs are
+ * encoded by copying the raw records of the retained events, so events are never fully decoded.
+ */
+public class ETAS_BinaryCatalogPipeline {
+
+	public enum InputMode {
+		/**
+		 * Output catalogs are the catalogs of each input file in turn
+		 */
+		CONCATENATE,
+		/**
+		 * The ith output catalog is the union of the ith catalogs of every input file, sorted by origin time
+		 */
+		UNION
+	}
+
+	/**
+	 * Event level step, which removes events from a catalog
+	 */
+	interface EventStep {
+		public void apply(CatalogRecords records);
+	}
+
+	private InputMode mode;
+	private File[] inputFiles;
+
+	private int maxCatalogs = -1;
+	private double sampleFraction = 1d;
+	private long sampleSeed;
+	private List<EventStep> steps = new ArrayList<>();
+	private boolean writeHashIndex = false;
+
+	public ETAS_BinaryCatalogPipeline(InputMode mode, File... inputFiles) {
+		Preconditions.checkArgument(inputFiles.length > 0, "Must supply at least one input file");
+		this.mode = mode;
+		this.inputFiles = inputFiles;
+	}
+
+	/**
+	 * Only the first maxCatalogs catalogs (after sampling) will be written
+	 */
+	public ETAS_BinaryCatalogPipeline limit(int maxCatalogs) {
+		Preconditions.checkArgument(maxCatalogs >= 0);
+		this.maxCatalogs = maxCatalogs;
+		return this;
+	}
+
+	/**
+	 * Each catalog is kept with the given probability. Selection only depends on the seed and the catalog order.
+	 */
+	public ETAS_BinaryCatalogPipeline sample(double fraction, long seed) {
+		Preconditions.checkArgument(fraction > 0d && fraction <= 1d, "Sample fraction must be in (0,1]");
+		this.sampleFraction = fraction;
+		this.sampleSeed = seed;
+		return this;
+	}
+
+	/**
+	 * Removes events with M<minMag
+	 * @param minMag
+	 * @param preserveChain if true, ancestors of retained events are also retained so that trigger chains are complete
+	 */
+	public ETAS_BinaryCatalogPipeline filterByMag(double minMag, boolean preserveChain) {
+		steps.add(new MagFilterStep(minMag, preserveChain));
+		return this;
+	}
+
+	/**
+	 * Removes all events other than descendants of the given trigger event
+	 */
+	public ETAS_BinaryCatalogPipeline filterDescendants(int triggerParentID) {
+		steps.add(new DescendantsStep(triggerParentID));
+		return this;
+	}
+
+	/**
+	 * If true, a content hash index of the output catalogs will be written alongside it, see
+	 * {@link ETAS_CatalogHashIndex}
+	 */
+	public ETAS_BinaryCatalogPipeline writeHashIndex(boolean writeHashIndex) {
+		this.writeHashIndex = writeHashIndex;
+		return this;
+	}
+
+	/**
+	 * Summary of a pipeline run
+	 */
+	public static class Stats {
+		private int catalogsIn;
+		private int catalogsOut;
+		private long eventsIn;
+		private long eventsOut;
+		private int catalogsTransferred;
+
+		public int getCatalogsIn() {
+			return catalogsIn;
+		}
+
+		public int getCatalogsOut() {
+			return catalogsOut;
+		}
+
+		public long getEventsIn() {
+			return eventsIn;
+		}
+
+		public long getEventsOut() {
+			return eventsOut;
+		}
+
+		/**
+		 * @return number of catalogs copied without re-encoding
+		 */
+		public int getCatalogsTransferred() {
+			return catalogsTransferred;
+		}
+
+		@Override
+		public String toString() {
+			return "Catalogs: "+catalogsOut+"/"+catalogsIn+" written ("+catalogsTransferred+" copied unchanged), "
+					+ "events: "+eventsOut+"/"+eventsIn+" written";
+		}
+	}
+
+	/**
+	 * Events in one output catalog as (input, catalog, event) references, in output order
+	 */
+	static class CatalogRecords {
+		private ETAS_MappedBinaryCatalogs[] inputs;
+		private int[] inputIndexes;
+		private int[] catalogIndexes;
+		private int[] eventIndexes;
+		private int size;
+
+		private CatalogRecords(ETAS_MappedBinaryCatalogs[] inputs, int[] inputIndexes, int[] catalogIndexes,
+				int[] eventIndexes) {
+			this.inputs = inputs;
+			this.inputIndexes = inputIndexes;
+			this.catalogIndexes = catalogIndexes;
+			this.eventIndexes = eventIndexes;
+			this.size = eventIndexes.length;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public double getMag(int index) {
+			return inputs[inputIndexes[index]].getMag(catalogIndexes[index], eventIndexes[index]);
+		}
+
+		public int getID(int index) {
+			return inputs[inputIndexes[index]].getID(catalogIndexes[index], eventIndexes[index]);
+		}
+
+		public int getParentID(int index) {
+			return inputs[inputIndexes[index]].getParentID(catalogIndexes[index], eventIndexes[index]);
+		}
+
+		/**
+		 * Removes all records not flagged, preserving order
+		 */
+		public void retain(boolean[] keep) {
+			int count = 0;
+			for (int i=0; i<size; i++) {
+				if (keep[i]) {
+					inputIndexes[count] = inputIndexes[i];
+					catalogIndexes[count] = catalogIndexes[i];
+					eventIndexes[count] = eventIndexes[i];
+					count++;
+				}
+			}
+			size = count;
+		}
+	}
+
+	private static class MagFilterStep implements EventStep {
+
+		private double minMag;
+		private boolean preserveChain;
+
+		public MagFilterStep(double minMag, boolean preserveChain) {
+			this.minMag = minMag;
+			this.preserveChain = preserveChain;
+		}
+
+		@Override
+		public void apply(CatalogRecords records) {
+			int size = records.size();
+			boolean[] keep = new boolean[size];
+			boolean any = false;
+			for (int i=0; i<size; i++) {
+				keep[i] = records.getMag(i) >= minMag;
+				any = any || keep[i];
+			}
+			if (preserveChain && any) {
+				Map<Integer, Integer> idIndexes = new HashMap<>();
+				for (int i=0; i<size; i++)
+					idIndexes.put(records.getID(i), i);
+				for (int i=0; i<size; i++) {
+					if (!keep[i] || records.getMag(i) < minMag)
+						// not kept, or an ancestor which has already been processed
+						continue;
+					Integer parent = idIndexes.get(records.getParentID(i));
+					while (parent != null && !keep[parent]) {
+						keep[parent] = true;
+						parent = idIndexes.get(records.getParentID(parent));
+					}
+				}
+			}
+			records.retain(keep);
+		}
+	}
+
+	private static class DescendantsStep implements EventStep {
+
+		private int triggerParentID;
+
+		public DescendantsStep(int triggerParentID) {
+			this.triggerParentID = triggerParentID;
+		}
+
+		@Override
+		public void apply(CatalogRecords records) {
+			int size = records.size();
+			boolean[] keep = new boolean[size];
+			Set<Integer> ids = new HashSet<>();
+			ids.add(triggerParentID);
+			// events are in origin time order, so parents come before their children
+			for (int i=0; i<size; i++) {
+				if (ids.contains(records.getParentID(i))) {
+					keep[i] = true;
+					ids.add(records.getID(i));
+				}
+			}
+			records.retain(keep);
+		}
+	}
+
+	/**
+	 * Output catalog, either a raw catalog block to transfer or an encoded catalog
+	 */
+	private static class CatalogResult {
+		private int eventsIn;
+		private int eventsOut;
+		// for transfers
+		private int transferInput = -1;
+		private long transferOffset;
+		private long transferLength;
+		// for encoded catalogs
+		private ByteBuffer encoded;
+		// content hash, if needed
+		private HashCode hash;
+	}
+
+	/**
+	 * Runs the pipeline, writing the result to the given file
+	 * @param outputFile
+	 * @param threads number of threads for processing catalogs
+	 * @return statistics for the run
+	 * @throws IOException
+	 */
+	public Stats write(File outputFile, int threads) throws IOException {
+		ETAS_MappedBinaryCatalogs[] inputs = new ETAS_MappedBinaryCatalogs[inputFiles.length];
+		for (int i=0; i<inputs.length; i++) {
+			Preconditions.checkArgument(!inputFiles[i].getAbsoluteFile().equals(outputFile.getAbsoluteFile()),
+					"Output file can't also be an input");
+			inputs[i] = new ETAS_MappedBinaryCatalogs(inputFiles[i]);
+		}
+
+		// catalog references for each output catalog, before sampling
+		List<int[]> catalogRefs = new ArrayList<>();
+		if (mode == InputMode.CONCATENATE) {
+			for (int i=0; i<inputs.length; i++)
+				for (int c=0; c<inputs[i].getNumCatalogs(); c++)
+					catalogRefs.add(new int[] {i, c});
+		} else {
+			int num = inputs[0].getNumCatalogs();
+			for (ETAS_MappedBinaryCatalogs input : inputs)
+				Preconditions.checkState(input.getNumCatalogs() == num,
+						"All inputs must have the same number of catalogs for a union: %s != %s",
+						input.getNumCatalogs(), num);
+			for (int c=0; c<num; c++)
+				catalogRefs.add(new int[] {c});
+		}
+
+		Stats stats = new Stats();
+		stats.catalogsIn = catalogRefs.size();
+		ETAS_CatalogHashIndex hashIndex = writeHashIndex ? new ETAS_CatalogHashIndex() : null;
+
+		ExecutorService exec = Executors.newFixedThreadPool(Integer.max(1, threads));
+		Deque<Future<CatalogResult>> futures = new ArrayDeque<>();
+		int maxQueued = 4*Integer.max(1, threads);
+
+		FileChannel[] inChannels = new FileChannel[inputs.length];
+		try (RandomAccessFile outFile = new RandomAccessFile(outputFile, "rw");
+				FileChannel out = outFile.getChannel()) {
+			out.truncate(0);
+			for (int i=0; i<inputs.length; i++)
+				inChannels[i] = new RandomAccessFile(inputFiles[i], "r").getChannel();
+
+			// number of catalogs, will overwrite at the end
+			writeFully(out, (ByteBuffer)ByteBuffer.allocate(4).putInt(0).flip());
+
+			Random sampleRand = new Random(sampleSeed);
+			int submitted = 0;
+			for (int[] ref : catalogRefs) {
+				if (maxCatalogs >= 0 && submitted == maxCatalogs)
+					break;
+				if (sampleFraction < 1d && sampleRand.nextDouble() >= sampleFraction)
+					continue;
+				submitted++;
+				futures.add(exec.submit(() -> process(inputs, ref)));
+				while (futures.size() >= maxQueued)
+					writeResult(futures.removeFirst(), out, inChannels, stats, hashIndex);
+			}
+			while (!futures.isEmpty())
+				writeResult(futures.removeFirst(), out, inChannels, stats, hashIndex);
+
+			ByteBuffer header = ByteBuffer.allocate(4).putInt(stats.catalogsOut);
+			header.flip();
+			while (header.hasRemaining())
+				out.write(header, header.position());
+		} finally {
+			exec.shutdownNow();
+			for (FileChannel channel : inChannels)
+				if (channel != null)
+					channel.close();
+		}
+
+		if (hashIndex != null)
+			hashIndex.write(ETAS_CatalogHashIndex.getSidecarFile(outputFile));
+
+		return stats;
+	}
+
+	private CatalogResult process(ETAS_MappedBinaryCatalogs[] inputs, int[] ref) {
+		CatalogRecords records;
+		short version;
+		if (mode == InputMode.CONCATENATE) {
+			ETAS_MappedBinaryCatalogs input = inputs[ref[0]];
+			int catalogIndex = ref[1];
+			int num = input.getNumEvents(catalogIndex);
+			int[] inputIndexes = new int[num];
+			Arrays.fill(inputIndexes, ref[0]);
+			int[] catalogIndexes = new int[num];
+			Arrays.fill(catalogIndexes, catalogIndex);
+			int[] eventIndexes = new int[num];
+			for (int i=0; i<num; i++)
+				eventIndexes[i] = i;
+			records = new CatalogRecords(inputs, inputIndexes, catalogIndexes, eventIndexes);
+			version = input.getVersion(catalogIndex);
+		} else {
+			records = mergeByOriginTime(inputs, ref[0]);
+			version = inputs[0].getVersion(ref[0]);
+		}
+
+		CatalogResult result = new CatalogResult();
+		result.eventsIn = records.size();
+		for (EventStep step : steps)
+			step.apply(records);
+		result.eventsOut = records.size();
+
+		if (writeHashIndex) {
+			Hasher hasher = ETAS_CatalogHashIndex.newHasher(records.size());
+			for (int i=0; i<records.size(); i++)
+				ETAS_CatalogHashIndex.putEvent(hasher, inputs[records.inputIndexes[i]],
+						records.catalogIndexes[i], records.eventIndexes[i]);
+			result.hash = hasher.hash();
+		}
+
+		if (mode == InputMode.CONCATENATE && result.eventsOut == result.eventsIn) {
+			// unchanged, copy as is
+			result.transferInput = ref[0];
+			result.transferOffset = inputs[ref[0]].getCatalogOffset(ref[1]);
+			result.transferLength = inputs[ref[0]].getCatalogLength(ref[1]);
+			return result;
+		}
+
+		int recordLen = records.size() == 0 ? 0 : inputs[records.inputIndexes[0]].getRecordLength(records.catalogIndexes[0]);
+		ByteBuffer buf = ByteBuffer.allocate(ETAS_MappedBinaryCatalogs.CATALOG_HEADER_LEN + records.size()*recordLen);
+		buf.putShort(version);
+		buf.putInt(records.size());
+		for (int i=0; i<records.size(); i++)
+			inputs[records.inputIndexes[i]].copyRecord(records.catalogIndexes[i], records.eventIndexes[i], buf);
+		buf.flip();
+		result.encoded = buf;
+		return result;
+	}
+
+	private static CatalogRecords mergeByOriginTime(ETAS_MappedBinaryCatalogs[] inputs, int catalogIndex) {
+		int total = 0;
+		short version = inputs[0].getVersion(catalogIndex);
+		for (ETAS_MappedBinaryCatalogs input : inputs) {
+			Preconditions.checkState(input.getVersion(catalogIndex) == version,
+					"Can't union catalogs with different versions (catalog %s)", catalogIndex);
+			total += input.getNumEvents(catalogIndex);
+		}
+		int[] inputIndexes = new int[total];
+		int[] catalogIndexes = new int[total];
+		Arrays.fill(catalogIndexes, catalogIndex);
+		int[] eventIndexes = new int[total];
+
+		// k-way merge, ties go to the earlier input
+		int[] positions = new int[inputs.length];
+		for (int i=0; i<total; i++) {
+			int best = -1;
+			long bestTime = Long.MAX_VALUE;
+			for (int j=0; j<inputs.length; j++) {
+				if (positions[j] < inputs[j].getNumEvents(catalogIndex)) {
+					long time = inputs[j].getOriginTime(catalogIndex, positions[j]);
+					if (best < 0 || time < bestTime) {
+						best = j;
+						bestTime = time;
+					}
+				}
+			}
+			inputIndexes[i] = best;
+			eventIndexes[i] = positions[best]++;
+		}
+		return new CatalogRecords(inputs, inputIndexes, catalogIndexes, eventIndexes);
+	}
+
+	private static void writeResult(Future<CatalogResult> future, FileChannel out, FileChannel[] inChannels,
+			Stats stats, ETAS_CatalogHashIndex hashIndex) throws IOException {
+		CatalogResult result;
+		try {
+			result = future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		if (result.encoded != null) {
+			writeFully(out, result.encoded);
+		} else {
+			FileChannel in = inChannels[result.transferInput];
+			long offset = result.transferOffset;
+			long end = offset + result.transferLength;
+			while (offset < end)
+				offset += in.transferTo(offset, end - offset, out);
+			stats.catalogsTransferred++;
+		}
+		if (hashIndex != null)
+			hashIndex.add(result.eventsOut, result.hash);
+		stats.catalogsOut++;
+		stats.eventsIn += result.eventsIn;
+		stats.eventsOut += result.eventsOut;
+		if (stats.catalogsOut % 10000 == 0)
+			System.out.println("Wrote "+stats.catalogsOut+" catalogs");
+	}
+
+	private static void writeFully(FileChannel out, ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining())
+			out.write(buf);
+	}
+
+	private static Options createOptions() {
+		Options ops = new Options();
+
+		Option output = new Option("o", "output", true, "Output binary catalogs file");
+		output.setRequired(true);
+		ops.addOption(output);
+
+		Option union = new Option("u", "union", false, "Union the ith catalogs of each input file (default is to "
+				+ "concatenate the catalogs of each input file)");
+		union.setRequired(false);
+		ops.addOption(union);
+
+		Option minMag = new Option("m", "min-mag", true, "Minimum magnitude of events to keep");
+		minMag.setRequired(false);
+		ops.addOption(minMag);
+
+		Option preserveChain = new Option("pc", "preserve-chain", false, "Keep ancestors of events kept by --min-mag");
+		preserveChain.setRequired(false);
+		ops.addOption(preserveChain);
+
+		Option descendants = new Option("d", "descendants", true, "Only keep descendants of the given trigger ID");
+		descendants.setRequired(false);
+		ops.addOption(descendants);
+
+		Option sample = new Option("s", "sample", true, "Fraction of catalogs to keep, chosen at random");
+		sample.setRequired(false);
+		ops.addOption(sample);
+
+		Option seed = new Option("sd", "seed", true, "Random seed for --sample (default: 0)");
+		seed.setRequired(false);
+		ops.addOption(seed);
+
+		Option limit = new Option("l", "limit", true, "Maximum number of catalogs to write");
+		limit.setRequired(false);
+		ops.addOption(limit);
+
+		Option hashIndex = new Option("hi", "hash-index", false, "Write a catalog content hash index alongside the output");
+		hashIndex.setRequired(false);
+		ops.addOption(hashIndex);
+
+		Option threads = new Option("t", "threads", true, "Number of threads (default: all available)");
+		threads.setRequired(false);
+		ops.addOption(threads);
+
+		return ops;
+	}
+
+	public static void main(String[] args) {
+		Options options = createOptions();
+		CommandLine cmd = null;
+		try {
+			CommandLineParser parser = new GnuParser();
+			cmd = parser.parse(options, args);
+			Preconditions.checkArgument(cmd.getArgs().length > 0, "Must supply at least one input file");
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			HelpFormatter formatter = new HelpFormatter();
+			formatter.printHelp(ClassUtils.getClassNameWithoutPackage(ETAS_BinaryCatalogPipeline.class)
+					+" [options] <input1> [...<inputN>]", options, true);
+			System.exit(2);
+		}
+
+		try {
+			String[] inputArgs = cmd.getArgs();
+			File[] inputFiles = new File[inputArgs.length];
+			for (int i=0; i<inputArgs.length; i++) {
+				inputFiles[i] = new File(inputArgs[i]);
+				Preconditions.checkArgument(inputFiles[i].exists(),
+						"Input file doesn't exist: %s", inputFiles[i].getAbsolutePath());
+			}
+			File outputFile = new File(cmd.getOptionValue("output"));
+
+			InputMode mode = cmd.hasOption("union") ? InputMode.UNION : InputMode.CONCATENATE;
+			ETAS_BinaryCatalogPipeline pipeline = new ETAS_BinaryCatalogPipeline(mode, inputFiles);
+			if (cmd.hasOption("sample")) {
+				long seed = cmd.hasOption("seed") ? Long.parseLong(cmd.getOptionValue("seed")) : 0l;
+				pipeline.sample(Double.parseDouble(cmd.getOptionValue("sample")), seed);
+			}
+			if (cmd.hasOption("limit"))
+				pipeline.limit(Integer.parseInt(cmd.getOptionValue("limit")));
+			if (cmd.hasOption("descendants"))
+				pipeline.filterDescendants(Integer.parseInt(cmd.getOptionValue("descendants")));
+			if (cmd.hasOption("min-mag"))
+				pipeline.filterByMag(Double.parseDouble(cmd.getOptionValue("min-mag")), cmd.hasOption("preserve-chain"));
+
+			pipeline.writeHashIndex(cmd.hasOption("hash-index"));
+
+			int threads = Runtime.getRuntime().availableProcessors();
+			if (cmd.hasOption("threads"))
+				threads = Integer.parseInt(cmd.getOptionValue("threads"));
+
+			Stats stats = pipeline.write(outputFile, threads);
+			System.out.println(stats);
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.err.flush();
+			System.exit(1);
+		}
+		System.exit(0);
+	}
+
+}
@@ -15,6 +15,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.IntStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -67,6 +68,7 @@ import scratch.UCERF3.logicTree.LogicTreeBranch;
 import scratch.UCERF3.utils.FaultSystemIO;
 import scratch.UCERF3.utils.LastEventData;
 import scratch.kevin.ucerf3.eal.UCERF3_BranchAvgLossFetcher;
+import scratch.kevin.ucerf3.etas.ETAS_MappedBinaryCatalogs.EventFilter;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
@@ -171,10 +173,21 @@ public class ETAS_CatalogEALCalculator {
 	static List<List<ETAS_EqkRupture>> loadCatalogs(File resultsBinFile, double minGriddedMag) throws IOException {
 		int numEmpty = 0;
 		
-		List<List<ETAS_EqkRupture>> catalogs = ETAS_CatalogIO.loadCatalogsBinary(resultsBinFile, minGriddedMag);
-		for (List<ETAS_EqkRupture> catalog : catalogs)
-			if (catalog.isEmpty())
-				numEmpty++;
+		List<List<ETAS_EqkRupture>> catalogs;
+		if (resultsBinFile.getName().toLowerCase().endsWith(".gz")) {
+			catalogs = ETAS_CatalogIO.loadCatalogsBinary(resultsBinFile, minGriddedMag);
+			for (List<ETAS_EqkRupture> catalog : catalogs)
+				if (catalog.isEmpty())
+					numEmpty++;
+		} else {
+			// memory mapped, catalogs are built as needed and kept softly for the repeated passes below
+			ETAS_MappedBinaryCatalogs mapped = new ETAS_MappedBinaryCatalogs(resultsBinFile);
+			EventFilter filter = EventFilter.minMag(minGriddedMag);
+			for (int i=0; i<mapped.getNumCatalogs(); i++)
+				if (mapped.countEvents(i, filter) == 0)
+					numEmpty++;
+			catalogs = mapped.asCatalogList(filter);
+		}
 		
 		System.out.println(numEmpty+"/"+catalogs.size()+" catalogs are empty "
 				+ "(including only fault and gridded above "+minGriddedMag+")");
@@ -274,6 +287,8 @@ public class ETAS_CatalogEALCalculator {
 		GriddedRegion region = new CaliforniaRegions.RELM_TESTING_GRIDDED();
 		DiscretizedFunc[] griddedMagLossDists = fetcher.getGriddedMagLossDists(
 				attenRelRef, region);
+		// precomputed losses for every rupture, shared by all durations and catalogs
+		RuptureLossTable lossTable = new RuptureLossTable(condLossDists, region, griddedMagLossDists);
 		
 		double maxCatalogDuration = getRoundedMaxCatalogDiration();
 		System.out.println("Max duration: "+maxCatalogDuration+" yrs");
@@ -327,98 +342,13 @@ public class ETAS_CatalogEALCalculator {
 				catalogs = subCatalogs;
 			}
 			
-			for (int i = 0; i < catalogs.size(); i++) {
-				List<ETAS_EqkRupture> catalog = catalogs.get(i);
-				if (catalog == null) {
-					catalogDists.add(new LightFixedXFunc(new double[] {0d}, new double[] {1d}));
-					continue;
-				}
-				List<Double> singleLosses = Lists.newArrayList();
-				List<DiscretizedFunc> lossDists = Lists.newArrayList();
-				
-				if (triggeredOnly)
-					catalog = ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario);
-				
-				for (ETAS_EqkRupture rup : catalog) {
-					if (!allSubDurations && rup.getOriginTime() > maxTime)
-						break;
-					int fssIndex = getFSSIndex(rup);
-					
-					double mag = rup.getMag();
-					
-					if (fssIndex >= 0) {
-						// fault based source
-						double solMag = meanSol.getRupSet().getMagForRup(fssIndex);
-						Preconditions.checkState((float)mag == (float)solMag, "Bad fault mag! %s != %s", mag, solMag);
-						if (condLossDists[fssIndex].size() == 0)
-							continue;
-						lossDists.add(condLossDists[fssIndex]);
-						// make sure weights sum to 1
-						double sumY = 0;
-						for (Point2D pt : condLossDists[fssIndex])
-							sumY += pt.getY();
-						Preconditions.checkState((float)sumY == 1f, "rup losses don't sum to 1: "+(float)sumY);
-					} else {
-						// grid source
-						double loss = calcGridSourceLoss(rup, region, griddedMagLossDists, "Catalog "+i);
-						// single loss value with weight=1
-						singleLosses.add(loss);
-					}
-				}
-				
-				// first sum up all single losses (easy)
-				double totSingleLosses = 0d;
-				for (double loss : singleLosses)
-					totSingleLosses += loss;
-				
-				if (rup_mean_loss) {
-					for (DiscretizedFunc lossDist : lossDists) {
-						double loss = 0;
-						double sumWeight = 0;
-						for (Point2D pt : lossDist) {
-							sumWeight += pt.getY();
-							loss += pt.getX()*pt.getY();
-						}
-						Preconditions.checkState((float)sumWeight == 1f, "Weights don't sum to 1: "+(float)sumWeight);
-						totSingleLosses += loss;
-					}
-				}
-				
-				ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
-				if (lossDists.isEmpty() || rup_mean_loss) {
-					// only point sources
-					func.set(xAxisScale*totSingleLosses, 1d);
-				} else {
-					// calculate expected number of loss dists for verification
-					int expectedNum = 1;
-					for (DiscretizedFunc lossDist : lossDists)
-						expectedNum *= lossDist.size();
-					
-					List<LossChain> lossChains = getLossChains(totSingleLosses, lossDists);
-					Preconditions.checkState(lossChains.size() == expectedNum,
-							"expected "+expectedNum+" chains, got "+lossChains.size());
-					
-					double sumWeight = 0d;
-					for (LossChain chain : lossChains) {
-						double weight = chain.weight;
-						double loss = chain.totLoss;
-						sumWeight += weight;
-						int xInd = UCERF3_BranchAvgLossFetcher.getMatchingXIndexFloatPrecision(loss, func);
-						if (xInd < 0)
-							func.set(xAxisScale*loss, weight);
-						else
-							func.set(xAxisScale*loss, weight + func.getY(xInd));
-					}
-					Preconditions.checkState((float)sumWeight == 1f,
-							"chain weights don't sum to 1: "+sumWeight+" ("+lossChains.size()+" chains)");
-				}
-				
-//				double meanLoss = 0d;
-//				for (Point2D pt : func)
-//					meanLoss += pt.getX()*pt.getY();
-				
-				catalogDists.add(new LightFixedXFunc(func));
-			}
+			// catalogs are independent, calculate them in parallel but keep them in order
+			List<List<ETAS_EqkRupture>> myCatalogs = catalogs;
+			long myMaxTime = maxTime;
+			DiscretizedFunc[] dists = IntStream.range(0, catalogs.size()).parallel().mapToObj(
+					i -> calcCatalogLossDist(myCatalogs.get(i), i, myMaxTime, allSubDurations, xAxisScale, lossTable)
+					).toArray(DiscretizedFunc[]::new);
+			catalogDists.addAll(Arrays.asList(dists));
 			
 			if (triggerRup != null) {
 				int fssIndex = getFSSIndex(triggerRup);
@@ -454,6 +384,206 @@ public class ETAS_CatalogEALCalculator {
 		return distsMap;
 	}
 	
+	/**
+	 * Calculates the loss distribution for a single catalog
+	 */
+	private DiscretizedFunc calcCatalogLossDist(List<ETAS_EqkRupture> catalog, int i, long maxTime,
+			boolean allSubDurations, double xAxisScale, RuptureLossTable lossTable) {
+		if (catalog == null)
+			return new LightFixedXFunc(new double[] {0d}, new double[] {1d});
+		
+		if (rup_mean_loss) {
+			// fast path, each rupture has a single expected loss
+			if (triggeredOnly)
+				catalog = ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario);
+			
+			double totGriddedLosses = 0d;
+			double[] faultLosses = new double[16];
+			int numFaultLosses = 0;
+			for (ETAS_EqkRupture rup : catalog) {
+				if (!allSubDurations && rup.getOriginTime() > maxTime)
+					break;
+				int fssIndex = getFSSIndex(rup);
+				
+				if (fssIndex >= 0) {
+					// fault based source
+					double solMag = meanSol.getRupSet().getMagForRup(fssIndex);
+					Preconditions.checkState((float)rup.getMag() == (float)solMag, "Bad fault mag! %s != %s", rup.getMag(), solMag);
+					if (!lossTable.hasFaultLoss(fssIndex))
+						continue;
+					if (numFaultLosses == faultLosses.length)
+						faultLosses = Arrays.copyOf(faultLosses, numFaultLosses*2);
+					faultLosses[numFaultLosses++] = lossTable.getFaultLoss(fssIndex);
+				} else {
+					// grid source
+					totGriddedLosses += lossTable.getGriddedLoss(rup, "Catalog "+i);
+				}
+			}
+			
+			// sum in the same order as the distribution calculation: gridded losses first, then fault losses
+			double totLosses = totGriddedLosses;
+			for (int j=0; j<numFaultLosses; j++)
+				totLosses += faultLosses[j];
+			
+			return new LightFixedXFunc(new double[] {xAxisScale*totLosses}, new double[] {1d});
+		}
+		
+		List<Double> singleLosses = Lists.newArrayList();
+		List<DiscretizedFunc> lossDists = Lists.newArrayList();
+		
+		if (triggeredOnly)
+			catalog = ETAS_SimAnalysisTools.getChildrenFromCatalog(catalog, id_for_scenario);
+		
+		for (ETAS_EqkRupture rup : catalog) {
+			if (!allSubDurations && rup.getOriginTime() > maxTime)
+				break;
+			int fssIndex = getFSSIndex(rup);
+			
+			double mag = rup.getMag();
+			
+			if (fssIndex >= 0) {
+				// fault based source
+				double solMag = meanSol.getRupSet().getMagForRup(fssIndex);
+				Preconditions.checkState((float)mag == (float)solMag, "Bad fault mag! %s != %s", mag, solMag);
+				if (!lossTable.hasFaultLoss(fssIndex))
+					continue;
+				// weights were checked when building the table
+				lossDists.add(lossTable.getFaultLossDist(fssIndex));
+			} else {
+				// grid source, single loss value with weight=1
+				singleLosses.add(lossTable.getGriddedLoss(rup, "Catalog "+i));
+			}
+		}
+		
+		// first sum up all single losses (easy)
+		double totSingleLosses = 0d;
+		for (double loss : singleLosses)
+			totSingleLosses += loss;
+		
+		ArbitrarilyDiscretizedFunc func = new ArbitrarilyDiscretizedFunc();
+		if (lossDists.isEmpty()) {
+			// only point sources
+			func.set(xAxisScale*totSingleLosses, 1d);
+		} else {
+			// calculate expected number of loss dists for verification
+			int expectedNum = 1;
+			for (DiscretizedFunc lossDist : lossDists)
+				expectedNum *= lossDist.size();
+			
+			List<LossChain> lossChains = getLossChains(totSingleLosses, lossDists);
+			Preconditions.checkState(lossChains.size() == expectedNum,
+					"expected "+expectedNum+" chains, got "+lossChains.size());
+			
+			double sumWeight = 0d;
+			for (LossChain chain : lossChains) {
+				double weight = chain.weight;
+				double loss = chain.totLoss;
+				sumWeight += weight;
+				int xInd = UCERF3_BranchAvgLossFetcher.getMatchingXIndexFloatPrecision(loss, func);
+				if (xInd < 0)
+					func.set(xAxisScale*loss, weight);
+				else
+					func.set(xAxisScale*loss, weight + func.getY(xInd));
+			}
+			Preconditions.checkState((float)sumWeight == 1f,
+					"chain weights don't sum to 1: "+sumWeight+" ("+lossChains.size()+" chains)");
+		}
+		
+//				double meanLoss = 0d;
+//				for (Point2D pt : func)
+//					meanLoss += pt.getX()*pt.getY();
+		return new LightFixedXFunc(func);
+	}
+	
+	/**
+	 * Losses for every fault system rupture and gridded (node, magnitude) pair, computed once per GMPE so that
+	 * catalogs can be aggregated in parallel with array lookups. Expected fault losses are summed in the same order
+	 * as before, so results are unchanged.
+	 */
+	private class RuptureLossTable {
+		
+		private DiscretizedFunc[] condLossDists;
+		private double[] faultMeanLosses;
+		private boolean[] faultWeightsValid;
+		
+		private GriddedRegion region;
+		private DiscretizedFunc[] griddedMagLossDists;
+		// mags and losses for node n are at indexes nodeStarts[n] to nodeStarts[n+1]-1
+		private int[] nodeStarts;
+		private float[] gridMags;
+		private double[] gridLosses;
+		
+		// guards the fallback path, which prints and can use the (non thread safe) ERF
+		private final Object fallbackLock = new Object();
+		
+		public RuptureLossTable(DiscretizedFunc[] condLossDists, GriddedRegion region,
+				DiscretizedFunc[] griddedMagLossDists) {
+			this.condLossDists = condLossDists;
+			this.region = region;
+			this.griddedMagLossDists = griddedMagLossDists;
+			
+			faultMeanLosses = new double[condLossDists.length];
+			faultWeightsValid = new boolean[condLossDists.length];
+			for (int r=0; r<condLossDists.length; r++) {
+				if (condLossDists[r] == null)
+					continue;
+				double loss = 0;
+				double sumWeight = 0;
+				for (Point2D pt : condLossDists[r]) {
+					sumWeight += pt.getY();
+					loss += pt.getX()*pt.getY();
+				}
+				faultMeanLosses[r] = loss;
+				faultWeightsValid[r] = (float)sumWeight == 1f;
+			}
+			
+			nodeStarts = new int[griddedMagLossDists.length+1];
+			for (int n=0; n<griddedMagLossDists.length; n++)
+				nodeStarts[n+1] = nodeStarts[n] + (griddedMagLossDists[n] == null ? 0 : griddedMagLossDists[n].size());
+			gridMags = new float[nodeStarts[griddedMagLossDists.length]];
+			gridLosses = new double[gridMags.length];
+			for (int n=0; n<griddedMagLossDists.length; n++) {
+				for (int i=nodeStarts[n]; i<nodeStarts[n+1]; i++) {
+					gridMags[i] = (float)griddedMagLossDists[n].getX(i-nodeStarts[n]);
+					gridLosses[i] = griddedMagLossDists[n].getY(i-nodeStarts[n]);
+				}
+			}
+		}
+		
+		public boolean hasFaultLoss(int fssIndex) {
+			return condLossDists[fssIndex].size() > 0;
+		}
+		
+		public DiscretizedFunc getFaultLossDist(int fssIndex) {
+			Preconditions.checkState(faultWeightsValid[fssIndex], "rup losses don't sum to 1 for rupture %s", fssIndex);
+			return condLossDists[fssIndex];
+		}
+		
+		public double getFaultLoss(int fssIndex) {
+			Preconditions.checkState(faultWeightsValid[fssIndex], "Weights don't sum to 1 for rupture %s", fssIndex);
+			return faultMeanLosses[fssIndex];
+		}
+		
+		public double getGriddedLoss(ETAS_EqkRupture rup, String catName) {
+			double mag = rup.getMag();
+			if ((float)mag < (float)AbstractGridSourceProvider.SOURCE_MIN_MAG_CUTOFF)
+				// below our min mag
+				return 0;
+			int nodeIndex = region.indexForLocation(rup.getHypocenterLocation());
+			if (nodeIndex >= 0) {
+				// first matching magnitude, as in getMatchingXIndexFloatPrecision
+				float fMag = (float)mag;
+				for (int i=nodeStarts[nodeIndex]; i<nodeStarts[nodeIndex+1]; i++)
+					if (gridMags[i] == fMag)
+						return gridLosses[i];
+			}
+			// outside of the region or mag not found, use the full calculation
+			synchronized (fallbackLock) {
+				return calcGridSourceLoss(rup, region, griddedMagLossDists, catName);
+			}
+		}
+	}
+	
 	static int calcNodeIndex(ETAS_EqkRupture rup, GriddedRegion region) {
 		Location loc = rup.getHypocenterLocation();
 		int nodeIndex = region.indexForLocation(loc);
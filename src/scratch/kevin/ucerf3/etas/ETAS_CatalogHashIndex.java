@@ -0,0 +1,320 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Index of 128-bit content hashes of the catalogs in an ETAS binary catalogs file, stored in a sidecar file next to
+ * it, so that duplicate catalogs (and catalogs shared between runs) can be found with hash lookups.
+ *
+ * Hashes are computed over the event count and every rupture column except ETAS k (which version 1 files don't
+ * store), so the same catalog hashes identically in either file version and whether it is hashed from a file
+ * or from memory.
+ *
+ * The sidecar holds a format version (int) followed by one entry per catalog: event count (int) and hash (two
+ * longs). Entries are only ever appended, so the index can be updated as catalogs are appended to the binary file,
+ * and a partially written trailing entry is ignored on load.
+ */
+public class ETAS_CatalogHashIndex {
+
+	public static final String SIDECAR_SUFFIX = ".hashes";
+
+	private static final int FORMAT_VERSION = 1;
+	private static final int ENTRY_LEN = 20;
+
+	private static final HashFunction hashFunc = Hashing.murmur3_128();
+
+	private File sidecarFile;
+
+	private int size = 0;
+	private int[] numEvents = new int[1024];
+	private HashCode[] hashes = new HashCode[1024];
+	private Map<HashCode, List<Integer>> hashIndexes = new HashMap<>();
+
+	/**
+	 * Creates an empty index, which is only held in memory
+	 */
+	public ETAS_CatalogHashIndex() {
+		this(null);
+	}
+
+	private ETAS_CatalogHashIndex(File sidecarFile) {
+		this.sidecarFile = sidecarFile;
+	}
+
+	public static File getSidecarFile(File catalogsFile) {
+		return new File(catalogsFile.getAbsolutePath()+SIDECAR_SUFFIX);
+	}
+
+	/**
+	 * Loads an index from a sidecar file
+	 */
+	public static ETAS_CatalogHashIndex load(File sidecarFile) throws IOException {
+		ETAS_CatalogHashIndex index = new ETAS_CatalogHashIndex(sidecarFile);
+		long length = sidecarFile.length();
+		Preconditions.checkState(length >= 4, "Hash index file is truncated: %s", sidecarFile.getAbsolutePath());
+		if ((length - 4) % ENTRY_LEN != 0) {
+			// interrupted while appending, drop the partial entry so that new entries line up
+			length -= (length - 4) % ENTRY_LEN;
+			try (RandomAccessFile raFile = new RandomAccessFile(sidecarFile, "rw")) {
+				raFile.setLength(length);
+			}
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecarFile)))) {
+			int version = in.readInt();
+			Preconditions.checkState(version == FORMAT_VERSION, "Unknown hash index version: %s", version);
+			long numEntries = (length - 4)/ENTRY_LEN;
+			for (long i=0; i<numEntries; i++) {
+				int num = in.readInt();
+				byte[] bytes = new byte[16];
+				in.readFully(bytes);
+				index.addEntry(num, HashCode.fromBytes(bytes));
+			}
+		} catch (EOFException e) {
+			throw new IOException("Hash index file is truncated: "+sidecarFile.getAbsolutePath(), e);
+		}
+		return index;
+	}
+
+	/**
+	 * Brings the sidecar index for the given catalogs file up to date, hashing (in parallel) only catalogs which
+	 * were appended since it was last updated. The index is rebuilt if the catalogs file no longer matches it.
+	 */
+	public static ETAS_CatalogHashIndex update(File catalogsFile) throws IOException {
+		File sidecarFile = getSidecarFile(catalogsFile);
+		ETAS_MappedBinaryCatalogs catalogs = new ETAS_MappedBinaryCatalogs(catalogsFile);
+		int numCatalogs = catalogs.getNumCatalogs();
+
+		ETAS_CatalogHashIndex index = null;
+		if (sidecarFile.exists()) {
+			index = load(sidecarFile);
+			int last = index.size()-1;
+			if (index.size() > numCatalogs || (last >= 0 && !index.getHash(last).equals(hash(catalogs, last)))) {
+				System.out.println("Hash index doesn't match "+catalogsFile.getName()+", rebuilding");
+				index = null;
+			}
+		}
+		if (index == null) {
+			index = new ETAS_CatalogHashIndex(sidecarFile);
+			index.writeEntries(0, false);
+		}
+
+		int start = index.size();
+		if (start < numCatalogs) {
+			System.out.println("Hashing catalogs "+start+" through "+(numCatalogs-1));
+			HashCode[] newHashes = IntStream.range(start, numCatalogs).parallel()
+					.mapToObj(i -> hash(catalogs, i)).toArray(HashCode[]::new);
+			synchronized (index) {
+				for (int i=start; i<numCatalogs; i++)
+					index.addEntry(catalogs.getNumEvents(i), newHashes[i-start]);
+				index.writeEntries(start, true);
+			}
+		}
+		return index;
+	}
+
+	/*
+	 * hashing
+	 */
+
+	static Hasher newHasher(int numEvents) {
+		return hashFunc.newHasher().putInt(numEvents);
+	}
+
+	static void putEvent(Hasher hasher, ETAS_MappedBinaryCatalogs catalogs, int catalogIndex, int eventIndex) {
+		hasher.putInt(catalogs.getID(catalogIndex, eventIndex));
+		hasher.putInt(catalogs.getParentID(catalogIndex, eventIndex));
+		hasher.putInt(catalogs.getGeneration(catalogIndex, eventIndex));
+		hasher.putLong(catalogs.getOriginTime(catalogIndex, eventIndex));
+		hasher.putDouble(catalogs.getLatitude(catalogIndex, eventIndex));
+		hasher.putDouble(catalogs.getLongitude(catalogIndex, eventIndex));
+		hasher.putDouble(catalogs.getDepth(catalogIndex, eventIndex));
+		hasher.putDouble(catalogs.getMag(catalogIndex, eventIndex));
+		hasher.putDouble(catalogs.getDistanceToParent(catalogIndex, eventIndex));
+		hasher.putInt(catalogs.getNthERFIndex(catalogIndex, eventIndex));
+		hasher.putInt(catalogs.getFSSIndex(catalogIndex, eventIndex));
+		hasher.putInt(catalogs.getGridNodeIndex(catalogIndex, eventIndex));
+	}
+
+	static void putEvent(Hasher hasher, ETAS_EqkRupture rup) {
+		hasher.putInt(rup.getID());
+		hasher.putInt(rup.getParentID());
+		hasher.putInt((short)rup.getGeneration());
+		hasher.putLong(rup.getOriginTime());
+		Location hypo = rup.getHypocenterLocation();
+		hasher.putDouble(hypo.getLatitude());
+		hasher.putDouble(hypo.getLongitude());
+		hasher.putDouble(hypo.getDepth());
+		hasher.putDouble(rup.getMag());
+		hasher.putDouble(rup.getDistanceToParent());
+		hasher.putInt(rup.getNthERF_Index());
+		hasher.putInt(rup.getFSSIndex());
+		hasher.putInt(rup.getGridNodeIndex());
+	}
+
+	public static HashCode hash(ETAS_MappedBinaryCatalogs catalogs, int catalogIndex) {
+		int num = catalogs.getNumEvents(catalogIndex);
+		Hasher hasher = newHasher(num);
+		for (int i=0; i<num; i++)
+			putEvent(hasher, catalogs, catalogIndex, i);
+		return hasher.hash();
+	}
+
+	public static HashCode hash(List<ETAS_EqkRupture> catalog) {
+		Hasher hasher = newHasher(catalog.size());
+		for (ETAS_EqkRupture rup : catalog)
+			putEvent(hasher, rup);
+		return hasher.hash();
+	}
+
+	/*
+	 * index maintenance
+	 */
+
+	private void addEntry(int num, HashCode hash) {
+		if (size == hashes.length) {
+			numEvents = Arrays.copyOf(numEvents, size*2);
+			hashes = Arrays.copyOf(hashes, size*2);
+		}
+		numEvents[size] = num;
+		hashes[size] = hash;
+		List<Integer> indexes = hashIndexes.get(hash);
+		if (indexes == null) {
+			indexes = new ArrayList<>(1);
+			hashIndexes.put(hash, indexes);
+		}
+		indexes.add(size);
+		size++;
+	}
+
+	private void writeEntries(int start, boolean append) throws IOException {
+		if (sidecarFile == null)
+			return;
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(sidecarFile, append)))) {
+			if (!append)
+				out.writeInt(FORMAT_VERSION);
+			for (int i=start; i<size; i++) {
+				out.writeInt(numEvents[i]);
+				out.write(hashes[i].asBytes());
+			}
+		}
+	}
+
+	/**
+	 * Adds a catalog as it is written, appending it to the sidecar file if this index has one
+	 * @return index of the catalog
+	 */
+	public synchronized int add(List<ETAS_EqkRupture> catalog) throws IOException {
+		return add(catalog.size(), hash(catalog));
+	}
+
+	/**
+	 * Adds a catalog hash computed elsewhere, appending it to the sidecar file if this index has one
+	 * @return index of the catalog
+	 */
+	public synchronized int add(int numEvents, HashCode hash) throws IOException {
+		int index = size;
+		addEntry(numEvents, hash);
+		writeEntries(index, true);
+		return index;
+	}
+
+	/**
+	 * Writes the full index to the given sidecar file, which is used for any subsequent additions
+	 */
+	public synchronized void write(File sidecarFile) throws IOException {
+		this.sidecarFile = sidecarFile;
+		writeEntries(0, false);
+	}
+
+	/*
+	 * queries
+	 */
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized HashCode getHash(int catalogIndex) {
+		Preconditions.checkElementIndex(catalogIndex, size);
+		return hashes[catalogIndex];
+	}
+
+	public synchronized int getNumEvents(int catalogIndex) {
+		Preconditions.checkElementIndex(catalogIndex, size);
+		return numEvents[catalogIndex];
+	}
+
+	/**
+	 * @return indexes of all catalogs with the given hash, in increasing order (empty if none)
+	 */
+	public synchronized List<Integer> getCatalogs(HashCode hash) {
+		List<Integer> indexes = hashIndexes.get(hash);
+		if (indexes == null)
+			return new ArrayList<>();
+		return new ArrayList<>(indexes);
+	}
+
+	public synchronized boolean contains(HashCode hash) {
+		return hashIndexes.containsKey(hash);
+	}
+
+	/**
+	 * @return groups of identical catalogs, each in increasing order, ordered by their first catalog. Empty catalogs
+	 * are excluded if includeEmpty is false.
+	 */
+	public synchronized List<List<Integer>> getDuplicates(boolean includeEmpty) {
+		List<List<Integer>> dups = new ArrayList<>();
+		for (int i=0; i<size; i++) {
+			if (!includeEmpty && numEvents[i] == 0)
+				continue;
+			List<Integer> indexes = hashIndexes.get(hashes[i]);
+			if (indexes.size() > 1 && indexes.get(0) == i)
+				dups.add(new ArrayList<>(indexes));
+		}
+		return dups;
+	}
+
+	/**
+	 * Compares this index to that of another run
+	 * @return map from catalog indexes in this index to indexes of identical catalogs in the other index, for
+	 * non-empty catalogs found in both
+	 */
+	public synchronized Map<Integer, List<Integer>> getShared(ETAS_CatalogHashIndex other) {
+		Map<Integer, List<Integer>> shared = new HashMap<>();
+		for (int i=0; i<size; i++) {
+			if (numEvents[i] == 0)
+				continue;
+			List<Integer> matches = other.getCatalogs(hashes[i]);
+			if (!matches.isEmpty())
+				shared.put(i, matches);
+		}
+		return shared;
+	}
+
+}
@@ -0,0 +1,292 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Compact index of rupture occurrences in a set of ETAS catalogs, used so that hazard calculations only visit the
+ * catalog events that can affect a given site.
+ *
+ * Each distinct rupture is assigned a key: either a fault system rupture, or a gridded (node, magnitude bin) pair.
+ * Every occurrence of a key in a catalog is stored once, in catalog order, along with a bit mask of the durations
+ * whose time window contains its origin time. Occurrences are also listed by key, so that the occurrences of any
+ * set of keys can be gathered and visited in catalog order.
+ *
+ * As in the original hazard calculation, catalogs without an M>5 event are left out entirely.
+ */
+class ETAS_CatalogRuptureIndex {
+
+	private int numCatalogs;
+
+	// keys
+	private int numKeys;
+	private int[] keyFSSIndexes; // -1 for gridded keys
+	private int[] keyNodes; // -1 for fault keys
+	private ETAS_EqkRupture[] keyRups; // first occurrence of each key
+
+	// distinct gridded nodes, with the hypocenter of the first occurrence in each, and the keys for each node
+	private int[] nodes;
+	private Location[] nodeLocs;
+	private int[] nodeKeyStarts;
+	private int[] nodeKeys;
+
+	// occurrences, in catalog order
+	private int numOccurrences;
+	private int[] occCatalogs;
+	private int[] occKeys;
+	private int[] occDurationMasks;
+
+	// occurrences of key k are keyOccs[keyOccStarts[k]] to keyOccs[keyOccStarts[k+1]-1], in increasing order
+	private int[] keyOccStarts;
+	private int[] keyOccs;
+
+	/**
+	 * @param catalogs
+	 * @param includeFaults if true, fault system ruptures are indexed
+	 * @param gridSources gridded source provider used to assign nodes and magnitude bins, or null to skip gridded ruptures
+	 * @param startOTs start of each duration window (inclusive)
+	 * @param endOTs end of each duration window (exclusive)
+	 */
+	public ETAS_CatalogRuptureIndex(List<List<ETAS_EqkRupture>> catalogs, boolean includeFaults,
+			ETAS_CatalogGridSourceProvider gridSources, long[] startOTs, long[] endOTs) {
+		Preconditions.checkArgument(startOTs.length == endOTs.length);
+		Preconditions.checkArgument(startOTs.length <= 31, "Too many durations for duration mask: %s", startOTs.length);
+		numCatalogs = catalogs.size();
+
+		Map<Integer, Integer> fssKeys = Maps.newHashMap();
+		Map<Long, Integer> griddedKeys = Maps.newHashMap();
+		Map<Integer, Integer> nodeIndexes = Maps.newHashMap();
+
+		int keyCapacity = 1024;
+		keyFSSIndexes = new int[keyCapacity];
+		keyNodes = new int[keyCapacity];
+		keyRups = new ETAS_EqkRupture[keyCapacity];
+
+		int nodeCapacity = 1024;
+		nodes = new int[nodeCapacity];
+		nodeLocs = new Location[nodeCapacity];
+		int numNodes = 0;
+
+		int occCapacity = 1024;
+		occCatalogs = new int[occCapacity];
+		occKeys = new int[occCapacity];
+		occDurationMasks = new int[occCapacity];
+
+		for (int catalogIndex=0; catalogIndex<numCatalogs; catalogIndex++) {
+			List<ETAS_EqkRupture> catalog = catalogs.get(catalogIndex);
+			boolean hasM5 = false;
+			for (ETAS_EqkRupture rup : catalog) {
+				if (rup.getMag() > 5) {
+					hasM5 = true;
+					break;
+				}
+			}
+			if (!hasM5)
+				continue;
+
+			for (ETAS_EqkRupture rup : catalog) {
+				Integer key;
+				int fssIndex = rup.getFSSIndex();
+				int nodeIndex = -1;
+				if (fssIndex >= 0) {
+					// fault based
+					if (!includeFaults)
+						continue;
+					key = fssKeys.get(fssIndex);
+					if (key == null) {
+						key = numKeys;
+						fssKeys.put(fssIndex, key);
+					}
+				} else {
+					// gridded
+					if (gridSources == null)
+						continue;
+					nodeIndex = gridSources.getNodeIndex(rup);
+					int mfdIndex = gridSources.getMagIndex(rup);
+					if (nodeIndex < 0 || mfdIndex < 0)
+						continue;
+					if (!nodeIndexes.containsKey(nodeIndex)) {
+						if (numNodes == nodeCapacity) {
+							nodeCapacity *= 2;
+							nodes = Arrays.copyOf(nodes, nodeCapacity);
+							nodeLocs = Arrays.copyOf(nodeLocs, nodeCapacity);
+						}
+						nodes[numNodes] = nodeIndex;
+						nodeLocs[numNodes] = rup.getHypocenterLocation();
+						nodeIndexes.put(nodeIndex, numNodes);
+						numNodes++;
+					}
+					long griddedKey = (long)nodeIndex << 32 | mfdIndex;
+					key = griddedKeys.get(griddedKey);
+					if (key == null) {
+						key = numKeys;
+						griddedKeys.put(griddedKey, key);
+					}
+				}
+
+				if (key == numKeys) {
+					// new key
+					if (numKeys == keyCapacity) {
+						keyCapacity *= 2;
+						keyFSSIndexes = Arrays.copyOf(keyFSSIndexes, keyCapacity);
+						keyNodes = Arrays.copyOf(keyNodes, keyCapacity);
+						keyRups = Arrays.copyOf(keyRups, keyCapacity);
+					}
+					keyFSSIndexes[numKeys] = fssIndex >= 0 ? fssIndex : -1;
+					keyNodes[numKeys] = nodeIndex;
+					keyRups[numKeys] = rup;
+					numKeys++;
+				}
+
+				long ot = rup.getOriginTime();
+				int mask = 0;
+				for (int i=0; i<startOTs.length; i++)
+					if (ot >= startOTs[i] && ot < endOTs[i])
+						mask |= 1 << i;
+				if (mask == 0)
+					// outside of every window
+					continue;
+
+				if (numOccurrences == occCapacity) {
+					Preconditions.checkState(occCapacity < Integer.MAX_VALUE/2, "Too many rupture occurrences to index");
+					occCapacity *= 2;
+					occCatalogs = Arrays.copyOf(occCatalogs, occCapacity);
+					occKeys = Arrays.copyOf(occKeys, occCapacity);
+					occDurationMasks = Arrays.copyOf(occDurationMasks, occCapacity);
+				}
+				occCatalogs[numOccurrences] = catalogIndex;
+				occKeys[numOccurrences] = key;
+				occDurationMasks[numOccurrences] = mask;
+				numOccurrences++;
+			}
+		}
+
+		keyFSSIndexes = Arrays.copyOf(keyFSSIndexes, numKeys);
+		keyNodes = Arrays.copyOf(keyNodes, numKeys);
+		keyRups = Arrays.copyOf(keyRups, numKeys);
+		occCatalogs = Arrays.copyOf(occCatalogs, numOccurrences);
+		occKeys = Arrays.copyOf(occKeys, numOccurrences);
+		occDurationMasks = Arrays.copyOf(occDurationMasks, numOccurrences);
+		nodes = Arrays.copyOf(nodes, numNodes);
+		nodeLocs = Arrays.copyOf(nodeLocs, numNodes);
+
+		// list occurrences by key
+		keyOccStarts = new int[numKeys+1];
+		for (int i=0; i<numOccurrences; i++)
+			keyOccStarts[occKeys[i]+1]++;
+		for (int k=0; k<numKeys; k++)
+			keyOccStarts[k+1] += keyOccStarts[k];
+		keyOccs = new int[numOccurrences];
+		int[] fill = Arrays.copyOf(keyOccStarts, numKeys);
+		for (int i=0; i<numOccurrences; i++)
+			keyOccs[fill[occKeys[i]]++] = i;
+
+		// list gridded keys by node
+		nodeKeyStarts = new int[numNodes+1];
+		for (int k=0; k<numKeys; k++)
+			if (keyNodes[k] >= 0)
+				nodeKeyStarts[nodeIndexes.get(keyNodes[k])+1]++;
+		for (int n=0; n<numNodes; n++)
+			nodeKeyStarts[n+1] += nodeKeyStarts[n];
+		nodeKeys = new int[nodeKeyStarts[numNodes]];
+		fill = Arrays.copyOf(nodeKeyStarts, numNodes);
+		for (int k=0; k<numKeys; k++)
+			if (keyNodes[k] >= 0)
+				nodeKeys[fill[nodeIndexes.get(keyNodes[k])]++] = k;
+	}
+
+	public int getNumCatalogs() {
+		return numCatalogs;
+	}
+
+	public int getNumKeys() {
+		return numKeys;
+	}
+
+	public int getNumOccurrences() {
+		return numOccurrences;
+	}
+
+	/**
+	 * @return fault system rupture index for the given key, or -1 if it is a gridded key
+	 */
+	public int getFSSIndex(int key) {
+		return keyFSSIndexes[key];
+	}
+
+	/**
+	 * @return first occurrence of the given key
+	 */
+	public ETAS_EqkRupture getRupture(int key) {
+		return keyRups[key];
+	}
+
+	public int getNumNodes() {
+		return nodes.length;
+	}
+
+	/**
+	 * @return hypocenter of the first occurrence in the given (distinct) node
+	 */
+	public Location getNodeLocation(int node) {
+		return nodeLocs[node];
+	}
+
+	/**
+	 * @return gridded keys in the given (distinct) node
+	 */
+	public int[] getNodeKeys(int node) {
+		return Arrays.copyOfRange(nodeKeys, nodeKeyStarts[node], nodeKeyStarts[node+1]);
+	}
+
+	public int getNumKeyOccurrences(int key) {
+		return keyOccStarts[key+1] - keyOccStarts[key];
+	}
+
+	/**
+	 * Gathers all occurrences of the given keys, in catalog order
+	 * @param includeKeys flags for the keys to include
+	 * @return occurrence indexes, in increasing order
+	 */
+	public int[] getOccurrences(boolean[] includeKeys) {
+		int count = 0;
+		for (int k=0; k<numKeys; k++)
+			if (includeKeys[k])
+				count += getNumKeyOccurrences(k);
+		int[] occs = new int[count];
+		count = 0;
+		for (int k=0; k<numKeys; k++) {
+			if (includeKeys[k]) {
+				int num = getNumKeyOccurrences(k);
+				System.arraycopy(keyOccs, keyOccStarts[k], occs, count, num);
+				count += num;
+			}
+		}
+		Arrays.sort(occs);
+		return occs;
+	}
+
+	public int getCatalog(int occurrence) {
+		return occCatalogs[occurrence];
+	}
+
+	public int getKey(int occurrence) {
+		return occKeys[occurrence];
+	}
+
+	/**
+	 * @return bit mask of the durations whose window contains this occurrence (bit i for duration i)
+	 */
+	public int getDurationMask(int occurrence) {
+		return occDurationMasks[occurrence];
+	}
+
+}
@@ -7,20 +7,17 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -102,12 +99,12 @@ import scratch.UCERF3.FaultSystemRupSet;
 import scratch.UCERF3.FaultSystemSolution;
 import scratch.UCERF3.analysis.FaultBasedMapGen;
 import scratch.UCERF3.erf.FaultSystemSolutionERF;
-import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
 import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
 import scratch.UCERF3.erf.ETAS.ETAS_MultiSimAnalysisTools;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
 import scratch.UCERF3.utils.FaultSystemIO;
+import scratch.kevin.util.CalcObjectPool;
 
 public class ETAS_HazardMapCalc {
 	
@@ -142,8 +139,8 @@ public class ETAS_HazardMapCalc {
 	private AttenRelRef gmpeRef;
 	protected String imtName;
 	private double period;
-	private Deque<ScalarIMR> gmpeDeque;
-	private BlockingDeque<FaultSystemSolutionERF> erfDeque;
+	private CalcObjectPool<ScalarIMR> gmpePool;
+	private CalcObjectPool<FaultSystemSolutionERF> erfPool;
 	
 	private List<Site> sites;
 	
@@ -661,6 +658,10 @@ public class ETAS_HazardMapCalc {
 		System.out.println("Done");
 		long secs = watch.elapsed(TimeUnit.SECONDS);
 		System.out.println("Calculation took "+secs+" secs");
+		if (gmpePool != null)
+			System.out.println("GMPE pool: "+gmpePool);
+		if (erfPool != null)
+			System.out.println("ERF pool: "+erfPool);
 		watch.stop();
 		double curvesPerSecond = (double)curvesCalculated/(double)secs;
 		System.out.println((float)curvesPerSecond+" curves/sec");
@@ -696,11 +697,36 @@ public class ETAS_HazardMapCalc {
 		}
 	}
 	
+	private ETAS_CatalogRuptureIndex rupIndex;
+	
+	/**
+	 * @return index of rupture occurrences in the catalogs, built on first use
+	 */
+	private synchronized ETAS_CatalogRuptureIndex getRuptureIndex() {
+		if (rupIndex == null) {
+			Stopwatch watch = Stopwatch.createStarted();
+			rupIndex = new ETAS_CatalogRuptureIndex(catalogs, calcFaults, calcGridded ? gridSources : null, startOTs, endOTs);
+			watch.stop();
+			System.out.println("Indexed "+rupIndex.getNumOccurrences()+" occurrences of "+rupIndex.getNumKeys()
+				+" unique ruptures in "+watch.elapsed(TimeUnit.SECONDS)+" secs");
+		}
+		return rupIndex;
+	}
+	
+	// curve types within the per catalog work arrays
+	private static final int FAULT_CURVE = 0;
+	private static final int GRIDDED_CURVE = 1;
+	private static final int COMBINED_CURVE = 2;
+	
 	/**
 	 * Calculates a catalog based hazard curves. First computes a conditional exceedence curve for each individual
 	 * catalog, then computes a hazard curve across all catalogs by summing the exceedence probabilities scaled
 	 * by 1/numCatalogs.
 	 * 
+	 * Catalogs are indexed once by unique rupture (see {@link ETAS_CatalogRuptureIndex}). Each site only visits the
+	 * occurrences of ruptures within the cutoff distance, in catalog order, and catalogs with no such occurrences
+	 * (which contribute zero exceedance probability) are skipped.
+	 * 
 	 * @param site
 	 * @param precomputedFaultVals
 	 * @return HazardCalcResult instance
@@ -709,10 +735,16 @@ public class ETAS_HazardMapCalc {
 		Table<Duration, MapType, DiscretizedFunc> curves = getInitializedCurvesMap(xVals, 0d); // linear space
 		
 		if (calcFaults || calcGridded) {
+			ETAS_CatalogRuptureIndex rupIndex = getRuptureIndex();
+			int numX = calcXVals.size();
+			
+			// conditional non-exceedance probabilities for each unique rupture, null if it doesn't affect this site
+			double[][] keyNonExceeds = new double[rupIndex.getNumKeys()][];
+			
 			// prepare inputs
 			ScalarIMR gmpe = null;
-			Map<Integer, DiscretizedFunc> faultNonExceeds = null;
 			if (calcFaults) {
+				Map<Integer, DiscretizedFunc> faultNonExceeds;
 				if (precomputedFaultVals == null) {
 					// calculate them now
 					gmpe = checkOutGMPE();
@@ -722,139 +754,104 @@ public class ETAS_HazardMapCalc {
 					faultNonExceeds = calcFaultExceeds(precomputedFaultVals);
 				}
 				complimentCurve(faultNonExceeds); // they were actually exceeds
+				
+				for (int key=0; key<keyNonExceeds.length; key++) {
+					int fssIndex = rupIndex.getFSSIndex(key);
+					if (fssIndex < 0)
+						continue;
+					DiscretizedFunc condNonExceed = faultNonExceeds.get(fssIndex);
+					if (condNonExceed != null)
+						keyNonExceeds[key] = getYVals(condNonExceed);
+					// else not within cutoff dist
+				}
 			}
 			
-			Table<Integer, Integer, DiscretizedFunc> griddedNonExceeds = null;
 			if (calcGridded) {
-				// will calculate on the fly as needed
-				griddedNonExceeds = HashBasedTable.create();
 				Preconditions.checkState(gridSources.isConditional());
 				if (gmpe == null)
 					gmpe = checkOutGMPE();
 				gmpe.setSite(site);
+				
+				for (int node=0; node<rupIndex.getNumNodes(); node++) {
+					double dist = LocationUtils.horzDistanceFast(site.getLocation(), rupIndex.getNodeLocation(node));
+					if (dist > distCutoff)
+						continue;
+					for (int key : rupIndex.getNodeKeys(node))
+						keyNonExceeds[key] = calcGriddedNonExceeds(rupIndex.getRupture(key), gmpe);
+				}
 			}
 			
 			Preconditions.checkState(calcFaults || calcGridded);
 			
+			// gather occurrences of every rupture that affects this site, in catalog order
+			boolean[] includeKeys = new boolean[keyNonExceeds.length];
+			for (int key=0; key<keyNonExceeds.length; key++)
+				includeKeys[key] = keyNonExceeds[key] != null;
+			int[] occurrences = rupIndex.getOccurrences(includeKeys);
+			
 			// now actually calculate
 			double rateEach = 1d/catalogs.size();
 			
-			HashSet<Integer> ignoreGriddedNodes = new HashSet<Integer>();
+			boolean[] calcTypes = { calcFaults, calcGridded, calcFaults && calcGridded };
+			MapType[] types = { MapType.FAULT_ONLY, MapType.GRIDDED_ONLY, MapType.COMBINED };
+			double[][][] totals = new double[durations.length][types.length][numX]; // linear space
+			double[][][] catCurves = new double[durations.length][2][numX]; // log space if applicable
 			
-			for (List<ETAS_EqkRupture> catalog : catalogs) {
-				boolean hasM5 = false;
-				for (ETAS_EqkRupture rup : catalog) {
-					if (rup.getMag() > 5) {
-						hasM5 = true;
-						break;
-					}
-				}
-				if (!hasM5)
-					continue;
-				Table<Duration, MapType, DiscretizedFunc> catCurves = getInitializedCurvesMap(calcXVals, 1d); // log space if applicable
+			int occ = 0;
+			while (occ < occurrences.length) {
+				int catalogIndex = rupIndex.getCatalog(occurrences[occ]);
 				
-				for (ETAS_EqkRupture rup : catalog) {
-					DiscretizedFunc condNonExceed; // conditional non-exceedance probabilities
-					MapType targetType; // hazard curve to apply this to
-					if (rup.getFSSIndex() >= 0) {
-						// fault based
-						if (!calcFaults)
-							continue;
-						condNonExceed = faultNonExceeds.get(rup.getFSSIndex());
-						if (condNonExceed == null)
-							// not within cutoff dist
-							continue;
-						targetType = MapType.FAULT_ONLY;
-					} else {
-						// gridded
-						if (!calcGridded)
-							continue;
-						int nodeIndex = gridSources.getNodeIndex(rup);
-						int mfdIndex = gridSources.getMagIndex(rup);
-						if (nodeIndex < 0 || mfdIndex < 0 || ignoreGriddedNodes.contains(nodeIndex))
-							continue;
-						double dist = LocationUtils.horzDistanceFast(site.getLocation(), rup.getHypocenterLocation());
-						if (dist > distCutoff) {
-							ignoreGriddedNodes.add(nodeIndex);
-							continue;
-						}
-						condNonExceed = griddedNonExceeds.get(nodeIndex, mfdIndex);
-						targetType = MapType.GRIDDED_ONLY;
-						if (condNonExceed == null) {
-							// calculate it
-							// multiple ruptures with different focal mechanisms
-							Iterable<ProbEqkRupture> rups = gridSources.getConditionalRuptures(rup);
-							if (rups == null)
-								continue;
-							
-							condNonExceed = calcXVals.deepClone();
-							initializeCurve(condNonExceed, 1d);
-							double sumRate = 0d;
-							for (ProbEqkRupture subRup : rups) {
-								double subMag = subRup.getMag();
-								Preconditions.checkState(subMag >= rup.getMag()-0.06 && subMag <= rup.getMag()+0.06,
-										"Unexpected mag in sub-rupture. Expected %s, got %s", rup.getMag(), subMag);
-								gmpe.setEqkRupture(subRup);
-								double rupProb = subRup.getProbability();
-								double rupRate = -Math.log(1 - rupProb);
-								sumRate += rupRate;
-//								System.out.println(subRup.getAveRake()+": "+rupProb);
-								
-								for (int i=0; i<condNonExceed.size(); i++) {
-									// TODO doing this right?
-									double exceedProb = gmpe.getExceedProbability(condNonExceed.getX(i));
-									// scale by the rate of this rupture
-									condNonExceed.set(i, condNonExceed.getY(i)*(1-rupRate*exceedProb));
-									// this way if treating it as poisson, but since it's an actual occurance, I don't
-									// think that we should
-//									condNonExceed.set(i, condNonExceed.getY(i)*Math.pow(1-rupProb, exceedProb));
-								}
-							}
-//							System.out.println("SUM: "+sumProb);
-//							System.exit(0);
-							Preconditions.checkState((float)sumRate == 1f, "Rupture rates don't sum to 1! %s", sumRate);
-							
-							griddedNonExceeds.put(nodeIndex, mfdIndex, condNonExceed);
-						}
-					}
-					
-					long ot = rup.getOriginTime();
+				for (double[][] durationCurves : catCurves)
+					for (double[] catCurve : durationCurves)
+						Arrays.fill(catCurve, 1d);
+				
+				for (; occ < occurrences.length && rupIndex.getCatalog(occurrences[occ]) == catalogIndex; occ++) {
+					int key = rupIndex.getKey(occurrences[occ]);
+					int mask = rupIndex.getDurationMask(occurrences[occ]);
+					double[] condNonExceed = keyNonExceeds[key];
+					int targetType = rupIndex.getFSSIndex(key) >= 0 ? FAULT_CURVE : GRIDDED_CURVE;
 					
 					// now add the rupture to the appropriate curves
 					for (int i=0; i<durations.length; i++) {
-						// duration of 0 means all
-						if (ot < startOTs[i] || ot >= endOTs[i])
+						if ((mask & (1 << i)) == 0)
 							// rup occurs outside of window, skip
 							continue;
-						DiscretizedFunc targetCurve = catCurves.get(durations[i], targetType);
-						for (int k=0; k<targetCurve.size(); k++) {
+						double[] targetCurve = catCurves[i][targetType];
+						for (int k=0; k<numX; k++)
 							// multiply this into the total non-exceedance probability
 							// (get the product of all non-eceedance probabilities)
-							targetCurve.set(k, targetCurve.getY(k) * condNonExceed.getY(k));
-						}
+							targetCurve[k] *= condNonExceed[k];
 					}
 				}
 				
-				if (catCurves.containsColumn(MapType.COMBINED)) {
-					// build combined catalog curves
-					for (Duration duration : catCurves.rowKeySet()) {
-						DiscretizedFunc catFaultCurve = catCurves.get(duration, MapType.FAULT_ONLY);
-						DiscretizedFunc catGriddedCurve = catCurves.get(duration, MapType.GRIDDED_ONLY);
-						DiscretizedFunc catCombinedCurve = catCurves.get(duration, MapType.COMBINED);
-						for (int k=0; k<catCombinedCurve.size(); k++)
-							catCombinedCurve.set(k, catFaultCurve.getY(k) * catGriddedCurve.getY(k));
+				for (int i=0; i<durations.length; i++) {
+					double[] catFaultCurve = catCurves[i][FAULT_CURVE];
+					double[] catGriddedCurve = catCurves[i][GRIDDED_CURVE];
+					for (int t=0; t<types.length; t++) {
+						if (!calcTypes[t])
+							continue;
+						double[] totalCurve = totals[i][t];
+						for (int k=0; k<numX; k++) {
+							double nonExceed;
+							if (t == COMBINED_CURVE)
+								// build combined catalog curves
+								nonExceed = catFaultCurve[k] * catGriddedCurve[k];
+							else
+								nonExceed = catCurves[i][t][k];
+							// convert from total non-exceed prob to total exceed prob, and add into total curves
+							totalCurve[k] = totalCurve[k] + rateEach*(1d-nonExceed);
+						}
 					}
 				}
-				
-				for (Cell<Duration, MapType, DiscretizedFunc> cell : catCurves.cellSet()) {
-					DiscretizedFunc catCurve = cell.getValue();
-					// convert from total non-exceed prob to total exceed prob
-					complimentCurve(catCurve);
-					
-					// add into total curves
-					DiscretizedFunc totalCurve = curves.get(cell.getRowKey(), cell.getColumnKey());
+			}
+			
+			for (int i=0; i<durations.length; i++) {
+				for (int t=0; t<types.length; t++) {
+					if (!calcTypes[t])
+						continue;
+					DiscretizedFunc totalCurve = curves.get(durations[i], types[t]);
 					for (int k=0; k<xVals.size(); k++)
-						totalCurve.set(k, totalCurve.getY(k) + rateEach*catCurve.getY(k));
+						totalCurve.set(k, totals[i][t][k]);
 				}
 			}
 			
@@ -868,6 +865,52 @@ public class ETAS_HazardMapCalc {
 		return curves;
 	}
 	
+	private static double[] getYVals(DiscretizedFunc curve) {
+		double[] vals = new double[curve.size()];
+		for (int i=0; i<vals.length; i++)
+			vals[i] = curve.getY(i);
+		return vals;
+	}
+	
+	/**
+	 * Calculates conditional non-exceedance probabilities for a gridded rupture, combining the ruptures with
+	 * different focal mechanisms at its node and magnitude
+	 * 
+	 * @return non-exceedance probabilities at each calculation x value, or null if there are no conditional ruptures
+	 */
+	private double[] calcGriddedNonExceeds(ETAS_EqkRupture rup, ScalarIMR gmpe) {
+		// multiple ruptures with different focal mechanisms
+		Iterable<ProbEqkRupture> rups = gridSources.getConditionalRuptures(rup);
+		if (rups == null)
+			return null;
+		
+		double[] condNonExceed = new double[calcXVals.size()];
+		Arrays.fill(condNonExceed, 1d);
+		double sumRate = 0d;
+		for (ProbEqkRupture subRup : rups) {
+			double subMag = subRup.getMag();
+			Preconditions.checkState(subMag >= rup.getMag()-0.06 && subMag <= rup.getMag()+0.06,
+					"Unexpected mag in sub-rupture. Expected %s, got %s", rup.getMag(), subMag);
+			gmpe.setEqkRupture(subRup);
+			double rupProb = subRup.getProbability();
+			double rupRate = -Math.log(1 - rupProb);
+			sumRate += rupRate;
+			
+			for (int i=0; i<condNonExceed.length; i++) {
+				// TODO doing this right?
+				double exceedProb = gmpe.getExceedProbability(calcXVals.getX(i));
+				// scale by the rate of this rupture
+				condNonExceed[i] = condNonExceed[i]*(1-rupRate*exceedProb);
+				// this way if treating it as poisson, but since it's an actual occurance, I don't
+				// think that we should
+//				condNonExceed[i] = condNonExceed[i]*Math.pow(1-rupProb, exceedProb);
+			}
+		}
+		Preconditions.checkState((float)sumRate == 1f, "Rupture rates don't sum to 1! %s", sumRate);
+		
+		return condNonExceed;
+	}
+	
 	private void calcLongTerm(Site site, Duration[] calcDurations, Table<Duration, MapType, DiscretizedFunc> curves) {
 		FaultSystemSolutionERF erf = checkOutERF();
 		ScalarIMR gmpe = checkOutGMPE();
@@ -1243,67 +1286,59 @@ public class ETAS_HazardMapCalc {
 		return sites;
 	}
 	
-	private synchronized ScalarIMR checkOutGMPE() {
-		if (gmpeDeque == null)
-			gmpeDeque = new ArrayDeque<ScalarIMR>();
-		if (gmpeDeque.isEmpty()) {
-			// build a new one
-			ScalarIMR gmpe = gmpeRef.instance(null);
-			gmpe.setParamDefaults();
-			gmpe.setIntensityMeasure(imtName);
-			if (imtName.equals(SA_Param.NAME))
-				SA_Param.setPeriodInSA_Param(gmpe.getIntensityMeasure(), period);
-			return gmpe;
-		}
-		return gmpeDeque.pop();
+	private synchronized CalcObjectPool<ScalarIMR> getGMPEPool() {
+		if (gmpePool == null)
+			// GMPEs are small, one per thread
+			gmpePool = new CalcObjectPool<>(() -> {
+				ScalarIMR gmpe = gmpeRef.instance(null);
+				gmpe.setParamDefaults();
+				gmpe.setIntensityMeasure(imtName);
+				if (imtName.equals(SA_Param.NAME))
+					SA_Param.setPeriodInSA_Param(gmpe.getIntensityMeasure(), period);
+				return gmpe;
+			}, Integer.MAX_VALUE);
+		return gmpePool;
+	}
+	
+	private ScalarIMR checkOutGMPE() {
+		return getGMPEPool().checkOut();
 	}
 	
-	private synchronized void checkInGMPE(ScalarIMR gmpe) {
-		gmpeDeque.push(gmpe);
+	private void checkInGMPE(ScalarIMR gmpe) {
+		gmpePool.checkIn(gmpe);
 	}
 	
-	private static double mem_gb_per_erf = 1.5d; // actually closer to 0.5, but leave a healthy buffer for other memory usage
-	private int maxNumERFs = -1;
-	private int erfsBuilt = 0;
+	// fraction of the heap that ERFs can use, leaving a healthy buffer for other memory usage
+	private static final double erf_heap_fraction = 0.33;
+	private static final int min_num_erfs = 4;
 	
-	private FaultSystemSolutionERF checkOutERF() {
-		// need one ERF per thread because of background seismicity and different durations
-		synchronized (this) {
-			if (erfDeque == null) {
-				erfDeque = new LinkedBlockingDeque<FaultSystemSolutionERF>();
-				// if we have extreme parallelism, we need to limit the amount of ERFs that can ever exist at once
-				Runtime runtime = Runtime.getRuntime();
-				double maxMemGB = runtime.maxMemory()/1073741824d;
-				maxNumERFs = (int)(maxMemGB/mem_gb_per_erf);
-				System.out.println("Max number of ERFs to build: "+maxNumERFs);
-				if (maxNumERFs < 4)
-					maxNumERFs = 4;
-			}
-		}
-		boolean canBuild = erfsBuilt < maxNumERFs;
-		if (erfDeque.isEmpty() && canBuild) {
-			// build a new one
-			erfsBuilt++;
+	private synchronized CalcObjectPool<FaultSystemSolutionERF> getERFPool() {
+		if (erfPool == null) {
+			// need one ERF per thread because of background seismicity and different durations, but if we have
+			// extreme parallelism, we need to limit the amount of ERFs that can ever exist at once
 			Preconditions.checkState(sol != null, "Must supply solution");
-			FaultSystemSolutionERF erf = new FaultSystemSolutionERF(sol);
-			erf.setParameter(IncludeBackgroundParam.NAME, IncludeBackgroundOption.INCLUDE);
-			erf.setParameter(BackgroundRupParam.NAME, BackgroundRupType.POINT);
-			erf.setParameter(AleatoryMagAreaStdDevParam.NAME, 0.0);
-			return erf;
-		}
-		try {
-//			System.out.println("Taking ERF");
-			FaultSystemSolutionERF erf = erfDeque.take();
-//			System.out.println("Got ERF, returning");
-			return erf;
-		} catch (InterruptedException e) {
-			throw ExceptionUtils.asRuntimeException(e);
-		}
+			erfPool = CalcObjectPool.sizedFromHeap(() -> {
+				FaultSystemSolutionERF erf = new FaultSystemSolutionERF(sol);
+				erf.setParameter(IncludeBackgroundParam.NAME, IncludeBackgroundOption.INCLUDE);
+				erf.setParameter(BackgroundRupParam.NAME, BackgroundRupType.POINT);
+				erf.setParameter(AleatoryMagAreaStdDevParam.NAME, 0.0);
+				// update now so that the pool is sized from a fully built ERF
+				erf.setParameter(ProbabilityModelParam.NAME, ProbabilityModelOptions.POISSON);
+				erf.getTimeSpan().setDuration(1d);
+				erf.updateForecast();
+				return erf;
+			}, erf_heap_fraction, min_num_erfs, Integer.MAX_VALUE);
+			System.out.println("Max number of ERFs to build: "+erfPool.getMaxInstances());
+		}
+		return erfPool;
+	}
+	
+	private FaultSystemSolutionERF checkOutERF() {
+		return getERFPool().checkOut();
 	}
 	
-	private synchronized void checkInERF(FaultSystemSolutionERF erf) {
-//		System.out.println("Putting ERF");
-		erfDeque.push(erf);
+	private void checkInERF(FaultSystemSolutionERF erf) {
+		erfPool.checkIn(erf);
 	}
 	
 	public GriddedGeoDataSet calcMap(MapType type1, MapType type2, Duration duration, boolean isProbAt_IML, double level) {
@@ -2178,7 +2213,7 @@ public class ETAS_HazardMapCalc {
 			}
 		} else {
 			calcGridded = calcGridded && gmpeRef != null;
-			List<List<ETAS_EqkRupture>> catalogs = ETAS_CatalogIO.loadCatalogsBinary(etasCatalogs, 5d);
+			List<List<ETAS_EqkRupture>> catalogs = ETAS_MappedBinaryCatalogs.loadCatalogs(etasCatalogs, 5d);
 			
 			if (plotCurves)
 				calcLongTerm = true;
@@ -0,0 +1,447 @@
+package scratch.kevin.ucerf3.etas;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.opensha.commons.geo.Location;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
+import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
+
+/**
+ * Read-only, memory mapped view of an ETAS binary catalogs file as written by
+ * {@link ETAS_CatalogIO#writeCatalogsBinary(File, List)}. Event attributes are read directly from the file as
+ * columns, so that analyses can scan large result files without materializing every catalog on the heap.
+ *
+ * File layout (big endian): number of catalogs (int), then for each catalog a version (short), number of events
+ * (int) and fixed length event records. Each record holds ID (int), parent ID (int), generation (short), origin
+ * time (long), hypocenter latitude, longitude and depth, magnitude and distance to parent (doubles), Nth ERF index,
+ * FSS index and grid node index (ints), followed in version 2 by ETAS k (double).
+ *
+ * The offset of each catalog is found on first access by skipping over the records of the preceding catalogs.
+ * All reads use absolute positions, so a single instance can be shared between threads.
+ */
+public class ETAS_MappedBinaryCatalogs {
+
+	// record field offsets
+	private static final int ID_OFFSET = 0;
+	private static final int PARENT_ID_OFFSET = 4;
+	private static final int GENERATION_OFFSET = 8;
+	private static final int ORIGIN_TIME_OFFSET = 10;
+	private static final int LAT_OFFSET = 18;
+	private static final int LON_OFFSET = 26;
+	private static final int DEPTH_OFFSET = 34;
+	private static final int MAG_OFFSET = 42;
+	private static final int DIST_TO_PARENT_OFFSET = 50;
+	private static final int NTH_ERF_INDEX_OFFSET = 58;
+	private static final int FSS_INDEX_OFFSET = 62;
+	private static final int GRID_NODE_INDEX_OFFSET = 66;
+	private static final int ETAS_K_OFFSET = 70;
+
+	static final int CATALOG_HEADER_LEN = 6;
+	private static final int RECORD_LEN_V1 = 70;
+	private static final int RECORD_LEN_V2 = 78;
+
+	// files are mapped in 1 GB chunks, each overlapping the next by enough that any record or catalog header
+	// starting in a chunk can be read entirely from that chunk
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_SIZE = 1l << CHUNK_BITS;
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int CHUNK_OVERLAP = 128;
+
+	private File file;
+	private long fileLength;
+	private MappedByteBuffer[] chunks;
+	private int numCatalogs;
+
+	// lazily built catalog index
+	private volatile boolean indexed = false;
+	private long[] recordStarts;
+	private int[] catalogSizes;
+	private short[] catalogVersions;
+	private int[] recordLens;
+
+	/**
+	 * Filter on event columns, evaluated before any event is materialized
+	 */
+	public interface EventFilter {
+
+		public boolean accept(ETAS_MappedBinaryCatalogs catalogs, int catalogIndex, int eventIndex);
+
+		public default EventFilter and(EventFilter other) {
+			return (catalogs, catalogIndex, eventIndex) -> accept(catalogs, catalogIndex, eventIndex)
+					&& other.accept(catalogs, catalogIndex, eventIndex);
+		}
+
+		public static final EventFilter ALL = (catalogs, catalogIndex, eventIndex) -> true;
+
+		/**
+		 * @return filter that accepts events with M>=minMag
+		 */
+		public static EventFilter minMag(double minMag) {
+			return (catalogs, catalogIndex, eventIndex) -> catalogs.getMag(catalogIndex, eventIndex) >= minMag;
+		}
+
+		/**
+		 * @return filter that accepts fault system solution ruptures only
+		 */
+		public static EventFilter faultOnly() {
+			return (catalogs, catalogIndex, eventIndex) -> catalogs.getFSSIndex(catalogIndex, eventIndex) >= 0;
+		}
+	}
+
+	public ETAS_MappedBinaryCatalogs(File file) throws IOException {
+		Preconditions.checkArgument(file.exists(), "Catalogs file doesn't exist: %s", file.getAbsolutePath());
+		Preconditions.checkArgument(!file.getName().toLowerCase().endsWith(".gz"),
+				"Compressed catalog files can't be memory mapped: %s", file.getAbsolutePath());
+		this.file = file;
+
+		try (RandomAccessFile raFile = new RandomAccessFile(file, "r"); FileChannel channel = raFile.getChannel()) {
+			fileLength = channel.size();
+			Preconditions.checkState(fileLength >= 4, "Catalogs file is truncated: %s", file.getAbsolutePath());
+			int numChunks = (int)((fileLength + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+			chunks = new MappedByteBuffer[numChunks];
+			for (int i=0; i<numChunks; i++) {
+				long start = (long)i << CHUNK_BITS;
+				long len = Math.min(fileLength - start, CHUNK_SIZE + CHUNK_OVERLAP);
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, len);
+			}
+		}
+
+		numCatalogs = chunks[0].getInt(0);
+		Preconditions.checkState(numCatalogs >= 0, "Bad catalog count in %s: %s", file.getAbsolutePath(), numCatalogs);
+	}
+
+	private void checkIndexed() {
+		if (!indexed)
+			buildIndex();
+	}
+
+	private synchronized void buildIndex() {
+		if (indexed)
+			return;
+		long[] recordStarts = new long[numCatalogs];
+		int[] catalogSizes = new int[numCatalogs];
+		short[] catalogVersions = new short[numCatalogs];
+		int[] recordLens = new int[numCatalogs];
+
+		long offset = 4;
+		for (int i=0; i<numCatalogs; i++) {
+			Preconditions.checkState(offset + CATALOG_HEADER_LEN <= fileLength,
+					"Catalogs file is truncated: expected %s catalogs, only found %s", numCatalogs, i);
+			MappedByteBuffer chunk = chunks[(int)(offset >>> CHUNK_BITS)];
+			int pos = (int)(offset & CHUNK_MASK);
+			short version = chunk.getShort(pos);
+			int size = chunk.getInt(pos+2);
+			int recordLen;
+			if (version == 1)
+				recordLen = RECORD_LEN_V1;
+			else if (version == 2)
+				recordLen = RECORD_LEN_V2;
+			else
+				throw new IllegalStateException("Unknown catalog version for catalog "+i+": "+version);
+			Preconditions.checkState(size >= 0, "Bad event count for catalog %s: %s", i, size);
+			catalogVersions[i] = version;
+			catalogSizes[i] = size;
+			recordLens[i] = recordLen;
+			recordStarts[i] = offset + CATALOG_HEADER_LEN;
+			offset = recordStarts[i] + (long)size*recordLen;
+			Preconditions.checkState(offset <= fileLength,
+					"Catalogs file is truncated: expected %s catalogs, only found %s", numCatalogs, i);
+		}
+
+		this.recordStarts = recordStarts;
+		this.catalogSizes = catalogSizes;
+		this.catalogVersions = catalogVersions;
+		this.recordLens = recordLens;
+		indexed = true;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getNumCatalogs() {
+		return numCatalogs;
+	}
+
+	public int getNumEvents(int catalogIndex) {
+		checkIndexed();
+		return catalogSizes[catalogIndex];
+	}
+
+	public short getVersion(int catalogIndex) {
+		checkIndexed();
+		return catalogVersions[catalogIndex];
+	}
+
+	/**
+	 * @return length in bytes of each event record in the given catalog
+	 */
+	public int getRecordLength(int catalogIndex) {
+		checkIndexed();
+		return recordLens[catalogIndex];
+	}
+
+	/**
+	 * @return file offset of the given catalog, including its header
+	 */
+	long getCatalogOffset(int catalogIndex) {
+		checkIndexed();
+		return recordStarts[catalogIndex] - CATALOG_HEADER_LEN;
+	}
+
+	/**
+	 * @return length in bytes of the given catalog, including its header
+	 */
+	long getCatalogLength(int catalogIndex) {
+		checkIndexed();
+		return CATALOG_HEADER_LEN + (long)catalogSizes[catalogIndex]*recordLens[catalogIndex];
+	}
+
+	/**
+	 * Copies the raw record for the given event into the destination buffer
+	 */
+	void copyRecord(int catalogIndex, int eventIndex, ByteBuffer dest) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		ByteBuffer src = chunk(offset).duplicate();
+		int pos = pos(offset, 0);
+		src.limit(pos + recordLens[catalogIndex]);
+		src.position(pos);
+		dest.put(src);
+	}
+
+	/*
+	 * column access
+	 */
+
+	private long recordOffset(int catalogIndex, int eventIndex) {
+		checkIndexed();
+		Preconditions.checkElementIndex(eventIndex, catalogSizes[catalogIndex]);
+		return recordStarts[catalogIndex] + (long)eventIndex*recordLens[catalogIndex];
+	}
+
+	private MappedByteBuffer chunk(long recordOffset) {
+		return chunks[(int)(recordOffset >>> CHUNK_BITS)];
+	}
+
+	private static int pos(long recordOffset, int fieldOffset) {
+		return (int)(recordOffset & CHUNK_MASK) + fieldOffset;
+	}
+
+	public int getID(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getInt(pos(offset, ID_OFFSET));
+	}
+
+	public int getParentID(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getInt(pos(offset, PARENT_ID_OFFSET));
+	}
+
+	public int getGeneration(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getShort(pos(offset, GENERATION_OFFSET));
+	}
+
+	public long getOriginTime(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getLong(pos(offset, ORIGIN_TIME_OFFSET));
+	}
+
+	public double getLatitude(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getDouble(pos(offset, LAT_OFFSET));
+	}
+
+	public double getLongitude(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getDouble(pos(offset, LON_OFFSET));
+	}
+
+	public double getDepth(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getDouble(pos(offset, DEPTH_OFFSET));
+	}
+
+	public Location getHypocenterLocation(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		MappedByteBuffer chunk = chunk(offset);
+		return new Location(chunk.getDouble(pos(offset, LAT_OFFSET)), chunk.getDouble(pos(offset, LON_OFFSET)),
+				chunk.getDouble(pos(offset, DEPTH_OFFSET)));
+	}
+
+	public double getMag(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getDouble(pos(offset, MAG_OFFSET));
+	}
+
+	public double getDistanceToParent(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getDouble(pos(offset, DIST_TO_PARENT_OFFSET));
+	}
+
+	public int getNthERFIndex(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getInt(pos(offset, NTH_ERF_INDEX_OFFSET));
+	}
+
+	public int getFSSIndex(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getInt(pos(offset, FSS_INDEX_OFFSET));
+	}
+
+	public int getGridNodeIndex(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		return chunk(offset).getInt(pos(offset, GRID_NODE_INDEX_OFFSET));
+	}
+
+	/**
+	 * @return ETAS k value, or NaN for version 1 catalogs which don't store it
+	 */
+	public double getETAS_k(int catalogIndex, int eventIndex) {
+		long offset = recordOffset(catalogIndex, eventIndex);
+		if (recordLens[catalogIndex] < RECORD_LEN_V2)
+			return Double.NaN;
+		return chunk(offset).getDouble(pos(offset, ETAS_K_OFFSET));
+	}
+
+	/*
+	 * aggregate queries
+	 */
+
+	/**
+	 * @return maximum magnitude in the given catalog, or NaN if it is empty
+	 */
+	public double getMaxMag(int catalogIndex) {
+		double maxMag = Double.NaN;
+		int size = getNumEvents(catalogIndex);
+		for (int i=0; i<size; i++) {
+			double mag = getMag(catalogIndex, i);
+			if (!(mag <= maxMag))
+				maxMag = mag;
+		}
+		return maxMag;
+	}
+
+	/**
+	 * @return number of events in the given catalog which pass the filter
+	 */
+	public int countEvents(int catalogIndex, EventFilter filter) {
+		int count = 0;
+		int size = getNumEvents(catalogIndex);
+		for (int i=0; i<size; i++)
+			if (filter.accept(this, catalogIndex, i))
+				count++;
+		return count;
+	}
+
+	/*
+	 * materialization
+	 */
+
+	/**
+	 * Builds a new rupture for the given event
+	 */
+	public ETAS_EqkRupture getRupture(int catalogIndex, int eventIndex) {
+		ETAS_EqkRupture rup = new ETAS_EqkRupture();
+		rup.setID(getID(catalogIndex, eventIndex));
+		rup.setParentID(getParentID(catalogIndex, eventIndex));
+		rup.setGeneration(getGeneration(catalogIndex, eventIndex));
+		rup.setOriginTime(getOriginTime(catalogIndex, eventIndex));
+		rup.setHypocenterLocation(getHypocenterLocation(catalogIndex, eventIndex));
+		rup.setMag(getMag(catalogIndex, eventIndex));
+		rup.setDistanceToParent(getDistanceToParent(catalogIndex, eventIndex));
+		rup.setNthERF_Index(getNthERFIndex(catalogIndex, eventIndex));
+		rup.setFSSIndex(getFSSIndex(catalogIndex, eventIndex));
+		rup.setGridNodeIndex(getGridNodeIndex(catalogIndex, eventIndex));
+		double k = getETAS_k(catalogIndex, eventIndex);
+		if (!Double.isNaN(k))
+			rup.setETAS_k(k);
+		return rup;
+	}
+
+	/**
+	 * Builds the events in the given catalog which pass the filter, in catalog order
+	 */
+	public List<ETAS_EqkRupture> loadCatalog(int catalogIndex, EventFilter filter) {
+		int size = getNumEvents(catalogIndex);
+		List<ETAS_EqkRupture> catalog = new ArrayList<>();
+		for (int i=0; i<size; i++)
+			if (filter.accept(this, catalogIndex, i))
+				catalog.add(getRupture(catalogIndex, i));
+		return catalog;
+	}
+
+	/**
+	 * Returns a view of all catalogs for code that expects ETAS_CatalogIO.loadCatalogsBinary(...) results. Each
+	 * catalog is built from the file the first time it is retrieved and then held by the view through a
+	 * SoftReference, so repeated passes over the list reuse built catalogs while the heap allows it, and catalogs
+	 * are rebuilt from the file only after the garbage collector has reclaimed them. Retrieved catalogs are
+	 * shared between callers and must not be modified.
+	 */
+	public List<List<ETAS_EqkRupture>> asCatalogList(EventFilter filter) {
+		return new CatalogListView(filter);
+	}
+
+	private class CatalogListView extends AbstractList<List<ETAS_EqkRupture>> implements RandomAccess {
+
+		private EventFilter filter;
+		private AtomicReferenceArray<SoftReference<List<ETAS_EqkRupture>>> built;
+
+		public CatalogListView(EventFilter filter) {
+			this.filter = filter;
+			this.built = new AtomicReferenceArray<>(numCatalogs);
+		}
+
+		@Override
+		public List<ETAS_EqkRupture> get(int index) {
+			Preconditions.checkElementIndex(index, numCatalogs);
+			SoftReference<List<ETAS_EqkRupture>> ref = built.get(index);
+			List<ETAS_EqkRupture> catalog = ref == null ? null : ref.get();
+			if (catalog == null) {
+				// concurrent builds of the same catalog are harmless, the last one wins
+				catalog = loadCatalog(index, filter);
+				built.set(index, new SoftReference<>(catalog));
+			}
+			return catalog;
+		}
+
+		@Override
+		public int size() {
+			return numCatalogs;
+		}
+
+	}
+
+	/**
+	 * Loads catalogs with M>=minMag, as a memory mapped view if possible (see {@link #asCatalogList(EventFilter)}),
+	 * otherwise (e.g. for compressed files) on the heap with ETAS_CatalogIO.
+	 */
+	public static List<List<ETAS_EqkRupture>> loadCatalogs(File file, double minMag) throws IOException {
+		if (file.getName().toLowerCase().endsWith(".gz"))
+			return ETAS_CatalogIO.loadCatalogsBinary(file, minMag);
+		EventFilter filter = minMag > Double.NEGATIVE_INFINITY ? EventFilter.minMag(minMag) : EventFilter.ALL;
+		return new ETAS_MappedBinaryCatalogs(file).asCatalogList(filter);
+	}
+
+	/**
+	 * Loads all catalogs, see {@link #loadCatalogs(File, double)}
+	 */
+	public static List<List<ETAS_EqkRupture>> loadCatalogs(File file) throws IOException {
+		return loadCatalogs(file, Double.NEGATIVE_INFINITY);
+	}
+
+}
@@ -35,7 +35,6 @@ import com.google.common.collect.Table.Cell;
 import mpi.MPI;
 import edu.usc.kmilner.mpj.taskDispatch.MPJTaskCalculator;
 import scratch.UCERF3.FaultSystemSolution;
-import scratch.UCERF3.erf.ETAS.ETAS_CatalogIO;
 import scratch.UCERF3.erf.ETAS.ETAS_EqkRupture;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator.TestScenario;
 import scratch.UCERF3.utils.FaultSystemIO;
@@ -86,7 +85,7 @@ public class MPJ_ETAS_HazardMapCalc extends MPJTaskCalculator {
 		super(cmd);
 		
 		File catalogsFile = new File(cmd.getOptionValue("catalogs"));
-		catalogs = ETAS_CatalogIO.loadCatalogsBinary(catalogsFile);
+		catalogs = ETAS_MappedBinaryCatalogs.loadCatalogs(catalogsFile);
 		
 		FaultSystemSolution sol = null;
 		if (cmd.hasOption("fault-data-file")) {
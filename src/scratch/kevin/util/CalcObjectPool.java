@@ -0,0 +1,236 @@
+package scratch.kevin.util;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.imr.AttenRelRef;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded pool of heavyweight calculation objects (e.g. ScalarIMR or FaultSystemSolutionERF instances) that can
+ * only be used by one thread at a time.
+ *
+ * Objects are built on demand until the maximum is reached, after which callers block until one is released.
+ * Each thread remembers the last object it released and gets that one back if it is still idle, which keeps
+ * per-object caches warm. The maximum can be set from the measured heap retained by one instance, see
+ * {@link #sizedFromHeap(Supplier, double, int, int)}.
+ *
+ * Usage:
+ * <pre>
+ * E obj = pool.checkOut();
+ * try {
+ *     ...
+ * } finally {
+ *     pool.checkIn(obj);
+ * }
+ * </pre>
+ *
+ * @param <E>
+ */
+public class CalcObjectPool<E> {
+
+	private Supplier<E> factory;
+	private int maxInstances;
+
+	private LinkedBlockingDeque<E> idle = new LinkedBlockingDeque<>();
+	// weak so that a pool thread doesn't keep a (possibly multi-GB) instance alive after the pool is discarded
+	private ThreadLocal<WeakReference<E>> lastUsed = new ThreadLocal<>();
+	private AtomicInteger numBuilt = new AtomicInteger(0);
+
+	private long bytesPerInstance = -1;
+
+	// metrics
+	private AtomicLong affinityHits = new AtomicLong(0);
+	private AtomicLong hits = new AtomicLong(0);
+	private AtomicLong misses = new AtomicLong(0);
+	private AtomicLong waits = new AtomicLong(0);
+	private AtomicLong waitNanos = new AtomicLong(0);
+
+	/**
+	 * @param factory builds new instances
+	 * @param maxInstances maximum number of instances that will ever be built
+	 */
+	public CalcObjectPool(Supplier<E> factory, int maxInstances) {
+		Preconditions.checkArgument(maxInstances > 0, "Must allow at least one instance");
+		this.factory = factory;
+		this.maxInstances = maxInstances;
+	}
+
+	/**
+	 * Creates a pool sized from the heap retained by one instance. The first instance is built immediately, with
+	 * garbage collection before and after to measure the retained heap, and the pool is sized so that all instances
+	 * together use at most the given fraction of the maximum heap.
+	 *
+	 * @param factory builds new instances
+	 * @param heapFraction fraction of the maximum heap that instances may use
+	 * @param minInstances minimum pool size, regardless of the measurement
+	 * @param maxInstances maximum pool size, regardless of the measurement
+	 */
+	public static <E> CalcObjectPool<E> sizedFromHeap(Supplier<E> factory, double heapFraction,
+			int minInstances, int maxInstances) {
+		Preconditions.checkArgument(heapFraction > 0 && heapFraction <= 1, "Heap fraction must be in (0,1]");
+		Preconditions.checkArgument(minInstances > 0 && minInstances <= maxInstances);
+		Runtime runtime = Runtime.getRuntime();
+
+		System.gc();
+		long before = runtime.totalMemory() - runtime.freeMemory();
+		E first = factory.get();
+		System.gc();
+		long after = runtime.totalMemory() - runtime.freeMemory();
+		// at least 1 MB, in case other threads freed memory during the measurement
+		long bytes = Math.max(after - before, 1024l*1024l);
+
+		long fit = (long)(heapFraction*runtime.maxMemory()/bytes);
+		int num = (int)Math.max(minInstances, Math.min(maxInstances, fit));
+
+		CalcObjectPool<E> pool = new CalcObjectPool<>(factory, num);
+		pool.bytesPerInstance = bytes;
+		pool.numBuilt.set(1);
+		pool.misses.incrementAndGet();
+		pool.idle.push(first);
+		return pool;
+	}
+
+	/**
+	 * Creates an unbounded pool of the given GMPE, with default parameters and SA as the intensity measure. GMPEs
+	 * are small, so this allows one per thread. Callers must set the period (and any other parameters they
+	 * need) after checking one out.
+	 *
+	 * @param gmpeRef GMPE to pool
+	 */
+	public static CalcObjectPool<ScalarIMR> forSA_GMPE(AttenRelRef gmpeRef) {
+		return new CalcObjectPool<>(() -> {
+			ScalarIMR gmpe = gmpeRef.instance(null);
+			gmpe.setParamDefaults();
+			gmpe.setIntensityMeasure(SA_Param.NAME);
+			return gmpe;
+		}, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Checks out an instance, building a new one if none are idle and the pool isn't full, otherwise waiting
+	 * until one is checked in.
+	 */
+	public E checkOut() {
+		// first try the instance last used by this thread
+		WeakReference<E> lastRef = lastUsed.get();
+		E last = lastRef == null ? null : lastRef.get();
+		if (last != null && idle.removeFirstOccurrence(last)) {
+			affinityHits.incrementAndGet();
+			return last;
+		}
+
+		E obj = idle.pollFirst();
+		if (obj != null) {
+			hits.incrementAndGet();
+			return obj;
+		}
+
+		// build a new one if we can
+		if (numBuilt.incrementAndGet() <= maxInstances) {
+			try {
+				obj = factory.get();
+			} catch (RuntimeException e) {
+				numBuilt.decrementAndGet();
+				throw e;
+			}
+			misses.incrementAndGet();
+			return obj;
+		}
+		numBuilt.decrementAndGet();
+
+		// wait for one to be checked in
+		waits.incrementAndGet();
+		long start = System.nanoTime();
+		try {
+			obj = idle.takeFirst();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+		return obj;
+	}
+
+	/**
+	 * Returns an instance to the pool
+	 */
+	public void checkIn(E obj) {
+		Preconditions.checkNotNull(obj);
+		lastUsed.set(new WeakReference<>(obj));
+		idle.addFirst(obj);
+	}
+
+	public int getMaxInstances() {
+		return maxInstances;
+	}
+
+	public int getNumBuilt() {
+		return Math.min(numBuilt.get(), maxInstances);
+	}
+
+	public int getNumIdle() {
+		return idle.size();
+	}
+
+	/**
+	 * @return measured heap retained by one instance in bytes, or -1 if not measured
+	 */
+	public long getBytesPerInstance() {
+		return bytesPerInstance;
+	}
+
+	/**
+	 * @return number of check outs that got this thread's previous instance back
+	 */
+	public long getAffinityHits() {
+		return affinityHits.get();
+	}
+
+	/**
+	 * @return number of check outs that got another idle instance
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of check outs that built a new instance
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of check outs that had to wait for an instance
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	/**
+	 * @return total time spent waiting for instances, in milliseconds
+	 */
+	public long getWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+	}
+
+	@Override
+	public String toString() {
+		String str = "CalcObjectPool[built="+getNumBuilt()+"/"+maxInstances+", idle="+getNumIdle()
+			+", affinityHits="+getAffinityHits()+", hits="+getHits()+", misses="+getMisses()
+			+", waits="+getWaits()+", waitMillis="+getWaitMillis();
+		if (bytesPerInstance >= 0)
+			str += ", mbPerInstance="+(float)(bytesPerInstance/(1024d*1024d));
+		return str+"]";
+	}
+
+}
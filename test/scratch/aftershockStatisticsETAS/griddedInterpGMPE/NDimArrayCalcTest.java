@@ -141,6 +141,33 @@ public class NDimArrayCalcTest {
 		}
 	}
 
+	@Test
+	public void testCollapsedStrides() {
+		int maxDim = 5;
+		int numPerDim = 100;
+		for (int nDims=2; nDims<maxDim; nDims++) {
+			for (int i=0; i<numPerDim; i++) {
+				int[] dimensions = randomDims(nDims, 2, 5);
+				NDimArrayCalc calc = new NDimArrayCalc(dimensions);
+				
+				// collapse twice when possible, to also test nested views
+				int numCollapses = nDims > 2 ? 2 : 1;
+				for (int c=0; c<numCollapses; c++) {
+					int[] curDims = calc.getDimensions();
+					int index = r.nextInt(curDims.length);
+					calc = calc.getCollapsedView(index, r.nextInt(curDims[index]));
+				}
+				dimensions = calc.getDimensions();
+				
+				int[] indexes = randomIndex(dimensions);
+				int fromStrides = calc.getOffset();
+				for (int j=0; j<indexes.length; j++)
+					fromStrides += indexes[j]*calc.getStride(j);
+				assertEquals("Bad collapsed stride calc", calc.getIndex(indexes), fromStrides);
+			}
+		}
+	}
+
 	@Test
 	public void testCollapsedFirstIndexAgainstRegular() {
 		int maxDim = 5;
@@ -331,5 +331,88 @@ public class NDimensionalLinearInterpolationTest {
 		secs = (double)watch.elapsed(TimeUnit.MILLISECONDS)/1000d;
 		System.out.println("NDim took "+secs+" secs");
 	}
+	
+	/*
+	 * test allocation free kernels against the general version
+	 */
+	
+	@Test
+	public void testDirect1D() {
+		validateDirect(new int[] { 2+r.nextInt(30) });
+	}
+	
+	@Test
+	public void testDirect2D() {
+		validateDirect(new int[] { 2+r.nextInt(30), 2+r.nextInt(30) });
+	}
+	
+	@Test
+	public void testDirect3D() {
+		validateDirect(new int[] { 2+r.nextInt(20), 2+r.nextInt(20), 2+r.nextInt(20) });
+	}
+	
+	@Test
+	public void testDirect4D() {
+		validateDirect(new int[] { 2+r.nextInt(10), 2+r.nextInt(10), 2+r.nextInt(10), 2+r.nextInt(10) });
+	}
+	
+	private void validateDirect(int[] dimensions) {
+		NDimArrayCalc arrayCalc = new NDimArrayCalc(dimensions);
+		double[] flatArray = new double[arrayCalc.rawArraySize()];
+		for (int i=0; i<flatArray.length; i++)
+			flatArray[i] = r.nextDouble();
+		
+		NDimensionalLinearInterpolation interp = new NDimensionalLinearInterpolation(dimensions.length);
+		
+		int numTests = 10000;
+		double[] indexes = new double[dimensions.length];
+		for (int t=0; t<numTests; t++) {
+			// mix of fixed and interpolated dimensions, including the upper edge
+			for (int i=0; i<indexes.length; i++) {
+				int type = r.nextInt(3);
+				if (type == 0)
+					indexes[i] = r.nextInt(dimensions[i]);
+				else if (type == 1)
+					indexes[i] = dimensions[i] - 1;
+				else
+					indexes[i] = r.nextDouble()*(dimensions[i] - 1);
+			}
+			double expected = interp.interpolate(flatArray, arrayCalc, indexes);
+			double actual = interp.interpolateDirect(flatArray, arrayCalc, indexes);
+			assertEquals(expected, actual, 0d);
+		}
+	}
+	
+	@Test
+	public void testDirectCollapsed() {
+		int[] dimensions = { 2+r.nextInt(10), 2+r.nextInt(10), 2+r.nextInt(10), 2+r.nextInt(10) };
+		NDimArrayCalc arrayCalc = new NDimArrayCalc(dimensions);
+		double[] flatArray = new double[arrayCalc.rawArraySize()];
+		for (int i=0; i<flatArray.length; i++)
+			flatArray[i] = r.nextDouble();
+		
+		int fixedDim = r.nextInt(dimensions.length);
+		int fixedValue = r.nextInt(dimensions[fixedDim]);
+		NDimArrayCalc collapsed = arrayCalc.getCollapsedView(fixedDim, fixedValue);
+		NDimensionalLinearInterpolation interp = new NDimensionalLinearInterpolation(dimensions.length);
+		NDimensionalLinearInterpolation collapsedInterp = new NDimensionalLinearInterpolation(dimensions.length-1);
+		
+		int numTests = 10000;
+		double[] indexes = new double[dimensions.length];
+		double[] collapsedIndexes = new double[dimensions.length-1];
+		for (int t=0; t<numTests; t++) {
+			for (int i=0, j=0; i<indexes.length; i++) {
+				if (i == fixedDim) {
+					indexes[i] = fixedValue;
+					continue;
+				}
+				indexes[i] = r.nextDouble()*(dimensions[i] - 1);
+				collapsedIndexes[j++] = indexes[i];
+			}
+			double expected = interp.interpolate(flatArray, arrayCalc, indexes);
+			double actual = collapsedInterp.interpolateDirect(flatArray, collapsed, collapsedIndexes);
+			assertEquals(expected, actual, 0d);
+		}
+	}
 
 }
@@ -0,0 +1,72 @@
+package scratch.kevin.simulators;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.sha.simulators.RSQSimEvent;
+
+import scratch.kevin.simulators.RSQSimCatalog.Loader;
+
+/**
+ * Checks that loads through the event index match full catalog scans. Needs an RSQSim catalog directory, given
+ * with -Drsqsim.test.catalog=/path/to/catalog, and is skipped otherwise.
+ */
+public class RSQSimCatalogIndexTest {
+
+	private static RSQSimCatalog catalog;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		String path = System.getProperty("rsqsim.test.catalog");
+		Assume.assumeTrue("No test catalog specified", path != null && new File(path).isDirectory());
+		catalog = new RSQSimCatalog(new File(path), "Test Catalog", null, null, null, null, null);
+	}
+
+	private static List<Integer> ids(Iterable<RSQSimEvent> events) {
+		List<Integer> ids = new ArrayList<>();
+		for (RSQSimEvent e : events)
+			ids.add(e.getID());
+		return ids;
+	}
+
+	private static void doTest(Loader indexed, Loader scan) throws IOException {
+		List<Integer> expected = ids(scan.noIndex().load());
+		assertEquals("Indexed load differs from scan", expected, ids(indexed.forceIndex().load()));
+	}
+
+	@Test
+	public void testMinMagSkipYears() throws IOException {
+		// skip years relative to the first M>=7, so can't use the index
+		doTest(catalog.loader().minMag(7d).skipYears(1000), catalog.loader().minMag(7d).skipYears(1000));
+	}
+
+	@Test
+	public void testSkipYearsMinMag() throws IOException {
+		doTest(catalog.loader().skipYears(1000).minMag(7d), catalog.loader().skipYears(1000).minMag(7d));
+	}
+
+	@Test
+	public void testSkipYearsDurationMinMag() throws IOException {
+		// duration relative to the first event after the skipped years
+		doTest(catalog.loader().skipYears(1000).maxDuration(2000).minMag(6.5),
+				catalog.loader().skipYears(1000).maxDuration(2000).minMag(6.5));
+	}
+
+	@Test
+	public void testMinMagDuration() throws IOException {
+		doTest(catalog.loader().minMag(6.5).maxDuration(2000), catalog.loader().minMag(6.5).maxDuration(2000));
+	}
+
+	@Test
+	public void testMagRange() throws IOException {
+		doTest(catalog.loader().minMag(6.5).maxMag(7d), catalog.loader().minMag(6.5).maxMag(7d));
+	}
+
+}